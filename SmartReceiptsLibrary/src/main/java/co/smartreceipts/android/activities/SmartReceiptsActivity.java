@@ -138,6 +138,13 @@ public class SmartReceiptsActivity extends WBActivity implements Navigable, Atta
 				Toast.makeText(this, getString(R.string.dialog_attachment_text, getString(stringId)), Toast.LENGTH_LONG).show();
 			}
 		}
+		getSmartReceiptsApplication().getPersistenceManager().getIntegrityScrubber().start();
+	}
+
+	@Override
+	protected void onPause() {
+		getSmartReceiptsApplication().getPersistenceManager().getIntegrityScrubber().stop();
+		super.onPause();
 	}
 
 	@Override
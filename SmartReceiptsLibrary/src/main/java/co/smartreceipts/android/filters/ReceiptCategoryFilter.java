@@ -47,6 +47,10 @@ public class ReceiptCategoryFilter implements Filter<ReceiptRow> {
 		mCategory = json.getString(CATEGORY);
 	}
 	
+	public String getCategory() {
+		return mCategory;
+	}
+
 	@Override
 	public boolean accept(ReceiptRow t) {
 		return mCategory.equals(t.getCategory());
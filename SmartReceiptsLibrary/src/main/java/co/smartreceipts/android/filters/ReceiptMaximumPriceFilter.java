@@ -30,6 +30,14 @@ public class ReceiptMaximumPriceFilter implements Filter<ReceiptRow> {
 		this.mCurrencyCode = json.getString(CURRENCY_CODE);
 	}
 
+	public float getMaxPrice() {
+		return mMaxPrice;
+	}
+
+	public String getCurrencyCode() {
+		return mCurrencyCode;
+	}
+
 	@Override
 	public boolean accept(ReceiptRow t) {
 		return t.getPriceAsFloat() <= mMaxPrice
@@ -30,6 +30,14 @@ public class ReceiptMinimumPriceFilter implements Filter<ReceiptRow> {
 		this.mCurrencyCode = json.getString(CURRENCY_CODE);
 	}
 
+	public float getMinPrice() {
+		return mMinPrice;
+	}
+
+	public String getCurrencyCode() {
+		return mCurrencyCode;
+	}
+
 	@Override
 	public boolean accept(ReceiptRow t) {
 		return t.getPriceAsFloat() >= mMinPrice
@@ -32,6 +32,14 @@ public class ReceiptOnOrAfterDayFilter implements Filter<ReceiptRow> {
 		mTimeZone = TimeZone.getTimeZone(json.getString(TIMEZONE));
 	}
 
+	public Date getDate() {
+		return mDate;
+	}
+
+	public TimeZone getTimeZone() {
+		return mTimeZone;
+	}
+
 	@Override
 	public boolean accept(ReceiptRow t) {
 		return FilterUtils.isOnOrAfter(t.getDate(), t.getTimeZone(), mDate, mTimeZone);
@@ -472,8 +472,8 @@ public class ReceiptsListFragment extends ReceiptsFragment implements DatabaseHe
 				else {
 					mReceiptsCommentAutoCompleteAdapter.reset();
 				}
-				nameBox.setAdapter(mReceiptsNameAutoCompleteAdapter);
-				commentBox.setAdapter(mReceiptsCommentAutoCompleteAdapter);
+				mReceiptsNameAutoCompleteAdapter.attachTo(nameBox);
+				mReceiptsCommentAutoCompleteAdapter.attachTo(commentBox);
 				mNameBox = nameBox;
 				mCategoriesSpinner = categoriesSpinner;
 				mPriceBox = priceBox;
@@ -215,7 +215,7 @@ public class TripFragment extends WBListFragment implements BooleanTaskCompleteD
 				if (mAutoCompleteAdapter == null) {
 					mAutoCompleteAdapter = AutoCompleteAdapter.getInstance(getActivity(), DatabaseHelper.TAG_TRIPS, db, null);
 				}
-				nameBox.setAdapter(mAutoCompleteAdapter);
+				mAutoCompleteAdapter.attachTo(nameBox);
 			}
 			startBox.setFocusableInTouchMode(false);
 			startBox.setOnClickListener(getDateManager().getDurationDateEditTextListener(endBox));
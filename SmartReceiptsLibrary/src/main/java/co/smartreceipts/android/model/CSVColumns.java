@@ -1,5 +1,7 @@
 package co.smartreceipts.android.model;
 
+import java.io.IOException;
+
 import wb.android.flex.Flex;
 import android.content.Context;
 import co.smartreceipts.android.SmartReceiptsApplication;
@@ -21,22 +23,50 @@ public class CSVColumns extends Columns {
 	}
 
 	public String printHeaders() {
+		final StringBuilder builder = new StringBuilder();
+		try {
+			printHeaders(builder);
+		}
+		catch (IOException e) {
+			// StringBuilder never throws
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Appends the header row directly to the supplied {@link Appendable}, so large reports can be streamed
+	 * to disk without being held in memory.
+	 */
+	public void printHeaders(Appendable out) throws IOException {
 		final int size = mColumns.size();
-		String print = "";
 		for (int i=0; i < size; i++) {
-			print += mColumns.get(i).getColumnType();
+			out.append(mColumns.get(i).getColumnType());
 			if (i == (size - 1)) {
-				print += "\n";
-			} else {
-				print += ",";
+				out.append('\n');
+			}
+			else {
+				out.append(',');
 			}
 		}
-		return print;
 	}
 
 	public String print(ReceiptRow receipt, TripRow currentTrip) {
+		final StringBuilder builder = new StringBuilder();
+		try {
+			print(builder, receipt, currentTrip);
+		}
+		catch (IOException e) {
+			// StringBuilder never throws
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Appends a single receipt row directly to the supplied {@link Appendable}
+	 */
+	public void print(Appendable out, ReceiptRow receipt, TripRow currentTrip) throws IOException {
 		final int size = mColumns.size();
-		String print = "", column;
+		String column;
 		for (int i=0; i < size; i++) {
 			column = generateColumn(mColumns.get(i), receipt, currentTrip);
 
@@ -46,20 +76,19 @@ public class CSVColumns extends Columns {
 			}
 
 			// Append column to print
-			print += column;
+			out.append(column);
 			if (i == (size - 1)) {
-				print += "\n";
+				out.append('\n');
 			}
 			else {
-				print += ",";
+				out.append(',');
 			}
 		}
-		return print;
 	}
 
 	@Override
-	protected String generateColumn(Column column, ReceiptRow receipt, TripRow currentTrip) {
-		String csv = super.generateColumn(column, receipt, currentTrip);
+	protected String generateColumn(ColumnType type, Column column, ReceiptRow receipt, TripRow currentTrip) {
+		String csv = super.generateColumn(type, column, receipt, currentTrip);
 		if (csv == null) {
 			return "";
 		}
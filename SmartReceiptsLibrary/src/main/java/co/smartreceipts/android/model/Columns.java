@@ -50,6 +50,106 @@ public class Columns {
 		public static String EXTRA_EDITTEXT_3= null;
 	}
 
+	/**
+	 * The typed equivalent of the {@link ColumnName} strings. The persisted column type strings are resolved into one
+	 * of these once per {@link Column}, so exports can switch on it instead of comparing strings for every cell
+	 */
+	public static enum ColumnType {
+		BLANK, CATEGORY_CODE, CATEGORY_NAME, COMMENT, CURRENCY, DATE, NAME, PRICE, TAX, REPORT_NAME, REPORT_START_DATE,
+		REPORT_END_DATE, REPORT_COMMENT, USER_ID, IMAGE_FILE_NAME, IMAGE_PATH, PICTURED, INDEX, ID, EXPENSABLE,
+		PAYMENT_METHOD, EXTRA_EDITTEXT_1, EXTRA_EDITTEXT_2, EXTRA_EDITTEXT_3,
+
+		/**
+		 * Any unrecognized column type string, which is printed verbatim
+		 */
+		CUSTOM;
+
+		/**
+		 * Resolves a persisted column type string. The checks (and their order) intentionally mirror the string
+		 * dispatch that previously lived in {@link Columns#generateColumn(Column, ReceiptRow, TripRow)}
+		 */
+		public static ColumnType resolve(String columnType) {
+			if (columnType == null) {
+				return CUSTOM;
+			}
+			else if (columnType.equals(ColumnName.BLANK)) {
+				return BLANK;
+			}
+			else if (columnType.equals(ColumnName.CATEGORY_CODE)) {
+				return CATEGORY_CODE;
+			}
+			else if (columnType.equals(ColumnName.CATEGORY_NAME)) {
+				return CATEGORY_NAME;
+			}
+			else if (columnType.equals(ColumnName.COMMENT)) {
+				return COMMENT;
+			}
+			else if (columnType.equals(ColumnName.CURRENCY)) {
+				return CURRENCY;
+			}
+			else if (columnType.equals(ColumnName.DATE)) {
+				return DATE;
+			}
+			else if (columnType.equals(ColumnName.NAME)) {
+				return NAME;
+			}
+			else if (columnType.equals(ColumnName.PRICE)) {
+				return PRICE;
+			}
+			else if (columnType.equals(ColumnName.TAX)) {
+				return TAX;
+			}
+			else if (columnType.equals(ColumnName.REPORT_NAME)) {
+				return REPORT_NAME;
+			}
+			else if (columnType.equals(ColumnName.REPORT_START_DATE)) {
+				return REPORT_START_DATE;
+			}
+			else if (columnType.equals(ColumnName.REPORT_END_DATE)) {
+				return REPORT_END_DATE;
+			}
+			else if (columnType.equals(ColumnName.REPORT_COMMENT)) {
+				return REPORT_COMMENT;
+			}
+			else if (columnType.equals(ColumnName.USER_ID)) {
+				return USER_ID;
+			}
+			else if (columnType.equals(ColumnName.IMAGE_FILE_NAME)) {
+				return IMAGE_FILE_NAME;
+			}
+			else if (columnType.equals(ColumnName.IMAGE_PATH)) {
+				return IMAGE_PATH;
+			}
+			else if (columnType.equals(ColumnName.PICTURED)) {
+				return PICTURED;
+			}
+			else if (columnType.equals(ColumnName.INDEX)) {
+				return INDEX;
+			}
+			else if (columnType.equals(ColumnName.ID)) {
+				return ID;
+			}
+			else if (columnType.equals(ColumnName.EXPENSABLE)) {
+				return EXPENSABLE;
+			}
+			else if (columnType.equalsIgnoreCase(ColumnName.PAYMENT_METHOD)) {
+				return PAYMENT_METHOD;
+			}
+			else if (columnType.equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_1)) {
+				return EXTRA_EDITTEXT_1;
+			}
+			else if (columnType.equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_2)) {
+				return EXTRA_EDITTEXT_2;
+			}
+			else if (columnType.equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_3)) {
+				return EXTRA_EDITTEXT_3;
+			}
+			else {
+				return CUSTOM;
+			}
+		}
+	}
+
 	protected final ArrayList<Column> mColumns;
 	private final ArrayList<CharSequence> mOptions;
 	private final Context mContext;
@@ -169,88 +269,73 @@ public class Columns {
 	}
 
 	protected String generateColumn(Column column, ReceiptRow receipt, TripRow currentTrip) {
-		if (column.getColumnType().equals(ColumnName.BLANK)) {
-			return "";
-		}
-		else if (column.getColumnType().equals(ColumnName.CATEGORY_CODE)) {
-			return mPersistenceManager.getDatabase().getCategoryCode(receipt.getCategory());
-		}
-		else if (column.getColumnType().equals(ColumnName.CATEGORY_NAME)) {
-			return receipt.getCategory();
-		}
-		else if (column.getColumnType().equals(ColumnName.COMMENT)) {
-			return receipt.getComment();
-		}
-		else if (column.getColumnType().equals(ColumnName.CURRENCY)) {
-			return receipt.getCurrencyCode();
-		}
-		else if (column.getColumnType().equals(ColumnName.DATE)) {
-			return receipt.getFormattedDate(mContext, mPersistenceManager.getPreferences().getDateSeparator());
-		}
-		else if (column.getColumnType().equals(ColumnName.NAME)) {
-			return receipt.getName();
-		}
-		else if (column.getColumnType().equals(ColumnName.PRICE)) {
-			return receipt.getDecimalFormattedPrice();
-		}
-		else if (column.getColumnType().equals(ColumnName.TAX)) {
-			return receipt.getDecimalFormattedTax();
-		}
-		else if (column.getColumnType().equals(ColumnName.REPORT_NAME)) {
-			return currentTrip.getName();
-		}
-		else if (column.getColumnType().equals(ColumnName.REPORT_START_DATE)) {
-			return currentTrip.getFormattedStartDate(mContext, mPersistenceManager.getPreferences().getDateSeparator());
-		}
-		else if (column.getColumnType().equals(ColumnName.REPORT_END_DATE)) {
-			return currentTrip.getFormattedEndDate(mContext, mPersistenceManager.getPreferences().getDateSeparator());
-		}
-		else if (column.getColumnType().equals(ColumnName.REPORT_COMMENT)) {
-			return currentTrip.getComment();
-		}
-		else if (column.getColumnType().equals(ColumnName.USER_ID)) {
-			return mPersistenceManager.getPreferences().getUserID();
-		}
-		else if (column.getColumnType().equals(ColumnName.IMAGE_FILE_NAME)) {
-			return receipt.getFileName();
-		}
-		else if (column.getColumnType().equals(ColumnName.IMAGE_PATH)) {
-			return receipt.getFilePath();
-		}
-		else if (column.getColumnType().equals(ColumnName.PICTURED)) {
-			if (receipt.hasImage()) {
-				return mContext.getString(R.string.yes);
-			}
-			else if (receipt.hasPDF()) {
-				return mContext.getString(R.string.yes_as_pdf);
-			}
-			else {
-				return mContext.getString(R.string.no);
-			}
-		}
-		else if (column.getColumnType().equals(ColumnName.INDEX)) {
-			return Integer.toString(receipt.getIndex());
-		}
-		else if (column.getColumnType().equals(ColumnName.ID)) {
-			return Integer.toString(receipt.getId());
-		}
-		else if (column.getColumnType().equals(ColumnName.EXPENSABLE)) {
-			return (receipt.isExpensable()) ? mContext.getString(R.string.yes) : mContext.getString(R.string.no);
-		}
-		else if (column.getColumnType().equalsIgnoreCase(ColumnName.PAYMENT_METHOD)) {
-			return receipt.hasPaymentMethod() ? receipt.getPaymentMethod().getMethod() : "";
-		}
-		else if (column.getColumnType().equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_1)) {
-			return receipt.getExtraEditText1();
-		}
-		else if (column.getColumnType().equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_2)) {
-			return receipt.getExtraEditText2();
-		}
-		else if (column.getColumnType().equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_3)) {
-			return receipt.getExtraEditText3();
-		}
-		else {
-			return column.getColumnType();
+		return generateColumn(column.getType(), column, receipt, currentTrip);
+	}
+
+	/**
+	 * Renders a single cell for a pre-resolved {@link ColumnType}. This is called for every cell of every receipt
+	 * during an export, so it should never need to compare strings
+	 */
+	protected String generateColumn(ColumnType type, Column column, ReceiptRow receipt, TripRow currentTrip) {
+		switch (type) {
+			case BLANK:
+				return "";
+			case CATEGORY_CODE:
+				return mPersistenceManager.getDatabase().getCategoryCode(receipt.getCategory());
+			case CATEGORY_NAME:
+				return receipt.getCategory();
+			case COMMENT:
+				return receipt.getComment();
+			case CURRENCY:
+				return receipt.getCurrencyCode();
+			case DATE:
+				return receipt.getFormattedDate(mContext, mPersistenceManager.getPreferences().getDateSeparator());
+			case NAME:
+				return receipt.getName();
+			case PRICE:
+				return receipt.getDecimalFormattedPrice();
+			case TAX:
+				return receipt.getDecimalFormattedTax();
+			case REPORT_NAME:
+				return currentTrip.getName();
+			case REPORT_START_DATE:
+				return currentTrip.getFormattedStartDate(mContext, mPersistenceManager.getPreferences().getDateSeparator());
+			case REPORT_END_DATE:
+				return currentTrip.getFormattedEndDate(mContext, mPersistenceManager.getPreferences().getDateSeparator());
+			case REPORT_COMMENT:
+				return currentTrip.getComment();
+			case USER_ID:
+				return mPersistenceManager.getPreferences().getUserID();
+			case IMAGE_FILE_NAME:
+				return receipt.getFileName();
+			case IMAGE_PATH:
+				return receipt.getFilePath();
+			case PICTURED:
+				if (receipt.hasImage()) {
+					return mContext.getString(R.string.yes);
+				}
+				else if (receipt.hasPDF()) {
+					return mContext.getString(R.string.yes_as_pdf);
+				}
+				else {
+					return mContext.getString(R.string.no);
+				}
+			case INDEX:
+				return Integer.toString(receipt.getIndex());
+			case ID:
+				return Integer.toString(receipt.getId());
+			case EXPENSABLE:
+				return (receipt.isExpensable()) ? mContext.getString(R.string.yes) : mContext.getString(R.string.no);
+			case PAYMENT_METHOD:
+				return receipt.hasPaymentMethod() ? receipt.getPaymentMethod().getMethod() : "";
+			case EXTRA_EDITTEXT_1:
+				return receipt.getExtraEditText1();
+			case EXTRA_EDITTEXT_2:
+				return receipt.getExtraEditText2();
+			case EXTRA_EDITTEXT_3:
+				return receipt.getExtraEditText3();
+			default:
+				return column.getColumnType();
 		}
 	}
 
@@ -305,6 +390,12 @@ public class Columns {
 		 */
 		private String mColumnType;
 
+		/**
+		 * The resolved {@link ColumnType} for {@link #mColumnType}. This is lazily computed and cleared whenever the
+		 * type string changes
+		 */
+		private ColumnType mType;
+
 		Column(int index, String columnType) {
 			mIndex = index;
 			mColumnType = columnType;
@@ -318,12 +409,20 @@ public class Columns {
 			return mColumnType;
 		}
 
+		public ColumnType getType() {
+			if (mType == null) {
+				mType = ColumnType.resolve(mColumnType);
+			}
+			return mType;
+		}
+
 		public void setIndex(int index) {
 			mIndex = index;
 		}
 
 		public void setColumnType(String columnType) {
 			mColumnType = columnType;
+			mType = null;
 		}
 
 		@Override
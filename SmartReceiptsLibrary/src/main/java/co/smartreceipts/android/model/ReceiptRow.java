@@ -19,6 +19,11 @@ public class ReceiptRow implements Parcelable {
 
 	public static final String PARCEL_KEY = "co.smartreceipts.android.ReceiptRow";
 
+	// Whether mFile exists. This is either recorded by the integrity scrubber or checked (once) on first use
+	private static final int FILE_STATE_UNKNOWN = 0;
+	private static final int FILE_STATE_PRESENT = 1;
+	private static final int FILE_STATE_MISSING = 2;
+
 	private final int mId;
 	private TripRow mTrip;
 	private PaymentMethod mPaymentMethod;
@@ -33,6 +38,7 @@ public class ReceiptRow implements Parcelable {
 	private WBCurrency mCurrency;
 	private DecimalFormat mDecimalFormat;
 	private SourceEnum mSource;
+	private volatile int mFileState;
 
 	private ReceiptRow(int id) {
 		mId = id;
@@ -51,6 +57,7 @@ public class ReceiptRow implements Parcelable {
 		mTax = new BigDecimal(in.readFloat());
 		final String fileName = in.readString();
 		mFile = TextUtils.isEmpty(fileName) ? null : new File(fileName);
+		mFileState = in.readInt();
 		mDate = new Date(in.readLong());
 		mCurrency = WBCurrency.getInstance(in.readString());
 		mIsExpensable = (in.readByte() != 0);
@@ -89,11 +96,11 @@ public class ReceiptRow implements Parcelable {
 	}
 
 	public boolean hasFile() {
-		return (mFile != null && mFile.exists());
+		return (mFile != null && fileExists());
 	}
 
 	public boolean hasImage() {
-		if (mFile != null && mFile.exists()) {
+		if (mFile != null && fileExists()) {
 			final String extension = StorageManager.getExtension(mFile);
 			if (extension != null
 					&& (extension.equalsIgnoreCase("jpg") || extension.equalsIgnoreCase("jpeg") || extension
@@ -110,7 +117,7 @@ public class ReceiptRow implements Parcelable {
 	}
 
 	public boolean hasPDF() {
-		if (mFile != null && mFile.exists()) {
+		if (mFile != null && fileExists()) {
 			final String extension = StorageManager.getExtension(mFile);
 			if (extension != null && extension.equalsIgnoreCase("pdf")) {
 				return true;
@@ -124,6 +131,15 @@ public class ReceiptRow implements Parcelable {
 		}
 	}
 
+	private boolean fileExists() {
+		int state = mFileState;
+		if (state == FILE_STATE_UNKNOWN) {
+			state = mFile.exists() ? FILE_STATE_PRESENT : FILE_STATE_MISSING;
+			mFileState = state;
+		}
+		return state == FILE_STATE_PRESENT;
+	}
+
 	public String getMarkerAsString(Context context) {
 		if (context == null) {
 			return new String();
@@ -322,6 +338,7 @@ public class ReceiptRow implements Parcelable {
 
 	public void setFile(File file) {
 		mFile = file;
+		mFileState = FILE_STATE_UNKNOWN;
 	}
 
 	/**
@@ -330,7 +347,7 @@ public class ReceiptRow implements Parcelable {
 	 * @param img
 	 */
 	public void setImage(File img) {
-		mFile = img;
+		setFile(img);
 	}
 
 	/**
@@ -339,7 +356,30 @@ public class ReceiptRow implements Parcelable {
 	 * @param pdf
 	 */
 	public void setPDF(File pdf) {
-		mFile = pdf;
+		setFile(pdf);
+	}
+
+	/**
+	 * Records whether the file of this receipt exists, so {@link #hasFile()} and friends do not need to check the file
+	 * system. This is called with the state that the integrity scrubber last found.
+	 */
+	public void setFileExists(boolean exists) {
+		mFileState = exists ? FILE_STATE_PRESENT : FILE_STATE_MISSING;
+	}
+
+	/**
+	 * Checks the file system again, rather than trusting the recorded state (which is only as fresh as the last scrub),
+	 * and records the result. Call this right before the file is opened.
+	 * 
+	 * @return {@code true} if this receipt has a file and it exists
+	 */
+	public boolean checkFileExists() {
+		if (mFile == null) {
+			return false;
+		}
+		final boolean exists = mFile.exists();
+		setFileExists(exists);
+		return exists;
 	}
 
 	void setCurrency(WBCurrency currency) {
@@ -493,7 +533,8 @@ public class ReceiptRow implements Parcelable {
 		dest.writeString(getComment());
 		dest.writeFloat(getPriceAsFloat());
 		dest.writeFloat(getTaxAsFloat());
-		dest.writeString(getFilePath());
+		dest.writeString((mFile != null) ? mFile.getAbsolutePath() : ""); // Even if it is missing, since that may be stale
+		dest.writeInt(mFileState);
 		dest.writeLong(getDate().getTime());
 		dest.writeString(getCurrencyCode());
 		dest.writeByte((byte) (isExpensable() ? 1 : 0));
@@ -26,6 +26,12 @@ public final class TripRow implements Parcelable {
 
 	private static final String EMPTY_PRICE = "0.00";
 
+	/**
+	 * The id of a trip that has not (yet) been read from or saved to the database
+	 */
+	public static final int MISSING_ID = -1;
+
+	private final int mId;
 	private final File mReportDirectory;
 	private String mComment;
 	private BigDecimal mPrice, mDailySubTotal;
@@ -37,7 +43,8 @@ public final class TripRow implements Parcelable {
 	private DecimalFormat mDecimalFormat;
 	private Filter<ReceiptRow> mFilter;
 
-	private TripRow(File directory, Date startDate, Date endDate, WBCurrency currency, float miles, SourceEnum source) {
+	private TripRow(int id, File directory, Date startDate, Date endDate, WBCurrency currency, float miles, SourceEnum source) {
+		mId = id;
 		mReportDirectory = directory;
 		mStartDate = startDate;
 		mEndDate = endDate;
@@ -58,9 +65,17 @@ public final class TripRow implements Parcelable {
 		mDailySubTotal = new BigDecimal(in.readFloat());
 		mComment = in.readString();
 		mDefaultCurrency = WBCurrency.getInstance(in.readString());
+		mId = in.readInt();
 		mSource = SourceEnum.Parcel;
 	}
 
+	/**
+	 * @return the database id of this trip or {@link #MISSING_ID} if it has none. Unlike the name, this never changes
+	 */
+	public int getId() {
+		return mId;
+	}
+
 	// TODO: Add null safety checks?
 	public String getName() {
 		return mReportDirectory.getName();
@@ -354,6 +369,7 @@ public final class TripRow implements Parcelable {
 		dest.writeFloat(getDailySubTotalAsFloat());
 		dest.writeString(getComment());
 		dest.writeString(getDefaultCurrencyCode());
+		dest.writeInt(getId());
 	}
 
 	private DecimalFormat getDecimalFormat() {
@@ -403,6 +419,7 @@ public final class TripRow implements Parcelable {
 
 	public static class Builder {
 
+		private int _id;
 		private File _dir;
 		private String _comment;
 		private Date _startDate, _endDate;
@@ -413,6 +430,7 @@ public final class TripRow implements Parcelable {
 		private SourceEnum _source;
 
 		public Builder() {
+			_id = MISSING_ID;
 			_miles = 0;
 			_source = SourceEnum.Undefined;
 			_startTimeZone = TimeZone.getDefault();
@@ -420,6 +438,11 @@ public final class TripRow implements Parcelable {
 			// Be sure to update reset here too
 		}
 
+		public Builder setId(int id) {
+			_id = id;
+			return this;
+		}
+
 		public Builder setDirectory(File directory) {
 			_dir = directory;
 			return this;
@@ -551,7 +574,7 @@ public final class TripRow implements Parcelable {
 		}
 
 		public TripRow build() {
-			TripRow tripRow = new TripRow(_dir, _startDate, _endDate, _currency, _miles, _source);
+			TripRow tripRow = new TripRow(_id, _dir, _startDate, _endDate, _currency, _miles, _source);
 			tripRow.setStartTimeZone(_startTimeZone);
 			tripRow.setEndTimeZone(_endTimeZone);
 			tripRow.setDefaultCurrency(_defaultCurrency);
@@ -561,6 +584,7 @@ public final class TripRow implements Parcelable {
 		}
 
 		public void reset() {
+			_id = MISSING_ID;
 			_dir = null;
 			_startDate = null;
 			_endDate = null;
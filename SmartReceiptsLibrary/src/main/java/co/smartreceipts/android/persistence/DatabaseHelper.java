@@ -10,27 +10,43 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import wb.android.autocomplete.AutoCompleteAdapter;
 import wb.android.flex.Flex;
 import wb.android.storage.StorageManager;
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
 import co.smartreceipts.android.BuildConfig;
 import co.smartreceipts.android.SmartReceiptsApplication;
 import co.smartreceipts.android.date.DateUtils;
+import co.smartreceipts.android.filters.Filter;
 import co.smartreceipts.android.model.CSVColumns;
 import co.smartreceipts.android.model.Columns.Column;
 import co.smartreceipts.android.model.PDFColumns;
@@ -49,10 +65,18 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 
 	// Database Info
 	public static final String DATABASE_NAME = "receipts.db";
-	private static final int DATABASE_VERSION = 12;
+	private static final int DATABASE_VERSION = 18;
 	public static final String NO_DATA = "null"; // TODO: Just set to null
 	static final String MULTI_CURRENCY = "XXXXXX";
 
+	private static final int MERGE_BATCH_SIZE = 250;
+	private static final int BULK_DELETE_BATCH_SIZE = 500; // Stays well under SQLite's limit of 999 bound args
+	private static final int IN_LIST_BATCH_SIZE = 500; // Ids per IN (...) lookup, also under that limit
+	private static final int BULK_COPY_THREADS = 4;
+
+	// Receipts are ordered by a sparse sort key, which starts out as the receipt date times this spacing
+	private static final long SORT_KEY_SPACING = 1L << 16;
+
 	// Tags
 	public static final String TAG_TRIPS = "Trips";
 	public static final String TAG_RECEIPTS_NAME = "Receipts";
@@ -61,16 +85,17 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	// InstanceVar
 	private static DatabaseHelper INSTANCE = null;
 
-	// Caching Vars
-	private TripRow[] mTripsCache;
-	private boolean mAreTripsValid;
-	private final HashMap<TripRow, List<ReceiptRow>> mReceiptCache;
-	private int mNextReceiptAutoIncrementId = -1;
-	private HashMap<String, String> mCategories;
+	// Caching Vars (the trips cache holds an immutable snapshot, which is null when invalid)
+	private final AtomicReference<TripRow[]> mTripsCache = new AtomicReference<TripRow[]>();
+	private final AtomicInteger mTripsCacheVersion = new AtomicInteger();
+	private final ReceiptCache mReceiptCache;
+	private final ReceiptPredictionModel mPredictionModel;
+	private volatile int mNextReceiptAutoIncrementId = -1;
+	private volatile HashMap<String, String> mCategories;
 	private ArrayList<CharSequence> mCategoryList, mCurrencyList;
-	private CSVColumns mCSVColumns;
-	private PDFColumns mPDFColumns;
-	private List<PaymentMethod> mPaymentMethods;
+	private volatile CSVColumns mCSVColumns;
+	private volatile PDFColumns mPDFColumns;
+	private volatile List<PaymentMethod> mPaymentMethods;
 	private Time mNow;
 
 	// Other vars
@@ -84,13 +109,13 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	private ReceiptRowListener mReceiptRowListener;
 	private ReceiptRowGraphListener mReceiptRowGraphListener;
 
-	// Locks
-	private final Object mDatabaseLock = new Object();
-	private final Object mReceiptCacheLock = new Object();
-	private final Object mTripCacheLock = new Object();
+	// Locks (any number of readers or a single writer. Never request the write lock while holding the read lock)
+	private final ReentrantReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+	private final Lock mReadLock = mDatabaseLock.readLock();
+	private final Lock mWriteLock = mDatabaseLock.writeLock();
 
 	// Misc Vars
-	private boolean mIsDBOpen = false;
+	private volatile boolean mIsDBOpen = false;
 
 	// Hack to prevent Recursive Database Calling
 	private SQLiteDatabase _initDB; // This is only set while either onCreate or onUpdate is running. It is null all
@@ -145,6 +170,24 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		public void onGraphQuerySuccess(List<ReceiptRow> receipts);
 	}
 
+	public interface MergeProgressListener {
+		public void onMergeProgress(int merged, int total);
+	}
+
+	public interface BulkReceiptListener {
+		public void onReceiptsCopySuccess(TripRow newTrip, int count);
+
+		public void onReceiptsCopyFailure();
+
+		public void onReceiptsMoveSuccess(TripRow newTrip, int count);
+
+		public void onReceiptsMoveFailure();
+
+		public void onReceiptsDeleteSuccess(TripRow trip, int count);
+
+		public void onReceiptsDeleteFailure();
+	}
+
 	public interface TableDefaultsCustomizer {
 		public void onFirstRun();
 
@@ -164,6 +207,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 
 		public static final String TABLE_NAME = "trips";
+		public static final String COLUMN_ID = "id";
 		public static final String COLUMN_NAME = "name";
 		public static final String COLUMN_FROM = "from_date";
 		public static final String COLUMN_TO = "to_date";
@@ -178,7 +222,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		public static final String COLUMN_FILTERS = "trips_filters";
 	}
 
-	private static final class ReceiptsTable {
+	static final class ReceiptsTable {
 		private ReceiptsTable() {
 		}
 
@@ -200,6 +244,48 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		public static final String COLUMN_EXTRA_EDITTEXT_1 = "extra_edittext_1";
 		public static final String COLUMN_EXTRA_EDITTEXT_2 = "extra_edittext_2";
 		public static final String COLUMN_EXTRA_EDITTEXT_3 = "extra_edittext_3";
+		public static final String COLUMN_SORT_KEY = "sort_key";
+
+		public static final String INDEX_PARENT_DATE = "receipts_parent_date_idx";
+		public static final String INDEX_PARENT_CURRENCY = "receipts_parent_currency_idx";
+		public static final String INDEX_PARENT_SORT_KEY = "receipts_parent_sort_key_idx";
+	}
+
+	/**
+	 * An aggregate of the receipts table, which is maintained by triggers on every receipt insert, update, and delete.
+	 * Each row stores the totals for a single trip, currency, and bucket. The {@link #ALL_TIME_BUCKET} holds the totals
+	 * across all dates, while every other bucket holds the totals for a fifteen minute window (i.e. the receipt date
+	 * divided by {@link #BUCKET_MILLIS}). We use fifteen minute windows instead of days, since all real time zone
+	 * offsets are a multiple of this and the "today" boundaries can therefore be resolved for any time zone.
+	 */
+	private static final class TripTotalsTable {
+		private TripTotalsTable() {
+		}
+
+		public static final String TABLE_NAME = "trip_totals";
+		public static final String COLUMN_PARENT = "parent";
+		public static final String COLUMN_ISO4217 = "isocode";
+		public static final String COLUMN_BUCKET = "bucket";
+		public static final String COLUMN_TOTAL = "total";
+		public static final String COLUMN_EXPENSABLE_TOTAL = "expensable_total";
+		public static final String COLUMN_COUNT = "receipt_count";
+
+		public static final long ALL_TIME_BUCKET = -1;
+		public static final long BUCKET_MILLIS = 15 * 60 * 1000;
+	}
+
+	/**
+	 * A full text index over the searchable text of each receipt, which is kept in sync with the receipts table by
+	 * triggers. The docid of each row is the id of its receipt. This uses FTS3, since FTS4 requires SQLite 3.7.4 (i.e.
+	 * Honeycomb) and we still support Gingerbread.
+	 */
+	private static final class ReceiptsSearchTable {
+		private ReceiptsSearchTable() {
+		}
+
+		public static final String TABLE_NAME = "receipts_search";
+		public static final String COLUMN_DOCID = "docid";
+		public static final String[] COLUMNS = { ReceiptsTable.COLUMN_NAME, ReceiptsTable.COLUMN_COMMENT, ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3 };
 	}
 
 	private static final class CategoriesTable {
@@ -239,11 +325,42 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		public static final String COLUMN_METHOD = "method";
 	}
 
+	/**
+	 * The file state that the {@link IntegrityScrubber} last recorded for each receipt. This is kept apart from the
+	 * receipts table, so a scrub never invalidates (or triggers on) the receipts themselves. Each row describes the path
+	 * that the receipt referenced when it was checked, so a row for an older path is simply stale.
+	 */
+	private static final class ReceiptFilesTable {
+		private ReceiptFilesTable() {
+		}
+
+		public static final String TABLE_NAME = "receipt_files";
+		public static final String COLUMN_RECEIPT_ID = "receipt_id";
+		public static final String COLUMN_PATH = "path";
+		public static final String COLUMN_EXISTS = "file_exists";
+		public static final String COLUMN_SIZE = "size";
+		public static final String COLUMN_MODIFIED = "modified";
+		public static final String COLUMN_CHECKSUM = "checksum";
+	}
+
+	/**
+	 * The files that the {@link IntegrityScrubber} found in a trip directory, but which no receipt refers to
+	 */
+	private static final class OrphanFilesTable {
+		private OrphanFilesTable() {
+		}
+
+		public static final String TABLE_NAME = "orphan_files";
+		public static final String COLUMN_PARENT = "parent";
+		public static final String COLUMN_NAME = "name";
+		public static final String COLUMN_SIZE = "size";
+	}
+
 	private DatabaseHelper(SmartReceiptsApplication application, PersistenceManager persistenceManager, String databasePath) {
 		super(application.getApplicationContext(), databasePath, null, DATABASE_VERSION); // Requests the default cursor
 																							// factory
-		mAreTripsValid = false;
-		mReceiptCache = new HashMap<TripRow, List<ReceiptRow>>();
+		mReceiptCache = new ReceiptCache();
+		mPredictionModel = new ReceiptPredictionModel();
 		mContext = application.getApplicationContext();
 		mFlex = application.getFlex();
 		mPersistenceManager = persistenceManager;
@@ -287,13 +404,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	@Override
 	public void onCreate(final SQLiteDatabase db) {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			_initDB = db;
 			// N.B. This only gets called if you actually request the database using the getDatabase method
-			final String trips = "CREATE TABLE " + TripsTable.TABLE_NAME + " (" + TripsTable.COLUMN_NAME + " TEXT PRIMARY KEY, " + TripsTable.COLUMN_FROM + " DATE, " + TripsTable.COLUMN_TO + " DATE, " + TripsTable.COLUMN_FROM_TIMEZONE + " TEXT, " + TripsTable.COLUMN_TO_TIMEZONE + " TEXT, "
-			/* + TripsTable.COLUMN_PRICE + " DECIMAL(10, 2) DEFAULT 0.00, " */
-			+ TripsTable.COLUMN_MILEAGE + " DECIMAL(10, 2) DEFAULT 0.00, " + TripsTable.COLUMN_COMMENT + " TEXT, " + TripsTable.COLUMN_DEFAULT_CURRENCY + " TEXT, " + TripsTable.COLUMN_FILTERS + " TEXT" + ");";
-			final String receipts = "CREATE TABLE " + ReceiptsTable.TABLE_NAME + " (" + ReceiptsTable.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + ReceiptsTable.COLUMN_PATH + " TEXT, " + ReceiptsTable.COLUMN_PARENT + " TEXT REFERENCES " + TripsTable.TABLE_NAME + " ON DELETE CASCADE, " + ReceiptsTable.COLUMN_NAME + " TEXT DEFAULT \"New Receipt\", " + ReceiptsTable.COLUMN_CATEGORY + " TEXT, " + ReceiptsTable.COLUMN_DATE + " DATE DEFAULT (DATE('now', 'localtime')), " + ReceiptsTable.COLUMN_TIMEZONE + " TEXT, " + ReceiptsTable.COLUMN_COMMENT + " TEXT, " + ReceiptsTable.COLUMN_ISO4217 + " TEXT NOT NULL, " + ReceiptsTable.COLUMN_PRICE + " DECIMAL(10, 2) DEFAULT 0.00, " + ReceiptsTable.COLUMN_TAX + " DECIMAL(10, 2) DEFAULT 0.00, " + ReceiptsTable.COLUMN_PAYMENT_METHOD_ID + " INTEGER REFERENCES " + PaymentMethodsTable.TABLE_NAME + " ON DELETE NO ACTION, " + ReceiptsTable.COLUMN_EXPENSEABLE + " BOOLEAN DEFAULT 1, " + ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE + " BOOLEAN DEFAULT 1, " + ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1 + " TEXT, " + ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2 + " TEXT, " + ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3 + " TEXT" + ");";
+			final String trips = getCreateTripsSql(TripsTable.TABLE_NAME);
+			final String receipts = getCreateReceiptsSql(ReceiptsTable.TABLE_NAME);
 			final String categories = "CREATE TABLE " + CategoriesTable.TABLE_NAME + " (" + CategoriesTable.COLUMN_NAME + " TEXT PRIMARY KEY, " + CategoriesTable.COLUMN_CODE + " TEXT, " + CategoriesTable.COLUMN_BREAKDOWN + " BOOLEAN DEFAULT 1" + ");";
 			if (BuildConfig.DEBUG) {
 				Log.d(TAG, trips);
@@ -307,19 +423,27 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			db.execSQL(trips);
 			db.execSQL(receipts);
 			db.execSQL(categories);
+			this.createReceiptsIndexes(db);
+			this.createReceiptsSortKeyIndex(db);
+			this.createReceiptsSearchTable(db);
 			this.createCSVTable(db);
 			this.createPDFTable(db);
 			this.createPaymentMethodsTable(db);
+			this.createTripTotalsTable(db);
+			this.createIntegrityTables(db);
 			mCustomizations.insertCategoryDefaults(this);
 			mCustomizations.onFirstRun();
 			_initDB = null;
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	@Override
 	public final void onUpgrade(final SQLiteDatabase db, int oldVersion, final int newVersion) {
-		synchronized (mDatabaseLock) {
-
+		mWriteLock.lock();
+		try {
 			if (D) {
 				Log.d(TAG, "Upgrading the database from version " + oldVersion + " to " + newVersion);
 			}
@@ -489,16 +613,119 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				db.execSQL(alterTrips);
 				db.execSQL(alterReceipts);
 			}
+			if (oldVersion <= 12) { // Added the trip totals aggregate table
+				this.createTripTotalsTable(db);
+				this.rebuildTripTotals(db);
+			}
+			if (oldVersion <= 13) { // Added indexes for the per trip receipt queries
+				this.createReceiptsIndexes(db);
+			}
+			if (oldVersion <= 14) { // Added the full text search index
+				this.createReceiptsSearchTable(db);
+			}
+			if (oldVersion <= 15) { // Added an explicit sort order for receipts
+				final String alterReceipts = "ALTER TABLE " + ReceiptsTable.TABLE_NAME + " ADD " + ReceiptsTable.COLUMN_SORT_KEY + " INTEGER";
+				if (BuildConfig.DEBUG) {
+					Log.d(TAG, alterReceipts);
+				}
+				db.execSQL(alterReceipts);
+				db.execSQL(getFillSortKeysSql());
+				this.createReceiptsSortKeyIndex(db);
+			}
+			if (oldVersion <= 16) { // Receipts now reference trips by a surrogate id instead of by name
+				this.migrateToTripIds(db);
+			}
+			if (oldVersion <= 17) { // Added the tables of the integrity scrubber
+				this.createIntegrityTables(db);
+			}
 			_initDB = null;
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	@Override
 	public void onOpen(SQLiteDatabase db) {
 		super.onOpen(db);
+		enableWriteAheadLogging(db);
 		mIsDBOpen = true;
 	}
 
+	/**
+	 * Write-ahead logging allows our readers to run concurrently with (and on separate connections from) the writer
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void enableWriteAheadLogging(SQLiteDatabase db) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+			try {
+				if (!db.enableWriteAheadLogging()) {
+					Log.w(TAG, "Failed to enable write-ahead logging");
+				}
+			}
+			catch (RuntimeException e) {
+				// Some file systems do not support the shared memory file. We'll just keep using the rollback journal
+				Log.w(TAG, "Failed to enable write-ahead logging: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Copies any committed changes from the write-ahead log back into the main database file. This should be called
+	 * before the database file is copied (e.g. for a backup), since the log file would otherwise be left behind.
+	 */
+	public final void checkpoint() {
+		mWriteLock.lock();
+		try {
+			checkpointHelper(this.getWritableDatabase());
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Checkpoints the database and copies its file while holding the write lock, so no other write can land between
+	 * the two steps and be left out of the copy
+	 *
+	 * @param storageManager
+	 *            - the {@link StorageManager} used to perform the copy
+	 * @param database
+	 *            - the database file
+	 * @param destination
+	 *            - the file to copy it to (overwritten if it exists)
+	 * @throws IOException
+	 *             if the copy fails
+	 */
+	public final void copyDatabase(StorageManager storageManager, File database, File destination) throws IOException {
+		mWriteLock.lock();
+		try {
+			checkpointHelper(this.getWritableDatabase());
+			storageManager.copy(database, destination, true);
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	private void checkpointHelper(SQLiteDatabase db) {
+		Cursor c = null;
+		try {
+			c = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+			if (c != null) {
+				c.moveToFirst();
+			}
+		}
+		catch (SQLiteException e) {
+			Log.w(TAG, "Failed to checkpoint the database: " + e.toString());
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+
 	@Override
 	public synchronized void close() {
 		super.close();
@@ -550,6 +777,189 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	 * (receiptsCursor.moveToNext()); } mContext.getStorageManager().write("db.txt", data); }
 	 */
 
+	/**
+	 * Trips are keyed by a surrogate id, which the receipts (and trip totals) reference. The name is a plain unique
+	 * column, so renaming a trip only ever updates its own row.
+	 */
+	private static String getCreateTripsSql(final String tableName) {
+		return "CREATE TABLE " + tableName + " (" + TripsTable.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + TripsTable.COLUMN_NAME + " TEXT NOT NULL UNIQUE, " + TripsTable.COLUMN_FROM + " DATE, " + TripsTable.COLUMN_TO + " DATE, " + TripsTable.COLUMN_FROM_TIMEZONE + " TEXT, " + TripsTable.COLUMN_TO_TIMEZONE + " TEXT, "
+		/* + TripsTable.COLUMN_PRICE + " DECIMAL(10, 2) DEFAULT 0.00, " */
+		+ TripsTable.COLUMN_MILEAGE + " DECIMAL(10, 2) DEFAULT 0.00, " + TripsTable.COLUMN_COMMENT + " TEXT, " + TripsTable.COLUMN_DEFAULT_CURRENCY + " TEXT, " + TripsTable.COLUMN_FILTERS + " TEXT" + ");";
+	}
+
+	private static String getCreateReceiptsSql(final String tableName) {
+		return "CREATE TABLE " + tableName + " (" + ReceiptsTable.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + ReceiptsTable.COLUMN_PATH + " TEXT, " + ReceiptsTable.COLUMN_PARENT + " INTEGER REFERENCES " + TripsTable.TABLE_NAME + " ON DELETE CASCADE, " + ReceiptsTable.COLUMN_NAME + " TEXT DEFAULT \"New Receipt\", " + ReceiptsTable.COLUMN_CATEGORY + " TEXT, " + ReceiptsTable.COLUMN_DATE + " DATE DEFAULT (DATE('now', 'localtime')), " + ReceiptsTable.COLUMN_TIMEZONE + " TEXT, " + ReceiptsTable.COLUMN_COMMENT + " TEXT, " + ReceiptsTable.COLUMN_ISO4217 + " TEXT NOT NULL, " + ReceiptsTable.COLUMN_PRICE + " DECIMAL(10, 2) DEFAULT 0.00, " + ReceiptsTable.COLUMN_TAX + " DECIMAL(10, 2) DEFAULT 0.00, " + ReceiptsTable.COLUMN_PAYMENT_METHOD_ID + " INTEGER REFERENCES " + PaymentMethodsTable.TABLE_NAME + " ON DELETE NO ACTION, " + ReceiptsTable.COLUMN_EXPENSEABLE + " BOOLEAN DEFAULT 1, " + ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE + " BOOLEAN DEFAULT 1, " + ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1 + " TEXT, " + ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2 + " TEXT, " + ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3 + " TEXT, " + ReceiptsTable.COLUMN_SORT_KEY + " INTEGER" + ");";
+	}
+
+	/**
+	 * Rebuilds the trips and receipts tables (which SQLite cannot re-key in place), so that trips get a surrogate id and
+	 * each receipt references its trip by that id instead of by name. Receipts whose parent trip no longer exists get a
+	 * recovered trip of the same name (which is also the directory that holds their files), spanning their dates. Only
+	 * receipts without any parent are dropped. Since dropping the old receipts table drops its indexes and triggers, these (and the trip totals and
+	 * full text tables that they maintain) are re-created afterwards. Called from onUpgrade only.
+	 */
+	private final void migrateToTripIds(final SQLiteDatabase db) {
+		final String newTrips = TripsTable.TABLE_NAME + "_new";
+		final String newReceipts = ReceiptsTable.TABLE_NAME + "_new";
+		final String tripColumns = TripsTable.COLUMN_NAME + ", " + TripsTable.COLUMN_FROM + ", " + TripsTable.COLUMN_TO + ", " + TripsTable.COLUMN_FROM_TIMEZONE + ", " + TripsTable.COLUMN_TO_TIMEZONE + ", " + TripsTable.COLUMN_MILEAGE + ", " + TripsTable.COLUMN_COMMENT + ", " + TripsTable.COLUMN_DEFAULT_CURRENCY + ", " + TripsTable.COLUMN_FILTERS;
+		final String[] receiptColumns = { ReceiptsTable.COLUMN_PATH, ReceiptsTable.COLUMN_NAME, ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_DATE, ReceiptsTable.COLUMN_TIMEZONE, ReceiptsTable.COLUMN_COMMENT, ReceiptsTable.COLUMN_ISO4217, ReceiptsTable.COLUMN_PRICE, ReceiptsTable.COLUMN_TAX, ReceiptsTable.COLUMN_PAYMENT_METHOD_ID, ReceiptsTable.COLUMN_EXPENSEABLE, ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3, ReceiptsTable.COLUMN_SORT_KEY };
+		final String copyTrips = "INSERT INTO " + newTrips + " (" + tripColumns + ") SELECT " + tripColumns + " FROM " + TripsTable.TABLE_NAME;
+		final String orphaned = ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + " NOT IN (SELECT " + TripsTable.COLUMN_NAME + " FROM " + TripsTable.TABLE_NAME + ")";
+		final String recoverTrips = "INSERT INTO " + newTrips + " (" + TripsTable.COLUMN_NAME + ", " + TripsTable.COLUMN_FROM + ", " + TripsTable.COLUMN_TO + ", " + TripsTable.COLUMN_DEFAULT_CURRENCY + ") SELECT " + ReceiptsTable.COLUMN_PARENT + ", MIN(" + ReceiptsTable.COLUMN_DATE + "), MAX(" + ReceiptsTable.COLUMN_DATE + "), MAX(" + ReceiptsTable.COLUMN_ISO4217 + ") FROM " + orphaned + " GROUP BY " + ReceiptsTable.COLUMN_PARENT;
+		final String copyReceipts = "INSERT INTO " + newReceipts + " (" + ReceiptsTable.COLUMN_ID + ", " + ReceiptsTable.COLUMN_PARENT + ", " + TextUtils.join(", ", receiptColumns) + ") SELECT r." + ReceiptsTable.COLUMN_ID + ", t." + TripsTable.COLUMN_ID + ", r." + TextUtils.join(", r.", receiptColumns) + " FROM " + ReceiptsTable.TABLE_NAME + " r INNER JOIN " + newTrips + " t ON r." + ReceiptsTable.COLUMN_PARENT + " = t." + TripsTable.COLUMN_NAME;
+		final long orphanCount = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + orphaned, null);
+		final long droppedCount = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + " IS NULL", null);
+		if (orphanCount > 0 || droppedCount > 0) {
+			Log.w(TAG, "Recovering trips for " + orphanCount + " orphaned receipts and dropping " + droppedCount + " receipts without a trip");
+		}
+		final String[] statements = { getCreateTripsSql(newTrips), copyTrips, recoverTrips, getCreateReceiptsSql(newReceipts), copyReceipts, "DROP TABLE " + ReceiptsTable.TABLE_NAME, "DROP TABLE " + TripsTable.TABLE_NAME, "ALTER TABLE " + newTrips + " RENAME TO " + TripsTable.TABLE_NAME, "ALTER TABLE " + newReceipts + " RENAME TO " + ReceiptsTable.TABLE_NAME, "DROP TABLE IF EXISTS " + TripTotalsTable.TABLE_NAME, "DROP TABLE IF EXISTS " + ReceiptsSearchTable.TABLE_NAME };
+		for (final String sql : statements) {
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, sql);
+			}
+			db.execSQL(sql);
+		}
+		this.createReceiptsIndexes(db);
+		this.createReceiptsSortKeyIndex(db);
+		this.createReceiptsSearchTable(db);
+		this.createTripTotalsTable(db);
+		this.rebuildTripTotals(db);
+	}
+
+	/**
+	 * Creates the secondary indexes on the receipts table. Nearly every receipt query filters on the parent trip, so
+	 * (parent, date, id) serves the date range filters and the graph queries, while (parent, currency) covers the
+	 * grouped totals that the trip totals table is rebuilt from. The receipt lists themselves are ordered by sort key
+	 * (see {@link #createReceiptsSortKeyIndex(SQLiteDatabase)}).
+	 */
+	private final void createReceiptsIndexes(final SQLiteDatabase db) { // Called in onCreate and onUpgrade
+		final String parentDate = "CREATE INDEX IF NOT EXISTS " + ReceiptsTable.INDEX_PARENT_DATE + " ON " + ReceiptsTable.TABLE_NAME + " (" + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_DATE + ", " + ReceiptsTable.COLUMN_ID + ");";
+		final String parentCurrency = "CREATE INDEX IF NOT EXISTS " + ReceiptsTable.INDEX_PARENT_CURRENCY + " ON " + ReceiptsTable.TABLE_NAME + " (" + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217 + ");";
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, parentDate);
+			Log.d(TAG, parentCurrency);
+		}
+		db.execSQL(parentDate);
+		db.execSQL(parentCurrency);
+	}
+
+	/**
+	 * Creates the (parent, sort key, id) index, which serves the ordered and keyset paged receipt lists and lets a
+	 * receipt be reordered without loading its trip
+	 */
+	private final void createReceiptsSortKeyIndex(final SQLiteDatabase db) { // Called in onCreate and onUpgrade
+		final String parentSortKey = "CREATE INDEX IF NOT EXISTS " + ReceiptsTable.INDEX_PARENT_SORT_KEY + " ON " + ReceiptsTable.TABLE_NAME + " (" + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_SORT_KEY + ", " + ReceiptsTable.COLUMN_ID + ");";
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, parentSortKey);
+		}
+		db.execSQL(parentSortKey);
+	}
+
+	/**
+	 * @return the SQL to give every receipt without a sort key the default one for its date
+	 */
+	private String getFillSortKeysSql() {
+		return "UPDATE " + ReceiptsTable.TABLE_NAME + " SET " + ReceiptsTable.COLUMN_SORT_KEY + " = IFNULL(" + ReceiptsTable.COLUMN_DATE + ", 0) * " + SORT_KEY_SPACING + " WHERE " + ReceiptsTable.COLUMN_SORT_KEY + " IS NULL";
+	}
+
+	private static long getDefaultSortKey(long date) {
+		return date * SORT_KEY_SPACING;
+	}
+
+	/**
+	 * @return the value that the {@link ReceiptsTable#COLUMN_PARENT} (and {@link TripTotalsTable#COLUMN_PARENT}) of a
+	 *         trip's rows hold, as a bindable argument
+	 */
+	private static String getParentArg(final TripRow trip) {
+		return Integer.toString(trip.getId());
+	}
+
+	/**
+	 * @return the ORDER BY clause for the receipts of a trip
+	 */
+	private static String getReceiptsOrderBy(boolean desc) {
+		final String direction = (desc) ? " DESC" : " ASC";
+		return ReceiptsTable.COLUMN_SORT_KEY + direction + ", " + ReceiptsTable.COLUMN_ID + direction;
+	}
+
+	// The per trip receipt queries below are package-private, so QueryPlanTest can verify that each uses an index
+	static final String RECEIPT_COUNT_QUERY = "SELECT COUNT(*) FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + "= ?";
+
+	/**
+	 * @return the query for every receipt of a trip. The parent trip must be bound
+	 */
+	static String getReceiptsQuery(boolean desc) {
+		return "SELECT * FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + "= ? ORDER BY " + getReceiptsOrderBy(desc);
+	}
+
+	/**
+	 * @param keyset
+	 *            - {@code true} to seek past the last receipt of the previous page, in which case the parent trip,
+	 *            that receipt's sort key (twice), and its id must be bound. {@code false} to skip {@code position}
+	 *            receipts, in which case only the parent trip must be bound
+	 * @return the query for a single page of the receipts of a trip
+	 */
+	static String getReceiptsPageQuery(boolean desc, boolean keyset, int position, int limit) {
+		return getReceiptsPageQuery(desc, keyset, position, limit, null);
+	}
+
+	/**
+	 * @param filterSelection
+	 *            - a compiled filter selection (see {@link ReceiptFilterCompiler}) or {@code null}. Its arguments must be
+	 *            bound directly after the parent trip
+	 * @return the query for a single page of the receipts of a trip that match this selection
+	 */
+	static String getReceiptsPageQuery(boolean desc, boolean keyset, int position, int limit, String filterSelection) {
+		final StringBuilder sql = new StringBuilder("SELECT * FROM ").append(ReceiptsTable.TABLE_NAME).append(" WHERE ").append(ReceiptsTable.COLUMN_PARENT).append("= ?");
+		if (filterSelection != null) {
+			sql.append(" AND ").append(filterSelection);
+		}
+		if (keyset) {
+			final String comparison = (desc) ? " < " : " > ";
+			sql.append(" AND (").append(ReceiptsTable.COLUMN_SORT_KEY).append(comparison).append("? OR (").append(ReceiptsTable.COLUMN_SORT_KEY).append(" = ? AND ").append(ReceiptsTable.COLUMN_ID).append(comparison).append("?))");
+		}
+		sql.append(" ORDER BY ").append(getReceiptsOrderBy(desc)).append(" LIMIT ");
+		if (!keyset) {
+			sql.append(position).append(",");
+		}
+		return sql.append(limit).toString();
+	}
+
+	/**
+	 * @return the query that totals a column of the receipts of a trip, grouped by another. The parent trip must be
+	 *         bound
+	 */
+	static String getGraphColumnsQuery(String xAxisColumn, String sumColumn) {
+		return "SELECT " + xAxisColumn + ", SUM(" + sumColumn + ") AS " + sumColumn + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + "= ? GROUP BY " + xAxisColumn;
+	}
+
+	private final void createReceiptsSearchTable(final SQLiteDatabase db) { // Called in onCreate and onUpgrade
+		final String columns = TextUtils.join(", ", ReceiptsSearchTable.COLUMNS);
+		final StringBuilder newValues = new StringBuilder();
+		final StringBuilder updateValues = new StringBuilder();
+		for (final String column : ReceiptsSearchTable.COLUMNS) {
+			newValues.append(", NEW.").append(column);
+			updateValues.append((updateValues.length() == 0) ? "" : ", ").append(column).append(" = NEW.").append(column);
+		}
+		final String sql = "CREATE VIRTUAL TABLE " + ReceiptsSearchTable.TABLE_NAME + " USING fts3(" + columns + ");";
+		final String insertTrigger = "CREATE TRIGGER " + ReceiptsSearchTable.TABLE_NAME + "_insert AFTER INSERT ON " + ReceiptsTable.TABLE_NAME + " BEGIN INSERT INTO " + ReceiptsSearchTable.TABLE_NAME + " (" + ReceiptsSearchTable.COLUMN_DOCID + ", " + columns + ") VALUES (NEW." + ReceiptsTable.COLUMN_ID + newValues + "); END;";
+		final String deleteTrigger = "CREATE TRIGGER " + ReceiptsSearchTable.TABLE_NAME + "_delete AFTER DELETE ON " + ReceiptsTable.TABLE_NAME + " BEGIN DELETE FROM " + ReceiptsSearchTable.TABLE_NAME + " WHERE " + ReceiptsSearchTable.COLUMN_DOCID + " = OLD." + ReceiptsTable.COLUMN_ID + "; END;";
+		final String updateTrigger = "CREATE TRIGGER " + ReceiptsSearchTable.TABLE_NAME + "_update AFTER UPDATE OF " + columns + " ON " + ReceiptsTable.TABLE_NAME + " BEGIN UPDATE " + ReceiptsSearchTable.TABLE_NAME + " SET " + updateValues + " WHERE " + ReceiptsSearchTable.COLUMN_DOCID + " = OLD." + ReceiptsTable.COLUMN_ID + "; END;";
+		final String populate = "INSERT INTO " + ReceiptsSearchTable.TABLE_NAME + " (" + ReceiptsSearchTable.COLUMN_DOCID + ", " + columns + ") SELECT " + ReceiptsTable.COLUMN_ID + ", " + columns + " FROM " + ReceiptsTable.TABLE_NAME;
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, sql);
+			Log.d(TAG, insertTrigger);
+			Log.d(TAG, deleteTrigger);
+			Log.d(TAG, updateTrigger);
+			Log.d(TAG, populate);
+		}
+		db.execSQL(sql);
+		db.execSQL(insertTrigger);
+		db.execSQL(deleteTrigger);
+		db.execSQL(updateTrigger);
+		db.execSQL(populate);
+	}
+
 	private final void createCSVTable(final SQLiteDatabase db) { // Called in onCreate and onUpgrade
 		final String csv = "CREATE TABLE " + CSVTable.TABLE_NAME + " (" + CSVTable.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + CSVTable.COLUMN_TYPE + " TEXT" + ");";
 		if (BuildConfig.DEBUG) {
@@ -577,6 +987,148 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		mCustomizations.insertPaymentMethodDefaults(this);
 	}
 
+	private final void createIntegrityTables(final SQLiteDatabase db) { // Called in onCreate and onUpgrade
+		final String receiptFiles = "CREATE TABLE " + ReceiptFilesTable.TABLE_NAME + " (" + ReceiptFilesTable.COLUMN_RECEIPT_ID + " INTEGER PRIMARY KEY, " + ReceiptFilesTable.COLUMN_PATH + " TEXT, " + ReceiptFilesTable.COLUMN_EXISTS + " BOOLEAN DEFAULT 0, " + ReceiptFilesTable.COLUMN_SIZE + " INTEGER DEFAULT 0, " + ReceiptFilesTable.COLUMN_MODIFIED + " INTEGER DEFAULT 0, " + ReceiptFilesTable.COLUMN_CHECKSUM + " TEXT" + ");";
+		final String orphanFiles = "CREATE TABLE " + OrphanFilesTable.TABLE_NAME + " (" + OrphanFilesTable.COLUMN_PARENT + " INTEGER NOT NULL, " + OrphanFilesTable.COLUMN_NAME + " TEXT NOT NULL, " + OrphanFilesTable.COLUMN_SIZE + " INTEGER DEFAULT 0, " + "PRIMARY KEY (" + OrphanFilesTable.COLUMN_PARENT + ", " + OrphanFilesTable.COLUMN_NAME + ")" + ");";
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, receiptFiles);
+			Log.d(TAG, orphanFiles);
+		}
+		db.execSQL(receiptFiles);
+		db.execSQL(orphanFiles);
+	}
+
+	private final void createTripTotalsTable(final SQLiteDatabase db) { // Called in onCreate and onUpgrade
+		final String sql = "CREATE TABLE " + TripTotalsTable.TABLE_NAME + " (" + TripTotalsTable.COLUMN_PARENT + " INTEGER NOT NULL, " + TripTotalsTable.COLUMN_ISO4217 + " TEXT NOT NULL, " + TripTotalsTable.COLUMN_BUCKET + " INTEGER NOT NULL, " + TripTotalsTable.COLUMN_TOTAL + " DECIMAL(10, 2) DEFAULT 0.00, " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + " DECIMAL(10, 2) DEFAULT 0.00, " + TripTotalsTable.COLUMN_COUNT + " INTEGER DEFAULT 0, " + "PRIMARY KEY (" + TripTotalsTable.COLUMN_PARENT + ", " + TripTotalsTable.COLUMN_BUCKET + ", " + TripTotalsTable.COLUMN_ISO4217 + ")" + ");";
+		final String insertTrigger = "CREATE TRIGGER " + TripTotalsTable.TABLE_NAME + "_insert AFTER INSERT ON " + ReceiptsTable.TABLE_NAME + " BEGIN " + getTripTotalsAddSql("NEW") + " END;";
+		final String deleteTrigger = "CREATE TRIGGER " + TripTotalsTable.TABLE_NAME + "_delete AFTER DELETE ON " + ReceiptsTable.TABLE_NAME + " BEGIN " + getTripTotalsSubtractSql("OLD") + " END;";
+		final String updateTrigger = "CREATE TRIGGER " + TripTotalsTable.TABLE_NAME + "_update AFTER UPDATE OF " + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217 + ", " + ReceiptsTable.COLUMN_PRICE + ", " + ReceiptsTable.COLUMN_EXPENSEABLE + ", " + ReceiptsTable.COLUMN_DATE + " ON " + ReceiptsTable.TABLE_NAME + " BEGIN " + getTripTotalsSubtractSql("OLD") + " " + getTripTotalsAddSql("NEW") + " END;";
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, sql);
+			Log.d(TAG, insertTrigger);
+			Log.d(TAG, deleteTrigger);
+			Log.d(TAG, updateTrigger);
+		}
+		db.execSQL(sql);
+		db.execSQL(insertTrigger);
+		db.execSQL(deleteTrigger);
+		db.execSQL(updateTrigger);
+	}
+
+	/**
+	 * Builds the trigger statements that add a receipt row to both its all-time and its time bucket totals
+	 * 
+	 * @param row
+	 *            - either "NEW" or "OLD"
+	 */
+	private static String getTripTotalsAddSql(final String row) {
+		return getTripTotalsAddSql(row, Long.toString(TripTotalsTable.ALL_TIME_BUCKET)) + " " + getTripTotalsAddSql(row, getTripTotalsBucketSql(row));
+	}
+
+	private static String getTripTotalsAddSql(final String row, final String bucket) {
+		final String where = " WHERE " + TripTotalsTable.COLUMN_PARENT + " = " + row + "." + ReceiptsTable.COLUMN_PARENT + " AND " + TripTotalsTable.COLUMN_ISO4217 + " = " + row + "." + ReceiptsTable.COLUMN_ISO4217 + " AND " + TripTotalsTable.COLUMN_BUCKET + " = " + bucket + ";";
+		return "INSERT OR IGNORE INTO " + TripTotalsTable.TABLE_NAME + " (" + TripTotalsTable.COLUMN_PARENT + ", " + TripTotalsTable.COLUMN_ISO4217 + ", " + TripTotalsTable.COLUMN_BUCKET + ", " + TripTotalsTable.COLUMN_TOTAL + ", " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + ", " + TripTotalsTable.COLUMN_COUNT + ") VALUES (" + row + "." + ReceiptsTable.COLUMN_PARENT + ", " + row + "." + ReceiptsTable.COLUMN_ISO4217 + ", " + bucket + ", 0, 0, 0); " 
+				+ "UPDATE " + TripTotalsTable.TABLE_NAME + " SET " + TripTotalsTable.COLUMN_TOTAL + " = " + TripTotalsTable.COLUMN_TOTAL + " + " + getTripTotalsPriceSql(row) + ", " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + " = " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + " + " + getTripTotalsExpensablePriceSql(row) + ", " + TripTotalsTable.COLUMN_COUNT + " = " + TripTotalsTable.COLUMN_COUNT + " + 1" + where;
+	}
+
+	/**
+	 * Builds the trigger statements that remove a receipt row from both its all-time and its time bucket totals. Rows
+	 * that no longer contain any receipts are dropped, so the number of rows per trip reflects the currency count.
+	 * 
+	 * @param row
+	 *            - either "NEW" or "OLD"
+	 */
+	private static String getTripTotalsSubtractSql(final String row) {
+		return getTripTotalsSubtractSql(row, Long.toString(TripTotalsTable.ALL_TIME_BUCKET)) + " " + getTripTotalsSubtractSql(row, getTripTotalsBucketSql(row));
+	}
+
+	private static String getTripTotalsSubtractSql(final String row, final String bucket) {
+		final String where = " WHERE " + TripTotalsTable.COLUMN_PARENT + " = " + row + "." + ReceiptsTable.COLUMN_PARENT + " AND " + TripTotalsTable.COLUMN_ISO4217 + " = " + row + "." + ReceiptsTable.COLUMN_ISO4217 + " AND " + TripTotalsTable.COLUMN_BUCKET + " = " + bucket;
+		return "UPDATE " + TripTotalsTable.TABLE_NAME + " SET " + TripTotalsTable.COLUMN_TOTAL + " = " + TripTotalsTable.COLUMN_TOTAL + " - " + getTripTotalsPriceSql(row) + ", " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + " = " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + " - " + getTripTotalsExpensablePriceSql(row) + ", " + TripTotalsTable.COLUMN_COUNT + " = " + TripTotalsTable.COLUMN_COUNT + " - 1" + where + "; " 
+				+ "DELETE FROM " + TripTotalsTable.TABLE_NAME + where + " AND " + TripTotalsTable.COLUMN_COUNT + " <= 0;";
+	}
+
+	private static String getTripTotalsBucketSql(final String row) {
+		return "(" + row + "." + ReceiptsTable.COLUMN_DATE + " / " + TripTotalsTable.BUCKET_MILLIS + ")";
+	}
+
+	private static String getTripTotalsPriceSql(final String row) {
+		return "IFNULL(" + row + "." + ReceiptsTable.COLUMN_PRICE + ", 0)";
+	}
+
+	private static String getTripTotalsExpensablePriceSql(final String row) {
+		return "(CASE WHEN " + row + "." + ReceiptsTable.COLUMN_EXPENSEABLE + " > 0 THEN " + getTripTotalsPriceSql(row) + " ELSE 0 END)";
+	}
+
+	/**
+	 * Rebuilds the entire trip totals table from the receipts table. This is used to populate the table for databases
+	 * that were upgraded from a version that did not yet have it (i.e. version 12) and to recover if
+	 * {@link #verifyTripTotals()} finds an inconsistency. This is not synchronized! Sync outside of it
+	 * 
+	 * @param db
+	 *            - the {@link SQLiteDatabase} to rebuild the totals for
+	 */
+	private final void rebuildTripTotals(final SQLiteDatabase db) {
+		final String columns = " (" + TripTotalsTable.COLUMN_PARENT + ", " + TripTotalsTable.COLUMN_ISO4217 + ", " + TripTotalsTable.COLUMN_BUCKET + ", " + TripTotalsTable.COLUMN_TOTAL + ", " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + ", " + TripTotalsTable.COLUMN_COUNT + ") ";
+		final String sums = "SUM(IFNULL(" + ReceiptsTable.COLUMN_PRICE + ", 0)), SUM(CASE WHEN " + ReceiptsTable.COLUMN_EXPENSEABLE + " > 0 THEN IFNULL(" + ReceiptsTable.COLUMN_PRICE + ", 0) ELSE 0 END), COUNT(*)";
+		final String bucket = "(" + ReceiptsTable.COLUMN_DATE + " / " + TripTotalsTable.BUCKET_MILLIS + ")";
+		final String allTime = "INSERT INTO " + TripTotalsTable.TABLE_NAME + columns + "SELECT " + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217 + ", " + TripTotalsTable.ALL_TIME_BUCKET + ", " + sums + " FROM " + ReceiptsTable.TABLE_NAME + " GROUP BY " + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217;
+		final String buckets = "INSERT INTO " + TripTotalsTable.TABLE_NAME + columns + "SELECT " + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217 + ", " + bucket + ", " + sums + " FROM " + ReceiptsTable.TABLE_NAME + " GROUP BY " + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217 + ", " + bucket;
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, allTime);
+			Log.d(TAG, buckets);
+		}
+		db.beginTransaction();
+		try {
+			db.delete(TripTotalsTable.TABLE_NAME, null, null);
+			db.execSQL(allTime);
+			db.execSQL(buckets);
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Verifies that the trip totals table matches the receipts that it aggregates. If it does not, the totals table is
+	 * rebuilt from scratch.
+	 * 
+	 * @return {@code true} if the totals were already consistent. {@code false} if they had to be rebuilt
+	 */
+	public final boolean verifyTripTotals() {
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			Cursor c = null;
+			boolean isConsistent;
+			try {
+				// Finds any (parent, currency) pair where the receipt sums differ from the stored all-time totals
+				final String receiptSums = "SELECT " + ReceiptsTable.COLUMN_PARENT + " AS p, " + ReceiptsTable.COLUMN_ISO4217 + " AS i, SUM(IFNULL(" + ReceiptsTable.COLUMN_PRICE + ", 0)) AS t, SUM(CASE WHEN " + ReceiptsTable.COLUMN_EXPENSEABLE + " > 0 THEN IFNULL(" + ReceiptsTable.COLUMN_PRICE + ", 0) ELSE 0 END) AS e, COUNT(*) AS n FROM " + ReceiptsTable.TABLE_NAME + " GROUP BY " + ReceiptsTable.COLUMN_PARENT + ", " + ReceiptsTable.COLUMN_ISO4217;
+				final String totals = "SELECT " + TripTotalsTable.COLUMN_PARENT + " AS p, " + TripTotalsTable.COLUMN_ISO4217 + " AS i, " + TripTotalsTable.COLUMN_TOTAL + " AS t, " + TripTotalsTable.COLUMN_EXPENSABLE_TOTAL + " AS e, " + TripTotalsTable.COLUMN_COUNT + " AS n FROM " + TripTotalsTable.TABLE_NAME + " WHERE " + TripTotalsTable.COLUMN_BUCKET + " = " + TripTotalsTable.ALL_TIME_BUCKET;
+				final String rounded = "SELECT p, i, ROUND(t, 2), ROUND(e, 2), n FROM ";
+				final String missingTotals = rounded + "(" + receiptSums + ") EXCEPT " + rounded + "(" + totals + ")";
+				final String staleTotals = rounded + "(" + totals + ") EXCEPT " + rounded + "(" + receiptSums + ")";
+				c = db.rawQuery("SELECT (SELECT COUNT(*) FROM (" + missingTotals + ")) + (SELECT COUNT(*) FROM (" + staleTotals + "))", null);
+				isConsistent = (c != null && c.moveToFirst() && c.getInt(0) == 0);
+			}
+			finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+			if (!isConsistent) {
+				Log.w(TAG, "The trip totals table was inconsistent with the receipts table. Rebuilding it.");
+				rebuildTripTotals(db);
+				invalidateTrips();
+			}
+			return isConsistent;
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+	}
+
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	// TripRow Methods
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -589,18 +1141,35 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	}
 
 	public TripRow[] getTripsSerial() throws SQLiteDatabaseCorruptException {
-		synchronized (mTripCacheLock) {
-			if (mAreTripsValid) {
-				return mTripsCache;
-			}
+		final TripRow[] cached = mTripsCache.get();
+		if (cached != null) {
+			return cached;
 		}
-		TripRow[] trips = getTripsHelper();
-		synchronized (mTripCacheLock) {
-			if (!mAreTripsValid) {
-				mAreTripsValid = true;
-				mTripsCache = trips;
-			}
-			return mTripsCache;
+		final int version = mTripsCacheVersion.get();
+		final TripRow[] trips = getTripsHelper();
+		cacheTrips(version, trips);
+		return trips;
+	}
+
+	/**
+	 * Marks the cached trips as stale. This should be called after any change that affects a trip or its totals
+	 */
+	private void invalidateTrips() {
+		mTripsCacheVersion.incrementAndGet();
+		mTripsCache.set(null);
+	}
+
+	/**
+	 * Caches a trips snapshot unless the trips were invalidated after the snapshot's query began
+	 * 
+	 * @param version
+	 *            - the value of {@link #mTripsCacheVersion} from before the trips were queried
+	 * @param trips
+	 *            - the trips to cache
+	 */
+	private void cacheTrips(final int version, final TripRow[] trips) {
+		if (mTripsCache.compareAndSet(null, trips) && mTripsCacheVersion.get() != version) {
+			mTripsCache.compareAndSet(trips, null); // We raced with an invalidation, so back out
 		}
 	}
 
@@ -611,28 +1180,91 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 		}
 		else {
-			synchronized (mTripCacheLock) {
-				if (mAreTripsValid) {
-					mTripRowListener.onTripRowsQuerySuccess(mTripsCache);
-					return;
-				}
+			final TripRow[] cached = mTripsCache.get();
+			if (cached != null) {
+				mTripRowListener.onTripRowsQuerySuccess(cached);
+				return;
 			}
 			(new GetTripsWorker()).execute(new Void[0]);
 		}
 	}
 
-	private static final String CURR_CNT_QUERY = "SELECT COUNT(*), " + ReceiptsTable.COLUMN_ISO4217 + " FROM (SELECT COUNT(*), " + ReceiptsTable.COLUMN_ISO4217 + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + "=? GROUP BY " + ReceiptsTable.COLUMN_ISO4217 + ");";
+	static final String CURR_CNT_QUERY = "SELECT COUNT(*), MAX(" + TripTotalsTable.COLUMN_ISO4217 + ") FROM " + TripTotalsTable.TABLE_NAME + " WHERE " + TripTotalsTable.COLUMN_PARENT + "=? AND " + TripTotalsTable.COLUMN_BUCKET + "=" + TripTotalsTable.ALL_TIME_BUCKET + ";";
+
+	// Column aliases for the trip summary query below
+	private static final String SUMMARY_CURRENCY_COUNT = "summary_currency_count";
+	private static final String SUMMARY_CURRENCY = "summary_currency";
+	private static final String SUMMARY_PRICE = "summary_price";
+	private static final String SUMMARY_DAILY_PRICE = "summary_daily_price";
+
+	/**
+	 * Builds a query that returns every trip column along with the currency count, total price, and today's subtotal
+	 * of its receipts. These are read from the {@link TripTotalsTable} in a single grouped join, which replaces the
+	 * three per-trip queries (i.e. {@link #CURR_CNT_QUERY}, {@link #queryTripPrice(TripRow)}, and
+	 * {@link #queryTripDailyPrice(TripRow)}). The four arguments that must be bound are the first and last bucket of
+	 * the current day, twice.
+	 * 
+	 * @param onlyExpensable
+	 *            - if only expensable receipts should be included in the price totals
+	 * @return the SQL query string
+	 */
+	private static String buildTripSummaryQuery(final boolean onlyExpensable) {
+		final String priceColumn = getTripTotalsColumn(onlyExpensable);
+		final String allTime = TripTotalsTable.COLUMN_BUCKET + " = " + TripTotalsTable.ALL_TIME_BUCKET;
+		final String today = TripTotalsTable.COLUMN_BUCKET + " >= ? AND " + TripTotalsTable.COLUMN_BUCKET + " <= ?";
+		final String summary = "SELECT " + TripTotalsTable.COLUMN_PARENT + ", " 
+				+ "COUNT(CASE WHEN " + allTime + " THEN 1 END) AS " + SUMMARY_CURRENCY_COUNT + ", " 
+				+ "MAX(CASE WHEN " + allTime + " THEN " + TripTotalsTable.COLUMN_ISO4217 + " END) AS " + SUMMARY_CURRENCY + ", " 
+				+ "SUM(CASE WHEN " + allTime + " THEN " + priceColumn + " ELSE 0 END) AS " + SUMMARY_PRICE + ", " 
+				+ "SUM(CASE WHEN " + today + " THEN " + priceColumn + " ELSE 0 END) AS " + SUMMARY_DAILY_PRICE 
+				+ " FROM " + TripTotalsTable.TABLE_NAME + " WHERE " + allTime + " OR (" + today + ") GROUP BY " + TripTotalsTable.COLUMN_PARENT;
+		return "SELECT t.*, s." + SUMMARY_CURRENCY_COUNT + ", s." + SUMMARY_CURRENCY + ", s." + SUMMARY_PRICE + ", s." + SUMMARY_DAILY_PRICE 
+				+ " FROM " + TripsTable.TABLE_NAME + " t LEFT OUTER JOIN (" + summary + ") s ON t." + TripsTable.COLUMN_ID + " = s." + TripTotalsTable.COLUMN_PARENT 
+				+ " ORDER BY t." + TripsTable.COLUMN_TO + " DESC";
+	}
+
+	private static String getTripTotalsColumn(final boolean onlyExpensable) {
+		return (onlyExpensable) ? TripTotalsTable.COLUMN_EXPENSABLE_TOTAL : TripTotalsTable.COLUMN_TOTAL;
+	}
+
+	/**
+	 * @return the query for the total price of a trip. The parent trip must be bound
+	 */
+	static String getTripPriceQuery(final boolean onlyExpensable) {
+		return "SELECT SUM(" + getTripTotalsColumn(onlyExpensable) + ") FROM " + TripTotalsTable.TABLE_NAME + " WHERE " + TripTotalsTable.COLUMN_PARENT + "= ? AND " + TripTotalsTable.COLUMN_BUCKET + " = " + TripTotalsTable.ALL_TIME_BUCKET;
+	}
+
+	/**
+	 * @return the query for the price of a trip over a range of buckets. The parent trip and then the first and last
+	 *         bucket must be bound
+	 */
+	static String getTripDailyPriceQuery(final boolean onlyExpensable) {
+		return "SELECT SUM(" + getTripTotalsColumn(onlyExpensable) + ") FROM " + TripTotalsTable.TABLE_NAME + " WHERE " + TripTotalsTable.COLUMN_PARENT + "= ? AND " + TripTotalsTable.COLUMN_BUCKET + " >= ? AND " + TripTotalsTable.COLUMN_BUCKET + " <= ?";
+	}
+
+	/**
+	 * @return the first and last {@link TripTotalsTable} buckets of the current day as bindable arguments
+	 */
+	private final String[] getTodayBucketArgs() {
+		final long[] today = getTodayBounds();
+		return new String[] { Long.toString(today[0] / TripTotalsTable.BUCKET_MILLIS), Long.toString(today[1] / TripTotalsTable.BUCKET_MILLIS) };
+	}
 
 	private TripRow[] getTripsHelper() throws SQLiteDatabaseCorruptException {
 		SQLiteDatabase db = null;
-		Cursor c = null, qc = null;
-		synchronized (mDatabaseLock) {
+		Cursor c = null;
+		mReadLock.lock();
+		try {
 			TripRow[] trips;
 			try {
 				db = this.getReadableDatabase();
-				c = db.query(TripsTable.TABLE_NAME, null, null, null, null, null, TripsTable.COLUMN_TO + " DESC");
+				final Preferences preferences = mPersistenceManager.getPreferences();
+				final String[] today = getTodayBucketArgs();
+				final String query = buildTripSummaryQuery(preferences.onlyIncludeExpensableReceiptsInReports());
+				c = db.rawQuery(query, new String[] { today[0], today[1], today[0], today[1] });
 				if (c != null && c.moveToFirst()) {
 					trips = new TripRow[c.getCount()];
+					final int idIndex = c.getColumnIndex(TripsTable.COLUMN_ID);
 					final int nameIndex = c.getColumnIndex(TripsTable.COLUMN_NAME);
 					final int fromIndex = c.getColumnIndex(TripsTable.COLUMN_FROM);
 					final int toIndex = c.getColumnIndex(TripsTable.COLUMN_TO);
@@ -643,7 +1275,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					final int commentIndex = c.getColumnIndex(TripsTable.COLUMN_COMMENT);
 					final int defaultCurrencyIndex = c.getColumnIndex(TripsTable.COLUMN_DEFAULT_CURRENCY);
 					final int filterIndex = c.getColumnIndex(TripsTable.COLUMN_FILTERS);
+					final int currencyCountIndex = c.getColumnIndex(SUMMARY_CURRENCY_COUNT);
+					final int currencyIndex = c.getColumnIndex(SUMMARY_CURRENCY);
+					final int priceIndex = c.getColumnIndex(SUMMARY_PRICE);
+					final int dailyPriceIndex = c.getColumnIndex(SUMMARY_DAILY_PRICE);
 					do {
+						final int id = c.getInt(idIndex);
 						final String name = c.getString(nameIndex);
 						final long from = c.getLong(fromIndex);
 						final long to = c.getLong(toIndex);
@@ -654,26 +1291,25 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						final String comment = c.getString(commentIndex);
 						final String defaultCurrency = c.getString(defaultCurrencyIndex);
 						final String filterJson = c.getString(filterIndex);
-						qc = db.rawQuery(CURR_CNT_QUERY, new String[] { name });
-						int cnt;
+						final int cnt = c.getInt(currencyCountIndex); // A trip without receipts has a null (i.e. 0) count
 						String curr = MULTI_CURRENCY;
-						if (qc != null) {
-							if (qc.moveToFirst() && qc.getColumnCount() > 0) {
-								cnt = qc.getInt(0);
-								if (cnt == 1) {
-									curr = qc.getString(1);
-								}
-								else if (cnt == 0) {
-									curr = mPersistenceManager.getPreferences().getDefaultCurreny();
-								}
-							}
-							qc.close();
+						if (cnt == 1) {
+							curr = c.getString(currencyIndex);
+						}
+						else if (cnt == 0) {
+							curr = preferences.getDefaultCurreny();
 						}
 						TripRow.Builder builder = new TripRow.Builder();
-						trips[c.getPosition()] = builder.setDirectory(mPersistenceManager.getStorageManager().getFile(name)).setStartDate(from).setEndDate(to).setStartTimeZone(fromTimeZone).setEndTimeZone(toTimeZone)
+						final TripRow trip = builder.setId(id).setDirectory(mPersistenceManager.getStorageManager().getFile(name)).setStartDate(from).setEndDate(to).setStartTimeZone(fromTimeZone).setEndTimeZone(toTimeZone)
 						// .setPrice(price)
-						.setCurrency(curr).setMileage(miles).setComment(comment).setFilter(filterJson).setDefaultCurrency(defaultCurrency, mPersistenceManager.getPreferences().getDefaultCurreny()).setSourceAsCache().build();
-						getTripPriceAndDailyPrice(trips[c.getPosition()]);
+						.setCurrency(curr).setMileage(miles).setComment(comment).setFilter(filterJson).setDefaultCurrency(defaultCurrency, preferences.getDefaultCurreny()).setSourceAsCache().build();
+						trip.setPrice(c.getDouble(priceIndex));
+						trip.setDailySubTotal(c.getDouble(dailyPriceIndex));
+						if (trip.hasFilter()) { // The totals table is unfiltered
+							trip.setPrice(queryFilteredTripPrice(db, trip, null));
+							trip.setDailySubTotal(queryFilteredTripPrice(db, trip, getTodayBounds()));
+						}
+						trips[c.getPosition()] = trip;
 					}
 					while (c.moveToNext());
 					return trips;
@@ -686,21 +1322,23 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				if (c != null) {
 					c.close();
 				}
-				if (qc != null && !qc.isClosed()) {
-					qc.close();
-				}
 			}
 			return trips;
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	private class GetTripsWorker extends AsyncTask<Void, Void, TripRow[]> {
 
 		private boolean mIsDatabaseCorrupt = false;
+		private int mVersion;
 
 		@Override
 		protected TripRow[] doInBackground(Void... params) {
 			try {
+				mVersion = mTripsCacheVersion.get();
 				return getTripsHelper();
 			}
 			catch (SQLiteDatabaseCorruptException e) {
@@ -717,10 +1355,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 			else {
-				synchronized (mTripCacheLock) {
-					mAreTripsValid = true;
-					mTripsCache = result;
-				}
+				cacheTrips(mVersion, result);
 				if (mTripRowListener != null) {
 					mTripRowListener.onTripRowsQuerySuccess(result);
 				}
@@ -754,22 +1389,46 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (name == null || name.length() == 0) {
 			return null;
 		}
-		synchronized (mTripCacheLock) {
-			if (mAreTripsValid) {
-				for (int i = 0; i < mTripsCache.length; i++) {
-					if (mTripsCache[i].getName().equals(name)) {
-						return mTripsCache[i];
-					}
+		final TripRow[] cached = mTripsCache.get();
+		if (cached != null) {
+			for (int i = 0; i < cached.length; i++) {
+				if (cached[i].getName().equals(name)) {
+					return cached[i];
+				}
+			}
+		}
+		return queryTrip(TripsTable.COLUMN_NAME, name);
+	}
+
+	public final TripRow getTripById(final int id) {
+		if (id <= 0) {
+			return null;
+		}
+		final TripRow[] cached = mTripsCache.get();
+		if (cached != null) {
+			for (int i = 0; i < cached.length; i++) {
+				if (cached[i].getId() == id) {
+					return cached[i];
 				}
 			}
 		}
+		return queryTrip(TripsTable.COLUMN_ID, Integer.toString(id));
+	}
+
+	/**
+	 * @return the trip whose column matches the given value or {@code null} if there is none
+	 */
+	private TripRow queryTrip(final String column, final String value) {
 		SQLiteDatabase db = null;
 		Cursor c = null, qc = null;
-		synchronized (mDatabaseLock) {
+		mReadLock.lock();
+		try {
 			try {
 				db = this.getReadableDatabase();
-				c = db.query(TripsTable.TABLE_NAME, null, TripsTable.COLUMN_NAME + " = ?", new String[] { name }, null, null, null);
+				c = db.query(TripsTable.TABLE_NAME, null, column + " = ?", new String[] { value }, null, null, null);
 				if (c != null && c.moveToFirst()) {
+					final int idIndex = c.getColumnIndex(TripsTable.COLUMN_ID);
+					final int nameIndex = c.getColumnIndex(TripsTable.COLUMN_NAME);
 					final int fromIndex = c.getColumnIndex(TripsTable.COLUMN_FROM);
 					final int toIndex = c.getColumnIndex(TripsTable.COLUMN_TO);
 					final int fromTimeZoneIndex = c.getColumnIndex(TripsTable.COLUMN_FROM_TIMEZONE);
@@ -788,7 +1447,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					final String comment = c.getString(commentIndex);
 					final String defaultCurrency = c.getString(defaultCurrencyIndex);
 					final String filterJson = c.getString(filterIndex);
-					qc = db.rawQuery(CURR_CNT_QUERY, new String[] { name });
+					final int id = c.getInt(idIndex);
+					final String name = c.getString(nameIndex);
+					qc = db.rawQuery(CURR_CNT_QUERY, new String[] { Integer.toString(id) });
 					int cnt;
 					String curr = MULTI_CURRENCY;
 					;
@@ -802,7 +1463,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						}
 					}
 					TripRow.Builder builder = new TripRow.Builder();
-					TripRow tripRow = builder.setDirectory(mPersistenceManager.getStorageManager().getFile(name)).setStartDate(from).setEndDate(to).setStartTimeZone(fromTimeZone).setEndTimeZone(toTimeZone)
+					TripRow tripRow = builder.setId(id).setDirectory(mPersistenceManager.getStorageManager().getFile(name)).setStartDate(from).setEndDate(to).setStartTimeZone(fromTimeZone).setEndTimeZone(toTimeZone)
 					// .setPrice(price)
 					.setCurrency(curr).setMileage(miles).setComment(comment).setFilter(filterJson).setDefaultCurrency(defaultCurrency, mPersistenceManager.getPreferences().getDefaultCurreny()).setSourceAsCache().build();
 					getTripPriceAndDailyPrice(tripRow);
@@ -821,15 +1482,16 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	// Returns the trip on success. Null otherwise
 	public final TripRow insertTripSerial(File dir, Date from, Date to, String comment, String defaultCurrencyCode) throws SQLException {
 		TripRow trip = insertTripHelper(dir, from, to, comment, defaultCurrencyCode);
 		if (trip != null) {
-			synchronized (mTripCacheLock) {
-				mAreTripsValid = false;
-			}
+			invalidateTrips();
 		}
 		return trip;
 	}
@@ -853,16 +1515,21 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		values.put(TripsTable.COLUMN_COMMENT, comment);
 		values.put(TripsTable.COLUMN_DEFAULT_CURRENCY, defaultCurrencyCode);
 		TripRow toReturn = null;
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
-			if (values == null || db.insertOrThrow(TripsTable.TABLE_NAME, null, values) == -1) {
+			final long id = db.insertOrThrow(TripsTable.TABLE_NAME, null, values);
+			if (id == -1) {
 				return null;
 			}
 			else {
-				toReturn = (new TripRow.Builder()).setDirectory(dir).setStartDate(from).setEndDate(to).setStartTimeZone(TimeZone.getDefault()).setEndTimeZone(TimeZone.getDefault()).setCurrency(defaultCurrencyCode).setComment(comment).setDefaultCurrency(defaultCurrencyCode).setSourceAsCache().build();
+				toReturn = (new TripRow.Builder()).setId((int) id).setDirectory(dir).setStartDate(from).setEndDate(to).setStartTimeZone(TimeZone.getDefault()).setEndTimeZone(TimeZone.getDefault()).setCurrency(defaultCurrencyCode).setComment(comment).setDefaultCurrency(defaultCurrencyCode).setSourceAsCache().build();
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 		if (this.getReadableDatabase() != null) {
 			String databasePath = this.getReadableDatabase().getPath();
 			if (!TextUtils.isEmpty(databasePath)) {
@@ -902,9 +1569,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		@Override
 		protected void onPostExecute(TripRow result) {
 			if (result != null) {
-				synchronized (mTripCacheLock) {
-					mAreTripsValid = false;
-				}
+				invalidateTrips();
 				if (mTripRowListener != null) {
 					mTripRowListener.onTripRowInsertSuccess(result);
 				}
@@ -921,9 +1586,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	public final TripRow updateTripSerial(TripRow oldTrip, File dir, Date from, Date to, String comment, String defaultCurrencyCode) {
 		TripRow trip = updateTripHelper(oldTrip, dir, from, to, comment, defaultCurrencyCode);
 		if (trip != null) {
-			synchronized (mTripCacheLock) {
-				mAreTripsValid = false;
-			}
+			invalidateTrips();
 		}
 		return trip;
 	}
@@ -954,30 +1617,20 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 		values.put(TripsTable.COLUMN_COMMENT, comment);
 		values.put(TripsTable.COLUMN_DEFAULT_CURRENCY, defaultCurrencyCode);
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			try {
 				db = this.getWritableDatabase();
-				if (values == null || (db.update(TripsTable.TABLE_NAME, values, TripsTable.COLUMN_NAME + " = ?", new String[] { oldTrip.getName() }) == 0)) {
+				// Receipts reference the trip id, so even a rename only touches this one row
+				if (db.update(TripsTable.TABLE_NAME, values, TripsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(oldTrip.getId()) }) == 0) {
 					return null;
 				}
 				else {
 					if (!oldTrip.getName().equalsIgnoreCase(dir.getName())) {
-						synchronized (mReceiptCacheLock) {
-							if (mReceiptCache.containsKey(oldTrip)) {
-								mReceiptCache.remove(oldTrip);
-							}
-						}
-						String oldName = oldTrip.getName();
-						String newName = dir.getName();
-						ContentValues rcptVals = new ContentValues(1);
-						rcptVals.put(ReceiptsTable.COLUMN_PARENT, newName);
-						// Update parent
-						db.update(ReceiptsTable.TABLE_NAME, rcptVals, ReceiptsTable.COLUMN_PARENT + " = ?", new String[] { oldName }); // Consider
-																																		// rollback
-																																		// here
+						mReceiptCache.remove(oldTrip); // The cached receipts still point at the old directory
 					}
-					return (new TripRow.Builder()).setDirectory(dir).setStartDate(from).setEndDate(to).setStartTimeZone(startTimeZone).setEndTimeZone(endTimeZone).setCurrency(oldTrip.getCurrency()).setComment(comment).setDefaultCurrency(defaultCurrencyCode, mPersistenceManager.getPreferences().getDefaultCurreny()).setSourceAsCache().build();
+					return (new TripRow.Builder()).setId(oldTrip.getId()).setDirectory(dir).setStartDate(from).setEndDate(to).setStartTimeZone(startTimeZone).setEndTimeZone(endTimeZone).setCurrency(oldTrip.getCurrency()).setComment(comment).setDefaultCurrency(defaultCurrencyCode, mPersistenceManager.getPreferences().getDefaultCurreny()).setSourceAsCache().build();
 				}
 			}
 			catch (SQLException e) {
@@ -987,6 +1640,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				return null;
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	private class UpdateTripRowWorker extends AsyncTask<Void, Void, TripRow> {
@@ -1013,9 +1669,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		@Override
 		protected void onPostExecute(TripRow result) {
 			if (result != null) {
-				synchronized (mTripCacheLock) {
-					mAreTripsValid = false;
-				}
+				invalidateTrips();
 				if (mTripRowListener != null) {
 					mTripRowListener.onTripRowUpdateSuccess(result);
 				}
@@ -1037,9 +1691,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 		boolean success = deleteTripHelper(trip);
 		if (success) {
-			synchronized (mTripCacheLock) {
-				mAreTripsValid = false;
-			}
+			invalidateTrips();
 		}
 		return success;
 	}
@@ -1051,22 +1703,33 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	private boolean deleteTripHelper(TripRow trip) {
 		boolean success = false;
 		SQLiteDatabase db = null;
-		db = this.getWritableDatabase();
-		// Delete all child receipts (technically ON DELETE CASCADE should handle this, but i'm not certain)
-		synchronized (mDatabaseLock) {
-			// TODO: Fix errors when the disk is not yet mounted
-			success = (db.delete(ReceiptsTable.TABLE_NAME, ReceiptsTable.COLUMN_PARENT + " = ?", new String[] { trip.getName() }) >= 0);
-		}
-		if (success) {
-			synchronized (mReceiptCacheLock) {
-				mReceiptCache.remove(trip);
+		mWriteLock.lock();
+		try {
+			db = this.getWritableDatabase();
+			final String[] id = new String[] { Integer.toString(trip.getId()) };
+			db.beginTransaction();
+			try {
+				// The integrity tables go first, while we can still find this trip's receipts
+				db.delete(ReceiptFilesTable.TABLE_NAME, ReceiptFilesTable.COLUMN_RECEIPT_ID + " IN (SELECT " + ReceiptsTable.COLUMN_ID + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + " = ?)", id);
+				db.delete(OrphanFilesTable.TABLE_NAME, OrphanFilesTable.COLUMN_PARENT + " = ?", id);
+				// Delete all child receipts (technically ON DELETE CASCADE should handle this, but i'm not certain)
+				// TODO: Fix errors when the disk is not yet mounted
+				success = (db.delete(ReceiptsTable.TABLE_NAME, ReceiptsTable.COLUMN_PARENT + " = ?", id) >= 0);
+				if (success) {
+					success = (db.delete(TripsTable.TABLE_NAME, TripsTable.COLUMN_ID + " = ?", id) > 0);
+				}
+				if (success) {
+					db.setTransactionSuccessful();
+				}
 			}
+			finally {
+				db.endTransaction();
+			}
+			mPredictionModel.clear();
+			mReceiptCache.remove(trip);
 		}
-		else {
-			return false;
-		}
-		synchronized (mDatabaseLock) {
-			success = (db.delete(TripsTable.TABLE_NAME, TripsTable.COLUMN_NAME + " = ?", new String[] { trip.getName() }) > 0);
+		finally {
+			mWriteLock.unlock();
 		}
 		return success;
 	}
@@ -1087,9 +1750,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		@Override
 		protected void onPostExecute(Boolean result) {
 			if (result) {
-				synchronized (mTripCacheLock) {
-					mAreTripsValid = false;
-				}
+				invalidateTrips();
 			}
 			if (mTripRowListener != null) {
 				if (result) {
@@ -1104,8 +1765,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	}
 
 	public final boolean addMiles(final TripRow trip, final String delta) {
+		mWriteLock.lock();
 		try {
-			final SQLiteDatabase db = this.getReadableDatabase();
+			final SQLiteDatabase db = this.getWritableDatabase();
 
 			DecimalFormat format = new DecimalFormat();
 			format.setMaximumFractionDigits(2);
@@ -1121,7 +1783,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			ContentValues values = new ContentValues(1);
 			values.put(TripsTable.COLUMN_MILEAGE, total);
 			trip.setMileage(total);
-			return (db.update(TripsTable.TABLE_NAME, values, TripsTable.COLUMN_NAME + " = ?", new String[] { trip.getName() }) > 0);
+			return (db.update(TripsTable.TABLE_NAME, values, TripsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(trip.getId()) }) > 0);
 		}
 		catch (NumberFormatException e) {
 			return false;
@@ -1129,6 +1791,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		catch (ParseException e) {
 			return false;
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	/**
@@ -1152,15 +1817,16 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		SQLiteDatabase db = null;
 		Cursor c = null;
 		try {
-			mAreTripsValid = false;
+			invalidateTrips();
 			db = this.getReadableDatabase();
-
-			String selection = ReceiptsTable.COLUMN_PARENT + "= ?";
-			if (mPersistenceManager.getPreferences().onlyIncludeExpensableReceiptsInReports()) {
-				selection += " AND " + ReceiptsTable.COLUMN_EXPENSEABLE + " = 1";
+			if (trip.hasFilter()) {
+				trip.setPrice(queryFilteredTripPrice(db, trip, null));
+				return;
 			}
+
 			// Get the Trip's total Price
-			c = db.query(ReceiptsTable.TABLE_NAME, new String[] { "SUM(" + ReceiptsTable.COLUMN_PRICE + ")" }, selection, new String[] { trip.getName() }, null, null, null);
+			final boolean onlyExpensable = mPersistenceManager.getPreferences().onlyIncludeExpensableReceiptsInReports();
+			c = db.rawQuery(getTripPriceQuery(onlyExpensable), new String[] { getParentArg(trip) });
 			if (c != null && c.moveToFirst() && c.getColumnCount() > 0) {
 				final double sum = c.getDouble(0);
 				trip.setPrice(sum);
@@ -1184,36 +1850,15 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		Cursor priceCursor = null;
 		try {
 			db = this.getReadableDatabase();
-
-			// Build a calendar for the start of today
-			final Time now = new Time();
-			now.setToNow();
-			final Calendar startCalendar = Calendar.getInstance();
-			startCalendar.setTimeInMillis(now.toMillis(false));
-			startCalendar.setTimeZone(TimeZone.getDefault());
-			startCalendar.set(Calendar.HOUR_OF_DAY, 0);
-			startCalendar.set(Calendar.MINUTE, 0);
-			startCalendar.set(Calendar.SECOND, 0);
-			startCalendar.set(Calendar.MILLISECOND, 0);
-
-			// Build a calendar for the end date
-			final Calendar endCalendar = Calendar.getInstance();
-			endCalendar.setTimeInMillis(now.toMillis(false));
-			endCalendar.setTimeZone(TimeZone.getDefault());
-			endCalendar.set(Calendar.HOUR_OF_DAY, 23);
-			endCalendar.set(Calendar.MINUTE, 59);
-			endCalendar.set(Calendar.SECOND, 59);
-			endCalendar.set(Calendar.MILLISECOND, 999);
-
-			// Set the timers
-			final long startTime = startCalendar.getTimeInMillis();
-			final long endTime = endCalendar.getTimeInMillis();
-			String selection = ReceiptsTable.COLUMN_PARENT + "= ? AND " + ReceiptsTable.COLUMN_DATE + " >= ? AND " + ReceiptsTable.COLUMN_DATE + " <= ?";
-			if (mPersistenceManager.getPreferences().onlyIncludeExpensableReceiptsInReports()) {
-				selection += " AND " + ReceiptsTable.COLUMN_EXPENSEABLE + " = 1";
+			if (trip.hasFilter()) {
+				trip.setDailySubTotal(queryFilteredTripPrice(db, trip, getTodayBounds()));
+				return;
 			}
 
-			priceCursor = db.query(ReceiptsTable.TABLE_NAME, new String[] { "SUM(" + ReceiptsTable.COLUMN_PRICE + ")" }, selection, new String[] { trip.getName(), Long.toString(startTime), Long.toString(endTime) }, null, null, null);
+			// Set the timers
+			final String[] today = getTodayBucketArgs();
+			final boolean onlyExpensable = mPersistenceManager.getPreferences().onlyIncludeExpensableReceiptsInReports();
+			priceCursor = db.rawQuery(getTripDailyPriceQuery(onlyExpensable), new String[] { getParentArg(trip), today[0], today[1] });
 
 			if (priceCursor != null && priceCursor.moveToFirst() && priceCursor.getColumnCount() > 0) {
 				final double dailyTotal = priceCursor.getDouble(0);
@@ -1227,12 +1872,99 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 	}
 
+	/**
+	 * Totals the receipts of a trip that are accepted by its filter, since these cannot be read from the
+	 * {@link TripTotalsTable}. If the filter compiles entirely, the sum is computed by SQLite. Otherwise, the matching
+	 * receipts are loaded and the residual filter is applied to them. This class is not synchronized! Sync outside of it
+	 * 
+	 * @param db
+	 *            - the {@link SQLiteDatabase} to query
+	 * @param trip
+	 *            - the trip, which must have a filter
+	 * @param bounds
+	 *            - the first and last millisecond to include or {@code null} to include every date
+	 * @return the filtered total
+	 */
+	private final double queryFilteredTripPrice(final SQLiteDatabase db, final TripRow trip, final long[] bounds) {
+		final boolean onlyExpensable = mPersistenceManager.getPreferences().onlyIncludeExpensableReceiptsInReports();
+		final ReceiptFilterCompiler.CompiledFilter compiled = compileReceiptFilter(db, trip);
+		String selection = ReceiptsTable.COLUMN_PARENT + "= ?";
+		String[] selectionArgs;
+		if (bounds != null) {
+			selection += " AND " + ReceiptsTable.COLUMN_DATE + " >= ? AND " + ReceiptsTable.COLUMN_DATE + " <= ?";
+			selectionArgs = new String[] { getParentArg(trip), Long.toString(bounds[0]), Long.toString(bounds[1]) };
+		}
+		else {
+			selectionArgs = new String[] { getParentArg(trip) };
+		}
+		selection = getFilteredSelection(selection, compiled);
+		selectionArgs = getFilteredSelectionArgs(selectionArgs, compiled);
+		Cursor c = null;
+		try {
+			if (compiled.isComplete()) {
+				final String price = (onlyExpensable) ? getTripTotalsExpensablePriceSql(ReceiptsTable.TABLE_NAME) : getTripTotalsPriceSql(ReceiptsTable.TABLE_NAME);
+				c = db.query(ReceiptsTable.TABLE_NAME, new String[] { "SUM(" + price + ")" }, selection, selectionArgs, null, null, null);
+				return (c != null && c.moveToFirst()) ? c.getDouble(0) : 0;
+			}
+			else {
+				final ArrayList<ReceiptRow> receipts = new ArrayList<ReceiptRow>();
+				c = db.query(ReceiptsTable.TABLE_NAME, null, selection, selectionArgs, null, null, null);
+				readReceipts(c, trip, 1, receipts, compiled.getResidualFilter());
+				double total = 0;
+				for (final ReceiptRow receipt : receipts) {
+					if (!onlyExpensable || receipt.isExpensable()) {
+						total += receipt.getPriceAsFloat();
+					}
+				}
+				return total;
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the bounds of the current day in the default time zone
+	 * 
+	 * @return a two element array, containing the first and last millisecond of today
+	 */
+	private final long[] getTodayBounds() {
+		// Build a calendar for the start of today
+		final Time now = new Time();
+		now.setToNow();
+		final Calendar startCalendar = Calendar.getInstance();
+		startCalendar.setTimeInMillis(now.toMillis(false));
+		startCalendar.setTimeZone(TimeZone.getDefault());
+		startCalendar.set(Calendar.HOUR_OF_DAY, 0);
+		startCalendar.set(Calendar.MINUTE, 0);
+		startCalendar.set(Calendar.SECOND, 0);
+		startCalendar.set(Calendar.MILLISECOND, 0);
+
+		// Build a calendar for the end date
+		final Calendar endCalendar = Calendar.getInstance();
+		endCalendar.setTimeInMillis(now.toMillis(false));
+		endCalendar.setTimeZone(TimeZone.getDefault());
+		endCalendar.set(Calendar.HOUR_OF_DAY, 23);
+		endCalendar.set(Calendar.MINUTE, 59);
+		endCalendar.set(Calendar.SECOND, 59);
+		endCalendar.set(Calendar.MILLISECOND, 999);
+
+		return new long[] { startCalendar.getTimeInMillis(), endCalendar.getTimeInMillis() };
+	}
+
 	private final void updateTripPrice(final TripRow trip) {
-		synchronized (mDatabaseLock) {
-			mAreTripsValid = false;
+		mReadLock.lock();
+		try {
+			invalidateTrips();
 			queryTripPrice(trip);
 			queryTripDailyPrice(trip);
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -1246,11 +1978,18 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		mReceiptRowListener = null;
 	}
 
+	/**
+	 * @return the cache of recently queried receipt lists. This is exposed so its hit, miss, and eviction counters can
+	 *         be inspected
+	 */
+	public final ReceiptCache getReceiptCache() {
+		return mReceiptCache;
+	}
+
 	public List<ReceiptRow> getReceiptsSerial(final TripRow trip) {
-		synchronized (mReceiptCacheLock) {
-			if (mReceiptCache.containsKey(trip)) {
-				return mReceiptCache.get(trip);
-			}
+		final List<ReceiptRow> cached = mReceiptCache.get(trip);
+		if (cached != null) {
+			return cached;
 		}
 		return this.getReceiptsHelper(trip, true);
 	}
@@ -1265,14 +2004,13 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				Log.d(TAG, "No ReceiptRowListener was registered.");
 			}
 		}
-		synchronized (mReceiptCacheLock) {
-			if (mReceiptCache.containsKey(trip)) { // only cache the default way (otherwise we get into issues with asc
-													// v desc)
-				if (mReceiptRowListener != null) {
-					mReceiptRowListener.onReceiptRowsQuerySuccess(mReceiptCache.get(trip));
-				}
-				return;
+		final List<ReceiptRow> cached = mReceiptCache.get(trip); // only cache the default way (otherwise we get into
+																	// issues with asc v desc)
+		if (cached != null) {
+			if (mReceiptRowListener != null) {
+				mReceiptRowListener.onReceiptRowsQuerySuccess(cached);
 			}
+			return;
 		}
 		(new GetReceiptsWorker()).execute(trip);
 	}
@@ -1291,14 +2029,13 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				Log.d(TAG, "No ReceiptRowListener was registered.");
 			}
 		}
-		synchronized (mReceiptCacheLock) {
-			if (mReceiptCache.containsKey(trip)) { // only cache the default way (otherwise we get into issues with asc
-													// v desc)
-				if (mReceiptRowListener != null) {
-					mReceiptRowListener.onReceiptRowsQuerySuccess(mReceiptCache.get(trip));
-				}
-				return;
+		final List<ReceiptRow> cached = mReceiptCache.get(trip); // only cache the default way (otherwise we get into
+																	// issues with asc v desc)
+		if (cached != null) {
+			if (mReceiptRowListener != null) {
+				mReceiptRowListener.onReceiptRowsQuerySuccess(cached);
 			}
+			return;
 		}
 		(new GetReceiptsWorker(true)).execute(trip);
 	}
@@ -1308,82 +2045,25 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (trip == null) {
 			return new ArrayList<ReceiptRow>();
 		}
-		synchronized (mDatabaseLock) {
+		final int cacheVersion = mReceiptCache.getVersion();
+		mReadLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
 				db = this.getReadableDatabase();
-				c = db.query(ReceiptsTable.TABLE_NAME, null, ReceiptsTable.COLUMN_PARENT + "= ?", new String[] { trip.getName() }, null, null, ReceiptsTable.COLUMN_DATE + ((desc) ? " DESC" : " ASC"));
-				if (c != null && c.moveToFirst()) {
-					receipts = new ArrayList<ReceiptRow>(c.getCount());
-					final int idIndex = c.getColumnIndex(ReceiptsTable.COLUMN_ID);
-					final int pathIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PATH);
-					final int nameIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NAME);
-					final int categoryIndex = c.getColumnIndex(ReceiptsTable.COLUMN_CATEGORY);
-					final int priceIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PRICE);
-					final int taxIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TAX);
-					final int dateIndex = c.getColumnIndex(ReceiptsTable.COLUMN_DATE);
-					final int timeZoneIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TIMEZONE);
-					final int commentIndex = c.getColumnIndex(ReceiptsTable.COLUMN_COMMENT);
-					final int expenseableIndex = c.getColumnIndex(ReceiptsTable.COLUMN_EXPENSEABLE);
-					final int currencyIndex = c.getColumnIndex(ReceiptsTable.COLUMN_ISO4217);
-					final int fullpageIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE);
-					final int paymentMethodIdIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PAYMENT_METHOD_ID);
-					final int extra_edittext_1_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1);
-					final int extra_edittext_2_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2);
-					final int extra_edittext_3_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3);
-					do {
-						final int id = c.getInt(idIndex);
-						final String path = c.getString(pathIndex);
-						final String name = c.getString(nameIndex);
-						final String category = c.getString(categoryIndex);
-						final double priceDouble = c.getDouble(priceIndex);
-						final double taxDouble = c.getDouble(taxIndex);
-						final String priceString = c.getString(priceIndex);
-						final String taxString = c.getString(taxIndex);
-						final long date = c.getLong(dateIndex);
-						final String timezone = (timeZoneIndex > 0) ? c.getString(timeZoneIndex) : null;
-						final String comment = c.getString(commentIndex);
-						final boolean expensable = c.getInt(expenseableIndex) > 0;
-						final String currency = c.getString(currencyIndex);
-						final boolean fullpage = !(c.getInt(fullpageIndex) > 0);
-						final int paymentMethodId = c.getInt(paymentMethodIdIndex); // Not using a join, since we need
-						final String extra_edittext_1 = c.getString(extra_edittext_1_Index);
-						final String extra_edittext_2 = c.getString(extra_edittext_2_Index);
-						final String extra_edittext_3 = c.getString(extra_edittext_3_Index);
-						File img = null;
-						if (!path.equalsIgnoreCase(DatabaseHelper.NO_DATA)) {
-							img = mPersistenceManager.getStorageManager().getFile(trip.getDirectory(), path);
-						}
-						ReceiptRow.Builder builder = new ReceiptRow.Builder(id);
-						builder.setTrip(trip).setName(name).setCategory(category).setImage(img).setDate(date).setTimeZone(timezone).setComment(comment).setIsExpenseable(expensable).setCurrency(currency).setIsFullPage(fullpage).setIndex(c.getPosition() + 1).setPaymentMethod(findPaymentMethodById(paymentMethodId)).setExtraEditText1(extra_edittext_1).setExtraEditText2(extra_edittext_2).setExtraEditText3(extra_edittext_3);
-						/**
-						 * Please note that a very frustrating bug exists here. Android cursors only return the first 6
-						 * characters of a price string if that string contains a '.' character. It returns all of them
-						 * if not. This means we'll break for prices over 5 digits unless we are using a comma separator, 
-						 * which we'd do in the EU. Stupid check below to un-break this. Stupid Android.
-						 * 
-						 * TODO: Longer term, everything should be saved with a decimal point
-						 * https://code.google.com/p/android/issues/detail?id=22219
-						 */
-						if (!TextUtils.isEmpty(priceString) && priceString.contains(",")) {
-							builder.setPrice(priceString);
-						}
-						else {
-							builder.setPrice(priceDouble);
-						}
-						if (!TextUtils.isEmpty(taxString) && taxString.contains(",")) {
-							builder.setTax(taxString);
-						}
-						else {
-							builder.setTax(taxDouble);
-						}
-						receipts.add(builder.build());
-					}
-					while (c.moveToNext());
+				if (trip.hasFilter()) {
+					final ReceiptFilterCompiler.CompiledFilter compiled = compileReceiptFilter(db, trip);
+					final String selection = getFilteredSelection(ReceiptsTable.COLUMN_PARENT + "= ?", compiled);
+					final String[] selectionArgs = getFilteredSelectionArgs(new String[] { getParentArg(trip) }, compiled);
+					c = db.query(ReceiptsTable.TABLE_NAME, null, selection, selectionArgs, null, null, getReceiptsOrderBy(desc));
+					receipts = new ArrayList<ReceiptRow>((c != null) ? c.getCount() : 0);
+					readReceipts(c, trip, 1, receipts, compiled.getResidualFilter());
 				}
 				else {
-					receipts = new ArrayList<ReceiptRow>();
+					c = db.rawQuery(getReceiptsQuery(desc), new String[] { getParentArg(trip) });
+					receipts = new ArrayList<ReceiptRow>((c != null) ? c.getCount() : 0);
+					readReceipts(c, trip, 1, receipts);
 				}
 			}
 			finally { // Close the cursor and db to avoid memory leaks
@@ -1392,112 +2072,561 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
-		synchronized (mReceiptCacheLock) {
-			if (desc) {
-				mReceiptCache.put(trip, receipts);
-			}
+		finally {
+			mReadLock.unlock();
+		}
+		if (desc) {
+			mReceiptCache.put(trip, receipts, cacheVersion);
 		}
 		return receipts;
 	}
 
-	private class GetReceiptsWorker extends AsyncTask<TripRow, Void, List<ReceiptRow>> {
-
-		private final boolean mSilence;
-
-		public GetReceiptsWorker() {
-			mSilence = false;
+	/**
+	 * Searches the receipts of every trip via the full text index, matching each word of the query as a prefix of a
+	 * word in the receipt's name, comment, category, or extra fields. Results are ranked by where every word matched
+	 * (the name, then the category, then anywhere) and then by date, newest first.
+	 * 
+	 * @param query
+	 *            - the text to search for
+	 * @param offset
+	 *            - the number of ranked results to skip
+	 * @param limit
+	 *            - the maximum number of results to return
+	 * @return a {@link List} of matching receipts in ranked order
+	 */
+	public final List<ReceiptRow> searchReceiptsSerial(final CharSequence query, final int offset, final int limit) {
+		final ArrayList<ReceiptRow> results = new ArrayList<ReceiptRow>();
+		final String match = getFullTextQuery(query, null);
+		if (match == null || limit <= 0) {
+			return results;
 		}
-
-		public GetReceiptsWorker(boolean silence) {
-			mSilence = silence;
+		final HashMap<String, TripRow> tripsById = new HashMap<String, TripRow>();
+		for (final TripRow trip : getTripsSerial()) {
+			tripsById.put(getParentArg(trip), trip);
 		}
-
-		@Override
-		protected List<ReceiptRow> doInBackground(TripRow... params) {
-			if (params == null || params.length == 0) {
-				return new ArrayList<ReceiptRow>();
+		mReadLock.lock();
+		try {
+			final SQLiteDatabase db = this.getReadableDatabase();
+			// Rank and page through the matching ids first, so we only ever build a single page of receipts
+			final String matches = getFullTextMatchSql();
+			final String rank = "CASE WHEN " + ReceiptsTable.COLUMN_ID + " IN (" + matches + ") THEN 0 WHEN " + ReceiptsTable.COLUMN_ID + " IN (" + matches + ") THEN 1 ELSE 2 END";
+			final String sql = "SELECT " + ReceiptsTable.COLUMN_ID + ", " + ReceiptsTable.COLUMN_PARENT + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_ID + " IN (" + matches + ") ORDER BY " + rank + ", " + ReceiptsTable.COLUMN_DATE + " DESC, " + ReceiptsTable.COLUMN_ID + " DESC LIMIT " + Math.max(offset, 0) + "," + limit;
+			final String[] args = new String[] { match, getFullTextQuery(query, ReceiptsTable.COLUMN_NAME), getFullTextQuery(query, ReceiptsTable.COLUMN_CATEGORY) };
+			final ArrayList<Integer> rankedIds = new ArrayList<Integer>(limit);
+			final HashMap<String, ArrayList<String>> idsByParent = new HashMap<String, ArrayList<String>>();
+			Cursor c = null;
+			try {
+				c = db.rawQuery(sql, args);
+				if (c != null && c.moveToFirst()) {
+					do {
+						final int id = c.getInt(0);
+						final String parent = c.getString(1);
+						rankedIds.add(id);
+						ArrayList<String> ids = idsByParent.get(parent);
+						if (ids == null) {
+							ids = new ArrayList<String>();
+							idsByParent.put(parent, ids);
+						}
+						ids.add(Integer.toString(id));
+					}
+					while (c.moveToNext());
+				}
+			}
+			finally {
+				if (c != null) {
+					c.close();
+				}
 			}
-			TripRow trip = params[0];
-			return getReceiptsHelper(trip, true);
-		}
 
-		@Override
-		protected void onPostExecute(List<ReceiptRow> result) {
-			if (mReceiptRowListener != null && !mSilence) {
-				mReceiptRowListener.onReceiptRowsQuerySuccess(result);
+			// Then build the receipts of each trip on this page
+			final HashMap<Integer, ReceiptRow> receiptsById = new HashMap<Integer, ReceiptRow>(rankedIds.size());
+			for (final String parent : idsByParent.keySet()) {
+				final TripRow trip = tripsById.get(parent);
+				if (trip == null) {
+					continue;
+				}
+				final ArrayList<String> ids = idsByParent.get(parent);
+				final ArrayList<ReceiptRow> receipts = new ArrayList<ReceiptRow>(ids.size());
+				Cursor receiptsCursor = null;
+				try {
+					receiptsCursor = db.query(ReceiptsTable.TABLE_NAME, null, ReceiptsTable.COLUMN_ID + " IN (" + getPlaceholders(ids.size()) + ")", ids.toArray(new String[ids.size()]), null, null, null);
+					readReceipts(receiptsCursor, trip, 1, receipts);
+				}
+				finally {
+					if (receiptsCursor != null) {
+						receiptsCursor.close();
+					}
+				}
+				for (final ReceiptRow receipt : receipts) {
+					receiptsById.put(receipt.getId(), receipt);
+				}
+			}
+			for (final Integer id : rankedIds) {
+				final ReceiptRow receipt = receiptsById.get(id);
+				if (receipt != null) {
+					results.add(receipt);
+				}
 			}
 		}
-
+		finally {
+			mReadLock.unlock();
+		}
+		return results;
 	}
 
-	public final ReceiptRow getReceiptByID(final int id) {
-		if (id <= 0) {
-			return null;
+	/**
+	 * @param query
+	 *            - the text to search for
+	 * @return the total number of receipts that {@link #searchReceiptsSerial(CharSequence, int, int)} can page through
+	 */
+	public final int getReceiptSearchCount(final CharSequence query) {
+		final String match = getFullTextQuery(query, null);
+		if (match == null) {
+			return 0;
 		}
-		synchronized (mDatabaseLock) {
-			SQLiteDatabase db = null;
+		mReadLock.lock();
+		try {
 			Cursor c = null;
 			try {
-				db = this.getReadableDatabase();
-				c = db.query(ReceiptsTable.TABLE_NAME, null, ReceiptsTable.COLUMN_ID + "= ?", new String[] { Integer.toString(id) }, null, null, null);
-				if (c != null && c.moveToFirst()) {
-					final int pathIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PATH);
-					final int parentIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PARENT);
-					final int nameIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NAME);
-					final int categoryIndex = c.getColumnIndex(ReceiptsTable.COLUMN_CATEGORY);
-					final int priceIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PRICE);
-					final int taxIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TAX);
-					final int dateIndex = c.getColumnIndex(ReceiptsTable.COLUMN_DATE);
-					final int timeZoneIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TIMEZONE);
-					final int commentIndex = c.getColumnIndex(ReceiptsTable.COLUMN_COMMENT);
-					final int expenseableIndex = c.getColumnIndex(ReceiptsTable.COLUMN_EXPENSEABLE);
-					final int currencyIndex = c.getColumnIndex(ReceiptsTable.COLUMN_ISO4217);
-					final int fullpageIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE);
-					final int paymentMethodIdIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PAYMENT_METHOD_ID);
-					final int extra_edittext_1_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1);
-					final int extra_edittext_2_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2);
-					final int extra_edittext_3_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3);
-					final String path = c.getString(pathIndex);
-					final String parent = c.getString(parentIndex);
-					final String name = c.getString(nameIndex);
-					final String category = c.getString(categoryIndex);
-					final String price = c.getString(priceIndex);
-					final String tax = c.getString(taxIndex);
-					final long date = c.getLong(dateIndex);
-					final String timezone = c.getString(timeZoneIndex);
-					final String comment = c.getString(commentIndex);
-					final boolean expensable = c.getInt(expenseableIndex) > 0;
-					final String currency = c.getString(currencyIndex);
-					final boolean fullpage = !(c.getInt(fullpageIndex) > 0);
-					final int paymentMethodId = c.getInt(paymentMethodIdIndex); // Not using a join, since we need the
-					final String extra_edittext_1 = c.getString(extra_edittext_1_Index);
-					final String extra_edittext_2 = c.getString(extra_edittext_2_Index);
-					final String extra_edittext_3 = c.getString(extra_edittext_3_Index);
-					File img = null;
-					if (!path.equalsIgnoreCase(DatabaseHelper.NO_DATA)) {
-						final StorageManager storageManager = mPersistenceManager.getStorageManager();
-						img = storageManager.getFile(storageManager.getFile(parent), path);
-					}
-					ReceiptRow.Builder builder = new ReceiptRow.Builder(id);
-					return builder.setTrip(getTripByName(parent)).setName(name).setCategory(category).setImage(img).setDate(date).setTimeZone(timezone).setComment(comment).setPrice(price).setTax(tax).setIsExpenseable(expensable).setCurrency(currency).setIsFullPage(fullpage).setPaymentMethod(findPaymentMethodById(paymentMethodId)).setExtraEditText1(extra_edittext_1).setExtraEditText2(extra_edittext_2).setExtraEditText3(extra_edittext_3).build();
-				}
-				else {
-					return null;
-				}
+				c = this.getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + ReceiptsSearchTable.TABLE_NAME + " WHERE " + ReceiptsSearchTable.TABLE_NAME + " MATCH ?", new String[] { match });
+				return (c != null && c.moveToFirst()) ? c.getInt(0) : 0;
 			}
-			finally { // Close the cursor and db to avoid memory leaks
+			finally {
 				if (c != null) {
 					c.close();
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
-	public ReceiptRow insertReceiptSerial(TripRow parent, ReceiptRow receipt) throws SQLException {
-		return insertReceiptSerial(parent, receipt, receipt.getFile());
-	}
-
-	public ReceiptRow insertReceiptSerial(TripRow parent, ReceiptRow receipt, File newFile) throws SQLException {
+	/**
+	 * Compiles the filter of a trip, so as much of it as possible can be applied by SQLite. This class is not
+	 * synchronized! Sync outside of it
+	 * 
+	 * @param trip
+	 *            - the trip, which must have a filter
+	 */
+	private ReceiptFilterCompiler.CompiledFilter compileReceiptFilter(final SQLiteDatabase db, final TripRow trip) {
+		// The day filters must know every time zone that this trip's receipts were saved in
+		final ArrayList<String> timeZoneIds = new ArrayList<String>();
+		Cursor c = null;
+		try {
+			c = db.query(true, ReceiptsTable.TABLE_NAME, new String[] { ReceiptsTable.COLUMN_TIMEZONE }, ReceiptsTable.COLUMN_PARENT + "= ?", new String[] { getParentArg(trip) }, null, null, null, null);
+			if (c != null && c.moveToFirst()) {
+				do {
+					timeZoneIds.add(c.getString(0));
+				}
+				while (c.moveToNext());
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		final ReceiptFilterCompiler.CompiledFilter compiled = new ReceiptFilterCompiler(timeZoneIds).compile(trip.getFilter());
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, compiled.toString());
+		}
+		return compiled;
+	}
+
+	private static String getFilteredSelection(final String selection, final ReceiptFilterCompiler.CompiledFilter compiled) {
+		return (compiled == null || compiled.getSelection() == null) ? selection : selection + " AND " + compiled.getSelection();
+	}
+
+	private static String[] getFilteredSelectionArgs(final String[] selectionArgs, final ReceiptFilterCompiler.CompiledFilter compiled) {
+		if (compiled == null) {
+			return selectionArgs;
+		}
+		final String[] filterArgs = compiled.getSelectionArgs();
+		final String[] args = new String[selectionArgs.length + filterArgs.length];
+		System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+		System.arraycopy(filterArgs, 0, args, selectionArgs.length, filterArgs.length);
+		return args;
+	}
+
+	/**
+	 * Gets a lazily loaded list of all receipts for a particular trip. Rows are only built as they are accessed
+	 * (one page at a time), so this should be preferred for very large trips or for anything that simply walks
+	 * the list once (e.g. report generation). Note that this list is a snapshot and is not cached. If the trip has a
+	 * filter that cannot be compiled entirely into SQL, its receipts must be filtered as they are built, so they are
+	 * all loaded up front instead.
+	 * 
+	 * @param trip
+	 *            - the trip
+	 * @param desc
+	 *            - {@code true} to order by date descending (as we display it). {@code false} for ascending.
+	 * @return a {@link PagedReceiptList}
+	 */
+	public final PagedReceiptList getReceiptsPaged(final TripRow trip, final boolean desc) {
+		if (trip != null && trip.hasFilter()) {
+			final ReceiptFilterCompiler.CompiledFilter compiled;
+			mReadLock.lock();
+			try {
+				compiled = compileReceiptFilter(this.getReadableDatabase(), trip);
+			}
+			finally {
+				mReadLock.unlock();
+			}
+			if (!compiled.isComplete()) {
+				return new PagedReceiptList(trip, getReceiptsHelper(trip, desc));
+			}
+			return new PagedReceiptList(this, trip, desc, compiled, getReceiptCount(trip, compiled));
+		}
+		return new PagedReceiptList(this, trip, desc, null, getReceiptCount(trip, null));
+	}
+
+	/**
+	 * @param filter
+	 *            - a {@link ReceiptFilterCompiler.CompiledFilter} without a residual filter or {@code null} to count every
+	 *            receipt
+	 */
+	final int getReceiptCount(final TripRow trip, final ReceiptFilterCompiler.CompiledFilter filter) {
+		if (trip == null) {
+			return 0;
+		}
+		mReadLock.lock();
+		try {
+			SQLiteDatabase db = null;
+			Cursor c = null;
+			try {
+				db = this.getReadableDatabase();
+				c = db.rawQuery(getFilteredSelection(RECEIPT_COUNT_QUERY, filter), getFilteredSelectionArgs(new String[] { getParentArg(trip) }, filter));
+				if (c != null && c.moveToFirst()) {
+					return c.getInt(0);
+				}
+				else {
+					return 0;
+				}
+			}
+			finally { // Close the cursor and db to avoid memory leaks
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+		finally {
+			mReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads a single page of receipts, ordered by date (and then id, so the order is stable). If the last receipt of
+	 * the previous page is known, keyset pagination is used to seek directly to this page. Otherwise we fall back to
+	 * an offset. The keyset is the sort key and id of that receipt, rather than a lookup by its id, so this still works
+	 * after it has been deleted.
+	 * 
+	 * @param trip
+	 *            - the trip
+	 * @param desc
+	 *            - {@code true} to order by date descending. {@code false} for ascending.
+	 * @param filter
+	 *            - a {@link ReceiptFilterCompiler.CompiledFilter} without a residual filter or {@code null} to include
+	 *            every receipt
+	 * @param after
+	 *            - the sort key and id of the last receipt of the previous page or {@code null} if it is not known
+	 * @param position
+	 *            - the position of the first receipt of this page within the whole list
+	 * @param limit
+	 *            - the page size
+	 * @param last
+	 *            - a two element array, which is set to the sort key and id of the last receipt of this page (if any)
+	 */
+	final List<ReceiptRow> getReceiptsPage(final TripRow trip, final boolean desc, final ReceiptFilterCompiler.CompiledFilter filter, final long[] after, final int position, final int limit, final long[] last) {
+		final ArrayList<ReceiptRow> receipts = new ArrayList<ReceiptRow>(limit);
+		if (trip == null) {
+			return receipts;
+		}
+		final String sql = getReceiptsPageQuery(desc, after != null, position, limit, (filter != null) ? filter.getSelection() : null);
+		final String[] parentArgs = getFilteredSelectionArgs(new String[] { getParentArg(trip) }, filter);
+		final String[] selectionArgs;
+		if (after != null) {
+			final String sortKey = Long.toString(after[0]);
+			selectionArgs = new String[parentArgs.length + 3];
+			System.arraycopy(parentArgs, 0, selectionArgs, 0, parentArgs.length);
+			selectionArgs[parentArgs.length] = sortKey;
+			selectionArgs[parentArgs.length + 1] = sortKey;
+			selectionArgs[parentArgs.length + 2] = Long.toString(after[1]);
+		}
+		else {
+			selectionArgs = parentArgs;
+		}
+		mReadLock.lock();
+		try {
+			SQLiteDatabase db = null;
+			Cursor c = null;
+			try {
+				db = this.getReadableDatabase();
+				c = db.rawQuery(sql, selectionArgs);
+				if (c != null && c.moveToLast()) {
+					last[0] = c.getLong(c.getColumnIndex(ReceiptsTable.COLUMN_SORT_KEY));
+					last[1] = c.getLong(c.getColumnIndex(ReceiptsTable.COLUMN_ID));
+				}
+				readReceipts(c, trip, position + 1, receipts);
+			}
+			finally { // Close the cursor and db to avoid memory leaks
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+		finally {
+			mReadLock.unlock();
+		}
+		return receipts;
+	}
+
+	/**
+	 * Builds a {@link ReceiptRow} for each row of this cursor
+	 * 
+	 * @param c
+	 *            - a cursor over the receipts table (may be {@code null})
+	 * @param trip
+	 *            - the parent trip
+	 * @param firstIndex
+	 *            - the index of the first row
+	 * @param receipts
+	 *            - the list to add these receipts to
+	 */
+	private void readReceipts(final Cursor c, final TripRow trip, final int firstIndex, final List<ReceiptRow> receipts) {
+		readReceipts(c, trip, firstIndex, receipts, null);
+	}
+
+	/**
+	 * Builds a {@link ReceiptRow} for each row of this cursor that is accepted by a filter. Indices are only assigned
+	 * to the accepted receipts, so they remain contiguous.
+	 * 
+	 * @param filter
+	 *            - the {@link Filter} to apply or {@code null} to accept every row
+	 */
+	private void readReceipts(final Cursor c, final TripRow trip, final int firstIndex, final List<ReceiptRow> receipts, final Filter<ReceiptRow> filter) {
+		if (c != null && c.moveToFirst()) {
+			final int start = receipts.size();
+			int accepted = 0;
+			final int idIndex = c.getColumnIndex(ReceiptsTable.COLUMN_ID);
+			final int pathIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PATH);
+			final int nameIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NAME);
+			final int categoryIndex = c.getColumnIndex(ReceiptsTable.COLUMN_CATEGORY);
+			final int priceIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PRICE);
+			final int taxIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TAX);
+			final int dateIndex = c.getColumnIndex(ReceiptsTable.COLUMN_DATE);
+			final int timeZoneIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TIMEZONE);
+			final int commentIndex = c.getColumnIndex(ReceiptsTable.COLUMN_COMMENT);
+			final int expenseableIndex = c.getColumnIndex(ReceiptsTable.COLUMN_EXPENSEABLE);
+			final int currencyIndex = c.getColumnIndex(ReceiptsTable.COLUMN_ISO4217);
+			final int fullpageIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE);
+			final int paymentMethodIdIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PAYMENT_METHOD_ID);
+			final int extra_edittext_1_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1);
+			final int extra_edittext_2_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2);
+			final int extra_edittext_3_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3);
+			do {
+				final int id = c.getInt(idIndex);
+				final String path = c.getString(pathIndex);
+				final String name = c.getString(nameIndex);
+				final String category = c.getString(categoryIndex);
+				final double priceDouble = c.getDouble(priceIndex);
+				final double taxDouble = c.getDouble(taxIndex);
+				final String priceString = c.getString(priceIndex);
+				final String taxString = c.getString(taxIndex);
+				final long date = c.getLong(dateIndex);
+				final String timezone = (timeZoneIndex > 0) ? c.getString(timeZoneIndex) : null;
+				final String comment = c.getString(commentIndex);
+				final boolean expensable = c.getInt(expenseableIndex) > 0;
+				final String currency = c.getString(currencyIndex);
+				final boolean fullpage = !(c.getInt(fullpageIndex) > 0);
+				final int paymentMethodId = c.getInt(paymentMethodIdIndex); // Not using a join, since we need
+				final String extra_edittext_1 = c.getString(extra_edittext_1_Index);
+				final String extra_edittext_2 = c.getString(extra_edittext_2_Index);
+				final String extra_edittext_3 = c.getString(extra_edittext_3_Index);
+				File img = null;
+				if (!path.equalsIgnoreCase(DatabaseHelper.NO_DATA)) {
+					img = mPersistenceManager.getStorageManager().getFile(trip.getDirectory(), path);
+				}
+				ReceiptRow.Builder builder = new ReceiptRow.Builder(id);
+				builder.setTrip(trip).setName(name).setCategory(category).setImage(img).setDate(date).setTimeZone(timezone).setComment(comment).setIsExpenseable(expensable).setCurrency(currency).setIsFullPage(fullpage).setIndex(firstIndex + accepted).setPaymentMethod(findPaymentMethodById(paymentMethodId)).setExtraEditText1(extra_edittext_1).setExtraEditText2(extra_edittext_2).setExtraEditText3(extra_edittext_3);
+				/**
+				 * Please note that a very frustrating bug exists here. Android cursors only return the first 6
+				 * characters of a price string if that string contains a '.' character. It returns all of them
+				 * if not. This means we'll break for prices over 5 digits unless we are using a comma separator, 
+				 * which we'd do in the EU. Stupid check below to un-break this. Stupid Android.
+				 * 
+				 * TODO: Longer term, everything should be saved with a decimal point
+				 * https://code.google.com/p/android/issues/detail?id=22219
+				 */
+				if (!TextUtils.isEmpty(priceString) && priceString.contains(",")) {
+					builder.setPrice(priceString);
+				}
+				else {
+					builder.setPrice(priceDouble);
+				}
+				if (!TextUtils.isEmpty(taxString) && taxString.contains(",")) {
+					builder.setTax(taxString);
+				}
+				else {
+					builder.setTax(taxDouble);
+				}
+				final ReceiptRow receipt = builder.build();
+				if (filter == null || filter.accept(receipt)) {
+					receipts.add(receipt);
+					accepted++;
+				}
+			}
+			while (c.moveToNext());
+			readFileStates(receipts.subList(start, receipts.size()));
+		}
+	}
+
+	/**
+	 * Applies the existence flags that were recorded by the {@link IntegrityScrubber} to these receipts, so they do not
+	 * have to check the file system themselves. Flags that were recorded for an older path are ignored.
+	 */
+	private void readFileStates(final List<ReceiptRow> receipts) {
+		final SQLiteDatabase db = this.getReadableDatabase();
+		for (int start = 0; start < receipts.size(); start += IN_LIST_BATCH_SIZE) {
+			final int end = Math.min(start + IN_LIST_BATCH_SIZE, receipts.size());
+			final HashMap<String, ReceiptRow> receiptsById = new HashMap<String, ReceiptRow>(end - start);
+			for (int i = start; i < end; i++) {
+				final ReceiptRow receipt = receipts.get(i);
+				if (receipt.getFile() != null) {
+					receiptsById.put(Integer.toString(receipt.getId()), receipt);
+				}
+			}
+			if (receiptsById.isEmpty()) {
+				continue;
+			}
+			final String[] ids = receiptsById.keySet().toArray(new String[receiptsById.size()]);
+			Cursor c = null;
+			try {
+				c = db.query(ReceiptFilesTable.TABLE_NAME, new String[] { ReceiptFilesTable.COLUMN_RECEIPT_ID, ReceiptFilesTable.COLUMN_PATH, ReceiptFilesTable.COLUMN_EXISTS }, ReceiptFilesTable.COLUMN_RECEIPT_ID + " IN (" + getPlaceholders(ids.length) + ")", ids, null, null, null);
+				while (c != null && c.moveToNext()) {
+					final ReceiptRow receipt = receiptsById.get(c.getString(0));
+					if (receipt != null && receipt.getFile().getName().equals(c.getString(1))) {
+						receipt.setFileExists(c.getInt(2) > 0);
+					}
+				}
+			}
+			finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+	}
+
+	private class GetReceiptsWorker extends AsyncTask<TripRow, Void, List<ReceiptRow>> {
+
+		private final boolean mSilence;
+
+		public GetReceiptsWorker() {
+			mSilence = false;
+		}
+
+		public GetReceiptsWorker(boolean silence) {
+			mSilence = silence;
+		}
+
+		@Override
+		protected List<ReceiptRow> doInBackground(TripRow... params) {
+			if (params == null || params.length == 0) {
+				return new ArrayList<ReceiptRow>();
+			}
+			TripRow trip = params[0];
+			// Always build the full list here, so the adapter never has to load rows on the UI thread
+			return getReceiptsHelper(trip, true);
+		}
+
+		@Override
+		protected void onPostExecute(List<ReceiptRow> result) {
+			if (mReceiptRowListener != null && !mSilence) {
+				mReceiptRowListener.onReceiptRowsQuerySuccess(result);
+			}
+		}
+
+	}
+
+	// Joins the recorded file state (for the current path only), so a single receipt does not need a second query
+	private static final String RECEIPT_BY_ID_QUERY = "SELECT r.*, f." + ReceiptFilesTable.COLUMN_EXISTS + " FROM " + ReceiptsTable.TABLE_NAME + " r LEFT JOIN " + ReceiptFilesTable.TABLE_NAME + " f ON f." + ReceiptFilesTable.COLUMN_RECEIPT_ID + " = r." + ReceiptsTable.COLUMN_ID + " AND f." + ReceiptFilesTable.COLUMN_PATH + " = r." + ReceiptsTable.COLUMN_PATH + " WHERE r." + ReceiptsTable.COLUMN_ID + " = ?";
+
+	public final ReceiptRow getReceiptByID(final int id) {
+		if (id <= 0) {
+			return null;
+		}
+		mReadLock.lock();
+		try {
+			SQLiteDatabase db = null;
+			Cursor c = null;
+			try {
+				db = this.getReadableDatabase();
+				c = db.rawQuery(RECEIPT_BY_ID_QUERY, new String[] { Integer.toString(id) });
+				if (c != null && c.moveToFirst()) {
+					final int pathIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PATH);
+					final int parentIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PARENT);
+					final int nameIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NAME);
+					final int categoryIndex = c.getColumnIndex(ReceiptsTable.COLUMN_CATEGORY);
+					final int priceIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PRICE);
+					final int taxIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TAX);
+					final int dateIndex = c.getColumnIndex(ReceiptsTable.COLUMN_DATE);
+					final int timeZoneIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TIMEZONE);
+					final int commentIndex = c.getColumnIndex(ReceiptsTable.COLUMN_COMMENT);
+					final int expenseableIndex = c.getColumnIndex(ReceiptsTable.COLUMN_EXPENSEABLE);
+					final int currencyIndex = c.getColumnIndex(ReceiptsTable.COLUMN_ISO4217);
+					final int fullpageIndex = c.getColumnIndex(ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE);
+					final int paymentMethodIdIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PAYMENT_METHOD_ID);
+					final int extra_edittext_1_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1);
+					final int extra_edittext_2_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2);
+					final int extra_edittext_3_Index = c.getColumnIndex(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3);
+					final int fileExistsIndex = c.getColumnIndex(ReceiptFilesTable.COLUMN_EXISTS);
+					final String path = c.getString(pathIndex);
+					final TripRow trip = getTripById(c.getInt(parentIndex));
+					final String name = c.getString(nameIndex);
+					final String category = c.getString(categoryIndex);
+					final String price = c.getString(priceIndex);
+					final String tax = c.getString(taxIndex);
+					final long date = c.getLong(dateIndex);
+					final String timezone = c.getString(timeZoneIndex);
+					final String comment = c.getString(commentIndex);
+					final boolean expensable = c.getInt(expenseableIndex) > 0;
+					final String currency = c.getString(currencyIndex);
+					final boolean fullpage = !(c.getInt(fullpageIndex) > 0);
+					final int paymentMethodId = c.getInt(paymentMethodIdIndex); // Not using a join, since we need the
+					final String extra_edittext_1 = c.getString(extra_edittext_1_Index);
+					final String extra_edittext_2 = c.getString(extra_edittext_2_Index);
+					final String extra_edittext_3 = c.getString(extra_edittext_3_Index);
+					File img = null;
+					if (trip != null && !path.equalsIgnoreCase(DatabaseHelper.NO_DATA)) {
+						img = mPersistenceManager.getStorageManager().getFile(trip.getDirectory(), path);
+					}
+					ReceiptRow.Builder builder = new ReceiptRow.Builder(id);
+					final ReceiptRow receipt = builder.setTrip(trip).setName(name).setCategory(category).setImage(img).setDate(date).setTimeZone(timezone).setComment(comment).setPrice(price).setTax(tax).setIsExpenseable(expensable).setCurrency(currency).setIsFullPage(fullpage).setPaymentMethod(findPaymentMethodById(paymentMethodId)).setExtraEditText1(extra_edittext_1).setExtraEditText2(extra_edittext_2).setExtraEditText3(extra_edittext_3).build();
+					if (img != null && !c.isNull(fileExistsIndex)) {
+						receipt.setFileExists(c.getInt(fileExistsIndex) > 0);
+					}
+					return receipt;
+				}
+				else {
+					return null;
+				}
+			}
+			finally { // Close the cursor and db to avoid memory leaks
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+		finally {
+			mReadLock.unlock();
+		}
+	}
+
+	public ReceiptRow insertReceiptSerial(TripRow parent, ReceiptRow receipt) throws SQLException {
+		return insertReceiptSerial(parent, receipt, receipt.getFile());
+	}
+
+	public ReceiptRow insertReceiptSerial(TripRow parent, ReceiptRow receipt, File newFile) throws SQLException {
 		return insertReceiptHelper(parent, newFile, receipt.getName(), receipt.getCategory(), receipt.getDate(), receipt.getTimeZone(), receipt.getComment(), receipt.getPrice(), receipt.getTax(), receipt.isExpensable(), receipt.getCurrencyCode(), receipt.isFullPage(), receipt.getPaymentMethod(), receipt.getExtraEditText1(), receipt.getExtraEditText2(), receipt.getExtraEditText3());
 	}
 
@@ -1521,10 +2650,20 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			PaymentMethod method, String extra_edittext_1, String extra_edittext_2, String extra_edittext_3) throws SQLException {
 
 		final int rcptNum = this.getReceiptsSerial(trip).size() + 1; // Use this to order things more properly
+		return insertReceiptHelper(trip, rcptNum, false, img, name, category, date, timeZone, comment, price, tax, expensable, currency, fullpage, method, extra_edittext_1, extra_edittext_2, extra_edittext_3);
+	}
+
+	/**
+	 * Inserts a receipt at a given position in its trip. Batch inserts must already hold the write lock (and a
+	 * transaction), and are responsible for updating the trip price and receipt cache once they complete
+	 */
+	private ReceiptRow insertReceiptHelper(TripRow trip, int rcptNum, boolean isBatch, File img, String name, String category, Date date, TimeZone timeZone, String comment, String price, String tax, boolean expensable, String currency,
+			boolean fullpage, PaymentMethod method, String extra_edittext_1, String extra_edittext_2, String extra_edittext_3) throws SQLException {
+
 		StringBuilder stringBuilder = new StringBuilder(rcptNum + "_");
 		ContentValues values = new ContentValues(10);
 
-		values.put(ReceiptsTable.COLUMN_PARENT, trip.getName());
+		values.put(ReceiptsTable.COLUMN_PARENT, trip.getId());
 		if (name.length() > 0) {
 			stringBuilder.append(name.trim());
 			values.put(ReceiptsTable.COLUMN_NAME, name.trim());
@@ -1543,6 +2682,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 																				// other bugs will arise before this
 																				// point
 		}
+		values.put(ReceiptsTable.COLUMN_SORT_KEY, getDefaultSortKey(values.getAsLong(ReceiptsTable.COLUMN_DATE)));
 		if (timeZone == null) {
 			timeZone = TimeZone.getDefault();
 			values.put(ReceiptsTable.COLUMN_TIMEZONE, TimeZone.getDefault().getID());
@@ -1615,7 +2755,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 
 		ReceiptRow insertReceipt;
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -1624,13 +2765,14 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					insertReceipt = null;
 				}
 				else {
-					this.updateTripPrice(trip);
-					if (mReceiptCache.containsKey(trip)) {
+					if (!isBatch) {
+						this.updateTripPrice(trip);
 						mReceiptCache.remove(trip);
 					}
 					c = db.rawQuery("SELECT last_insert_rowid()", null);
 					if (c != null && c.moveToFirst() && c.getColumnCount() > 0) {
 						final int id = c.getInt(0);
+						mPredictionModel.put(id, name, category, price);
 						date.setTime(date.getTime() + rcptNum);
 						ReceiptRow.Builder builder = new ReceiptRow.Builder(id);
 						insertReceipt = builder.setTrip(trip).setName(name).setCategory(category).setImage(img).setDate(date).setTimeZone(timeZone).setComment(comment).setPrice(price).setTax(tax).setIndex(rcptNum).setIsExpenseable(expensable).setCurrency(currency).setIsFullPage(fullpage).setPaymentMethod(method).setExtraEditText1(extra_edittext_1).setExtraEditText2(extra_edittext_2).setExtraEditText3(extra_edittext_3).build();
@@ -1646,13 +2788,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
-		if (insertReceipt != null) {
-			synchronized (mReceiptCacheLock) {
-				if (mReceiptCache.containsKey(trip)) {
-					mReceiptCache.remove(trip);
-				}
-				mNextReceiptAutoIncrementId = -1;
-			}
+		finally {
+			mWriteLock.unlock();
+		}
+		if (insertReceipt != null && !isBatch) {
+			mReceiptCache.remove(trip);
+			mNextReceiptAutoIncrementId = -1;
 		}
 		return insertReceipt;
 	}
@@ -1743,6 +2884,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		else {
 			values.put(ReceiptsTable.COLUMN_DATE, date.getTime());
 		}
+		if (!date.equals(oldReceipt.getDate())) { // A new date re-sorts the receipt. Otherwise, we keep its manual order
+			values.put(ReceiptsTable.COLUMN_SORT_KEY, getDefaultSortKey(values.getAsLong(ReceiptsTable.COLUMN_DATE)));
+		}
 		values.put(ReceiptsTable.COLUMN_COMMENT, comment);
 		if (price.length() > 0) {
 			values.put(ReceiptsTable.COLUMN_PRICE, price);
@@ -1792,7 +2936,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 
 		ReceiptRow updatedReceipt;
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			try {
 				db = this.getWritableDatabase();
@@ -1801,6 +2946,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 				else {
 					this.updateTripPrice(trip);
+					mPredictionModel.put(oldReceipt.getId(), name, category, price);
 					ReceiptRow.Builder builder = new ReceiptRow.Builder(oldReceipt.getId());
 					updatedReceipt = builder.setTrip(trip).setName(name).setCategory(category).setFile(oldReceipt.getFile()).setDate(date).setTimeZone(timeZone).setComment(comment).setPrice(price).setTax(tax).setIsExpenseable(expensable).setCurrency(currency).setIsFullPage(fullpage).setIndex(oldReceipt.getIndex()).setPaymentMethod(method).setExtraEditText1(extra_edittext_1).setExtraEditText2(extra_edittext_2).setExtraEditText3(extra_edittext_3).build();
 
@@ -1810,11 +2956,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				return null;
 			}
 		}
-		synchronized (mReceiptCacheLock) {
-			mNextReceiptAutoIncrementId = -1;
-			if (updatedReceipt != null) {
-				mReceiptCache.remove(trip);
-			}
+		finally {
+			mWriteLock.unlock();
+		}
+		mNextReceiptAutoIncrementId = -1;
+		if (updatedReceipt != null) {
+			mReceiptCache.remove(trip);
 		}
 		return updatedReceipt;
 	}
@@ -1866,7 +3013,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	}
 
 	public final ReceiptRow updateReceiptFile(final ReceiptRow oldReceipt, final File file) {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			try {
 				db = this.getReadableDatabase();
@@ -1881,10 +3029,10 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					return null;
 				}
 				else {
-					synchronized (mReceiptCacheLock) {
-						mNextReceiptAutoIncrementId = -1;
-						mReceiptCache.remove(oldReceipt.getTrip());
-					}
+					// The new file may reuse the old name, so the recorded state cannot be trusted either way
+					db.delete(ReceiptFilesTable.TABLE_NAME, ReceiptFilesTable.COLUMN_RECEIPT_ID + " = ?", new String[] { Integer.toString(oldReceipt.getId()) });
+					mNextReceiptAutoIncrementId = -1;
+					mReceiptCache.remove(oldReceipt.getTrip());
 					oldReceipt.setFile(file);
 					return oldReceipt;
 				}
@@ -1893,6 +3041,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				return null;
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public boolean copyReceiptSerial(ReceiptRow receipt, TripRow newTrip) {
@@ -1911,10 +3062,10 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	private boolean copyReceiptHelper(ReceiptRow receipt, TripRow newTrip) {
 		File newFile = null;
 		final StorageManager storageManager = mPersistenceManager.getStorageManager();
-		if (receipt.hasFile()) {
+		if (receipt.checkFileExists()) {
 			try {
-				newFile = storageManager.getFile(newTrip.getDirectory(), receipt.getFileName());
-				if (!storageManager.copy(receipt.getFile(), newFile, true)) {
+				newFile = getUnusedFile(newTrip.getDirectory(), receipt.getFileName(), new HashSet<String>());
+				if (!storageManager.copy(receipt.getFile(), newFile, false)) {
 					newFile = null; // Unset on failed copy
 					return false;
 				}
@@ -2044,20 +3195,36 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 
 	private boolean deleteReceiptHelper(ReceiptRow receipt, TripRow currentTrip) {
 		boolean success = false;
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
-			success = (db.delete(ReceiptsTable.TABLE_NAME, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(receipt.getId()) }) > 0);
+			final String[] id = new String[] { Integer.toString(receipt.getId()) };
+			db.beginTransaction();
+			try {
+				db.delete(ReceiptFilesTable.TABLE_NAME, ReceiptFilesTable.COLUMN_RECEIPT_ID + " = ?", id);
+				success = (db.delete(ReceiptsTable.TABLE_NAME, ReceiptsTable.COLUMN_ID + " = ?", id) > 0);
+				if (success) {
+					db.setTransactionSuccessful();
+				}
+			}
+			finally {
+				db.endTransaction();
+			}
+			if (success) {
+				mPredictionModel.remove(receipt.getId());
+			}
+		}
+		finally {
+			mWriteLock.unlock();
 		}
 		if (success) {
 			if (receipt.hasFile()) {
 				success = success & mPersistenceManager.getStorageManager().delete(receipt.getFile());
 			}
 			this.updateTripPrice(currentTrip);
-			synchronized (mReceiptCacheLock) {
-				mNextReceiptAutoIncrementId = -1;
-				mReceiptCache.remove(currentTrip);
-			}
+			mNextReceiptAutoIncrementId = -1;
+			mReceiptCache.remove(currentTrip);
 		}
 		return success;
 	}
@@ -2091,86 +3258,536 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 
 	}
 
-	public final boolean moveReceiptUp(final TripRow trip, final ReceiptRow receipt) {
-		List<ReceiptRow> receipts = getReceiptsSerial(trip);
-		int index = 0;
-		final int size = receipts.size();
-		for (int i = 0; i < size; i++) {
-			if (receipt.getId() == receipts.get(i).getId()) {
-				index = i - 1;
-				break;
-			}
+	// //////////////////////////////////////////////////////////////////////////////////////////////////
+	// Bulk ReceiptRow Methods
+	// //////////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Copies a group of receipts into another trip. All of their files are copied in parallel and then every row is
+	 * inserted in a single transaction, so either all of the receipts are copied or none are.
+	 *
+	 * @return {@code true} if every receipt was copied. {@code false} otherwise
+	 */
+	public boolean copyReceiptsSerial(List<ReceiptRow> receipts, TripRow newTrip) {
+		return copyReceiptsHelper(receipts, null, newTrip);
+	}
+
+	public void copyReceiptsParallel(List<ReceiptRow> receipts, TripRow newTrip, BulkReceiptListener listener) {
+		(new BulkReceiptWorker(BulkReceiptWorker.COPY, receipts, null, newTrip, listener)).execute(new Void[0]);
+	}
+
+	/**
+	 * Moves a group of receipts into another trip. The copies are inserted and the originals deleted in a single
+	 * transaction, so either all of the receipts are moved or none are.
+	 *
+	 * @return {@code true} if every receipt was moved. {@code false} otherwise
+	 */
+	public boolean moveReceiptsSerial(List<ReceiptRow> receipts, TripRow currentTrip, TripRow newTrip) {
+		return copyReceiptsHelper(receipts, currentTrip, newTrip);
+	}
+
+	public void moveReceiptsParallel(List<ReceiptRow> receipts, TripRow currentTrip, TripRow newTrip, BulkReceiptListener listener) {
+		(new BulkReceiptWorker(BulkReceiptWorker.MOVE, receipts, currentTrip, newTrip, listener)).execute(new Void[0]);
+	}
+
+	/**
+	 * Deletes a group of receipts (and their files) from a trip in a single transaction
+	 *
+	 * @return {@code true} if every receipt and file was deleted. {@code false} otherwise
+	 */
+	public boolean deleteReceiptsSerial(List<ReceiptRow> receipts, TripRow currentTrip) {
+		return deleteReceiptsHelper(receipts, currentTrip);
+	}
+
+	public void deleteReceiptsParallel(List<ReceiptRow> receipts, TripRow currentTrip, BulkReceiptListener listener) {
+		(new BulkReceiptWorker(BulkReceiptWorker.DELETE, receipts, currentTrip, null, listener)).execute(new Void[0]);
+	}
+
+	/**
+	 * Copies receipts into a new trip. If a current trip is provided, the originals are deleted from it in the same
+	 * transaction (i.e. they are moved)
+	 */
+	private boolean copyReceiptsHelper(List<ReceiptRow> receipts, TripRow currentTrip, TripRow newTrip) {
+		if (receipts.isEmpty()) {
+			return true;
 		}
-		if (index < 0) {
+		final File[] newFiles = copyReceiptFilesHelper(receipts, newTrip);
+		if (newFiles == null) {
 			return false;
 		}
-		ReceiptRow up = receipts.get(index);
-		synchronized (mDatabaseLock) {
-			SQLiteDatabase db = null;
+		int rcptNum = this.getReceiptsSerial(newTrip).size() + 1;
+		boolean success = false;
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.beginTransaction();
 			try {
-				db = this.getWritableDatabase();
-				ContentValues upValues = new ContentValues(1);
-				ContentValues downValues = new ContentValues(1);
-				upValues.put(ReceiptsTable.COLUMN_DATE, receipt.getDate().getTime());
-				if (receipt.getDate().getTime() != up.getDate().getTime()) {
-					downValues.put(ReceiptsTable.COLUMN_DATE, up.getDate().getTime());
-				}
-				else {
-					downValues.put(ReceiptsTable.COLUMN_DATE, up.getDate().getTime() + 1L);
-				}
-				if ((db.update(ReceiptsTable.TABLE_NAME, upValues, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(up.getId()) }) == 0)) {
-					return false;
+				for (int i = 0; i < receipts.size(); i++) {
+					final ReceiptRow receipt = receipts.get(i);
+					final ReceiptRow copy = insertReceiptHelper(newTrip, rcptNum++, true, newFiles[i], receipt.getName(), receipt.getCategory(), receipt.getDate(), receipt.getTimeZone(), receipt.getComment(), receipt.getPrice(), receipt.getTax(), receipt.isExpensable(), receipt.getCurrencyCode(), receipt.isFullPage(), receipt.getPaymentMethod(), receipt.getExtraEditText1(), receipt.getExtraEditText2(), receipt.getExtraEditText3());
+					if (copy == null) {
+						return false;
+					}
+					newFiles[i] = copy.getFile(); // The insert may have renamed it
 				}
-				if ((db.update(ReceiptsTable.TABLE_NAME, downValues, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(receipt.getId()) }) == 0)) {
+				if (currentTrip != null && deleteReceiptRowsHelper(db, receipts) != receipts.size()) {
 					return false;
 				}
-				mReceiptCache.remove(trip);
-				return true;
+				db.setTransactionSuccessful();
+				success = true;
 			}
 			catch (SQLException e) {
+				if (BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString());
+				}
 				return false;
 			}
+			finally {
+				db.endTransaction();
+				if (!success) {
+					mPredictionModel.clear(); // It saw the rolled back inserts
+				}
+			}
+			if (currentTrip != null) {
+				for (final ReceiptRow receipt : receipts) {
+					mPredictionModel.remove(receipt.getId()); // The moved originals are gone
+				}
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+			if (!success) {
+				for (final File file : newFiles) {
+					if (file != null) {
+						mPersistenceManager.getStorageManager().delete(file);
+					}
+				}
+			}
 		}
+		if (currentTrip != null) {
+			for (final ReceiptRow receipt : receipts) {
+				if (receipt.hasFile()) {
+					mPersistenceManager.getStorageManager().delete(receipt.getFile());
+				}
+			}
+			this.updateTripPrice(currentTrip);
+			mReceiptCache.remove(currentTrip);
+		}
+		this.updateTripPrice(newTrip);
+		mReceiptCache.remove(newTrip);
+		mNextReceiptAutoIncrementId = -1;
+		return true;
 	}
 
-	public final boolean moveReceiptDown(final TripRow trip, final ReceiptRow receipt) {
-		List<ReceiptRow> receipts = getReceiptsSerial(trip);
-		final int size = receipts.size();
-		int index = size - 1;
-		for (int i = 0; i < receipts.size(); i++) {
-			if (receipt.getId() == receipts.get(i).getId()) {
-				index = i + 1;
-				break;
+	/**
+	 * Copies the files of these receipts into a trip's directory in parallel. Each copy goes to a name that is not yet
+	 * taken (the insert renames it afterwards), so files that already exist in that directory are never replaced
+	 *
+	 * @return the new files in the same order as the receipts (with {@code null} for receipts without one) or
+	 *         {@code null} if any copy failed, in which case every file that was created here has been deleted
+	 */
+	private File[] copyReceiptFilesHelper(List<ReceiptRow> receipts, TripRow newTrip) {
+		final StorageManager storageManager = mPersistenceManager.getStorageManager();
+		final File[] newFiles = new File[receipts.size()];
+		final HashSet<String> reservedNames = new HashSet<String>();
+		final ArrayList<Future<Boolean>> copies = new ArrayList<Future<Boolean>>(receipts.size());
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(BULK_COPY_THREADS, receipts.size()));
+		boolean success = true;
+		try {
+			for (int i = 0; i < receipts.size(); i++) {
+				final ReceiptRow receipt = receipts.get(i);
+				if (!receipt.checkFileExists()) {
+					copies.add(null);
+					continue;
+				}
+				final File newFile = getUnusedFile(newTrip.getDirectory(), receipt.getFileName(), reservedNames);
+				newFiles[i] = newFile;
+				copies.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						return storageManager.copy(receipt.getFile(), newFile, false);
+					}
+				}));
+			}
+			for (int i = 0; i < copies.size(); i++) {
+				final Future<Boolean> copy = copies.get(i);
+				if (copy == null) {
+					continue;
+				}
+				try {
+					if (!copy.get()) {
+						newFiles[i] = null; // Something else took this name in the meantime, so it isn't ours to delete
+						success = false;
+					}
+				}
+				catch (ExecutionException e) {
+					if (BuildConfig.DEBUG) {
+						Log.e(TAG, e.getCause().toString());
+					}
+					success = false;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					success = false;
+					break;
+				}
 			}
 		}
-		if (index > (size - 1)) {
-			return false;
+		finally {
+			executor.shutdownNow();
 		}
-		ReceiptRow down = receipts.get(index);
-		synchronized (mDatabaseLock) {
-			SQLiteDatabase db = null;
+		if (!success) {
+			for (final File file : newFiles) {
+				if (file != null) {
+					storageManager.delete(file);
+				}
+			}
+			return null;
+		}
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "Copied the files of " + receipts.size() + " receipts to " + newTrip.getDirectory());
+		}
+		return newFiles;
+	}
+
+	/**
+	 * @return a file in this directory that does not exist yet and whose name has not been reserved. Its name is then
+	 *         reserved
+	 */
+	private File getUnusedFile(File directory, String fileName, Set<String> reservedNames) {
+		final StorageManager storageManager = mPersistenceManager.getStorageManager();
+		String name = fileName;
+		File file = storageManager.getFile(directory, name);
+		for (int i = 1; file.exists() || reservedNames.contains(name); i++) {
+			name = "copy" + i + "_" + fileName;
+			file = storageManager.getFile(directory, name);
+		}
+		reservedNames.add(name);
+		return file;
+	}
+
+	private boolean deleteReceiptsHelper(List<ReceiptRow> receipts, TripRow currentTrip) {
+		if (receipts.isEmpty()) {
+			return true;
+		}
+		boolean success = false;
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.beginTransaction();
 			try {
-				db = this.getWritableDatabase();
-				ContentValues upValues = new ContentValues(1);
-				ContentValues downValues = new ContentValues(1);
-				if (receipt.getDate().getTime() != down.getDate().getTime()) {
-					upValues.put(ReceiptsTable.COLUMN_DATE, down.getDate().getTime());
+				if (deleteReceiptRowsHelper(db, receipts) == receipts.size()) {
+					db.setTransactionSuccessful();
+					success = true;
+				}
+			}
+			catch (SQLException e) {
+				if (BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString());
+				}
+			}
+			finally {
+				db.endTransaction();
+			}
+			if (success) {
+				for (final ReceiptRow receipt : receipts) {
+					mPredictionModel.remove(receipt.getId());
+				}
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+		if (success) {
+			for (final ReceiptRow receipt : receipts) {
+				if (receipt.hasFile()) {
+					success = success & mPersistenceManager.getStorageManager().delete(receipt.getFile());
+				}
+			}
+			this.updateTripPrice(currentTrip);
+			mNextReceiptAutoIncrementId = -1;
+			mReceiptCache.remove(currentTrip);
+		}
+		return success;
+	}
+
+	/**
+	 * Deletes the rows of these receipts in batches. This must be called with the write lock held
+	 *
+	 * @return the number of rows that were deleted
+	 */
+	private int deleteReceiptRowsHelper(SQLiteDatabase db, List<ReceiptRow> receipts) {
+		int deleted = 0;
+		for (int start = 0; start < receipts.size(); start += BULK_DELETE_BATCH_SIZE) {
+			final int end = Math.min(start + BULK_DELETE_BATCH_SIZE, receipts.size());
+			final String[] ids = new String[end - start];
+			for (int i = start; i < end; i++) {
+				ids[i - start] = Integer.toString(receipts.get(i).getId());
+			}
+			db.delete(ReceiptFilesTable.TABLE_NAME, ReceiptFilesTable.COLUMN_RECEIPT_ID + " IN (" + getPlaceholders(ids.length) + ")", ids);
+			deleted += db.delete(ReceiptsTable.TABLE_NAME, ReceiptsTable.COLUMN_ID + " IN (" + getPlaceholders(ids.length) + ")", ids);
+		}
+		return deleted;
+	}
+
+	private class BulkReceiptWorker extends AsyncTask<Void, Void, Boolean> {
+
+		private static final int COPY = 0;
+		private static final int MOVE = 1;
+		private static final int DELETE = 2;
+
+		private final int mOperation;
+		private final List<ReceiptRow> mReceipts;
+		private final TripRow mCurrentTrip, mNewTrip;
+		private final BulkReceiptListener mListener;
+
+		public BulkReceiptWorker(int operation, List<ReceiptRow> receipts, TripRow currentTrip, TripRow newTrip, BulkReceiptListener listener) {
+			mOperation = operation;
+			mReceipts = new ArrayList<ReceiptRow>(receipts);
+			mCurrentTrip = currentTrip;
+			mNewTrip = newTrip;
+			mListener = listener;
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			if (mOperation == DELETE) {
+				return deleteReceiptsHelper(mReceipts, mCurrentTrip);
+			}
+			else {
+				return copyReceiptsHelper(mReceipts, (mOperation == MOVE) ? mCurrentTrip : null, mNewTrip);
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Boolean result) {
+			if (mListener == null) {
+				return;
+			}
+			if (mOperation == COPY) {
+				if (result) {
+					mListener.onReceiptsCopySuccess(mNewTrip, mReceipts.size());
 				}
 				else {
-					upValues.put(ReceiptsTable.COLUMN_DATE, down.getDate().getTime() - 1L);
+					mListener.onReceiptsCopyFailure();
 				}
-				downValues.put(ReceiptsTable.COLUMN_DATE, receipt.getDate().getTime());
-				if ((db.update(ReceiptsTable.TABLE_NAME, upValues, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(receipt.getId()) }) == 0)) {
-					return false;
+			}
+			else if (mOperation == MOVE) {
+				if (result) {
+					mListener.onReceiptsMoveSuccess(mNewTrip, mReceipts.size());
 				}
-				if ((db.update(ReceiptsTable.TABLE_NAME, downValues, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(down.getId()) }) == 0)) {
-					return false;
+				else {
+					mListener.onReceiptsMoveFailure();
+				}
+			}
+			else {
+				if (result) {
+					mListener.onReceiptsDeleteSuccess(mCurrentTrip, mReceipts.size());
+				}
+				else {
+					mListener.onReceiptsDeleteFailure();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Moves a receipt up one position (i.e. towards the top of the newest first list)
+	 *
+	 * @return {@code true} if it was moved. {@code false} if it was already at the top (or could not be found)
+	 */
+	public final boolean moveReceiptUp(final TripRow trip, final ReceiptRow receipt) {
+		return shiftReceiptHelper(trip, receipt, -1);
+	}
+
+	/**
+	 * Moves a receipt down one position (i.e. towards the bottom of the newest first list)
+	 *
+	 * @return {@code true} if it was moved. {@code false} if it was already at the bottom (or could not be found)
+	 */
+	public final boolean moveReceiptDown(final TripRow trip, final ReceiptRow receipt) {
+		return shiftReceiptHelper(trip, receipt, 1);
+	}
+
+	/**
+	 * Moves a receipt to a new position within its trip (e.g. when it is dragged and dropped). Like
+	 * {@link #moveReceiptUp(TripRow, ReceiptRow)}, this is a single indexed UPDATE and never loads the trip.
+	 *
+	 * @param position
+	 *            - the new position of the receipt in the newest first list, where 0 is the top
+	 * @return {@code true} if it was moved. {@code false} if the position is out of range (or it could not be found)
+	 */
+	public final boolean moveReceiptToPosition(final TripRow trip, final ReceiptRow receipt, final int position) {
+		boolean success = false;
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				success = moveReceiptToPositionHelper(db, trip, receipt.getId(), position);
+				if (success) {
+					db.setTransactionSuccessful();
 				}
-				mReceiptCache.remove(trip);
-				return true;
 			}
 			catch (SQLException e) {
-				return false;
+				if (BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString());
+				}
+				success = false;
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+		if (success) {
+			mReceiptCache.remove(trip);
+		}
+		return success;
+	}
+
+	private boolean shiftReceiptHelper(final TripRow trip, final ReceiptRow receipt, final int offset) {
+		boolean success = false;
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				final int position = queryReceiptPosition(db, trip, receipt.getId());
+				if (position >= 0 && position + offset >= 0) {
+					success = moveReceiptToPositionHelper(db, trip, receipt.getId(), position + offset);
+				}
+				if (success) {
+					db.setTransactionSuccessful();
+				}
+			}
+			catch (SQLException e) {
+				if (BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString());
+				}
+				success = false;
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+		if (success) {
+			mReceiptCache.remove(trip);
+		}
+		return success;
+	}
+
+	private static final String RECEIPT_POSITION_SORT_KEY = "(SELECT " + ReceiptsTable.COLUMN_SORT_KEY + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_ID + " = ? AND " + ReceiptsTable.COLUMN_PARENT + " = ?)";
+	static final String RECEIPT_POSITION_QUERY = "SELECT " + RECEIPT_POSITION_SORT_KEY + " IS NOT NULL, COUNT(*) FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + " = ? AND (" + ReceiptsTable.COLUMN_SORT_KEY + " > " + RECEIPT_POSITION_SORT_KEY + " OR (" + ReceiptsTable.COLUMN_SORT_KEY + " = " + RECEIPT_POSITION_SORT_KEY + " AND " + ReceiptsTable.COLUMN_ID + " > ?))";
+
+	/**
+	 * @return the position of a receipt in the newest first list of its trip or -1 if it is not in this trip
+	 */
+	private int queryReceiptPosition(final SQLiteDatabase db, final TripRow trip, final int id) {
+		final String idArg = Integer.toString(id);
+		final String parent = getParentArg(trip);
+		Cursor c = null;
+		try {
+			c = db.rawQuery(RECEIPT_POSITION_QUERY, new String[] { idArg, parent, parent, idArg, parent, idArg, parent, idArg });
+			if (c != null && c.moveToFirst() && c.getInt(0) > 0) {
+				return c.getInt(1);
+			}
+			return -1;
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Gives a receipt a sort key between those of its new neighbours. If they leave no gap, the trip is renumbered
+	 * first. This must be called with the write lock held and a transaction open
+	 */
+	private boolean moveReceiptToPositionHelper(final SQLiteDatabase db, final TripRow trip, final int id, final int position) {
+		if (position < 0) {
+			return false;
+		}
+		for (int attempt = 0; attempt < 2; attempt++) {
+			// The receipts that will be above and below this one (in newest first order)
+			final String sql = "SELECT " + ReceiptsTable.COLUMN_SORT_KEY + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PARENT + " = ? AND " + ReceiptsTable.COLUMN_ID + " != ? ORDER BY " + getReceiptsOrderBy(true) + " LIMIT 2 OFFSET " + Math.max(position - 1, 0);
+			final Long above, below;
+			Cursor c = null;
+			try {
+				c = db.rawQuery(sql, new String[] { getParentArg(trip), Integer.toString(id) });
+				final Long first = (c != null && c.moveToFirst()) ? c.getLong(0) : null;
+				final Long second = (c != null && c.moveToNext()) ? c.getLong(0) : null;
+				above = (position == 0) ? null : first;
+				below = (position == 0) ? first : second;
+			}
+			finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+			if (position > 0 && above == null) {
+				return false; // Past the end
+			}
+			if (above == null && below == null) {
+				return true; // The only receipt in this trip
+			}
+			final long high = (above != null) ? above : below + 2 * SORT_KEY_SPACING;
+			final long low = (below != null) ? below : above - 2 * SORT_KEY_SPACING;
+			if (high - low >= 2) {
+				final ContentValues values = new ContentValues(1);
+				values.put(ReceiptsTable.COLUMN_SORT_KEY, low + (high - low) / 2);
+				return db.update(ReceiptsTable.TABLE_NAME, values, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(id) }) > 0;
+			}
+			renumberReceiptsHelper(db, trip);
+		}
+		return false;
+	}
+
+	/**
+	 * Re-spaces the sort keys of a trip without changing its order. Each receipt is returned to the default key for its
+	 * date where that keeps the order (and otherwise placed one full spacing after the previous receipt)
+	 */
+	private void renumberReceiptsHelper(final SQLiteDatabase db, final TripRow trip) {
+		Cursor c = null;
+		SQLiteStatement statement = null;
+		try {
+			c = db.query(ReceiptsTable.TABLE_NAME, new String[] { ReceiptsTable.COLUMN_ID, ReceiptsTable.COLUMN_SORT_KEY, ReceiptsTable.COLUMN_DATE }, ReceiptsTable.COLUMN_PARENT + " = ?", new String[] { getParentArg(trip) }, null, null, getReceiptsOrderBy(false));
+			statement = db.compileStatement("UPDATE " + ReceiptsTable.TABLE_NAME + " SET " + ReceiptsTable.COLUMN_SORT_KEY + " = ? WHERE " + ReceiptsTable.COLUMN_ID + " = ?");
+			int updated = 0;
+			if (c != null && c.moveToFirst()) {
+				long previous = 0;
+				do {
+					long sortKey = getDefaultSortKey(c.getLong(2));
+					if (!c.isFirst() && sortKey < previous + SORT_KEY_SPACING) {
+						sortKey = previous + SORT_KEY_SPACING;
+					}
+					if (c.isNull(1) || c.getLong(1) != sortKey) {
+						statement.clearBindings();
+						statement.bindLong(1, sortKey);
+						statement.bindLong(2, c.getLong(0));
+						statement.execute();
+						updated++;
+					}
+					previous = sortKey;
+				}
+				while (c.moveToNext());
+			}
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, "Renumbered " + updated + " receipts in " + trip.getName());
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+			if (statement != null) {
+				statement.close();
 			}
 		}
 	}
@@ -2186,8 +3803,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		SQLiteDatabase db = getReadableDatabase();
 		Cursor c = null;
 		try {
-			synchronized (mDatabaseLock) {
-
+			mReadLock.lock();
+			try {
 				c = db.rawQuery("SELECT seq FROM SQLITE_SEQUENCE WHERE name=?", new String[] { ReceiptsTable.TABLE_NAME });
 				if (c != null && c.moveToFirst() && c.getColumnCount() > 0) {
 					mNextReceiptAutoIncrementId = c.getInt(0) + 1;
@@ -2197,6 +3814,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 				return mNextReceiptAutoIncrementId;
 			}
+			finally {
+				mReadLock.unlock();
+			}
 		}
 		finally {
 			if (c != null) {
@@ -2269,13 +3889,13 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 
 	private final List<ReceiptRow> getGraphColumnsHelper(TripRow trip, GraphProcessorDelegate delegate) {
 		List<ReceiptRow> receipts;
-		synchronized (mDatabaseLock) {
+		mReadLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
 				db = this.getReadableDatabase();
-				final String[] columns = new String[] { delegate.getXAxisColumn(), "SUM(" + delegate.getSumColumn() + ") AS " + delegate.getSumColumn() };
-				c = db.query(ReceiptsTable.TABLE_NAME, columns, ReceiptsTable.COLUMN_PARENT + "= ?", new String[] { trip.getName() }, delegate.getXAxisColumn(), null, null);
+				c = db.rawQuery(getGraphColumnsQuery(delegate.getXAxisColumn(), delegate.getSumColumn()), new String[] { getParentArg(trip) });
 				if (c != null && c.moveToFirst()) {
 					receipts = new ArrayList<ReceiptRow>(c.getCount());
 					final int xIndex = c.getColumnIndex(delegate.getXAxisColumn());
@@ -2297,6 +3917,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 		return receipts;
 	}
 
@@ -2357,8 +3980,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	}
 
 	private final void buildCategories() {
-		mCategories = new HashMap<String, String>();
-		synchronized (mDatabaseLock) {
+		final HashMap<String, String> categories = new HashMap<String, String>();
+		mReadLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2370,10 +3994,11 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					do {
 						final String name = c.getString(nameIndex);
 						final String code = c.getString(codeIndex);
-						mCategories.put(name, code);
+						categories.put(name, code);
 					}
 					while (c.moveToNext());
 				}
+				mCategories = categories; // Only publish the map once it's complete
 			}
 			finally { // Close the cursor and db to avoid memory leaks
 				if (c != null) {
@@ -2381,6 +4006,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	public final ArrayList<CharSequence> getCurrenciesList() {
@@ -2395,7 +4023,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	}
 
 	public final boolean insertCategory(final String name, final String code) throws SQLException {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
 			ContentValues values = new ContentValues(2);
@@ -2411,6 +4040,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				return true;
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	@SuppressWarnings("resource")
@@ -2428,7 +4060,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	}
 
 	public final boolean updateCategory(final String oldName, final String newName, final String newCode) {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
 			ContentValues values = new ContentValues(2);
@@ -2447,10 +4080,14 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public final boolean deleteCategory(final String name) {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
 			final boolean success = (db.delete(CategoriesTable.TABLE_NAME, CategoriesTable.COLUMN_NAME + " = ?", new String[] { name }) > 0);
@@ -2460,6 +4097,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 			return success;
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -2469,8 +4109,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (mCSVColumns != null) {
 			return mCSVColumns;
 		}
-		mCSVColumns = new CSVColumns(mContext, this, mFlex, mPersistenceManager);
-		synchronized (mDatabaseLock) {
+		final CSVColumns columns = new CSVColumns(mContext, this, mFlex, mPersistenceManager);
+		mReadLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2482,11 +4123,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					do {
 						final int index = c.getInt(idxIndex);
 						final String type = c.getString(typeIndex);
-						mCSVColumns.add(index, type);
+						columns.add(index, type);
 					}
 					while (c.moveToNext());
 				}
-				return mCSVColumns;
+				mCSVColumns = columns; // Only publish the columns once they're complete
+				return columns;
 			}
 			finally { // Close the cursor and db to avoid memory leaks
 				if (c != null) {
@@ -2494,6 +4136,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	public final boolean insertCSVColumn() {
@@ -2502,7 +4147,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (mCSVColumns == null) {
 			getCSVColumns();
 		}
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2528,6 +4174,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public final boolean insertCSVColumnNoCache(String column) {
@@ -2543,7 +4192,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 		}
 		else {
-			synchronized (mDatabaseLock) {
+			mWriteLock.lock();
+			try {
 				SQLiteDatabase db = null;
 				db = this.getWritableDatabase();
 				if (db.insertOrThrow(CSVTable.TABLE_NAME, null, values) == -1) {
@@ -2553,11 +4203,15 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					return true;
 				}
 			}
+			finally {
+				mWriteLock.unlock();
+			}
 		}
 	}
 
 	public final boolean deleteCSVColumn() {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
 			int idx = mCSVColumns.removeLast();
@@ -2566,6 +4220,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 			return db.delete(CSVTable.TABLE_NAME, CSVTable.COLUMN_ID + " = ?", new String[] { Integer.toString(idx) }) > 0;
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public final boolean updateCSVColumn(int arrayListIndex, int optionIndex) { // Note index here refers to the actual
@@ -2578,7 +4235,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		Column column = mCSVColumns.update(arrayListIndex, optionIndex);
 		ContentValues values = new ContentValues(1);
 		values.put(CSVTable.COLUMN_TYPE, column.getColumnType());
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			try {
 				db = this.getWritableDatabase();
@@ -2593,6 +4251,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				return false;
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -2602,8 +4263,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (mPDFColumns != null) {
 			return mPDFColumns;
 		}
-		mPDFColumns = new PDFColumns(mContext, this, mFlex, mPersistenceManager);
-		synchronized (mDatabaseLock) {
+		final PDFColumns columns = new PDFColumns(mContext, this, mFlex, mPersistenceManager);
+		mReadLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2615,11 +4277,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					do {
 						final int index = c.getInt(idxIndex);
 						final String type = c.getString(typeIndex);
-						mPDFColumns.add(index, type);
+						columns.add(index, type);
 					}
 					while (c.moveToNext());
 				}
-				return mPDFColumns;
+				mPDFColumns = columns; // Only publish the columns once they're complete
+				return columns;
 			}
 			finally { // Close the cursor and db to avoid memory leaks
 				if (c != null) {
@@ -2627,6 +4290,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	public final boolean insertPDFColumn() {
@@ -2635,7 +4301,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (mPDFColumns == null) {
 			getPDFColumns();
 		}
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2661,6 +4328,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public final boolean insertPDFColumnNoCache(String column) {
@@ -2676,7 +4346,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 		}
 		else {
-			synchronized (mDatabaseLock) {
+			mWriteLock.lock();
+			try {
 				SQLiteDatabase db = null;
 				db = this.getWritableDatabase();
 				if (db.insertOrThrow(PDFTable.TABLE_NAME, null, values) == -1) {
@@ -2686,11 +4357,15 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					return true;
 				}
 			}
+			finally {
+				mWriteLock.unlock();
+			}
 		}
 	}
 
 	public final boolean deletePDFColumn() {
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			db = this.getWritableDatabase();
 			int idx = mPDFColumns.removeLast();
@@ -2699,6 +4374,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 			return db.delete(PDFTable.TABLE_NAME, PDFTable.COLUMN_ID + " = ?", new String[] { Integer.toString(idx) }) > 0;
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	public final boolean updatePDFColumn(int arrayListIndex, int optionIndex) { // Note index here refers to the actual
@@ -2711,7 +4389,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		Column column = mPDFColumns.update(arrayListIndex, optionIndex);
 		ContentValues values = new ContentValues(1);
 		values.put(PDFTable.COLUMN_TYPE, column.getColumnType());
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			try {
 				db = this.getWritableDatabase();
@@ -2726,6 +4405,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				return false;
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -2740,8 +4422,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		if (mPaymentMethods != null) {
 			return mPaymentMethods;
 		}
-		mPaymentMethods = new ArrayList<PaymentMethod>();
-		synchronized (mDatabaseLock) {
+		final List<PaymentMethod> methods = new ArrayList<PaymentMethod>();
+		mReadLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2754,11 +4437,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						final int id = c.getInt(idIndex);
 						final String method = c.getString(methodIndex);
 						final PaymentMethod.Builder builder = new PaymentMethod.Builder();
-						mPaymentMethods.add(builder.setId(id).setMethod(method).build());
+						methods.add(builder.setId(id).setMethod(method).build());
 					}
 					while (c.moveToNext());
 				}
-				return mPaymentMethods;
+				mPaymentMethods = methods; // Only publish the methods once they're complete
+				return methods;
 			}
 			finally { // Close the cursor and db to avoid memory leaks
 				if (c != null) {
@@ -2766,6 +4450,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	/**
@@ -2798,7 +4485,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 	public final PaymentMethod insertPaymentMethod(final String method) {
 		ContentValues values = new ContentValues(1);
 		values.put(PaymentMethodsTable.COLUMN_METHOD, method);
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase db = null;
 			Cursor c = null;
 			try {
@@ -2829,6 +4517,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 			}
 		}
+		finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	/**
@@ -2851,7 +4542,8 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			}
 		}
 		else {
-			synchronized (mDatabaseLock) {
+			mWriteLock.lock();
+			try {
 				SQLiteDatabase db = null;
 				db = this.getWritableDatabase();
 				if (db.insertOrThrow(PaymentMethodsTable.TABLE_NAME, null, values) == -1) {
@@ -2861,6 +4553,9 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					return true;
 				}
 			}
+			finally {
+				mWriteLock.unlock();
+			}
 		}
 	}
 
@@ -2879,77 +4574,318 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 			Log.e(TAG, "The oldPaymentMethod is null. No update can be performed");
 			return null;
 		}
-		if (oldPaymentMethod.getMethod() == null && newMethod == null) {
-			return oldPaymentMethod;
+		if (oldPaymentMethod.getMethod() == null && newMethod == null) {
+			return oldPaymentMethod;
+		}
+		else if (newMethod != null && newMethod.equals(oldPaymentMethod.getMethod())) {
+			return oldPaymentMethod;
+		}
+
+		ContentValues values = new ContentValues(1);
+		values.put(PaymentMethodsTable.COLUMN_METHOD, newMethod);
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = null;
+			try {
+				db = this.getWritableDatabase();
+				if (db.update(PaymentMethodsTable.TABLE_NAME, values, PaymentMethodsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(oldPaymentMethod.getId()) }) > 0) {
+					final PaymentMethod.Builder builder = new PaymentMethod.Builder();
+					final PaymentMethod upddatePaymentMethod = builder.setId(oldPaymentMethod.getId()).setMethod(newMethod).build();
+					if (mPaymentMethods != null) {
+						final int oldListIndex = mPaymentMethods.indexOf(oldPaymentMethod);
+						if (oldListIndex >= 0) {
+							mPaymentMethods.remove(oldPaymentMethod);
+							mPaymentMethods.add(oldListIndex, upddatePaymentMethod);
+						}
+						else {
+							mPaymentMethods.add(upddatePaymentMethod);
+						}
+					}
+					return upddatePaymentMethod;
+				}
+				else {
+					return null;
+				}
+			}
+			catch (SQLException e) {
+				return null;
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes a {@link PaymentMethod} from our database. This method also automatically updates the underlying list
+	 * that is returned from {@link #getPaymentMethods()}. This is done on the calling thread.
+	 * 
+	 * @param paymentMethod
+	 *            - the {@link PaymentMethod} to delete
+	 * @return {@code true} if is was successfully remove. {@code false} otherwise
+	 */
+	public final boolean deletePaymenthMethod(final PaymentMethod paymentMethod) {
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = null;
+			db = this.getWritableDatabase();
+			if (db.delete(PaymentMethodsTable.TABLE_NAME, PaymentMethodsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(paymentMethod.getId()) }) > 0) {
+				if (mPaymentMethods != null) {
+					mPaymentMethods.remove(paymentMethod);
+				}
+				return true;
+			}
+			else {
+				return false;
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////////////////////////////
+	// Integrity Scrubber Methods
+	// //////////////////////////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Gets the next batch of receipts for the {@link IntegrityScrubber}, along with the state that it last recorded
+	 * for each of them
+	 * 
+	 * @param afterId
+	 *            - only receipts with a greater id are returned
+	 * @param limit
+	 *            - the maximum number of receipts to return
+	 * @return a {@link List} of receipt files in id order, which is empty once every receipt has been returned
+	 */
+	final List<IntegrityScrubber.ReceiptFile> getReceiptFilesSerial(final int afterId, final int limit) {
+		final HashMap<String, TripRow> tripsById = new HashMap<String, TripRow>();
+		for (final TripRow trip : getTripsSerial()) {
+			tripsById.put(getParentArg(trip), trip);
+		}
+		final ArrayList<IntegrityScrubber.ReceiptFile> files = new ArrayList<IntegrityScrubber.ReceiptFile>(limit);
+		mReadLock.lock();
+		try {
+			Cursor c = null;
+			try {
+				final SQLiteDatabase db = this.getReadableDatabase();
+				final String sql = "SELECT r." + ReceiptsTable.COLUMN_ID + ", r." + ReceiptsTable.COLUMN_PARENT + ", r." + ReceiptsTable.COLUMN_PATH + ", f." + ReceiptFilesTable.COLUMN_PATH + ", f." + ReceiptFilesTable.COLUMN_EXISTS + ", f." + ReceiptFilesTable.COLUMN_SIZE + ", f." + ReceiptFilesTable.COLUMN_MODIFIED + ", f." + ReceiptFilesTable.COLUMN_CHECKSUM + " FROM " + ReceiptsTable.TABLE_NAME + " r LEFT JOIN " + ReceiptFilesTable.TABLE_NAME + " f ON f." + ReceiptFilesTable.COLUMN_RECEIPT_ID + " = r." + ReceiptsTable.COLUMN_ID + " WHERE r." + ReceiptsTable.COLUMN_ID + " > ? ORDER BY r." + ReceiptsTable.COLUMN_ID + " LIMIT " + limit;
+				c = db.rawQuery(sql, new String[] { Integer.toString(afterId) });
+				while (c != null && c.moveToNext()) {
+					final String path = c.getString(2);
+					final IntegrityScrubber.ReceiptFile file = new IntegrityScrubber.ReceiptFile(c.getInt(0), tripsById.get(c.getString(1)), NO_DATA.equalsIgnoreCase(path) ? null : path);
+					if (!c.isNull(3)) {
+						file.setRecorded(c.getString(3), c.getInt(4) > 0, c.getLong(5), c.getLong(6), c.getString(7));
+					}
+					files.add(file);
+				}
+			}
+			finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+		finally {
+			mReadLock.unlock();
+		}
+		return files;
+	}
+
+	/**
+	 * Records the state of these receipt files. Any cached receipt lists whose files appeared or disappeared since
+	 * the previous scrub are dropped, so they get rebuilt with the new flags.
+	 */
+	final void saveReceiptFilesSerial(final List<IntegrityScrubber.ReceiptFile> files) {
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			final String sql = "INSERT OR REPLACE INTO " + ReceiptFilesTable.TABLE_NAME + " (" + ReceiptFilesTable.COLUMN_RECEIPT_ID + ", " + ReceiptFilesTable.COLUMN_PATH + ", " + ReceiptFilesTable.COLUMN_EXISTS + ", " + ReceiptFilesTable.COLUMN_SIZE + ", " + ReceiptFilesTable.COLUMN_MODIFIED + ", " + ReceiptFilesTable.COLUMN_CHECKSUM + ") VALUES (?, ?, ?, ?, ?, ?)";
+			SQLiteStatement statement = null;
+			db.beginTransaction();
+			try {
+				statement = db.compileStatement(sql);
+				for (final IntegrityScrubber.ReceiptFile file : files) {
+					statement.clearBindings();
+					statement.bindLong(1, file.getReceiptId());
+					bindString(statement, 2, file.getPath());
+					statement.bindLong(3, file.exists() ? 1 : 0);
+					statement.bindLong(4, file.getSize());
+					statement.bindLong(5, file.getModified());
+					bindString(statement, 6, file.getChecksum());
+					statement.executeInsert();
+				}
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+				if (statement != null) {
+					statement.close();
+				}
+			}
+		}
+		finally {
+			mWriteLock.unlock();
+		}
+		for (final IntegrityScrubber.ReceiptFile file : files) {
+			if (file.hasChanged() && file.getTrip() != null) {
+				mReceiptCache.remove(file.getTrip());
+			}
+		}
+	}
+
+	/**
+	 * @return the file names that the receipts of this trip refer to
+	 */
+	final HashSet<String> getReceiptPathsSerial(final TripRow trip) {
+		final HashSet<String> paths = new HashSet<String>();
+		mReadLock.lock();
+		try {
+			Cursor c = null;
+			try {
+				final SQLiteDatabase db = this.getReadableDatabase();
+				c = db.query(ReceiptsTable.TABLE_NAME, new String[] { ReceiptsTable.COLUMN_PATH }, ReceiptsTable.COLUMN_PARENT + " = ?", new String[] { getParentArg(trip) }, null, null, null);
+				while (c != null && c.moveToNext()) {
+					paths.add(c.getString(0));
+				}
+			}
+			finally {
+				if (c != null) {
+					c.close();
+				}
+			}
+		}
+		finally {
+			mReadLock.unlock();
+		}
+		return paths;
+	}
+
+	/**
+	 * Replaces the orphaned files that were recorded for this trip
+	 */
+	final void saveOrphanFilesSerial(final TripRow trip, final List<File> orphans) {
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				db.delete(OrphanFilesTable.TABLE_NAME, OrphanFilesTable.COLUMN_PARENT + " = ?", new String[] { getParentArg(trip) });
+				final ContentValues values = new ContentValues(3);
+				for (final File orphan : orphans) {
+					values.put(OrphanFilesTable.COLUMN_PARENT, trip.getId());
+					values.put(OrphanFilesTable.COLUMN_NAME, orphan.getName());
+					values.put(OrphanFilesTable.COLUMN_SIZE, orphan.length());
+					db.insertWithOnConflict(OrphanFilesTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+				}
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		finally {
+			mWriteLock.unlock();
 		}
-		else if (newMethod != null && newMethod.equals(oldPaymentMethod.getMethod())) {
-			return oldPaymentMethod;
+	}
+
+	/**
+	 * Drops the records of receipts and trips that have since been deleted. Called at the end of each scrub.
+	 */
+	final void pruneIntegrityTablesSerial() {
+		mWriteLock.lock();
+		try {
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.delete(ReceiptFilesTable.TABLE_NAME, ReceiptFilesTable.COLUMN_RECEIPT_ID + " NOT IN (SELECT " + ReceiptsTable.COLUMN_ID + " FROM " + ReceiptsTable.TABLE_NAME + ")", null);
+			db.delete(OrphanFilesTable.TABLE_NAME, OrphanFilesTable.COLUMN_PARENT + " NOT IN (SELECT " + TripsTable.COLUMN_ID + " FROM " + TripsTable.TABLE_NAME + ")", null);
 		}
+		finally {
+			mWriteLock.unlock();
+		}
+	}
 
-		ContentValues values = new ContentValues(1);
-		values.put(PaymentMethodsTable.COLUMN_METHOD, newMethod);
-		synchronized (mDatabaseLock) {
-			SQLiteDatabase db = null;
+	/**
+	 * @return the files in the trip directories that no receipt refers to, as of the last integrity scrub
+	 */
+	public final List<File> getOrphanFilesSerial() {
+		final ArrayList<File> orphans = new ArrayList<File>();
+		final StorageManager storageManager = mPersistenceManager.getStorageManager();
+		mReadLock.lock();
+		try {
+			Cursor c = null;
 			try {
-				db = this.getWritableDatabase();
-				if (db.update(PaymentMethodsTable.TABLE_NAME, values, PaymentMethodsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(oldPaymentMethod.getId()) }) > 0) {
-					final PaymentMethod.Builder builder = new PaymentMethod.Builder();
-					final PaymentMethod upddatePaymentMethod = builder.setId(oldPaymentMethod.getId()).setMethod(newMethod).build();
-					if (mPaymentMethods != null) {
-						final int oldListIndex = mPaymentMethods.indexOf(oldPaymentMethod);
-						if (oldListIndex >= 0) {
-							mPaymentMethods.remove(oldPaymentMethod);
-							mPaymentMethods.add(oldListIndex, upddatePaymentMethod);
-						}
-						else {
-							mPaymentMethods.add(upddatePaymentMethod);
-						}
-					}
-					return upddatePaymentMethod;
-				}
-				else {
-					return null;
+				final SQLiteDatabase db = this.getReadableDatabase();
+				final String sql = "SELECT t." + TripsTable.COLUMN_NAME + ", o." + OrphanFilesTable.COLUMN_NAME + " FROM " + OrphanFilesTable.TABLE_NAME + " o INNER JOIN " + TripsTable.TABLE_NAME + " t ON o." + OrphanFilesTable.COLUMN_PARENT + " = t." + TripsTable.COLUMN_ID + " ORDER BY t." + TripsTable.COLUMN_NAME + ", o." + OrphanFilesTable.COLUMN_NAME;
+				c = db.rawQuery(sql, null);
+				while (c != null && c.moveToNext()) {
+					orphans.add(storageManager.getFile(storageManager.getFile(c.getString(0)), c.getString(1)));
 				}
 			}
-			catch (SQLException e) {
-				return null;
+			finally {
+				if (c != null) {
+					c.close();
+				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
+		return orphans;
 	}
 
 	/**
-	 * Deletes a {@link PaymentMethod} from our database. This method also automatically updates the underlying list
-	 * that is returned from {@link #getPaymentMethods()}. This is done on the calling thread.
-	 * 
-	 * @param paymentMethod
-	 *            - the {@link PaymentMethod} to delete
-	 * @return {@code true} if is was successfully remove. {@code false} otherwise
+	 * @return the number of receipts whose file was missing as of the last integrity scrub
 	 */
-	public final boolean deletePaymenthMethod(final PaymentMethod paymentMethod) {
-		synchronized (mDatabaseLock) {
-			SQLiteDatabase db = null;
-			db = this.getWritableDatabase();
-			if (db.delete(PaymentMethodsTable.TABLE_NAME, PaymentMethodsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(paymentMethod.getId()) }) > 0) {
-				if (mPaymentMethods != null) {
-					mPaymentMethods.remove(paymentMethod);
-				}
-				return true;
+	public final int getMissingFileCountSerial() {
+		mReadLock.lock();
+		try {
+			Cursor c = null;
+			try {
+				final SQLiteDatabase db = this.getReadableDatabase();
+				final String sql = "SELECT COUNT(*) FROM " + ReceiptFilesTable.TABLE_NAME + " f INNER JOIN " + ReceiptsTable.TABLE_NAME + " r ON f." + ReceiptFilesTable.COLUMN_RECEIPT_ID + " = r." + ReceiptsTable.COLUMN_ID + " AND f." + ReceiptFilesTable.COLUMN_PATH + " = r." + ReceiptsTable.COLUMN_PATH + " WHERE f." + ReceiptFilesTable.COLUMN_EXISTS + " = 0";
+				c = db.rawQuery(sql, null);
+				return (c != null && c.moveToFirst()) ? c.getInt(0) : 0;
 			}
-			else {
-				return false;
+			finally {
+				if (c != null) {
+					c.close();
+				}
 			}
 		}
+		finally {
+			mReadLock.unlock();
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	// Utilities
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
-	public final synchronized boolean merge(String dbPath, String packageName, boolean overwrite) {
-		mAreTripsValid = false;
+	public final boolean merge(String dbPath, String packageName, boolean overwrite) {
+		return merge(dbPath, packageName, overwrite, null);
+	}
+
+	/**
+	 * Merges the trips, receipts, and settings tables of another database into this one. Trips and receipts are written
+	 * through compiled statements in batched transactions of {@link #MERGE_BATCH_SIZE} rows, so the merge does not
+	 * commit once per row. Each of the smaller settings tables is replaced in a single transaction.
+	 * 
+	 * @param dbPath
+	 *            - the path of the database to merge in
+	 * @param packageName
+	 *            - the package name of this app (for legacy absolute paths)
+	 * @param overwrite
+	 *            - if existing trips and receipts should be replaced by the imported ones
+	 * @param listener
+	 *            - an optional {@link MergeProgressListener} to notify as trips and receipts are merged
+	 * @return {@code true} if the merge succeeded. {@code false} otherwise
+	 */
+	public final synchronized boolean merge(String dbPath, String packageName, boolean overwrite, MergeProgressListener listener) {
+		invalidateTrips();
 		mReceiptCache.clear();
-		synchronized (mDatabaseLock) {
+		mWriteLock.lock();
+		try {
 			SQLiteDatabase importDB = null, currDB = null;
-			Cursor c = null, countCursor = null;
+			Cursor c = null;
+			SQLiteStatement insertStatement = null, updateStatement = null;
 			try {
 				if (dbPath == null) {
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Null database file");
@@ -2957,7 +4893,13 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				}
 				currDB = this.getWritableDatabase();
 				importDB = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READWRITE);
+				final int total = getRowCount(importDB, TripsTable.TABLE_NAME) + getRowCount(importDB, ReceiptsTable.TABLE_NAME);
+				int merged = 0;
+				// Backups from before version 17 reference trips by name. Newer ones use ids, which we map back to names
+				final HashMap<String, String> importedTripNames = new HashMap<String, String>();
+
 				// Merge Trips
+				currDB.beginTransaction();
 				try {
 					if (BuildConfig.DEBUG) {
 						Log.d(TAG, "Merging Trips");
@@ -2965,6 +4907,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Merging Trips");
 					c = importDB.query(TripsTable.TABLE_NAME, null, null, null, null, null, TripsTable.COLUMN_TO + " DESC");
 					if (c != null && c.moveToFirst()) {
+						final int idIndex = c.getColumnIndex(TripsTable.COLUMN_ID);
 						final int nameIndex = c.getColumnIndex(TripsTable.COLUMN_NAME);
 						final int fromIndex = c.getColumnIndex(TripsTable.COLUMN_FROM);
 						final int fromTimeZoneIndex = c.getColumnIndex(TripsTable.COLUMN_FROM_TIMEZONE);
@@ -2972,6 +4915,12 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						final int toTimeZoneIndex = c.getColumnIndex(TripsTable.COLUMN_TO_TIMEZONE);
 						// final int priceIndex = c.getColumnIndex(TripsTable.COLUMN_PRICE);
 						final int mileageIndex = c.getColumnIndex(TripsTable.COLUMN_MILEAGE);
+						// An INSERT OR REPLACE would re-create (and so re-key) an existing trip, orphaning its receipts. So
+						// when overwriting, we update the trip in place first and only insert it if it did not exist
+						insertStatement = currDB.compileStatement("INSERT OR IGNORE INTO " + TripsTable.TABLE_NAME + " (" + TripsTable.COLUMN_FROM + ", " + TripsTable.COLUMN_TO + ", " + TripsTable.COLUMN_MILEAGE + ", " + TripsTable.COLUMN_FROM_TIMEZONE + ", " + TripsTable.COLUMN_TO_TIMEZONE + ", " + TripsTable.COLUMN_NAME + ") VALUES (?, ?, ?, ?, ?, ?)");
+						if (overwrite) {
+							updateStatement = currDB.compileStatement("UPDATE " + TripsTable.TABLE_NAME + " SET " + TripsTable.COLUMN_FROM + " = ?, " + TripsTable.COLUMN_TO + " = ?, " + TripsTable.COLUMN_MILEAGE + " = ?, " + TripsTable.COLUMN_FROM_TIMEZONE + " = ?, " + TripsTable.COLUMN_TO_TIMEZONE + " = ? WHERE " + TripsTable.COLUMN_NAME + " = ?");
+						}
 						do {
 							String name = getString(c, nameIndex, "");
 							if (name.contains("wb.receipts")) { // Backwards compatibility stuff
@@ -2984,31 +4933,31 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 								File f = new File(name);
 								name = f.getName();
 							}
+							if (idIndex >= 0) {
+								importedTripNames.put(c.getString(idIndex), name);
+							}
 							final long from = getLong(c, fromIndex, 0L);
 							final long to = getLong(c, toIndex, 0L);
 							final int mileage = getInt(c, mileageIndex, 0);
-							ContentValues values = new ContentValues(7);
-							values.put(TripsTable.COLUMN_NAME, name);
-							values.put(TripsTable.COLUMN_FROM, from);
-							values.put(TripsTable.COLUMN_TO, to);
-							values.put(TripsTable.COLUMN_MILEAGE, mileage);
-							if (fromTimeZoneIndex > 0) {
-								final String fromTimeZome = c.getString(fromTimeZoneIndex);
-								values.put(TripsTable.COLUMN_FROM_TIMEZONE, fromTimeZome);
-							}
-							if (toTimeZoneIndex > 0) {
-								final String toTimeZome = c.getString(toTimeZoneIndex);
-								values.put(TripsTable.COLUMN_TO_TIMEZONE, toTimeZome);
-							}
-							if (overwrite) {
-								currDB.insertWithOnConflict(TripsTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-							}
-							else {
-								currDB.insertWithOnConflict(TripsTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+							final String fromTimeZone = (fromTimeZoneIndex > 0) ? c.getString(fromTimeZoneIndex) : null;
+							final String toTimeZone = (toTimeZoneIndex > 0) ? c.getString(toTimeZoneIndex) : null;
+							for (final SQLiteStatement statement : new SQLiteStatement[] { updateStatement, insertStatement }) {
+								if (statement != null) {
+									statement.clearBindings();
+									statement.bindLong(1, from);
+									statement.bindLong(2, to);
+									statement.bindLong(3, mileage);
+									bindString(statement, 4, fromTimeZone);
+									bindString(statement, 5, toTimeZone);
+									bindString(statement, 6, name);
+									statement.execute();
+								}
 							}
+							merged++;
 						}
 						while (c.moveToNext());
 					}
+					currDB.setTransactionSuccessful();
 				}
 				catch (SQLiteException e) {
 					if (BuildConfig.DEBUG) {
@@ -3017,19 +4966,34 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Caught sql exception during import at [a1]: " + Utils.getStackTrace(e));
 				}
 				finally {
+					currDB.endTransaction();
+					if (insertStatement != null) {
+						insertStatement.close();
+						insertStatement = null;
+					}
+					if (updateStatement != null) {
+						updateStatement.close();
+						updateStatement = null;
+					}
 					if (c != null && !c.isClosed()) {
 						c.close();
 						c = null;
 					}
 				}
+				if (listener != null) {
+					listener.onMergeProgress(merged, total);
+				}
 
 				// Merge Receipts
 				if (BuildConfig.DEBUG) {
 					Log.d(TAG, "Merging Receipts");
 				}
 				mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Merging Receipts");
+				currDB.beginTransaction();
 				try {
-					final String queryCount = "SELECT COUNT(*), " + ReceiptsTable.COLUMN_ID + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_PATH + "=? AND " + ReceiptsTable.COLUMN_NAME + "=? AND " + ReceiptsTable.COLUMN_DATE + "=?";
+					// Index the existing receipts in a single pass instead of probing for duplicates once per row
+					final HashMap<String, Integer> existingReceipts = getReceiptMergeKeys(currDB);
+					final HashMap<String, Integer> tripIds = getTripMergeIds(currDB);
 					c = importDB.query(ReceiptsTable.TABLE_NAME, null, null, null, null, null, null);
 					if (c != null && c.moveToFirst()) {
 						final int pathIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PATH);
@@ -3048,6 +5012,18 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						final int taxIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TAX);
 						final int timeZoneIndex = c.getColumnIndex(ReceiptsTable.COLUMN_TIMEZONE);
 						final int paymentMethodIndex = c.getColumnIndex(ReceiptsTable.COLUMN_PAYMENT_METHOD_ID);
+
+						// The time zone is only written if the imported database has it (i.e. to match the old ContentValues)
+						final String[] columns;
+						if (timeZoneIndex > 0) {
+							columns = new String[] { ReceiptsTable.COLUMN_PATH, ReceiptsTable.COLUMN_NAME, ReceiptsTable.COLUMN_PARENT, ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_PRICE, ReceiptsTable.COLUMN_DATE, ReceiptsTable.COLUMN_COMMENT, ReceiptsTable.COLUMN_EXPENSEABLE, ReceiptsTable.COLUMN_ISO4217, ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3, ReceiptsTable.COLUMN_TAX, ReceiptsTable.COLUMN_PAYMENT_METHOD_ID, ReceiptsTable.COLUMN_TIMEZONE };
+						}
+						else {
+							columns = new String[] { ReceiptsTable.COLUMN_PATH, ReceiptsTable.COLUMN_NAME, ReceiptsTable.COLUMN_PARENT, ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_PRICE, ReceiptsTable.COLUMN_DATE, ReceiptsTable.COLUMN_COMMENT, ReceiptsTable.COLUMN_EXPENSEABLE, ReceiptsTable.COLUMN_ISO4217, ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2, ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3, ReceiptsTable.COLUMN_TAX, ReceiptsTable.COLUMN_PAYMENT_METHOD_ID };
+						}
+						final String conflict = (overwrite) ? "INSERT OR REPLACE INTO " : "INSERT OR IGNORE INTO ";
+						insertStatement = currDB.compileStatement(conflict + ReceiptsTable.TABLE_NAME + " (" + TextUtils.join(", ", columns) + ") VALUES (" + getPlaceholders(columns.length) + ")");
+						updateStatement = currDB.compileStatement("UPDATE " + ReceiptsTable.TABLE_NAME + " SET " + TextUtils.join(" = ?, ", columns) + " = ? WHERE " + ReceiptsTable.COLUMN_ID + " = ?");
 						do {
 							final String oldPath = getString(c, pathIndex, "");
 							String newPath = new String(oldPath);
@@ -3062,7 +5038,10 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 								newPath = f.getName();
 							}
 							final String name = getString(c, nameIndex, "");
-							final String oldParent = getString(c, parentIndex, "");
+							String oldParent = getString(c, parentIndex, "");
+							if (importedTripNames.containsKey(oldParent)) {
+								oldParent = importedTripNames.get(oldParent);
+							}
 							String newParent = new String(oldParent);
 							if (newParent.contains("wb.receipts")) { // Backwards compatibility stuff
 								if (packageName.equalsIgnoreCase("wb.receipts")) {
@@ -3086,54 +5065,70 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 							final String extra_edittext_3 = getString(c, extra_edittext_3_Index, null);
 							final String tax = getString(c, taxIndex, "0");
 							final int paymentMethod = getInt(c, paymentMethodIndex, 0);
-							try {
-								countCursor = currDB.rawQuery(queryCount, new String[] { newPath, name, Long.toString(date) });
-								if (countCursor != null && countCursor.moveToFirst()) {
-									int count = countCursor.getInt(0);
-									int updateID = countCursor.getInt(1);
-									final ContentValues values = new ContentValues(14);
-									values.put(ReceiptsTable.COLUMN_PATH, newPath);
-									values.put(ReceiptsTable.COLUMN_NAME, name);
-									values.put(ReceiptsTable.COLUMN_PARENT, newParent);
-									values.put(ReceiptsTable.COLUMN_CATEGORY, category);
-									values.put(ReceiptsTable.COLUMN_PRICE, price);
-									values.put(ReceiptsTable.COLUMN_DATE, date);
-									values.put(ReceiptsTable.COLUMN_COMMENT, comment);
-									values.put(ReceiptsTable.COLUMN_EXPENSEABLE, expensable);
-									values.put(ReceiptsTable.COLUMN_ISO4217, currency);
-									values.put(ReceiptsTable.COLUMN_NOTFULLPAGEIMAGE, fullpage);
-									values.put(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_1, extra_edittext_1);
-									values.put(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_2, extra_edittext_2);
-									values.put(ReceiptsTable.COLUMN_EXTRA_EDITTEXT_3, extra_edittext_3);
-									values.put(ReceiptsTable.COLUMN_TAX, tax);
-									if (timeZoneIndex > 0) {
-										final String timeZone = c.getString(timeZoneIndex);
-										values.put(ReceiptsTable.COLUMN_TIMEZONE, timeZone);
-									}
-									values.put(ReceiptsTable.COLUMN_PAYMENT_METHOD_ID, paymentMethod);
-									if (count > 0 && overwrite) { // Update
-										currDB.update(ReceiptsTable.TABLE_NAME, values, ReceiptsTable.COLUMN_ID + " = ?", new String[] { Integer.toString(updateID) });
-									}
-									else { // insert
-										if (overwrite) {
-											currDB.insertWithOnConflict(ReceiptsTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-										}
-										else if (count == 0) {
-											// If we're not overwriting anything, let's check that there are no entries here
-											currDB.insertWithOnConflict(ReceiptsTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-										}
+
+							final String key = getReceiptMergeKey(newPath, name, date);
+							final Integer existingID = existingReceipts.get(key);
+							final Integer parentID = tripIds.get(newParent);
+							final SQLiteStatement statement;
+							if (parentID == null) {
+								statement = null; // Its trip was not imported, so there is nothing to attach it to
+								mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Skipping receipt " + name + " as its trip " + newParent + " was not found");
+							}
+							else if (existingID != null && overwrite) { // Update
+								statement = updateStatement;
+							}
+							else if (existingID == null || overwrite) { // insert
+								statement = insertStatement;
+							}
+							else {
+								statement = null; // If we're not overwriting anything, leave the existing entry alone
+							}
+							if (statement != null) {
+								statement.clearBindings();
+								bindString(statement, 1, newPath);
+								bindString(statement, 2, name);
+								statement.bindLong(3, parentID);
+								bindString(statement, 4, category);
+								bindString(statement, 5, price);
+								statement.bindLong(6, date);
+								bindString(statement, 7, comment);
+								statement.bindLong(8, expensable ? 1 : 0);
+								bindString(statement, 9, currency);
+								statement.bindLong(10, fullpage ? 1 : 0);
+								bindString(statement, 11, extra_edittext_1);
+								bindString(statement, 12, extra_edittext_2);
+								bindString(statement, 13, extra_edittext_3);
+								bindString(statement, 14, tax);
+								statement.bindLong(15, paymentMethod);
+								if (timeZoneIndex > 0) {
+									bindString(statement, 16, c.getString(timeZoneIndex));
+								}
+								if (statement == updateStatement) {
+									statement.bindLong(columns.length + 1, existingID);
+									statement.execute();
+								}
+								else {
+									final long id = statement.executeInsert();
+									if (existingID == null && id >= 0) {
+										existingReceipts.put(key, (int) id);
 									}
 								}
 							}
-							finally {
-								if (countCursor != null && !countCursor.isClosed()) {
-									countCursor.close();
-									countCursor = null;
+
+							// Commit in batches, so a large import neither commits per row nor builds one huge journal
+							if (++merged % MERGE_BATCH_SIZE == 0) {
+								currDB.setTransactionSuccessful();
+								currDB.endTransaction();
+								currDB.beginTransaction();
+								if (listener != null) {
+									listener.onMergeProgress(merged, total);
 								}
 							}
 						}
 						while (c.moveToNext());
 					}
+					currDB.execSQL(getFillSortKeysSql()); // Imported receipts are sorted by date
+					currDB.setTransactionSuccessful();
 				}
 				catch (SQLiteException e) {
 					if (BuildConfig.DEBUG) {
@@ -3142,11 +5137,27 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Caught sql exception during import at [a2]: " + Utils.getStackTrace(e));
 				}
 				finally {
+					currDB.endTransaction();
+					if (insertStatement != null) {
+						insertStatement.close();
+						insertStatement = null;
+					}
+					if (updateStatement != null) {
+						updateStatement.close();
+						updateStatement = null;
+					}
 					if (c != null && !c.isClosed()) {
 						c.close();
 						c = null;
 					}
 				}
+				if (listener != null) {
+					listener.onMergeProgress(total, total);
+				}
+
+				// The imported files may have replaced (or restored) the ones that were scrubbed, so start over
+				currDB.delete(ReceiptFilesTable.TABLE_NAME, null, null);
+				currDB.delete(OrphanFilesTable.TABLE_NAME, null, null);
 
 				// Merge Categories
 				// No clean way to merge (since auto-increment is not guaranteed to have any order and there isn't
@@ -3155,6 +5166,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					Log.d(TAG, "Merging Categories");
 				}
 				mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Merging Categories");
+				currDB.beginTransaction();
 				try {
 					c = importDB.query(CategoriesTable.TABLE_NAME, null, null, null, null, null, null);
 					if (c != null && c.moveToFirst()) {
@@ -3174,6 +5186,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						}
 						while (c.moveToNext());
 					}
+					currDB.setTransactionSuccessful();
 				}
 				catch (SQLiteException e) {
 					if (BuildConfig.DEBUG) {
@@ -3182,6 +5195,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Caught sql exception during import at [a3]: " + Utils.getStackTrace(e));
 				}
 				finally {
+					currDB.endTransaction();
 					if (c != null && !c.isClosed()) {
 						c.close();
 						c = null;
@@ -3195,6 +5209,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					Log.d(TAG, "Merging CSV");
 				}
 				mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Merging CSV");
+				currDB.beginTransaction();
 				try {
 					c = importDB.query(CSVTable.TABLE_NAME, null, null, null, null, null, null);
 					if (c != null && c.moveToFirst()) {
@@ -3211,6 +5226,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						}
 						while (c.moveToNext());
 					}
+					currDB.setTransactionSuccessful();
 				}
 				catch (SQLiteException e) {
 					if (BuildConfig.DEBUG) {
@@ -3219,6 +5235,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Caught sql exception during import at [a4]: " + Utils.getStackTrace(e));
 				}
 				finally {
+					currDB.endTransaction();
 					if (c != null && !c.isClosed()) {
 						c.close();
 						c = null;
@@ -3232,6 +5249,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					Log.d(TAG, "Merging PDF");
 				}
 				mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Merging PDF");
+				currDB.beginTransaction();
 				try {
 					c = importDB.query(PDFTable.TABLE_NAME, null, null, null, null, null, null);
 					if (c != null && c.moveToFirst()) {
@@ -3248,6 +5266,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 						}
 						while (c.moveToNext());
 					}
+					currDB.setTransactionSuccessful();
 				}
 				catch (SQLiteException e) {
 					if (BuildConfig.DEBUG) {
@@ -3256,6 +5275,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Caught sql exception during import at [a5]: " + Utils.getStackTrace(e));
 				}
 				finally {
+					currDB.endTransaction();
 					if (c != null && !c.isClosed()) {
 						c.close();
 						c = null;
@@ -3269,6 +5289,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					Log.d(TAG, "Merging Payment Methods");
 				}
 				mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Payment Methods");
+				currDB.beginTransaction();
 				try {
 					c = importDB.query(PaymentMethodsTable.TABLE_NAME, null, null, null, null, null, null);
 					if (c != null && c.moveToFirst()) {
@@ -3288,6 +5309,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					else {
 						return false;
 					}
+					currDB.setTransactionSuccessful();
 				}
 				catch (SQLiteException e) {
 					if (BuildConfig.DEBUG) {
@@ -3296,6 +5318,7 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 					mPersistenceManager.getStorageManager().appendTo(ImportTask.LOG_FILE, "Caught sql exception during import at [a6]: " + Utils.getStackTrace(e));
 				}
 				finally {
+					currDB.endTransaction();
 					if (c != null && !c.isClosed()) {
 						c.close();
 						c = null;
@@ -3315,14 +5338,15 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				if (c != null && !c.isClosed()) {
 					c.close();
 				}
-				if (countCursor != null && !countCursor.isClosed()) {
-					countCursor.close();
-				}
 				if (importDB != null) {
 					importDB.close();
 				}
 			}
 		}
+		finally {
+			mPredictionModel.clear(); // Before the lock is released, so no reader can load a partial merge
+			mWriteLock.unlock();
+		}
 	}
 
 	private boolean getBoolean(Cursor cursor, int index, boolean defaultValue) {
@@ -3361,77 +5385,289 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 		}
 	}
 
+	private void bindString(SQLiteStatement statement, int index, String value) {
+		if (value != null) {
+			statement.bindString(index, value);
+		}
+		else {
+			statement.bindNull(index);
+		}
+	}
+
+	private String getPlaceholders(int count) {
+		final StringBuilder builder = new StringBuilder(count * 3);
+		for (int i = 0; i < count; i++) {
+			builder.append((i == 0) ? "?" : ", ?");
+		}
+		return builder.toString();
+	}
+
+	private int getRowCount(SQLiteDatabase db, String table) {
+		Cursor c = null;
+		try {
+			c = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+			return (c != null && c.moveToFirst()) ? c.getInt(0) : 0;
+		}
+		catch (SQLiteException e) {
+			return 0; // Occurs if Table does not exist
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Receipts are considered duplicates during a merge if they share the same path, name, and date
+	 */
+	private String getReceiptMergeKey(String path, String name, long date) {
+		return path + '\0' + name + '\0' + date;
+	}
+
+	/**
+	 * @return a map of every trip name to its id
+	 */
+	private HashMap<String, Integer> getTripMergeIds(SQLiteDatabase db) {
+		final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		Cursor c = null;
+		try {
+			c = db.query(TripsTable.TABLE_NAME, new String[] { TripsTable.COLUMN_ID, TripsTable.COLUMN_NAME }, null, null, null, null, null);
+			if (c != null && c.moveToFirst()) {
+				do {
+					ids.put(c.getString(1), c.getInt(0));
+				}
+				while (c.moveToNext());
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @return a map of the {@link #getReceiptMergeKey(String, String, long)} of every existing receipt to its id
+	 */
+	private HashMap<String, Integer> getReceiptMergeKeys(SQLiteDatabase db) {
+		final HashMap<String, Integer> keys = new HashMap<String, Integer>();
+		Cursor c = null;
+		try {
+			c = db.query(ReceiptsTable.TABLE_NAME, new String[] { ReceiptsTable.COLUMN_ID, ReceiptsTable.COLUMN_PATH, ReceiptsTable.COLUMN_NAME, ReceiptsTable.COLUMN_DATE }, null, null, null, null, null);
+			if (c != null && c.moveToFirst()) {
+				do {
+					final String key = getReceiptMergeKey(c.getString(1), c.getString(2), c.getLong(3));
+					if (!keys.containsKey(key)) {
+						keys.put(key, c.getInt(0));
+					}
+				}
+				while (c.moveToNext());
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return keys;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	// AutoCompleteTextView Methods
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	@Override
 	public Cursor getAutoCompleteCursor(CharSequence text, CharSequence tag) {
-		// TODO: Fix SQL vulnerabilities
 		final SQLiteDatabase db = this.getReadableDatabase();
-		String sqlQuery = "";
-		if (tag == TAG_RECEIPTS_NAME) {
-			sqlQuery = " SELECT DISTINCT TRIM(" + ReceiptsTable.COLUMN_NAME + ") AS _id " + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_NAME + " LIKE '%" + text + "%' " + " ORDER BY " + ReceiptsTable.COLUMN_NAME;
-		}
-		else if (tag == TAG_RECEIPTS_COMMENT) {
-			sqlQuery = " SELECT DISTINCT TRIM(" + ReceiptsTable.COLUMN_COMMENT + ") AS _id " + " FROM " + ReceiptsTable.TABLE_NAME + " WHERE " + ReceiptsTable.COLUMN_COMMENT + " LIKE '%" + text + "%' " + " ORDER BY " + ReceiptsTable.COLUMN_COMMENT;
+		final String table, column, selection;
+		final String[] selectionArgs;
+		if (tag == TAG_RECEIPTS_NAME || tag == TAG_RECEIPTS_COMMENT) {
+			// Match each word as a prefix via the full text index, rather than scanning every receipt
+			table = ReceiptsTable.TABLE_NAME;
+			column = (tag == TAG_RECEIPTS_NAME) ? ReceiptsTable.COLUMN_NAME : ReceiptsTable.COLUMN_COMMENT;
+			final String match = getFullTextQuery(text, column);
+			if (match != null) {
+				selection = ReceiptsTable.COLUMN_ID + " IN (" + getFullTextMatchSql() + ")";
+			}
+			else {
+				selection = (TextUtils.isEmpty(text)) ? null : "0"; // Nothing but punctuation can't match
+			}
+			selectionArgs = (match == null) ? null : new String[] { match };
 		}
 		else if (tag == TAG_TRIPS) {
-			sqlQuery = " SELECT DISTINCT TRIM(" + TripsTable.COLUMN_NAME + ") AS _id " + " FROM " + TripsTable.TABLE_NAME + " WHERE " + TripsTable.COLUMN_NAME + " LIKE '%" + text + "%' " + " ORDER BY " + TripsTable.COLUMN_NAME;
+			table = TripsTable.TABLE_NAME;
+			column = TripsTable.COLUMN_NAME;
+			selection = column + " LIKE ? ESCAPE '\\'";
+			selectionArgs = new String[] { "%" + ((text == null) ? "" : text.toString().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")) + "%" };
+		}
+		else {
+			return null;
+		}
+		final String sqlQuery = "SELECT DISTINCT TRIM(" + column + ") AS _id FROM " + table + ((selection == null) ? "" : " WHERE " + selection) + " ORDER BY " + column;
+		mReadLock.lock();
+		try {
+			return db.rawQuery(sqlQuery, selectionArgs);
+		}
+		finally {
+			mReadLock.unlock();
+		}
+	}
+
+	/**
+	 * @return a query for the ids of the receipts that match a bound full text query
+	 */
+	private static String getFullTextMatchSql() {
+		return "SELECT " + ReceiptsSearchTable.COLUMN_DOCID + " FROM " + ReceiptsSearchTable.TABLE_NAME + " WHERE " + ReceiptsSearchTable.TABLE_NAME + " MATCH ?";
+	}
+
+	/**
+	 * Converts free text into a full text query that matches each word as a prefix (e.g. "Taxi air" becomes
+	 * "name:taxi* name:air*"). Words are split in the same manner as the FTS3 simple tokenizer, and everything else is
+	 * dropped, so users cannot enter query syntax (e.g. quotes or NEAR). ASCII letters are lower cased, since the
+	 * tokenizer does the same and since the upper case AND, OR, and NOT are operators.
+	 * 
+	 * @param text
+	 *            - the text to search for
+	 * @param column
+	 *            - the column to restrict each word to or {@code null} to match any column
+	 * @return the full text query or {@code null} if the text did not contain any words
+	 */
+	static String getFullTextQuery(final CharSequence text, final String column) {
+		if (text == null) {
+			return null;
+		}
+		final StringBuilder query = new StringBuilder();
+		boolean inWord = false;
+		for (int i = 0; i < text.length(); i++) {
+			final char ch = text.charAt(i);
+			final boolean isWordChar = ch >= 128 || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9');
+			if (isWordChar) {
+				if (!inWord) {
+					if (query.length() > 0) {
+						query.append(' ');
+					}
+					if (column != null) {
+						query.append(column).append(':');
+					}
+					inWord = true;
+				}
+				query.append((ch >= 'A' && ch <= 'Z') ? (char) (ch + ('a' - 'A')) : ch);
+			}
+			else if (inWord) {
+				query.append('*');
+				inWord = false;
+			}
 		}
-		synchronized (mDatabaseLock) {
-			return db.rawQuery(sqlQuery, null);
+		if (inWord) {
+			query.append('*');
 		}
+		return (query.length() > 0) ? query.toString() : null;
 	}
 
 	@Override
 	public void onItemSelected(CharSequence text, CharSequence tag) {
-		// TODO: Make Async
-
-		Cursor c = null;
-		SQLiteDatabase db = null;
-		final String name = text.toString();
 		if (tag == TAG_RECEIPTS_NAME) {
-			String category = null, price = null, tmp = null;
-			// If we're not predicting, return
+			final String name = text.toString();
 			if (!mPersistenceManager.getPreferences().predictCategories()) {
-				// price = null;
-				// category = null
+				if (mReceiptRowListener != null) {
+					mReceiptRowListener.onReceiptRowAutoCompleteQueryResult(name, null, null);
+				}
 			}
 			else {
-				synchronized (mDatabaseLock) {
-					try {
-						db = this.getReadableDatabase();
-						c = db.query(ReceiptsTable.TABLE_NAME, new String[] { ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_PRICE }, ReceiptsTable.COLUMN_NAME + "= ?", new String[] { name }, null, null, ReceiptsTable.COLUMN_DATE + " DESC", "2");
-						if (c != null && c.getCount() == 2) {
-							if (c.moveToFirst()) {
-								category = c.getString(0);
-								price = c.getString(1);
-								if (c.moveToNext()) {
-									tmp = c.getString(0);
-									if (!category.equalsIgnoreCase(tmp)) {
-										category = null;
-									}
-									tmp = c.getString(1);
-									if (!price.equalsIgnoreCase(tmp)) {
-										price = null;
-									}
-								}
-							}
-						}
-					}
-					finally {
-						if (c != null) {
-							c.close();
-						}
-					}
+				// Once the model is loaded, this is a pure in-memory lookup, so we can answer right away
+				final ReceiptPredictionModel.Prediction prediction = mPredictionModel.predict(name);
+				if (prediction != null) {
+					onPredictionResult(name, prediction);
+				}
+				else {
+					(new PredictionWorker()).execute(name);
 				}
 			}
-			if (mReceiptRowListener != null) {
-				mReceiptRowListener.onReceiptRowAutoCompleteQueryResult(name, price, category);
+		}
+	}
+
+	/**
+	 * Predicts the category and price of a new receipt from the history of receipts with the same name. The first call
+	 * loads the {@link ReceiptPredictionModel}, so this should not be called on the UI thread.
+	 *
+	 * @param name
+	 *            - the name of the receipt
+	 * @return the {@link ReceiptPredictionModel.Prediction}. Its category and price are {@code null} when there is no
+	 *         consensus
+	 */
+	public ReceiptPredictionModel.Prediction predictReceiptSerial(String name) {
+		final ReceiptPredictionModel.Prediction prediction = mPredictionModel.predict(name);
+		if (prediction != null) {
+			return prediction;
+		}
+		// Writers clear the model under the write lock, so holding the read lock keeps it loaded until we predict
+		mReadLock.lock();
+		try {
+			loadPredictionModelHelper();
+			final ReceiptPredictionModel.Prediction loaded = mPredictionModel.predict(name);
+			return (loaded != null) ? loaded : ReceiptPredictionModel.Prediction.EMPTY;
+		}
+		finally {
+			mReadLock.unlock();
+		}
+	}
+
+	private void loadPredictionModelHelper() {
+		if (mPredictionModel.isLoaded()) {
+			return;
+		}
+		Cursor c = null;
+		mReadLock.lock(); // Writers update the model under the write lock, so none can slip in while we load
+		try {
+			if (mPredictionModel.isLoaded()) {
+				return;
+			}
+			final SQLiteDatabase db = this.getReadableDatabase();
+			c = db.query(ReceiptsTable.TABLE_NAME, new String[] { ReceiptsTable.COLUMN_ID, ReceiptsTable.COLUMN_NAME, ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_PRICE }, null, null, null, null, null);
+			final HashMap<Integer, String[]> samples = new HashMap<Integer, String[]>(c.getCount());
+			if (c.moveToFirst()) {
+				do {
+					samples.put(c.getInt(0), new String[] { c.getString(1), c.getString(2), c.getString(3) });
+				}
+				while (c.moveToNext());
+			}
+			mPredictionModel.load(samples);
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, "Loaded the prediction model from " + samples.size() + " receipts");
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
 			}
+			mReadLock.unlock();
 		}
 	}
 
+	private void onPredictionResult(String name, ReceiptPredictionModel.Prediction prediction) {
+		if (mReceiptRowListener != null) {
+			mReceiptRowListener.onReceiptRowAutoCompleteQueryResult(name, prediction.getPrice(), prediction.getCategory());
+		}
+	}
+
+	private class PredictionWorker extends AsyncTask<String, Void, ReceiptPredictionModel.Prediction> {
+
+		private String mName;
+
+		@Override
+		protected ReceiptPredictionModel.Prediction doInBackground(String... params) {
+			mName = params[0];
+			return predictReceiptSerial(mName);
+		}
+
+		@Override
+		protected void onPostExecute(ReceiptPredictionModel.Prediction result) {
+			onPredictionResult(mName, result);
+		}
+
+	}
+
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	// Support Methods
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -3442,9 +5678,14 @@ public final class DatabaseHelper extends SQLiteOpenHelper implements AutoComple
 				final StorageManager storageManager = mPersistenceManager.getStorageManager();
 				File sdDB = storageManager.getFile(DateUtils.getCurrentDateAsYYYY_MM_DDString() + "_" + DATABASE_NAME + ".bak");
 				try {
-					synchronized (mDatabaseLock) {
+					mWriteLock.lock();
+					try {
+						checkpointHelper(getWritableDatabase());
 						storageManager.copy(new File(databasePath), sdDB, true);
 					}
+					finally {
+						mWriteLock.unlock();
+					}
 					if (D) {
 						Log.d(TAG, "Backed up database file to: " + sdDB.getName());
 					}
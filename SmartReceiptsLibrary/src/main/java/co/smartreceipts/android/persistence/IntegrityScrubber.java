@@ -0,0 +1,340 @@
+package co.smartreceipts.android.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import wb.android.storage.StorageManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+import co.smartreceipts.android.BuildConfig;
+import co.smartreceipts.android.model.TripRow;
+
+/**
+ * Checks the receipt files in the background, a small batch at a time. The first phase walks the receipts table in id
+ * order and records whether each receipt's file exists (along with its size and MD5 checksum). The second phase walks
+ * the trip directories one at a time and records the image and PDF files that no receipt refers to. Receipts then read
+ * the recorded existence flag instead of checking the file system for every row (anything that opens a file checks it
+ * again first). Orphaned files are only recorded, never deleted.
+ * <p>
+ * Nothing is recorded while the external storage is not mounted, or for a trip whose directory is not there, since
+ * every file would otherwise look missing (or no file would look orphaned) until the next pass.
+ * <p>
+ * The position of the scrub is saved after every batch, so a scrub that gets stopped (or killed) resumes where it left
+ * off. Checksums are only recomputed for files whose size or modification time changed. Once a pass completes, the
+ * next one is not started for {@link #PASS_INTERVAL_MILLIS}.
+ *
+ * @author wrb
+ */
+public final class IntegrityScrubber {
+
+	private static final String TAG = "IntegrityScrubber";
+
+	static final String PREFERENCES = SharedPreferenceDefinitions.IntegrityScrubber_Preferences.toString();
+	private static final String KEY_PHASE = "phase";
+	private static final String KEY_CURSOR = "cursor";
+	private static final String KEY_LAST_PASS = "lastPass";
+
+	private static final int PHASE_RECEIPTS = 0;
+	private static final int PHASE_TRIPS = 1;
+
+	static final int BATCH_SIZE = 50;
+	private static final long START_DELAY_MILLIS = 30 * 1000; // Stays out of the way while the app starts up
+	private static final long BATCH_DELAY_MILLIS = 500; // Leaves the disk to the foreground between batches
+	private static final long PASS_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+	private final PersistenceManager mPersistenceManager;
+	private final SharedPreferences mPreferences;
+	private final Object mScrubLock = new Object();
+	private Thread mThread;
+
+	IntegrityScrubber(Context context, PersistenceManager persistenceManager) {
+		mPersistenceManager = persistenceManager;
+		mPreferences = context.getSharedPreferences(PREFERENCES, 0);
+	}
+
+	/**
+	 * Starts (or resumes) scrubbing on a background priority thread after a short delay, if a pass is due. This does
+	 * nothing if the scrubber is already running.
+	 */
+	public synchronized void start() {
+		if (mThread != null) {
+			return;
+		}
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				scrubInBackground();
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the scrubber after its current batch. The next call to {@link #start()} resumes from there.
+	 */
+	public synchronized void stop() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	/**
+	 * Runs a complete pass on the calling thread, resuming from the saved position if a pass is in progress
+	 */
+	public void scrub() {
+		while (scrubBatch()) {
+			// Keep going
+		}
+	}
+
+	/**
+	 * Scrubs the next batch of receipts (or the next trip directory) and saves the new position
+	 *
+	 * @return {@code true} if there is more to scrub. {@code false} once the pass has completed, or if the storage is
+	 *         not available (in which case the pass resumes from the same position next time)
+	 */
+	public boolean scrubBatch() {
+		synchronized (mScrubLock) {
+			final StorageManager storageManager = mPersistenceManager.getStorageManager();
+			if (!isAvailable(storageManager)) {
+				if (BuildConfig.DEBUG) {
+					Log.d(TAG, "The storage is not available. Pausing the integrity scrub");
+				}
+				return false;
+			}
+			final DatabaseHelper db = mPersistenceManager.getDatabase();
+			final int phase = mPreferences.getInt(KEY_PHASE, PHASE_RECEIPTS);
+			final int cursor = mPreferences.getInt(KEY_CURSOR, 0);
+			if (phase == PHASE_RECEIPTS) {
+				final List<ReceiptFile> files = db.getReceiptFilesSerial(cursor, BATCH_SIZE);
+				if (files.isEmpty()) {
+					saveCursor(PHASE_TRIPS, 0);
+					return true;
+				}
+				final ArrayList<ReceiptFile> scrubbed = new ArrayList<ReceiptFile>(files.size());
+				for (final ReceiptFile file : files) {
+					if (file.getTrip() != null && !file.getTrip().getDirectory().isDirectory()) {
+						continue; // Left as it was recorded. The directory may be back by the next pass
+					}
+					scrub(storageManager, file);
+					scrubbed.add(file);
+				}
+				db.saveReceiptFilesSerial(scrubbed);
+				saveCursor(PHASE_RECEIPTS, files.get(files.size() - 1).getReceiptId());
+				return true;
+			}
+			else {
+				final TripRow trip = getNextTrip(db.getTripsSerial(), cursor);
+				if (trip == null) {
+					db.pruneIntegrityTablesSerial();
+					mPreferences.edit().putInt(KEY_PHASE, PHASE_RECEIPTS).putInt(KEY_CURSOR, 0).putLong(KEY_LAST_PASS, System.currentTimeMillis()).commit();
+					if (BuildConfig.DEBUG) {
+						Log.d(TAG, "Completed an integrity scrub");
+					}
+					return false;
+				}
+				// List the directory first, so a receipt that gets added in the meantime is not reported as an orphan
+				final File[] files = trip.getDirectory().listFiles();
+				if (files != null) {
+					db.saveOrphanFilesSerial(trip, findOrphans(trip, files, db.getReceiptPathsSerial(trip)));
+				}
+				saveCursor(PHASE_TRIPS, trip.getId());
+				return true;
+			}
+		}
+	}
+
+	private void scrubInBackground() {
+		final Thread thread = Thread.currentThread();
+		try {
+			Thread.sleep(START_DELAY_MILLIS);
+			if (isPassDue()) {
+				while (!thread.isInterrupted() && scrubBatch()) {
+					Thread.sleep(BATCH_DELAY_MILLIS);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// Stopped. The position was saved after the last batch
+		}
+		catch (RuntimeException e) {
+			// e.g. The database was closed underneath us. We'll pick this up again on the next start
+			Log.w(TAG, e.toString());
+		}
+		finally {
+			synchronized (this) {
+				if (mThread == thread) {
+					mThread = null;
+				}
+			}
+		}
+	}
+
+	private boolean isPassDue() {
+		if (mPreferences.getInt(KEY_PHASE, PHASE_RECEIPTS) != PHASE_RECEIPTS || mPreferences.getInt(KEY_CURSOR, 0) != 0) {
+			return true; // A pass is in progress
+		}
+		final long elapsed = System.currentTimeMillis() - mPreferences.getLong(KEY_LAST_PASS, 0);
+		return elapsed < 0 || elapsed >= PASS_INTERVAL_MILLIS; // The clock may have been set back
+	}
+
+	/**
+	 * @return {@code false} if the receipt files are on external storage that is not mounted right now
+	 */
+	private boolean isAvailable(StorageManager storageManager) {
+		if (!storageManager.isExternal()) {
+			return true;
+		}
+		final String state = Environment.getExternalStorageState();
+		return Environment.MEDIA_MOUNTED.equals(state) || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state);
+	}
+
+	private void saveCursor(int phase, int cursor) {
+		mPreferences.edit().putInt(KEY_PHASE, phase).putInt(KEY_CURSOR, cursor).commit();
+	}
+
+	private void scrub(StorageManager storageManager, ReceiptFile receiptFile) {
+		final File file = receiptFile.getFile(storageManager);
+		if (file == null || !file.isFile()) {
+			receiptFile.update(false, 0, 0, null);
+			return;
+		}
+		final long size = file.length();
+		final long modified = file.lastModified();
+		final String checksum = receiptFile.isUnchanged(size, modified) ? receiptFile.getChecksum() : null;
+		receiptFile.update(true, size, modified, (checksum != null) ? checksum : StorageManager.getMD5Checksum(file));
+	}
+
+	/**
+	 * @return the trip with the lowest id that is greater than this one or {@code null} if there is none
+	 */
+	private TripRow getNextTrip(TripRow[] trips, int afterId) {
+		TripRow next = null;
+		for (final TripRow trip : trips) {
+			if (trip.getId() > afterId && (next == null || trip.getId() < next.getId())) {
+				next = trip;
+			}
+		}
+		return next;
+	}
+
+	private List<File> findOrphans(TripRow trip, File[] files, Set<String> referenced) {
+		final ArrayList<File> orphans = new ArrayList<File>();
+		final String reportPrefix = trip.getDirectory().getName(); // Reports (e.g. Trip.pdf) are written here too
+		for (final File file : files) {
+			final String name = file.getName();
+			if (file.isFile() && !referenced.contains(name) && !name.startsWith(reportPrefix) && isReceiptFile(file)) {
+				orphans.add(file);
+			}
+		}
+		return orphans;
+	}
+
+	private boolean isReceiptFile(File file) {
+		final String extension = StorageManager.getExtension(file);
+		return extension != null && (extension.equalsIgnoreCase("jpg") || extension.equalsIgnoreCase("jpeg") || extension.equalsIgnoreCase("png") || extension.equalsIgnoreCase("pdf"));
+	}
+
+	/**
+	 * The file of a single receipt, as it was last recorded and as it was found by this scrub
+	 */
+	static final class ReceiptFile {
+
+		private final int mReceiptId;
+		private final TripRow mTrip;
+		private final String mPath;
+		private String mRecordedPath;
+		private boolean mRecordedExists;
+		private boolean mExists;
+		private long mSize, mModified;
+		private String mChecksum;
+
+		/**
+		 * @param path
+		 *            - the file name within the trip directory or {@code null} if the receipt has no file
+		 */
+		ReceiptFile(int receiptId, TripRow trip, String path) {
+			mReceiptId = receiptId;
+			mTrip = trip;
+			mPath = path;
+		}
+
+		void setRecorded(String path, boolean exists, long size, long modified, String checksum) {
+			mRecordedPath = path;
+			mRecordedExists = mExists = exists;
+			mSize = size;
+			mModified = modified;
+			mChecksum = checksum;
+		}
+
+		void update(boolean exists, long size, long modified, String checksum) {
+			mExists = exists;
+			mSize = size;
+			mModified = modified;
+			mChecksum = checksum;
+		}
+
+		/**
+		 * @return {@code true} if the recorded state is for the same path, size, and modification time
+		 */
+		boolean isUnchanged(long size, long modified) {
+			return mPath != null && mPath.equals(mRecordedPath) && mSize == size && mModified == modified;
+		}
+
+		/**
+		 * @return {@code true} if the file appeared or disappeared since it was last recorded
+		 */
+		boolean hasChanged() {
+			if (mPath == null) {
+				return false;
+			}
+			else if (mRecordedPath == null) {
+				return !mExists; // A receipt without a record checked for itself, so only a missing file may be news
+			}
+			else {
+				return !mPath.equals(mRecordedPath) || mRecordedExists != mExists;
+			}
+		}
+
+		File getFile(StorageManager storageManager) {
+			return (mTrip == null || mPath == null) ? null : storageManager.getFile(mTrip.getDirectory(), mPath);
+		}
+
+		int getReceiptId() {
+			return mReceiptId;
+		}
+
+		TripRow getTrip() {
+			return mTrip;
+		}
+
+		String getPath() {
+			return mPath;
+		}
+
+		boolean exists() {
+			return mExists;
+		}
+
+		long getSize() {
+			return mSize;
+		}
+
+		long getModified() {
+			return mModified;
+		}
+
+		String getChecksum() {
+			return mChecksum;
+		}
+
+	}
+
+}
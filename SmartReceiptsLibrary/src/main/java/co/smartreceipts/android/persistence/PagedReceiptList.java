@@ -0,0 +1,124 @@
+package co.smartreceipts.android.persistence;
+
+import java.util.AbstractList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+
+/**
+ * A read-only, lazily materialized list of the receipts for a particular trip. Instead of building every
+ * {@link ReceiptRow} up front, rows are loaded from the database one page at a time as they are accessed. Only a
+ * handful of recently used pages are kept in memory, so walking the whole list (e.g. as a report is generated) only
+ * ever holds a small window of rows. Pages are loaded on the calling thread, so this list should not be handed to the
+ * UI.
+ * <p>
+ * Pages are located via keyset pagination on (sort key, id) whenever the previous page has already been seen, which is
+ * always the case when the list is walked in order. Random jumps fall back to an offset query.
+ * <p>
+ * The size of this list is fixed when it is created. If receipts get deleted in the meantime, reading past the
+ * receipts that are left throws a {@link ConcurrentModificationException} (as iterating over a modified list would).
+ * Receipts added in the meantime are not seen.
+ * <p>
+ * If the trip has a filter, only the receipts that it accepts are listed. When that filter cannot be compiled entirely
+ * into SQL (see {@link ReceiptFilterCompiler}), the list is simply backed by receipts that were loaded up front.
+ *
+ * @author wrb
+ */
+public final class PagedReceiptList extends AbstractList<ReceiptRow> {
+
+	public static final int PAGE_SIZE = 50;
+	private static final int MAX_CACHED_PAGES = 8;
+
+	private final DatabaseHelper mDB;
+	private final TripRow mTrip;
+	private final boolean mDesc;
+	private final ReceiptFilterCompiler.CompiledFilter mFilter;
+	private final List<ReceiptRow> mLoaded;
+	private final int mSize;
+	private final Map<Integer, List<ReceiptRow>> mPages;
+	private final Map<Integer, long[]> mPageEnds; // The sort key and id of the last receipt of each page
+
+	PagedReceiptList(DatabaseHelper db, TripRow trip, boolean desc, ReceiptFilterCompiler.CompiledFilter filter, int size) {
+		this(db, trip, desc, filter, null, size);
+	}
+
+	PagedReceiptList(TripRow trip, List<ReceiptRow> receipts) {
+		this(null, trip, false, null, receipts, receipts.size());
+	}
+
+	private PagedReceiptList(DatabaseHelper db, TripRow trip, boolean desc, ReceiptFilterCompiler.CompiledFilter filter, List<ReceiptRow> loaded, int size) {
+		mDB = db;
+		mTrip = trip;
+		mDesc = desc;
+		mFilter = filter;
+		mLoaded = loaded;
+		mSize = size;
+		mPageEnds = new HashMap<Integer, long[]>();
+		mPages = new LinkedHashMap<Integer, List<ReceiptRow>>(MAX_CACHED_PAGES + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, List<ReceiptRow>> eldest) {
+				return size() > MAX_CACHED_PAGES;
+			}
+		};
+	}
+
+	/**
+	 * @throws ConcurrentModificationException
+	 *             if receipts were deleted since this list was created, so there is no longer a receipt here
+	 */
+	@Override
+	public synchronized ReceiptRow get(int location) {
+		if (location < 0 || location >= mSize) {
+			throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + mSize);
+		}
+		if (mLoaded != null) {
+			return mLoaded.get(location);
+		}
+		final int page = location / PAGE_SIZE;
+		List<ReceiptRow> rows = mPages.get(page);
+		if (rows == null) {
+			rows = loadPage(page);
+			mPages.put(page, rows);
+		}
+		final int offset = location % PAGE_SIZE;
+		if (offset >= rows.size()) {
+			throw new ConcurrentModificationException("Receipts were deleted since this list was created");
+		}
+		return rows.get(offset);
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	public TripRow getTrip() {
+		return mTrip;
+	}
+
+	/**
+	 * Creates another list over the same trip (with the same size) but with its own page cache. Readers that walk the
+	 * receipts in parallel should each use their own copy, so they don't evict each other's pages.
+	 */
+	public PagedReceiptList copy() {
+		return new PagedReceiptList(mDB, mTrip, mDesc, mFilter, mLoaded, mSize);
+	}
+
+	private List<ReceiptRow> loadPage(int page) {
+		final long[] after = (page > 0) ? mPageEnds.get(page - 1) : null;
+		final long[] last = new long[2];
+		final List<ReceiptRow> rows = mDB.getReceiptsPage(mTrip, mDesc, mFilter, after, page * PAGE_SIZE, PAGE_SIZE, last);
+		if (!rows.isEmpty()) {
+			mPageEnds.put(page, last);
+		}
+		return rows;
+	}
+
+}
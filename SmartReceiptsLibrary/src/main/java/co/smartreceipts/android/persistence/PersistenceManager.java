@@ -14,6 +14,7 @@ public class PersistenceManager {
 	private SDCardFileManager mExternalStorageManager;
 	private InternalStorageManager mInternalStorageManager;
 	private Preferences mPreferences;
+	private IntegrityScrubber mIntegrityScrubber;
 
 	public PersistenceManager(SmartReceiptsApplication application) {
 		mApplication =  application;
@@ -23,6 +24,9 @@ public class PersistenceManager {
 	}
 
 	public void onDestroy() {
+		if (mIntegrityScrubber != null) {
+			mIntegrityScrubber.stop();
+		}
 		mDatabase.onDestroy();
 		mApplication = null;
 		mStorageManager = null;
@@ -30,6 +34,7 @@ public class PersistenceManager {
 		mInternalStorageManager = null;
 		mDatabase = null;
 		mPreferences = null;
+		mIntegrityScrubber = null;
 	}
 
 	public DatabaseHelper getDatabase() {
@@ -73,6 +78,13 @@ public class PersistenceManager {
 		return mInternalStorageManager;
 	}
 
+	public synchronized IntegrityScrubber getIntegrityScrubber() {
+		if (mIntegrityScrubber == null) {
+			mIntegrityScrubber = new IntegrityScrubber(mApplication, this);
+		}
+		return mIntegrityScrubber;
+	}
+
 	public Preferences getPreferences() {
 		return mPreferences;
 	}
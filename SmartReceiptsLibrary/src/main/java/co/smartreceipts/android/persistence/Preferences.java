@@ -40,7 +40,7 @@ public class Preferences implements OnSharedPreferenceChangeListener {
 
     // Output Preferences
     private String mUserID;
-    private boolean mIncludeCSVHeaders, mUseFileExplorerForOutput, mIncludeIDNotIndex, mOptimizePDFSpace;
+    private boolean mIncludeCSVHeaders, mUseFileExplorerForOutput, mIncludeIDNotIndex, mOptimizePDFSpace, mStoreZipUncompressed;
 
     // Email Preferences
     private String mEmailTo, mEmailCC, mEmailBCC, mEmailSubject;
@@ -159,6 +159,10 @@ public class Preferences implements OnSharedPreferenceChangeListener {
 		this.mOptimizePDFSpace = prefs.getBoolean(mContext.getString(R.string.pref_output_optimize_space_key), true);
 	}
 
+	private void initStoreZipUncompressed(SharedPreferences prefs) {
+		this.mStoreZipUncompressed = prefs.getBoolean(mContext.getString(R.string.pref_output_store_zip_key), false);
+	}
+
 	private void initEmailTo(SharedPreferences prefs) {
 		this.mEmailTo = prefs.getString(mContext.getString(R.string.pref_email_default_email_to_key), "");
 	}
@@ -251,6 +255,7 @@ public class Preferences implements OnSharedPreferenceChangeListener {
 		this.initIncludeReceiptIdNotIndex(prefs);
 		this.initUseFileExplorerForOutput(prefs);
 		this.initOptimizeSpaceForPDFOutput(prefs);
+		this.initStoreZipUncompressed(prefs);
 
 	    // Email Preferences
 		this.initEmailTo(prefs);
@@ -452,6 +457,10 @@ public class Preferences implements OnSharedPreferenceChangeListener {
 		return this.mIncludeIDNotIndex;
 	}
 
+	public boolean storeZipImagesUncompressed() {
+		return this.mStoreZipUncompressed;
+	}
+
 	public boolean defaultToFirstReportDate() {
 		return mDefaultToFirstReportDate;
 	}
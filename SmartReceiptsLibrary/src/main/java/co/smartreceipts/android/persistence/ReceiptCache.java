@@ -0,0 +1,153 @@
+package co.smartreceipts.android.persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+
+/**
+ * A size-bounded, least-recently-used cache of the receipt lists for each trip. The size of the cache is measured in
+ * the total number of receipts that it holds (rather than the number of trips), so a handful of very large trips cannot
+ * keep every list resident. Lists are keyed by trip id, since {@link TripRow} objects are mutable and get re-created
+ * whenever the trip list is re-queried (and a trip keeps its id when it is renamed). Trips without an id are not
+ * cached.
+ * <p>
+ * All methods are thread-safe. Since a list may be queried concurrently with a write that invalidates it, callers
+ * should capture {@link #getVersion()} before querying and pass it to {@link #put(TripRow, List, int)}, which drops
+ * lists that were invalidated in the meantime.
+ *
+ * @author wrb
+ */
+public final class ReceiptCache {
+
+	public static final int DEFAULT_MAX_RECEIPTS = 2000;
+
+	private final LinkedHashMap<Integer, List<ReceiptRow>> mCache;
+	private final int mMaxReceipts;
+	private int mReceiptCount;
+	private int mHitCount, mMissCount, mEvictionCount;
+	private int mVersion;
+
+	public ReceiptCache() {
+		this(DEFAULT_MAX_RECEIPTS);
+	}
+
+	public ReceiptCache(int maxReceipts) {
+		if (maxReceipts <= 0) {
+			throw new IllegalArgumentException("maxReceipts must be positive");
+		}
+		mMaxReceipts = maxReceipts;
+		mCache = new LinkedHashMap<Integer, List<ReceiptRow>>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return the cached receipts for this trip or {@code null} if they have not been cached (or were evicted)
+	 */
+	public synchronized List<ReceiptRow> get(TripRow trip) {
+		final List<ReceiptRow> receipts = (trip == null) ? null : mCache.get(trip.getId());
+		if (receipts != null) {
+			mHitCount++;
+		}
+		else {
+			mMissCount++;
+		}
+		return receipts;
+	}
+
+	/**
+	 * Caches the receipts for a trip, evicting the least recently used trips until the cache fits within its bounds.
+	 * Lists that are larger than the entire cache are not stored.
+	 */
+	public synchronized void put(TripRow trip, List<ReceiptRow> receipts) {
+		put(trip, receipts, mVersion);
+	}
+
+	/**
+	 * Caches the receipts for a trip, unless the cache was invalidated (via {@link #remove(TripRow)} or
+	 * {@link #clear()}) since the given version was read
+	 */
+	public synchronized void put(TripRow trip, List<ReceiptRow> receipts, int version) {
+		if (trip == null || trip.getId() == TripRow.MISSING_ID || receipts == null || version != mVersion) {
+			return;
+		}
+		removeEntry(trip.getId());
+		if (receipts.size() > mMaxReceipts) {
+			return;
+		}
+		mCache.put(trip.getId(), receipts);
+		mReceiptCount += receipts.size();
+		final Iterator<Map.Entry<Integer, List<ReceiptRow>>> iterator = mCache.entrySet().iterator();
+		while (mReceiptCount > mMaxReceipts && iterator.hasNext()) {
+			final Map.Entry<Integer, List<ReceiptRow>> eldest = iterator.next();
+			mReceiptCount -= eldest.getValue().size();
+			iterator.remove();
+			mEvictionCount++;
+		}
+	}
+
+	public synchronized void remove(TripRow trip) {
+		mVersion++;
+		if (trip != null) {
+			removeEntry(trip.getId());
+		}
+	}
+
+	public synchronized void clear() {
+		mVersion++;
+		mCache.clear();
+		mReceiptCount = 0;
+	}
+
+	/**
+	 * @return a counter that changes whenever any cached list is invalidated
+	 */
+	public synchronized int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return the number of trips that are currently cached
+	 */
+	public synchronized int size() {
+		return mCache.size();
+	}
+
+	/**
+	 * @return the total number of receipts that are currently cached across all trips
+	 */
+	public synchronized int getReceiptCount() {
+		return mReceiptCount;
+	}
+
+	public int getMaxReceipts() {
+		return mMaxReceipts;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReceiptCache [trips=" + mCache.size() + ", receipts=" + mReceiptCount + "/" + mMaxReceipts + ", hits=" + mHitCount + ", misses=" + mMissCount + ", evictions=" + mEvictionCount + "]";
+	}
+
+	private void removeEntry(int tripId) {
+		final List<ReceiptRow> removed = mCache.remove(tripId);
+		if (removed != null) {
+			mReceiptCount -= removed.size();
+		}
+	}
+
+}
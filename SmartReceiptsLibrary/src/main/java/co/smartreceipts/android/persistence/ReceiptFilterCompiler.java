@@ -0,0 +1,267 @@
+package co.smartreceipts.android.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import co.smartreceipts.android.filters.AndFilter;
+import co.smartreceipts.android.filters.Filter;
+import co.smartreceipts.android.filters.FilterUtils;
+import co.smartreceipts.android.filters.NotFilter;
+import co.smartreceipts.android.filters.OrFilter;
+import co.smartreceipts.android.filters.ReceiptAndFilter;
+import co.smartreceipts.android.filters.ReceiptCategoryFilter;
+import co.smartreceipts.android.filters.ReceiptIsExpensableFilter;
+import co.smartreceipts.android.filters.ReceiptMaximumPriceFilter;
+import co.smartreceipts.android.filters.ReceiptMinimumPriceFilter;
+import co.smartreceipts.android.filters.ReceiptOnOrAfterDayFilter;
+import co.smartreceipts.android.filters.ReceiptOnOrBeforeDayFilter;
+import co.smartreceipts.android.filters.ReceiptSelectedFilter;
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.persistence.DatabaseHelper.ReceiptsTable;
+
+/**
+ * Compiles a {@link Filter} tree for {@link ReceiptRow} objects into a selection against the receipts table, so the
+ * filtering can be done by SQLite instead of calling {@link Filter#accept(Object)} on every receipt that we load. All
+ * values are returned as bound arguments, and every compiled expression evaluates to 0 or 1 (never NULL), so a NOT
+ * filter behaves exactly as it does in Java.
+ * <p>
+ * Not every filter can be expressed in SQL (e.g. {@link ReceiptSelectedFilter} depends on state that is never
+ * persisted). These are returned as a residual filter, which must still be applied in Java. The original filter is
+ * always equivalent to the compiled selection AND the residual filter. Only top level AND filters are split in this
+ * manner. An OR or NOT filter with a child that cannot be compiled is left to the residual filter in its entirety.
+ * <p>
+ * The day filters mirror {@link FilterUtils}, which compares dates after removing the raw offset of each time zone.
+ * SQLite cannot resolve a time zone id, so this must be constructed with every id that the receipts may contain. Any
+ * other id (or a missing one) is treated as the default time zone. Prices are compared as doubles rather than floats,
+ * which only matters for prices too large for a float to hold to the cent.
+ *
+ * @author wrb
+ */
+public final class ReceiptFilterCompiler {
+
+	private static final String TRUE = "1";
+	private static final String FALSE = "0";
+
+	private final Map<Integer, List<String>> mTimeZoneIdsByOffset;
+	private final int mDefaultRawOffset;
+
+	/**
+	 * @param timeZoneIds
+	 *            - every time zone id that the receipts being filtered may contain
+	 */
+	public ReceiptFilterCompiler(Collection<String> timeZoneIds) {
+		mDefaultRawOffset = TimeZone.getDefault().getRawOffset();
+		mTimeZoneIdsByOffset = new LinkedHashMap<Integer, List<String>>();
+		if (timeZoneIds != null) {
+			for (final String timeZoneId : timeZoneIds) {
+				if (timeZoneId == null) {
+					continue;
+				}
+				final int offset = TimeZone.getTimeZone(timeZoneId).getRawOffset();
+				if (offset == mDefaultRawOffset) {
+					continue; // Handled by the ELSE clause
+				}
+				List<String> ids = mTimeZoneIdsByOffset.get(offset);
+				if (ids == null) {
+					ids = new ArrayList<String>();
+					mTimeZoneIdsByOffset.put(offset, ids);
+				}
+				if (!ids.contains(timeZoneId)) {
+					ids.add(timeZoneId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compiles as much of this filter as possible
+	 *
+	 * @param filter
+	 *            - the {@link Filter} to compile. May be {@code null}, in which case everything is accepted
+	 * @return a {@link CompiledFilter}
+	 */
+	public CompiledFilter compile(Filter<ReceiptRow> filter) {
+		if (filter == null) {
+			return new CompiledFilter(null, new ArrayList<String>(), null);
+		}
+		final ArrayList<String> args = new ArrayList<String>();
+		final String selection = compileFilter(filter, args);
+		if (selection != null) {
+			return new CompiledFilter(selection, args, null);
+		}
+		if (filter instanceof AndFilter) {
+			// Push down every child that we can and leave the rest for Java
+			final StringBuilder builder = new StringBuilder();
+			final ArrayList<Filter<ReceiptRow>> residuals = new ArrayList<Filter<ReceiptRow>>();
+			for (final Filter<ReceiptRow> child : filter.getChildren()) {
+				final CompiledFilter compiled = compile(child);
+				if (compiled.getSelection() != null) {
+					if (builder.length() > 0) {
+						builder.append(" AND ");
+					}
+					builder.append(compiled.getSelection());
+					for (final String arg : compiled.getSelectionArgs()) {
+						args.add(arg);
+					}
+				}
+				if (compiled.getResidualFilter() != null) {
+					residuals.add(compiled.getResidualFilter());
+				}
+			}
+			final Filter<ReceiptRow> residual = (residuals.size() == 1) ? residuals.get(0) : new ReceiptAndFilter(residuals);
+			return new CompiledFilter((builder.length() > 0) ? builder.toString() : null, args, residual);
+		}
+		return new CompiledFilter(null, args, filter);
+	}
+
+	/**
+	 * Compiles an entire filter. Arguments are only added if this succeeds
+	 *
+	 * @return the selection or {@code null} if any part of this filter cannot be compiled
+	 */
+	private String compileFilter(Filter<ReceiptRow> filter, List<String> args) {
+		if (filter instanceof AndFilter || filter instanceof OrFilter) {
+			final boolean isAnd = filter instanceof AndFilter;
+			final List<Filter<ReceiptRow>> children = filter.getChildren();
+			if (children.isEmpty()) {
+				return (isAnd) ? TRUE : FALSE;
+			}
+			final ArrayList<String> childArgs = new ArrayList<String>();
+			final StringBuilder builder = new StringBuilder("(");
+			for (int i = 0; i < children.size(); i++) {
+				final String selection = compileFilter(children.get(i), childArgs);
+				if (selection == null) {
+					return null;
+				}
+				if (i > 0) {
+					builder.append((isAnd) ? " AND " : " OR ");
+				}
+				builder.append(selection);
+			}
+			args.addAll(childArgs);
+			return builder.append(")").toString();
+		}
+		else if (filter instanceof NotFilter) {
+			final String selection = compileFilter(filter.getChildren().get(0), args);
+			return (selection == null) ? null : "(NOT " + selection + ")";
+		}
+		else if (filter instanceof ReceiptCategoryFilter) {
+			args.add(((ReceiptCategoryFilter) filter).getCategory());
+			return "(" + ReceiptsTable.COLUMN_CATEGORY + " IS ?)";
+		}
+		else if (filter instanceof ReceiptIsExpensableFilter) {
+			return "(IFNULL(" + ReceiptsTable.COLUMN_EXPENSEABLE + ", 0) > 0)";
+		}
+		else if (filter instanceof ReceiptMinimumPriceFilter) {
+			final ReceiptMinimumPriceFilter priceFilter = (ReceiptMinimumPriceFilter) filter;
+			return getPriceSelection(">=", priceFilter.getMinPrice(), priceFilter.getCurrencyCode(), args);
+		}
+		else if (filter instanceof ReceiptMaximumPriceFilter) {
+			final ReceiptMaximumPriceFilter priceFilter = (ReceiptMaximumPriceFilter) filter;
+			return getPriceSelection("<=", priceFilter.getMaxPrice(), priceFilter.getCurrencyCode(), args);
+		}
+		else if (filter instanceof ReceiptOnOrAfterDayFilter) {
+			final ReceiptOnOrAfterDayFilter dayFilter = (ReceiptOnOrAfterDayFilter) filter;
+			return getDaySelection(">=", dayFilter.getDate().getTime(), dayFilter.getTimeZone(), args);
+		}
+		else if (filter instanceof ReceiptOnOrBeforeDayFilter) {
+			final ReceiptOnOrBeforeDayFilter dayFilter = (ReceiptOnOrBeforeDayFilter) filter;
+			return getDaySelection("<=", dayFilter.getDate().getTime(), dayFilter.getTimeZone(), args);
+		}
+		else {
+			return null;
+		}
+	}
+
+	private String getPriceSelection(String operator, float price, String currencyCode, List<String> args) {
+		// Both sides are cast, since SQLite would otherwise compare a number to our (text) argument as a string
+		final String column = "CAST(REPLACE(IFNULL(" + ReceiptsTable.COLUMN_PRICE + ", 0), ',', '.') AS REAL)";
+		args.add(Float.toString(price));
+		args.add(currencyCode);
+		return "(" + column + " " + operator + " CAST(? AS REAL) AND " + ReceiptsTable.COLUMN_ISO4217 + " = ? COLLATE NOCASE)";
+	}
+
+	private String getDaySelection(String operator, long millis, TimeZone timeZone, List<String> args) {
+		final StringBuilder offset = new StringBuilder();
+		if (mTimeZoneIdsByOffset.isEmpty()) {
+			offset.append(mDefaultRawOffset);
+		}
+		else {
+			offset.append("(CASE");
+			for (final Map.Entry<Integer, List<String>> entry : mTimeZoneIdsByOffset.entrySet()) {
+				offset.append(" WHEN ").append(ReceiptsTable.COLUMN_TIMEZONE).append(" IN (");
+				final List<String> ids = entry.getValue();
+				for (int i = 0; i < ids.size(); i++) {
+					offset.append((i == 0) ? "?" : ", ?");
+					args.add(ids.get(i));
+				}
+				offset.append(") THEN ").append(entry.getKey());
+			}
+			offset.append(" ELSE ").append(mDefaultRawOffset).append(" END)");
+		}
+		args.add(Long.toString(millis - timeZone.getRawOffset()));
+		return "((IFNULL(" + ReceiptsTable.COLUMN_DATE + ", 0) - " + offset + ") " + operator + " CAST(? AS INTEGER))";
+	}
+
+	/**
+	 * The result of {@link ReceiptFilterCompiler#compile(Filter)}. A receipt is accepted by the original filter if it
+	 * matches the selection and is accepted by the residual filter.
+	 */
+	public static final class CompiledFilter {
+
+		private final String mSelection;
+		private final String[] mSelectionArgs;
+		private final Filter<ReceiptRow> mResidualFilter;
+
+		private CompiledFilter(String selection, List<String> selectionArgs, Filter<ReceiptRow> residualFilter) {
+			mSelection = selection;
+			mSelectionArgs = selectionArgs.toArray(new String[selectionArgs.size()]);
+			mResidualFilter = residualFilter;
+		}
+
+		/**
+		 * @return the SQL selection (without the WHERE keyword) or {@code null} if nothing could be compiled
+		 */
+		public String getSelection() {
+			return mSelection;
+		}
+
+		/**
+		 * @return the arguments to bind to the selection in order
+		 */
+		public String[] getSelectionArgs() {
+			return mSelectionArgs;
+		}
+
+		/**
+		 * @return the part of the filter that must still be applied in Java or {@code null} if there is none
+		 */
+		public Filter<ReceiptRow> getResidualFilter() {
+			return mResidualFilter;
+		}
+
+		/**
+		 * @return {@code true} if the entire filter was compiled (i.e. there is no residual filter)
+		 */
+		public boolean isComplete() {
+			return mResidualFilter == null;
+		}
+
+		/**
+		 * Applies the residual filter to a receipt that already matched the selection
+		 */
+		public boolean accept(ReceiptRow receipt) {
+			return mResidualFilter == null || mResidualFilter.accept(receipt);
+		}
+
+		@Override
+		public String toString() {
+			return "CompiledFilter [selection=" + mSelection + ", residual=" + mResidualFilter + "]";
+		}
+	}
+
+}
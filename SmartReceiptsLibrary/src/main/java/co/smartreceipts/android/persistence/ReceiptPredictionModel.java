@@ -0,0 +1,254 @@
+package co.smartreceipts.android.persistence;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.text.TextUtils;
+
+/**
+ * Predicts the category and price of a new receipt from the receipts that were previously saved with the same name.
+ * For each (normalized) name, this keeps a frequency distribution of categories and of prices. A category or price is
+ * only predicted once at least {@link #MIN_SAMPLES} receipts share the name and more than half of them agree on it, so
+ * a single odd receipt does not flip the prediction.
+ * <p>
+ * The model lives entirely in memory. It is loaded once from the receipts table (see {@link #load(Map)}) and then kept
+ * current by calling {@link #put(int, String, String, String)} and {@link #remove(int)} as receipts are saved. Samples
+ * are tracked by receipt id, so an update or delete never needs to know the values it replaces. Until it is loaded,
+ * updates are ignored and {@link #predict(String)} returns {@code null}. All methods are thread-safe.
+ *
+ * @author wrb
+ */
+public final class ReceiptPredictionModel {
+
+	public static final int MIN_SAMPLES = 2;
+
+	private final HashMap<String, Distribution> mDistributions;
+	private final HashMap<Integer, Sample> mSamples;
+	private boolean mIsLoaded;
+
+	public ReceiptPredictionModel() {
+		mDistributions = new HashMap<String, Distribution>();
+		mSamples = new HashMap<Integer, Sample>();
+	}
+
+	/**
+	 * Replaces the contents of this model
+	 *
+	 * @param samples
+	 *            - a map of receipt ids to {name, category, price} arrays
+	 */
+	public synchronized void load(Map<Integer, String[]> samples) {
+		mDistributions.clear();
+		mSamples.clear();
+		for (final Map.Entry<Integer, String[]> entry : samples.entrySet()) {
+			final String[] values = entry.getValue();
+			putSample(entry.getKey(), values[0], values[1], values[2]);
+		}
+		mIsLoaded = true;
+	}
+
+	public synchronized boolean isLoaded() {
+		return mIsLoaded;
+	}
+
+	/**
+	 * Discards the model, so it will be re-loaded on next use (e.g. after a bulk change to the receipts table)
+	 */
+	public synchronized void clear() {
+		mDistributions.clear();
+		mSamples.clear();
+		mIsLoaded = false;
+	}
+
+	/**
+	 * Adds (or replaces) the sample for a receipt
+	 */
+	public synchronized void put(int id, String name, String category, String price) {
+		if (!mIsLoaded) {
+			return;
+		}
+		removeSample(id);
+		putSample(id, name, category, price);
+	}
+
+	/**
+	 * Removes the sample for a receipt
+	 */
+	public synchronized void remove(int id) {
+		if (!mIsLoaded) {
+			return;
+		}
+		removeSample(id);
+	}
+
+	/**
+	 * @return the {@link Prediction} for a receipt name or {@code null} if this model has not been loaded
+	 */
+	public synchronized Prediction predict(String name) {
+		if (!mIsLoaded) {
+			return null;
+		}
+		final Distribution distribution = mDistributions.get(normalizeName(name));
+		if (distribution == null) {
+			return Prediction.EMPTY;
+		}
+		if (distribution.mPrediction == null) {
+			final String category = distribution.getConsensus(distribution.mCategories);
+			final String price = distribution.getConsensus(distribution.mPrices);
+			distribution.mPrediction = new Prediction(category, price);
+		}
+		return distribution.mPrediction;
+	}
+
+	/**
+	 * @return the number of receipts in this model
+	 */
+	public synchronized int size() {
+		return mSamples.size();
+	}
+
+	private void putSample(int id, String name, String category, String price) {
+		final Sample sample = new Sample(normalizeName(name), TextUtils.isEmpty(category) ? null : category, normalizePrice(price));
+		if (sample.mName == null) {
+			return;
+		}
+		mSamples.put(id, sample);
+		Distribution distribution = mDistributions.get(sample.mName);
+		if (distribution == null) {
+			distribution = new Distribution();
+			mDistributions.put(sample.mName, distribution);
+		}
+		distribution.add(sample);
+	}
+
+	private void removeSample(int id) {
+		final Sample sample = mSamples.remove(id);
+		if (sample == null) {
+			return;
+		}
+		final Distribution distribution = mDistributions.get(sample.mName);
+		if (distribution != null && distribution.remove(sample)) {
+			mDistributions.remove(sample.mName);
+		}
+	}
+
+	/**
+	 * Receipt names are matched regardless of case or surrounding (and repeated) whitespace
+	 */
+	static String normalizeName(String name) {
+		if (name == null) {
+			return null;
+		}
+		final String normalized = name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+		return (normalized.length() > 0) ? normalized : null;
+	}
+
+	/**
+	 * Prices are matched by value (so "5", "5.0", and "5,00" are the same price) and predicted with two decimal places
+	 */
+	static String normalizePrice(String price) {
+		if (TextUtils.isEmpty(price)) {
+			return null;
+		}
+		try {
+			return new BigDecimal(price.trim().replace(',', '.')).setScale(2, BigDecimal.ROUND_HALF_UP).toPlainString();
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The predicted category and price for a receipt name. Either may be {@code null} if there is no consensus
+	 */
+	public static final class Prediction {
+
+		static final Prediction EMPTY = new Prediction(null, null);
+
+		private final String mCategory, mPrice;
+
+		private Prediction(String category, String price) {
+			mCategory = category;
+			mPrice = price;
+		}
+
+		public String getCategory() {
+			return mCategory;
+		}
+
+		public String getPrice() {
+			return mPrice;
+		}
+
+		@Override
+		public String toString() {
+			return "Prediction [category=" + mCategory + ", price=" + mPrice + "]";
+		}
+	}
+
+	private static final class Sample {
+
+		private final String mName, mCategory, mPrice;
+
+		private Sample(String name, String category, String price) {
+			mName = name;
+			mCategory = category;
+			mPrice = price;
+		}
+	}
+
+	private static final class Distribution {
+
+		private final HashMap<String, Integer> mCategories = new HashMap<String, Integer>();
+		private final HashMap<String, Integer> mPrices = new HashMap<String, Integer>();
+		private int mCount;
+		private Prediction mPrediction; // Lazily computed. Reset on every change
+
+		private void add(Sample sample) {
+			mCount++;
+			increment(mCategories, sample.mCategory, 1);
+			increment(mPrices, sample.mPrice, 1);
+			mPrediction = null;
+		}
+
+		/**
+		 * @return {@code true} if this distribution is now empty
+		 */
+		private boolean remove(Sample sample) {
+			mCount--;
+			increment(mCategories, sample.mCategory, -1);
+			increment(mPrices, sample.mPrice, -1);
+			mPrediction = null;
+			return mCount <= 0;
+		}
+
+		private String getConsensus(HashMap<String, Integer> counts) {
+			if (mCount < MIN_SAMPLES) {
+				return null;
+			}
+			for (final Map.Entry<String, Integer> entry : counts.entrySet()) {
+				if (entry.getValue() * 2 > mCount) {
+					return entry.getKey(); // Only one value can hold a majority
+				}
+			}
+			return null;
+		}
+
+		private static void increment(HashMap<String, Integer> counts, String key, int delta) {
+			if (key == null) {
+				return;
+			}
+			final Integer count = counts.get(key);
+			final int newCount = ((count == null) ? 0 : count) + delta;
+			if (newCount > 0) {
+				counts.put(key, newCount);
+			}
+			else {
+				counts.remove(key);
+			}
+		}
+	}
+
+}
@@ -19,7 +19,8 @@ public enum SharedPreferenceDefinitions {
 	Flex_Preferences("Flex_Preferences"),
 	Subclass_Preferences("SubClassPrefs"),
 	ReceiptImageFragment_Preferences("ReceiptImageFragment.xml"),
-	LegacyCamera_Preferences("CameraPrefsFile");
+	LegacyCamera_Preferences("CameraPrefsFile"),
+	IntegrityScrubber_Preferences("IntegrityScrubber");
 
 	private final String mName;
 
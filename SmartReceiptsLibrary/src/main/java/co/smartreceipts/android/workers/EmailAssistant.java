@@ -1,14 +1,30 @@
 package co.smartreceipts.android.workers;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import wb.android.dialog.BetterDialogBuilder;
 import wb.android.flex.Flex;
@@ -41,6 +57,7 @@ import co.smartreceipts.android.model.PDFColumns;
 import co.smartreceipts.android.model.ReceiptRow;
 import co.smartreceipts.android.model.TripRow;
 import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.persistence.PagedReceiptList;
 import co.smartreceipts.android.persistence.PersistenceManager;
 import co.smartreceipts.android.persistence.Preferences;
 
@@ -317,10 +334,14 @@ public class EmailAssistant {
 		private final WeakReference<ProgressDialog> mProgressDialog;
 		private final File[] mFiles;
 		private final EnumSet<EmailOptions> mOptions;
-		private boolean memoryErrorOccured = false;
+		private final PDFImageCache mPDFImageCache;
+		private volatile boolean memoryErrorOccured = false;
 
 		private static final String IMAGES_PDF = "Images.pdf";
 		private static final String FOOTER = "Report Generated using Smart Receipts for Android";
+		private static final int CSV_BUFFER_SIZE = 8192;
+		private static final int STAMP_QUALITY = 85;
+		private static final long STAMP_MEMORY_ESTIMATE = 24 * 1024 * 1024; // Roughly a stamped 2048px ARGB_8888 image
 
 		public EmailAttachmentWriter(PersistenceManager persistenceManager,
 									 ProgressDialog dialog,
@@ -330,6 +351,7 @@ public class EmailAssistant {
 			mPreferences = persistenceManager.getPreferences();
 			mProgressDialog = new WeakReference<ProgressDialog>(dialog);
 			mOptions = options;
+			mPDFImageCache = new PDFImageCache(mContext, mStorageManager);
 			mFiles = new File[] {null, null, null, null};
 			memoryErrorOccured = false;
 		}
@@ -343,177 +365,286 @@ public class EmailAssistant {
 
 			// Set up our initial variables
 			final TripRow trip = trips[0];
-			final List<ReceiptRow> receipts = mDB.getReceiptsSerial(trip, false);
-			final int len = receipts.size();
+			// Receipts are loaded lazily (and already indexed in ascending order), so we never hold them all at once. Each
+			// output walks its own copy, since they would otherwise keep evicting each other's pages
+			final PagedReceiptList receipts = mDB.getReceiptsPaged(trip, false);
 			final WriterResults results = new WriterResults();
-			for (int i=0; i < len; i++) {
-				receipts.get(i).setIndex(i+1); //Set all indicies
-			}
 
 			// Make our trip output directory exists in a good state
-			File dir = trip.getDirectory();
-			if (!dir.exists()) {
-				dir = mStorageManager.getFile(trip.getName());
-				if (!dir.exists()) {
-					dir = mStorageManager.mkdir(trip.getName());
+			File tripDir = trip.getDirectory();
+			if (!tripDir.exists()) {
+				tripDir = mStorageManager.getFile(trip.getName());
+				if (!tripDir.exists()) {
+					tripDir = mStorageManager.mkdir(trip.getName());
 				}
 			}
+			final File dir = tripDir;
 
-			if (mOptions.contains(EmailOptions.PDF_FULL)) {
-				FileOutputStream pdfStream = null;
-				Document document = null;
-				PdfWriter writer = null;
-				try {
-					//Setup work
-					mStorageManager.delete(dir, dir.getName() + ".pdf");
-					pdfStream = mStorageManager.getFOS(dir, dir.getName() + ".pdf");
-		            document = new Document();
-					writer = PdfWriter.getInstance(document, pdfStream);
-					writer.setPageEvent(new Footer());
-					document.open();
-
-					// Add the table (TODO: Use formatting at some point so it doesn't look like crap)
-					document.add(new Paragraph(trip.getCurrencyFormattedPrice() + "  \u2022  " + dir.getName() + "\n"
-								+ "From: " + trip.getFormattedStartDate(mContext, mPreferences.getDateSeparator())
-								+ " To: " + trip.getFormattedEndDate(mContext, mPreferences.getDateSeparator()) + "\n"
-								+ "Distance Traveled: " + trip.getMilesAsString() + "\n\n\n"));
-					PDFColumns columns = mDB.getPDFColumns();
-					PdfPTable table = columns.getTableWithHeaders();
-					ReceiptRow receipt;
-					for (int i=0; i < len; i++) {
-						receipt = receipts.get(i);
-						if (!filterOutReceipt(mPreferences, receipt)) {
-							columns.print(table, receipt, trip);
+			// Fetch our columns up front, so the outputs below don't race to lazily create them
+			final PDFColumns pdfColumns = mOptions.contains(EmailOptions.PDF_FULL) ? mDB.getPDFColumns() : null;
+			final CSVColumns csvColumns = mOptions.contains(EmailOptions.CSV) ? mDB.getCSVColumns() : null;
+
+			// Each output is written on its own thread. The CPU heavy image work that they spawn is shared on a second,
+			// bounded executor. These must be separate pools, since the outputs block on the image work
+			final int window = getStampingWindowSize();
+			final ExecutorService imageExecutor = Executors.newFixedThreadPool(window);
+			final ExecutorService outputExecutor = Executors.newFixedThreadPool(Math.max(1, mOptions.size()));
+			final EnumMap<EmailOptions, Future<?>> outputs = new EnumMap<EmailOptions, Future<?>>(EmailOptions.class);
+			try {
+				if (mOptions.contains(EmailOptions.PDF_FULL)) {
+					outputs.put(EmailOptions.PDF_FULL, outputExecutor.submit(new Runnable() {
+						@Override
+						public void run() {
+							writeFullPDF(trip, receipts.copy(), dir, pdfColumns, imageExecutor, results);
+						}
+					}));
+				}
+				if (mOptions.contains(EmailOptions.PDF_IMAGES_ONLY)) {
+					outputs.put(EmailOptions.PDF_IMAGES_ONLY, outputExecutor.submit(new Runnable() {
+						@Override
+						public void run() {
+							writeImagesPDF(receipts.copy(), dir, imageExecutor, results);
+						}
+					}));
+				}
+				if (mOptions.contains(EmailOptions.CSV)) {
+					outputs.put(EmailOptions.CSV, outputExecutor.submit(new Runnable() {
+						@Override
+						public void run() {
+							writeCSV(trip, receipts.copy(), dir, csvColumns, results);
+						}
+					}));
+				}
+				if (mOptions.contains(EmailOptions.ZIP_IMAGES_STAMPED)) {
+					outputs.put(EmailOptions.ZIP_IMAGES_STAMPED, outputExecutor.submit(new Runnable() {
+						@Override
+						public void run() {
+							writeStampedZip(trip, receipts.copy(), dir, window, imageExecutor, results);
 						}
+					}));
+				}
+				for (EmailOptions option : outputs.keySet()) {
+					try {
+						outputs.get(option).get();
 					}
-					document.add(table);
-					document.newPage();
+					catch (ExecutionException e) {
+						if (BuildConfig.DEBUG) {
+							Log.e(TAG, e.toString(), e);
+						}
+						markFailed(results, option);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				return WriterResults.getFullFailureInstance();
+			}
+			finally {
+				outputExecutor.shutdownNow();
+				imageExecutor.shutdownNow();
+				mPDFImageCache.trim();
+			}
+			return results;
+		}
 
-					// Add image Rows
-					this.addImageRows(document, receipts, writer);
+		private void writeFullPDF(TripRow trip, List<ReceiptRow> receipts, File dir, PDFColumns columns, ExecutorService imageExecutor, WriterResults results) {
+			FileOutputStream pdfStream = null;
+			Document document = null;
+			PdfWriter writer = null;
+			try {
+				//Setup work
+				mStorageManager.delete(dir, dir.getName() + ".pdf");
+				pdfStream = mStorageManager.getFOS(dir, dir.getName() + ".pdf");
+	            document = new Document();
+				writer = PdfWriter.getInstance(document, pdfStream);
+				writer.setPageEvent(new Footer());
+				document.open();
 
-					mFiles[EmailOptions.PDF_FULL.getIndex()] = mStorageManager.getFile(dir, dir.getName() + ".pdf");
-				} catch (IOException e) {
-					if(BuildConfig.DEBUG) {
-						Log.e(TAG, e.toString(), e);
+				// Add the table (TODO: Use formatting at some point so it doesn't look like crap)
+				document.add(new Paragraph(trip.getCurrencyFormattedPrice() + "  \u2022  " + dir.getName() + "\n"
+							+ "From: " + trip.getFormattedStartDate(mContext, mPreferences.getDateSeparator())
+							+ " To: " + trip.getFormattedEndDate(mContext, mPreferences.getDateSeparator()) + "\n"
+							+ "Distance Traveled: " + trip.getMilesAsString() + "\n\n\n"));
+				PdfPTable table = columns.getTableWithHeaders();
+				ReceiptRow receipt;
+				for (int i=0; i < receipts.size(); i++) {
+					receipt = receipts.get(i);
+					if (!filterOutReceipt(mPreferences, receipt)) {
+						columns.print(table, receipt, trip);
 					}
-					results.didPDFFailCompletely = true; //TODO: Add error messages to each of these
-				} catch (DocumentException e) {
-					if(BuildConfig.DEBUG) {
-						Log.e(TAG, e.toString(), e);
-					}
-					results.didPDFFailCompletely = true; //TODO: Add error messages to each of these
 				}
-				finally {
-					if (document != null)
-					 {
-						document.close(); //Close me first
-					}
-					if (pdfStream != null) {
-						StorageManager.closeQuietly(pdfStream);
-					}
+				document.add(table);
+				document.newPage();
+
+				// Add image Rows
+				this.addImageRows(document, receipts, writer, imageExecutor);
+
+				mFiles[EmailOptions.PDF_FULL.getIndex()] = mStorageManager.getFile(dir, dir.getName() + ".pdf");
+			} catch (IOException e) {
+				if(BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString(), e);
+				}
+				results.didPDFFailCompletely = true; //TODO: Add error messages to each of these
+			} catch (DocumentException e) {
+				if(BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString(), e);
 				}
+				results.didPDFFailCompletely = true; //TODO: Add error messages to each of these
 			}
-			if (mOptions.contains(EmailOptions.PDF_IMAGES_ONLY)) {
-				FileOutputStream pdfStream = null;
-				Document document = null;
-				PdfWriter writer = null;
+			finally {
+				if (document != null)
+				 {
+					document.close(); //Close me first
+				}
+				if (pdfStream != null) {
+					StorageManager.closeQuietly(pdfStream);
+				}
+			}
+		}
+
+		private void writeImagesPDF(List<ReceiptRow> receipts, File dir, ExecutorService imageExecutor, WriterResults results) {
+			FileOutputStream pdfStream = null;
+			Document document = null;
+			PdfWriter writer = null;
+			try {
+				//Setup work
+				mStorageManager.delete(dir, dir.getName() + IMAGES_PDF);
+				pdfStream = mStorageManager.getFOS(dir, dir.getName() + IMAGES_PDF);
+	            document = new Document();
+				writer = PdfWriter.getInstance(document, pdfStream);
+				writer.setPageEvent(new Footer());
+				document.open();
+
+				// Add image Rows
+				this.addImageRows(document, receipts, writer, imageExecutor);
+
+				mFiles[EmailOptions.PDF_IMAGES_ONLY.getIndex()] = mStorageManager.getFile(dir, dir.getName() + IMAGES_PDF);
+			} catch (IOException e) {
+				if(BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString(), e);
+				}
+				results.didSimplePDFFailCompletely = true; //TODO: Add error messages to each of these
+			} catch (DocumentException e) {
+				if(BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString(), e);
+				}
+				results.didSimplePDFFailCompletely = true; //TODO: Add error messages to each of these
+			}
+			finally {
 				try {
-					//Setup work
-					mStorageManager.delete(dir, dir.getName() + IMAGES_PDF);
-					pdfStream = mStorageManager.getFOS(dir, dir.getName() + IMAGES_PDF);
-		            document = new Document();
-					writer = PdfWriter.getInstance(document, pdfStream);
-					writer.setPageEvent(new Footer());
-					document.open();
-
-					// Add image Rows
-					this.addImageRows(document, receipts, writer);
-
-					mFiles[EmailOptions.PDF_IMAGES_ONLY.getIndex()] = mStorageManager.getFile(dir, dir.getName() + IMAGES_PDF);
-				} catch (IOException e) {
-					if(BuildConfig.DEBUG) {
-						Log.e(TAG, e.toString(), e);
-					}
-					results.didSimplePDFFailCompletely = true; //TODO: Add error messages to each of these
-				} catch (DocumentException e) {
-					if(BuildConfig.DEBUG) {
-						Log.e(TAG, e.toString(), e);
+					if (document != null) {
+						document.close();
 					}
-					results.didSimplePDFFailCompletely = true; //TODO: Add error messages to each of these
 				}
-				finally {
-					try {
-						if (document != null) {
-							document.close();
-						}
-					}
-					catch (RuntimeException e) {
-						// Document has no pages exception
-					}
-					if (pdfStream != null) {
-						StorageManager.closeQuietly(pdfStream);
-					}
+				catch (RuntimeException e) {
+					// Document has no pages exception
+				}
+				if (pdfStream != null) {
+					StorageManager.closeQuietly(pdfStream);
 				}
 			}
-			if (mOptions.contains(EmailOptions.CSV)) {
-				mStorageManager.delete(dir, dir.getName() + ".csv");
-				String data = "";
-				CSVColumns columns = mDB.getCSVColumns();
+		}
+
+		private void writeCSV(TripRow trip, List<ReceiptRow> receipts, File dir, CSVColumns columns, WriterResults results) {
+			mStorageManager.delete(dir, dir.getName() + ".csv");
+			final String filename = dir.getName() + ".csv";
+			Writer csvWriter = null;
+			try {
+				// Stream each row straight to disk instead of building the whole file in memory
+				csvWriter = new BufferedWriter(new OutputStreamWriter(mStorageManager.getFOS(dir, filename)), CSV_BUFFER_SIZE);
 				if (mPreferences.includeCSVHeaders()) {
-					data += columns.printHeaders();
+					columns.printHeaders(csvWriter);
 				}
-				for (int i=0; i < len; i++) {
+				for (int i=0; i < receipts.size(); i++) {
 					if (!filterOutReceipt(mPreferences, receipts.get(i))) {
-						data += columns.print(receipts.get(i), trip);
+						columns.print(csvWriter, receipts.get(i), trip);
 					}
 				}
-				String filename = dir.getName() + ".csv";
-				if (!mStorageManager.write(dir, filename, data)) {
-					if (BuildConfig.DEBUG) {
-						Log.e(TAG, "Failed to write the csv file");
+				csvWriter.flush();
+				mFiles[EmailOptions.CSV.getIndex()] = mStorageManager.getFile(dir, filename);
+			}
+			catch (IOException e) {
+				if (BuildConfig.DEBUG) {
+					Log.e(TAG, "Failed to write the csv file", e);
+				}
+				results.didCSVFailCompletely = true;
+			}
+			finally {
+				if (csvWriter != null) {
+					StorageManager.closeQuietly(csvWriter);
+				}
+			}
+		}
+
+		private void writeStampedZip(TripRow trip, List<ReceiptRow> receipts, File dir, int window, ExecutorService imageExecutor, WriterResults results) {
+			final String filename = dir.getName() + ".zip";
+			mStorageManager.delete(dir, filename);
+			final boolean stored = mPreferences.storeZipImagesUncompressed();
+			final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+			final LinkedList<String> pendingNames = new LinkedList<String>();
+			ZipOutputStream zipStream = null;
+			try {
+				// Each stamped image is written directly into the zip, so no intermediate directory is required
+				zipStream = new ZipOutputStream(new BufferedOutputStream(mStorageManager.getFOS(dir, filename)));
+				// Keep at most 'window' receipts in flight, so we never have more than that many bitmaps alive at once
+				for (int i=0; i < receipts.size(); i++) {
+					final ReceiptRow receipt = receipts.get(i);
+					if (filterOutReceipt(mPreferences, receipt) || !receipt.checkFileExists() || !receipt.hasImage()) {
+						continue;
 					}
-					results.didCSVFailCompletely = true;
-				}
-				else {
-					mFiles[EmailOptions.CSV.getIndex()] = mStorageManager.getFile(dir, filename);
-				}
-			}
-			if (mOptions.contains(EmailOptions.ZIP_IMAGES_STAMPED)) {
-				mStorageManager.delete(dir, dir.getName() + ".zip");
-				dir = mStorageManager.mkdir(trip.getDirectory(), trip.getName());
-				for (int i=0; i < len; i++) {
-					if (!filterOutReceipt(mPreferences, receipts.get(i)) && receipts.get(i).hasImage()) {
-							try {
-								Bitmap b = stampImage(trip, receipts.get(i), Bitmap.Config.ARGB_8888);
-								if (b != null) {
-									mStorageManager.writeBitmap(dir, b, (i+1) + "_" + receipts.get(i).getName() + ".jpg", CompressFormat.JPEG, 85);
-									b.recycle();
-									b = null;
-								}
-							}
-							catch (OutOfMemoryError e) {
-								System.gc();
-								try {
-									Bitmap b = stampImage(trip, receipts.get(i), Bitmap.Config.RGB_565);
-									if (b != null) {
-										mStorageManager.writeBitmap(dir, b, (i+1) + "_" + receipts.get(i).getName() + ".jpg", CompressFormat.JPEG, 85);
-										b.recycle();
-									}
-								}
-								catch (OutOfMemoryError e2) {
-									results.didZIPFailCompletely = true;
-									memoryErrorOccured = true;
-									break;
-								}
-							}
+					if (pending.size() >= window) {
+						writeStampedImage(zipStream, pendingNames.removeFirst(), pending.removeFirst(), stored);
 					}
+					pending.add(imageExecutor.submit(new StampTask(trip, receipt)));
+					pendingNames.add((i+1) + "_" + receipt.getName() + ".jpg");
+				}
+				// Drain in submission order to keep the output deterministic
+				while (!pending.isEmpty()) {
+					writeStampedImage(zipStream, pendingNames.removeFirst(), pending.removeFirst(), stored);
 				}
-				File zip = mStorageManager.zipBuffered(dir, 2048);
-				mStorageManager.deleteRecursively(dir);
-				mFiles[EmailOptions.ZIP_IMAGES_STAMPED.getIndex()] = zip;
+				zipStream.finish();
+				mFiles[EmailOptions.ZIP_IMAGES_STAMPED.getIndex()] = mStorageManager.getFile(dir, filename);
+			}
+			catch (IOException e) {
+				if (BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString(), e);
+				}
+				results.didZIPFailCompletely = true;
+			}
+			catch (InterruptedException e) {
+				results.didZIPFailCompletely = true;
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof OutOfMemoryError) {
+					// Like before, we still attach whatever we managed to stamp
+					memoryErrorOccured = true;
+					publishProgress();
+					mFiles[EmailOptions.ZIP_IMAGES_STAMPED.getIndex()] = mStorageManager.getFile(dir, filename);
+				}
+				else if (BuildConfig.DEBUG) {
+					Log.e(TAG, e.toString(), e);
+				}
+				results.didZIPFailCompletely = true;
+			}
+			finally {
+				if (zipStream != null) {
+					StorageManager.closeQuietly(zipStream);
+				}
+			}
+		}
+
+		private void markFailed(WriterResults results, EmailOptions option) {
+			if (option == EmailOptions.PDF_FULL) {
+				results.didPDFFailCompletely = true;
+			}
+			else if (option == EmailOptions.PDF_IMAGES_ONLY) {
+				results.didSimplePDFFailCompletely = true;
+			}
+			else if (option == EmailOptions.CSV) {
+				results.didCSVFailCompletely = true;
+			}
+			else if (option == EmailOptions.ZIP_IMAGES_STAMPED) {
+				results.didZIPFailCompletely = true;
 			}
-			return results;
 		}
 
 		/**
@@ -535,6 +666,74 @@ public class EmailAssistant {
 			}
 		}
 
+		/**
+		 * Writes a stamped image as the next zip entry. JPEG data barely compresses, so callers may opt to store the
+		 * entry as is (which requires that we compute the CRC ourselves)
+		 */
+		private void writeStampedImage(ZipOutputStream zipStream, String name, Future<byte[]> stamped, boolean stored) throws IOException, InterruptedException, ExecutionException {
+			final byte[] jpeg = stamped.get();
+			if (jpeg == null) {
+				return;
+			}
+			final ZipEntry entry = new ZipEntry(name);
+			if (stored) {
+				final CRC32 crc = new CRC32();
+				crc.update(jpeg);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(jpeg.length);
+				entry.setCompressedSize(jpeg.length);
+				entry.setCrc(crc.getValue());
+			}
+			zipStream.putNextEntry(entry);
+			zipStream.write(jpeg);
+			zipStream.closeEntry();
+		}
+
+		/**
+		 * Determines how many receipts may be stamped concurrently. This is bounded both by the number of cores and
+		 * by how many stamped bitmaps we can afford to hold in the remaining heap
+		 */
+		private int getStampingWindowSize() {
+			final Runtime runtime = Runtime.getRuntime();
+			final long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+			final int byMemory = (int) (available / 2 / STAMP_MEMORY_ESTIMATE);
+			return Math.max(1, Math.min(runtime.availableProcessors(), byMemory));
+		}
+
+		/**
+		 * Decodes, stamps, and JPEG encodes a single receipt image. Only the encoded bytes are returned, so the
+		 * bitmap itself can be recycled as soon as the work completes
+		 */
+		private final class StampTask implements Callable<byte[]> {
+
+			private final TripRow mTrip;
+			private final ReceiptRow mReceipt;
+
+			public StampTask(TripRow trip, ReceiptRow receipt) {
+				mTrip = trip;
+				mReceipt = receipt;
+			}
+
+			@Override
+			public byte[] call() {
+				Bitmap b;
+				try {
+					b = stampImage(mTrip, mReceipt, Bitmap.Config.ARGB_8888);
+				}
+				catch (OutOfMemoryError e) {
+					System.gc();
+					b = stampImage(mTrip, mReceipt, Bitmap.Config.RGB_565);
+				}
+				if (b == null) {
+					return null;
+				}
+				final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+				b.compress(CompressFormat.JPEG, STAMP_QUALITY, jpeg);
+				b.recycle();
+				return jpeg.toByteArray();
+			}
+		}
+
 		private static final float IMG_SCALE_FACTOR = 2.1f;
 		private static final float HW_RATIO = 0.75f;
 	    private Bitmap stampImage(final TripRow trip, final ReceiptRow receipt, Bitmap.Config config) {
@@ -620,7 +819,54 @@ public class EmailAssistant {
 	    }
 
 	    private static final float BIG_COLUMN_DIVIDER = 2.1f;
-		private Document addImageRows(Document document, List<ReceiptRow> receipts, PdfWriter writer) {
+	    private static final float PANED_CELL_HEIGHT_DIVIDER = 2.4f;
+	    private static final float FULL_CELL_HEIGHT_DIVIDER = 1.15f;
+
+		/**
+		 * Loads a receipt image, downsampled to the printed size of a paned (i.e. two per row) cell
+		 */
+		private Image getPanedImage(ReceiptRow receipt) throws BadElementException, IOException {
+			return Image.getInstance(mPDFImageCache.getImagePath(receipt.getFile(), getPanedCellWidth(), getPanedCellHeight()));
+		}
+
+		/**
+		 * Loads a receipt image, downsampled to the printed size of a full page cell
+		 */
+		private Image getFullPageImage(ReceiptRow receipt) throws BadElementException, IOException {
+			return Image.getInstance(mPDFImageCache.getImagePath(receipt.getFile(), getFullPageCellWidth(), getFullPageCellHeight()));
+		}
+
+		private float getPanedCellWidth() {
+			return DEFAULT_PAGE_SIZE.getWidth()/BIG_COLUMN_DIVIDER;
+		}
+
+		private float getPanedCellHeight() {
+			return DEFAULT_PAGE_SIZE.getHeight()/PANED_CELL_HEIGHT_DIVIDER;
+		}
+
+		private float getFullPageCellWidth() {
+			return DEFAULT_PAGE_SIZE.getWidth();
+		}
+
+		private float getFullPageCellHeight() {
+			return DEFAULT_PAGE_SIZE.getHeight()/FULL_CELL_HEIGHT_DIVIDER;
+		}
+
+		private Document addImageRows(Document document, List<ReceiptRow> receipts, PdfWriter writer, Executor imageExecutor) {
+			// Start preparing all of our images in the background while we lay out the document
+			for (int i=0; i < receipts.size(); i++) {
+				final ReceiptRow receipt = receipts.get(i);
+				if (filterOutReceipt(mPreferences, receipt) || !receipt.checkFileExists() || receipt.hasPDF()) {
+					continue;
+				}
+				if (receipt.isFullPage()) {
+					mPDFImageCache.prefetch(imageExecutor, receipt.getFile(), getFullPageCellWidth(), getFullPageCellHeight());
+				}
+				else if (receipt.hasImage()) {
+					mPDFImageCache.prefetch(imageExecutor, receipt.getFile(), getPanedCellWidth(), getPanedCellHeight());
+				}
+			}
+
 			// Set up
 			PdfPTable table = getPanedPdfPTable();
 			final int size = receipts.size();
@@ -636,6 +882,7 @@ public class EmailAssistant {
 				if (filterOutReceipt(mPreferences, receipt)) { // Don't include receipts that have been explicitly filtered out
 					continue;
 				}
+				receipt.checkFileExists(); // The recorded state may be stale, and the file is about to be opened
 				if (receipt.isFullPage() || receipt.hasPDF()) { // Don't include full page or PDFs yet (add at the end)
 					if (!hitFirstNonFullPage) {
 						addFullPageImage(document, receipt, writer); // If it's fullpage first, add immediately
@@ -651,7 +898,7 @@ public class EmailAssistant {
 				hitFirstNonFullPage = true;
 				if (receipt.hasImage() && img1 == null) {
 					try {
-						img1 = Image.getInstance(receipt.getFilePath());
+						img1 = getPanedImage(receipt);
 						receipt1 = receipt;
 					} catch (Exception e) {
 						if (BuildConfig.DEBUG) {
@@ -662,7 +909,7 @@ public class EmailAssistant {
 				}
 				else if (receipt.hasImage() && img2 == null) {
 					try {
-						img2 = Image.getInstance(receipt.getFilePath());
+						img2 = getPanedImage(receipt);
 					} catch (Exception e) {
 						if (BuildConfig.DEBUG) {
 							Log.e(TAG, e.toString());
@@ -765,7 +1012,7 @@ public class EmailAssistant {
 				else if (receipt.isFullPage() && receipt.hasFile()) {
 					table = getSingleElementTable();
 					addHeaderCell(table, receipt);
-					table.addCell(getFullCell(Image.getInstance(receipt.getFilePath())));
+					table.addCell(getFullCell(getFullPageImage(receipt)));
 					table.completeRow();
 					document.add(table);
 					document.newPage();
@@ -844,7 +1091,7 @@ public class EmailAssistant {
 			cell.setBorder(Rectangle.NO_BORDER);
 			cell.setHorizontalAlignment(Element.ALIGN_CENTER);
 			cell.setVerticalAlignment(Element.ALIGN_CENTER);
-			cell.setFixedHeight(DEFAULT_PAGE_SIZE.getHeight()/2.4f);
+			cell.setFixedHeight(DEFAULT_PAGE_SIZE.getHeight()/PANED_CELL_HEIGHT_DIVIDER);
 			return cell;
 		}
 
@@ -857,7 +1104,7 @@ public class EmailAssistant {
 			cell.setBorder(Rectangle.NO_BORDER);
 			cell.setHorizontalAlignment(Element.ALIGN_CENTER);
 			cell.setVerticalAlignment(Element.ALIGN_CENTER);
-			cell.setFixedHeight(DEFAULT_PAGE_SIZE.getHeight()/1.15f);
+			cell.setFixedHeight(DEFAULT_PAGE_SIZE.getHeight()/FULL_CELL_HEIGHT_DIVIDER);
 			return cell;
 		}
 
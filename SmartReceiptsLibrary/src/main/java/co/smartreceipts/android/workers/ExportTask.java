@@ -5,6 +5,7 @@ import java.io.FileFilter;
 import java.io.IOException;
 
 import wb.android.async.ProgressTask;
+import wb.android.storage.IncrementalZipper;
 import wb.android.storage.SDCardStateException;
 import wb.android.storage.StorageManager;
 import android.content.Context;
@@ -22,18 +23,43 @@ public class ExportTask extends ProgressTask<Void, Uri> {
 	private static final String EXPORT_FILENAME = DateUtils.getCurrentDateAsYYYY_MM_DDString() + "_SmartReceipts.smr";
 	static final String DATABASE_EXPORT_NAME = "receipts_backup.db";
 	private static final String DATABASE_JOURNAL = "receipts.db-journal";
+	private static final String DATABASE_WAL = "receipts.db-wal";
+	private static final String DATABASE_SHM = "receipts.db-shm";
+	private static final String EXPORT_EXTENSION = ".smr";
+
+	private static final FileFilter EXPORT_FILTER = new FileFilter() {
+		@Override
+		public boolean accept(File file) {
+			return !file.getName().equalsIgnoreCase(DatabaseHelper.DATABASE_NAME) && 
+				   !file.getName().equalsIgnoreCase(DATABASE_JOURNAL) &&
+				   !file.getName().equalsIgnoreCase(DATABASE_WAL) &&
+				   !file.getName().equalsIgnoreCase(DATABASE_SHM) &&
+				   !file.getName().endsWith(EXPORT_EXTENSION); //Ignore previous backups
+		}
+	};
 
 	private final PersistenceManager mPersistenceManager;
 	private final Listener mListener;
+	private final boolean mIncremental;
 
 	public interface Listener {
 		public void onExportComplete(Uri uri);
 	}
 
 	public ExportTask(Context context, String progressMessage, PersistenceManager persistenceManager, Listener listener) {
+		this(context, progressMessage, persistenceManager, true, listener);
+	}
+
+	/**
+	 * @param incremental
+	 *            - if {@code true}, unchanged files are copied out of the most recent backup instead of being compressed
+	 *            again (see {@link IncrementalZipper}). Either way, the backup is a complete .smr file
+	 */
+	public ExportTask(Context context, String progressMessage, PersistenceManager persistenceManager, boolean incremental, Listener listener) {
 		super(context, progressMessage, true);
 		mPersistenceManager = persistenceManager;
 		mListener = listener;
+		mIncremental = incremental;
 	}
 
 	@Override
@@ -41,10 +67,10 @@ public class ExportTask extends ProgressTask<Void, Uri> {
 		try {
 			StorageManager external = mPersistenceManager.getExternalStorageManager();
 			StorageManager internal = mPersistenceManager.getInternalStorageManager();
-			external.delete(external.getFile(EXPORT_FILENAME)); //Remove old export
 			File file = external.getFile(EXPORT_FILENAME);
 			try {
-				external.copy(external.getFile(DatabaseHelper.DATABASE_NAME), external.getFile(DATABASE_EXPORT_NAME), true);
+				// Flush the write-ahead log into the file we're copying
+				mPersistenceManager.getDatabase().copyDatabase(external, external.getFile(DatabaseHelper.DATABASE_NAME), external.getFile(DATABASE_EXPORT_NAME));
 			} catch (IOException e1) {
 				Log.e(TAG, e1.toString());
 				return null;
@@ -82,15 +108,13 @@ public class ExportTask extends ProgressTask<Void, Uri> {
 			}
 
 			//Finish
-			File zip = external.zipBuffered(8192, new FileFilter() {
-				@Override
-				public boolean accept(File file) {
-					return !file.getName().equalsIgnoreCase(DatabaseHelper.DATABASE_NAME) && 
-						   !file.getName().equalsIgnoreCase(DATABASE_JOURNAL) &&
-						   !file.getName().endsWith(".smr"); //Ignore previous backups
-				}
-			});
-			// TODO: Catch null pointer here
+			File zip = zip(external);
+			if (zip == null) {
+				return null;
+			}
+			// Exports live next to the root. Today's earlier export (if any) is only replaced now, since it may have
+			// served as the previous backup above
+			external.delete(zip.getParentFile(), EXPORT_FILENAME);
 			zip = external.rename(zip, EXPORT_FILENAME);
 			return Uri.fromFile(zip);
 		}
@@ -100,6 +124,51 @@ public class ExportTask extends ProgressTask<Void, Uri> {
 		}
 	}
 
+	/**
+	 * Zips the SD card like {@link StorageManager#zipBuffered(int, FileFilter)} does, but on every core and (if
+	 * incremental) re-using the most recent backup
+	 * 
+	 * @return the zip file or {@code null} if it could not be written
+	 */
+	private File zip(StorageManager external) {
+		final File root = external.getRoot();
+		final File zip = external.getFile(root.getParentFile(), root.getName() + ".zip");
+		final IncrementalZipper zipper = new IncrementalZipper();
+		try {
+			final File previous = mIncremental ? getPreviousExport(external, root.getParentFile()) : null;
+			zipper.zip(root, EXPORT_FILTER, previous, zip);
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.toString());
+			return null;
+		}
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "Re-used " + zipper.getReusedCount() + " files (" + zipper.getReusedBytes() + " bytes) and packed " + zipper.getPackedCount() + " files (" + zipper.getPackedBytes() + " bytes)");
+		}
+		return zip;
+	}
+
+	/**
+	 * @return the most recent backup in a directory or {@code null} if there is none
+	 */
+	private File getPreviousExport(StorageManager external, File dir) {
+		final File[] exports = external.list(dir, new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(EXPORT_EXTENSION);
+			}
+		});
+		File previous = null;
+		if (exports != null) {
+			for (final File export : exports) {
+				if (previous == null || export.lastModified() > previous.lastModified()) {
+					previous = export;
+				}
+			}
+		}
+		return previous;
+	}
+
 	@Override
 	protected void onTaskCompleted(Uri uri) {
 		mListener.onExportComplete(uri);
@@ -1,33 +1,53 @@
 package co.smartreceipts.android.workers;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import wb.android.async.BooleanProgressTask;
 import wb.android.async.BooleanTaskCompleteDelegate;
+import wb.android.storage.IncrementalZipper;
 import wb.android.storage.SDCardFileManager;
 import wb.android.storage.StorageManager;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
+import android.provider.OpenableColumns;
 import android.util.Log;
 import co.smartreceipts.android.persistence.DatabaseHelper;
 import co.smartreceipts.android.persistence.PersistenceManager;
 import co.smartreceipts.android.utils.Utils;
 
-public class ImportTask extends BooleanProgressTask<Uri> {
+public class ImportTask extends BooleanProgressTask<Uri> implements DatabaseHelper.MergeProgressListener {
 
 	private static final String TAG = "ImportTask";
 	public static final int TASK_ID = 1123;
 	public static final String LOG_FILE = "import_log.txt";
 
+	private static final String DATABASE_IMPORT_NAME = "receipts_import.db";
+	private static final String PREFS_DIR = "shared_prefs/";
+	private static final String INTERNAL_DIR = "Internal/";
+	private static final String STAGING_DIR = "import_staging";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Progress runs to PROGRESS_MAX. Reading the backup takes up to EXTRACT_PROGRESS, and the merge takes the rest
+	private static final int PROGRESS_MAX = 1000;
+	private static final int EXTRACT_PROGRESS = 800;
+
 	private PersistenceManager mPersistenceManager;
 	private Context mContext;
 	private final boolean mOverwrite;
 
 	public ImportTask(Context context, BooleanTaskCompleteDelegate delegate, String progressMessage, int taskID, boolean overwrite, PersistenceManager persistenceManager) {
-		super(context, delegate, progressMessage, taskID);
+		super(context, delegate, progressMessage, taskID, true);
 		mContext = context;
 		mPersistenceManager = persistenceManager;
 		mOverwrite = overwrite;
@@ -43,45 +63,20 @@ public class ImportTask extends BooleanProgressTask<Uri> {
 		Uri uri = uris[0];
 		if (uri != null) {
 			mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Uri: " + uri);
+			InputStream is = null;
 			try {
 				SDCardFileManager external = mPersistenceManager.getExternalStorageManager();
 				String scheme = uri.getScheme();
+				long length;
 				if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
 					mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Processing URI with accepted scheme.");
-					InputStream is = null;
-					try {
-						ContentResolver cr = mContext.getContentResolver();
-						is = cr.openInputStream(uri);
-						File dest = external.getFile("smart.zip");
-						external.delete(dest);
-						if (!external.copy(is, dest, true)) {
-							mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Copy failed.");
-							return false;
-						}
-						final boolean importResult = importAll(external, dest, mOverwrite);
-						external.delete(dest);
-						return importResult;
-					}
-					catch (Exception e) {
-						Log.e(TAG, e.toString());
-						mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Caught exception during import at [1]: " + Utils.getStackTrace(e));
-						return false;
-					}
-					finally {
-						try {
-							if (is != null)
-								is.close();
-						}
-						catch (IOException e) {
-							Log.e(TAG, e.toString());
-						}
-					}
+					ContentResolver cr = mContext.getContentResolver();
+					is = cr.openInputStream(uri);
+					length = getContentLength(cr, uri);
 				}
 				else {
 					mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Processing URI with unknown scheme.");
 					File src = null;
-					File dest = external.getFile("smart.zip");
-					external.delete(dest);
 					if (uri.getPath() != null) {
 						src = new File(uri.getPath());
 					}
@@ -92,20 +87,23 @@ public class ImportTask extends BooleanProgressTask<Uri> {
 						mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Unknown source.");
 						return false;
 					}
-					if (!external.copy(src, dest, true)) {
-						mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Copy failed.");
-						return false;
-					}
-					final boolean importResult = importAll(external, dest, mOverwrite);
-					external.delete(dest);
-					return importResult;
+					is = new FileInputStream(src);
+					length = src.length();
+				}
+				if (is == null) {
+					mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Failed to open the source.");
+					return false;
 				}
+				return importAll(external, is, length, mOverwrite);
 			}
 			catch (Exception e) {
 				Log.e(TAG, e.toString());
-				mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Caught exception during import at [2]: " + Utils.getStackTrace(e));
+				mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Caught exception during import at [1]: " + Utils.getStackTrace(e));
 				return false;
 			}
+			finally {
+				StorageManager.closeQuietly(is);
+			}
 		}
 		else {
 			mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Exiting task early as the desired URI is null.");
@@ -113,36 +111,233 @@ public class ImportTask extends BooleanProgressTask<Uri> {
 		}
 	}
 
-	private boolean importAll(SDCardFileManager external, File file, final boolean overwrite) {
-		mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "import all : " + file + " " + overwrite);
-		if (!external.unzip(file, overwrite)) {
-			mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Unzip failed");
-			return false;
+	/**
+	 * Reads the backup in a single pass, writing each entry straight to where it belongs. The database is staged (in a
+	 * temporary file), since it has to be merged rather than copied. The preferences and internal files are staged as
+	 * well and only moved into place once the merge succeeds, so cancelling the import leaves them as they were
+	 */
+	private boolean importAll(SDCardFileManager external, InputStream is, long length, final boolean overwrite) throws IOException {
+		mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "import all : " + length + " bytes " + overwrite);
+		final StorageManager internal = mPersistenceManager.getInternalStorageManager();
+		final File prefs = internal.getFile(internal.getRoot().getParentFile(), "shared_prefs");
+		final File staging = internal.getFile(internal.getRoot().getParentFile(), STAGING_DIR);
+		final File database = external.getFile(DATABASE_IMPORT_NAME);
+		final Map<File, File> staged = new LinkedHashMap<File, File>(); // Staged file -> where it belongs
+		external.delete(database);
+		internal.deleteRecursively(staging); // Left over if a previous import was killed
+		try {
+			final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+			final ZipInputStream zip = new ZipInputStream(counter);
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			boolean hasDatabase = false;
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (isCancelled()) {
+					mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Cancelled");
+					return false;
+				}
+				final String name = entry.getName();
+				final File destination, target;
+				if (!isSafe(name)) {
+					mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Skipping unsafe entry: " + name);
+					continue;
+				}
+				else if (name.equals(ExportTask.DATABASE_EXPORT_NAME)) {
+					destination = target = database;
+					hasDatabase = true;
+				}
+				else if (name.equals(IncrementalZipper.MANIFEST_ENTRY) || name.endsWith(".zip")) {
+					continue; // Only used by the next export. Nested .zip files are ignored, as they always have been
+				}
+				else if (name.startsWith(PREFS_DIR)) {
+					destination = internal.getFile(staging, name);
+					target = internal.getFile(prefs, name.substring(PREFS_DIR.length()));
+				}
+				else if (name.startsWith(INTERNAL_DIR)) {
+					destination = internal.getFile(staging, name);
+					target = internal.getFile(internal.getRoot(), name.substring(INTERNAL_DIR.length()));
+				}
+				else {
+					destination = target = external.getFile(name);
+				}
+
+				if (entry.isDirectory()) {
+					target.mkdirs();
+					continue;
+				}
+				if (!overwrite && target.exists() && !target.equals(database)) {
+					continue;
+				}
+				final File parent = destination.getParentFile();
+				if (parent != null && !parent.exists()) {
+					parent.mkdirs();
+				}
+				if (!extract(zip, destination, buffer, counter, length)) {
+					destination.delete(); // Cancelled part way through
+					mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Cancelled");
+					return false;
+				}
+				if (destination != target) {
+					staged.put(destination, target);
+				}
+			}
+			if (!hasDatabase) {
+				mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "The backup has no database");
+				return false;
+			}
+			if (isCancelled()) {
+				return false;
+			}
+			DatabaseHelper db = mPersistenceManager.getDatabase();
+			mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Merging database");
+			if (!db.merge(database.getAbsolutePath(), mContext.getPackageName(), overwrite, this)) {
+				return false;
+			}
+			moveStaged(internal, staged);
+			return true;
+		}
+		finally {
+			external.delete(database);
+			internal.deleteRecursively(staging);
 		}
-		StorageManager internal = mPersistenceManager.getInternalStorageManager();
-		File sdPrefs = external.getFile("shared_prefs");
-		File prefs = internal.getFile(internal.getRoot().getParentFile(), "shared_prefs");
+	}
+
+	/**
+	 * Moves the staged preferences and internal files into place, replacing the existing ones. The merge has already
+	 * been committed by now, so a file that cannot be moved is only logged rather than failing the import
+	 */
+	private void moveStaged(StorageManager internal, Map<File, File> staged) {
+		for (Map.Entry<File, File> entry : staged.entrySet()) {
+			final File target = entry.getValue();
+			final File parent = target.getParentFile();
+			if (parent != null && !parent.exists()) {
+				parent.mkdirs();
+			}
+			internal.delete(target);
+			if (!internal.move(entry.getKey(), target)) {
+				mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Failed to move " + target);
+			}
+		}
+	}
+
+	/**
+	 * Writes the current zip entry to a file
+	 *
+	 * @return {@code false} if this task was cancelled first
+	 */
+	private boolean extract(ZipInputStream zip, File destination, byte[] buffer, CountingInputStream counter, long length) throws IOException {
+		final FileOutputStream out = new FileOutputStream(destination);
 		try {
-			if (!internal.copy(sdPrefs, prefs, overwrite)) {
-				Log.e(TAG, "Failed to import settings");
-				mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Failed to import settings");
+			int read;
+			int lastProgress = -1;
+			while ((read = zip.read(buffer)) != -1) {
+				if (isCancelled()) {
+					return false;
+				}
+				out.write(buffer, 0, read);
+				if (length > 0) {
+					final int progress = (int) (Math.min(counter.getCount(), length) * EXTRACT_PROGRESS / length);
+					if (progress != lastProgress) {
+						updateProgress(progress, PROGRESS_MAX);
+						lastProgress = progress;
+					}
+				}
 			}
+			return true;
+		}
+		finally {
+			out.close();
 		}
-		catch (IOException e) {
-			Log.e(TAG, e.toString());
-			mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Caught IOexception during import at [3]: " + Utils.getStackTrace(e));
+	}
+
+	/**
+	 * @return {@code false} if an entry name could point outside of the directory it is extracted to
+	 */
+	private static boolean isSafe(String name) {
+		if (name.startsWith("/")) {
+			return false;
 		}
+		for (String segment : name.split("/")) {
+			if (segment.equals("..")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the size of the content behind a URI or -1 if its provider does not say
+	 */
+	private long getContentLength(ContentResolver cr, Uri uri) {
+		Cursor cursor = null;
 		try {
-			File internalDir = external.getFile("Internal");
-			internal.copy(internalDir, internal.getRoot(), overwrite);
+			cursor = cr.query(uri, new String[] { OpenableColumns.SIZE }, null, null, null);
+			if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+				return cursor.getLong(0);
+			}
+		}
+		catch (Exception e) {
+			Log.w(TAG, e.toString()); // Not every provider supports this
+		}
+		finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public void onMergeProgress(int merged, int total) {
+		if (total > 0) {
+			updateProgress(EXTRACT_PROGRESS + merged * (PROGRESS_MAX - EXTRACT_PROGRESS) / total, PROGRESS_MAX);
+		}
+	}
+
+	/**
+	 * Counts the (compressed) bytes read from the backup, for progress
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+
+		private long mCount;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int read = super.read();
+			if (read != -1) {
+				mCount++;
+			}
+			return read;
 		}
-		catch (IOException e) {
-			Log.e(TAG, e.toString());
-			mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Caught IOexception during import at [4]: " + Utils.getStackTrace(e));
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			final int read = super.read(buffer, offset, count);
+			if (read > 0) {
+				mCount += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			final long skipped = super.skip(count);
+			mCount += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private long getCount() {
+			return mCount;
 		}
-		DatabaseHelper db = mPersistenceManager.getDatabase();
-		mPersistenceManager.getStorageManager().appendTo(LOG_FILE, "Merging database");
-		return db.merge(external.getFile(ExportTask.DATABASE_EXPORT_NAME).getAbsolutePath(), mContext.getPackageName(), overwrite);
 	}
 
 }
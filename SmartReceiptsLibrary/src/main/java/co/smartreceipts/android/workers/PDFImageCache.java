@@ -0,0 +1,250 @@
+package co.smartreceipts.android.workers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import wb.android.storage.StorageManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.util.Log;
+import co.smartreceipts.android.BuildConfig;
+
+/**
+ * Prepares receipt images for embedding in a PDF report. Camera images are far larger than the cells that they
+ * get printed into, so each image is downsampled to the actual printed resolution of its cell and then cached on
+ * disk. Cached copies are keyed by the source file path, its last modified time, and the target size, so future
+ * reports can reuse them until the receipt image changes. The cache is trimmed to {@link #MAX_CACHE_BYTES} after each
+ * report, dropping the least recently used copies first.
+ *
+ * @author wrb
+ */
+public class PDFImageCache {
+
+	private static final String TAG = "PDFImageCache";
+	private static final String CACHE_DIR = "pdf_images";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final float POINTS_PER_INCH = 72f;
+	private static final float PRINT_DPI = 150f;
+	private static final int JPEG_QUALITY = 85;
+	private static final long MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+	private final StorageManager mStorageManager;
+	private final File mCacheDir;
+	private final ConcurrentHashMap<String, FutureTask<File>> mInFlight;
+
+	public PDFImageCache(Context context, StorageManager storageManager) {
+		mStorageManager = storageManager;
+		mCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+		mInFlight = new ConcurrentHashMap<String, FutureTask<File>>();
+	}
+
+	/**
+	 * Gets the path of an image that is suitable for printing in a cell of the given size
+	 *
+	 * @param image
+	 *            - the original receipt image
+	 * @param widthPoints
+	 *            - the printed width of the cell (in PDF points)
+	 * @param heightPoints
+	 *            - the printed height of the cell (in PDF points)
+	 * @return the path of a downsampled copy if one could be prepared. Otherwise, the original path is returned
+	 */
+	public String getImagePath(final File image, float widthPoints, float heightPoints) {
+		final int maxWidth = toPixels(widthPoints);
+		final int maxHeight = toPixels(heightPoints);
+
+		// If another report is already preparing this exact image, wait for it instead of decoding it twice
+		final String key = image.getAbsolutePath() + "_" + maxWidth + "x" + maxHeight;
+		final FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+			@Override
+			public File call() {
+				return getPreparedImage(image, maxWidth, maxHeight);
+			}
+		});
+		FutureTask<File> preparation = mInFlight.putIfAbsent(key, task);
+		if (preparation == null) {
+			preparation = task;
+			try {
+				task.run();
+			}
+			finally {
+				mInFlight.remove(key, task);
+			}
+		}
+
+		File prepared = null;
+		try {
+			prepared = preparation.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, e.toString(), e);
+			}
+		}
+		return (prepared != null) ? prepared.getAbsolutePath() : image.getAbsolutePath();
+	}
+
+	/**
+	 * Starts preparing an image in the background, so a later call to
+	 * {@link #getImagePath(File, float, float)} can return immediately
+	 */
+	public void prefetch(Executor executor, final File image, final float widthPoints, final float heightPoints) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				getImagePath(image, widthPoints, heightPoints);
+			}
+		});
+	}
+
+	private File getPreparedImage(final File image, final int maxWidth, final int maxHeight) {
+		if (!image.exists() || (!mCacheDir.exists() && !mCacheDir.mkdirs())) {
+			return null;
+		}
+		final String prefix = StorageManager.getMD5Checksum(new ByteArrayInputStream(image.getAbsolutePath().getBytes()));
+		if (prefix == null) {
+			return null;
+		}
+		final String version = prefix + "_" + image.lastModified() + "_";
+		final File cached = new File(mCacheDir, version + maxWidth + "x" + maxHeight + ".jpg");
+		if (cached.exists()) {
+			cached.setLastModified(System.currentTimeMillis()); // Recently used, as far as trim() is concerned
+			return cached;
+		}
+
+		// Sample the decode such that the smallest side still fills the cell, then scale down exactly
+		Bitmap bitmap = null;
+		try {
+			bitmap = mStorageManager.getMutableMemoryEfficientBitmap(image, Bitmap.Config.RGB_565, Math.min(maxWidth, maxHeight));
+			if (bitmap == null) {
+				return null;
+			}
+			final float scale = Math.min((float) maxWidth / bitmap.getWidth(), (float) maxHeight / bitmap.getHeight());
+			if (scale < 1f) {
+				final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)), Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+				if (scaled != bitmap) {
+					bitmap.recycle();
+					bitmap = scaled;
+				}
+			}
+			removeStaleEntries(prefix, version);
+			return write(bitmap, cached);
+		}
+		catch (OutOfMemoryError e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, e.toString());
+			}
+			return null;
+		}
+		finally {
+			if (bitmap != null) {
+				bitmap.recycle();
+			}
+		}
+	}
+
+	/**
+	 * Writes to a temporary file first, so a concurrent reader never sees a partially written image
+	 */
+	private File write(final Bitmap bitmap, final File destination) {
+		final File temp = new File(destination.getParentFile(), destination.getName() + TEMP_EXTENSION);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(temp);
+			if (!bitmap.compress(CompressFormat.JPEG, JPEG_QUALITY, fos)) {
+				return null;
+			}
+			fos.close();
+			fos = null;
+			return temp.renameTo(destination) ? destination : null;
+		}
+		catch (IOException e) {
+			if (BuildConfig.DEBUG) {
+				Log.e(TAG, e.toString(), e);
+			}
+			return null;
+		}
+		finally {
+			StorageManager.closeQuietly(fos);
+			if (temp.exists()) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used copies until the cache fits in {@link #MAX_CACHE_BYTES}. This should be called
+	 * once a report has been written
+	 */
+	public void trim() {
+		final File[] files = mCacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && !file.getName().endsWith(TEMP_EXTENSION);
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= MAX_CACHE_BYTES) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				final long left = lhs.lastModified(), right = rhs.lastModified();
+				return (left < right) ? -1 : ((left == right) ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < files.length && total > MAX_CACHE_BYTES; i++) {
+			final long length = files[i].length();
+			if (files[i].delete()) {
+				total -= length;
+			}
+		}
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "Trimmed the PDF image cache to " + total + " bytes");
+		}
+	}
+
+	/**
+	 * Removes cached copies of older versions of the same source image (e.g. from before it was retaken)
+	 */
+	private void removeStaleEntries(final String prefix, final String version) {
+		final File[] stale = mCacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				final String name = file.getName();
+				return name.startsWith(prefix) && !name.startsWith(version) && !name.endsWith(TEMP_EXTENSION);
+			}
+		});
+		if (stale != null) {
+			for (File file : stale) {
+				file.delete();
+			}
+		}
+	}
+
+	private static int toPixels(float points) {
+		return Math.round(points / POINTS_PER_INCH * PRINT_DPI);
+	}
+
+}
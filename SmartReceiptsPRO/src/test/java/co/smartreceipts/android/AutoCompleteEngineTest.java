@@ -0,0 +1,120 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import wb.android.autocomplete.AutoCompleteAdapter;
+import wb.android.autocomplete.AutoCompleteEngine;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class AutoCompleteEngineTest implements AutoCompleteAdapter.QueryListener {
+
+	private static final String TAG = "tag";
+	private static final long DEBOUNCE_MILLIS = 100;
+
+	private AutoCompleteEngine mEngine;
+	private ExecutorService mExecutor;
+	private int mListenerQueries;
+
+	@Before
+	public void setup() {
+		mEngine = new AutoCompleteEngine(this, TAG, 1, DEBOUNCE_MILLIS, 2);
+		mExecutor = Executors.newSingleThreadExecutor();
+		mListenerQueries = 0;
+	}
+
+	@After
+	public void tearDown() {
+		mExecutor.shutdownNow();
+		mEngine = null;
+	}
+
+	@Override
+	public synchronized Cursor getAutoCompleteCursor(CharSequence text, CharSequence tag) {
+		assertEquals(TAG, tag);
+		mListenerQueries++;
+		final MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "name" });
+		cursor.addRow(new Object[] { 1, text + "1" });
+		cursor.addRow(new Object[] { 2, null });
+		cursor.addRow(new Object[] { 3, text + "2" });
+		return cursor;
+	}
+
+	@Test
+	public void repeatedTextIsCached() {
+		assertSuggestions(mEngine.query("ab"), "ab1", "ab2");
+		assertSuggestions(mEngine.query("ab"), "ab1", "ab2");
+		assertEquals(1, mListenerQueries);
+		assertEquals(1, mEngine.getQueryCount());
+		assertEquals(1, mEngine.getCacheHitCount());
+
+		// Only the two most recent are kept
+		mEngine.query("abc");
+		mEngine.query("abcd");
+		mEngine.query("ab");
+		assertEquals(4, mListenerQueries);
+
+		mEngine.clear();
+		mEngine.query("abcd");
+		assertEquals(5, mListenerQueries);
+	}
+
+	@Test
+	public void staleTextIsDropped() throws Exception {
+		mEngine.onTextChanged("a");
+		final Future<Cursor> stale = query("a");
+		mEngine.onTextChanged("ab");
+		assertNull(stale.get(5, TimeUnit.SECONDS));
+		assertEquals(0, mListenerQueries);
+		assertEquals(1, mEngine.getStaleCount());
+
+		final long start = System.nanoTime();
+		assertSuggestions(query("ab").get(5, TimeUnit.SECONDS), "ab1", "ab2");
+		assertTrue((System.nanoTime() - start) / 1000000 >= DEBOUNCE_MILLIS / 2);
+		assertEquals(1, mListenerQueries);
+		assertTrue(mEngine.getMaxLatencyMillis() >= mEngine.getAverageLatencyMillis());
+		assertTrue(mEngine.getAverageLatencyMillis() > 0);
+	}
+
+	private Future<Cursor> query(final String text) {
+		return mExecutor.submit(new Callable<Cursor>() {
+			@Override
+			public Cursor call() throws Exception {
+				return mEngine.query(text);
+			}
+		});
+	}
+
+	private void assertSuggestions(Cursor cursor, String... expected) {
+		assertNotNull(cursor);
+		try {
+			assertEquals(expected.length, cursor.getCount());
+			for (int i = 0; i < expected.length; i++) {
+				assertTrue(cursor.moveToPosition(i));
+				assertEquals(expected[i], cursor.getString(AutoCompleteEngine.COLUMN_SUGGESTION));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+}
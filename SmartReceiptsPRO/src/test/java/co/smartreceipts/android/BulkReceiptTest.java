@@ -0,0 +1,179 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class BulkReceiptTest {
+
+	private static final int COUNT = 12;
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private TripRow mTrip1, mTrip2;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		final File dir1 = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		final File dir2 = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME + "2");
+		mTrip1 = mDB.insertTripSerial(dir1, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		mTrip2 = mDB.insertTripSerial(dir2, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		for (int i = 0; i < COUNT; i++) {
+			assertNotNull(mDB.insertReceiptSerial(mTrip1, null, ReceiptUtils.Constants.NAME + i, ReceiptUtils.Constants.CATEGORY, new Date(ReceiptUtils.Constants.DATE_MILLIS + i * 1000L), ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		mDB.deleteTripSerial(mTrip1);
+		mDB.deleteTripSerial(mTrip2);
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void copyReceipts() {
+		final List<ReceiptRow> selected = getSelected();
+		assertTrue(mDB.copyReceiptsSerial(selected, mTrip2));
+		assertEquals(COUNT, mDB.getReceiptsSerial(mTrip1).size());
+		assertEquals(getNames(selected), getNames(mDB.getReceiptsSerial(mTrip2)));
+		assertTrue(mDB.verifyTripTotals());
+	}
+
+	@Test
+	public void moveReceipts() {
+		final List<ReceiptRow> selected = getSelected();
+		assertTrue(mDB.moveReceiptsSerial(selected, mTrip1, mTrip2));
+		assertEquals(COUNT - selected.size(), mDB.getReceiptsSerial(mTrip1).size());
+		assertEquals(getNames(selected), getNames(mDB.getReceiptsSerial(mTrip2)));
+		assertTrue(mDB.verifyTripTotals());
+	}
+
+	@Test
+	public void deleteReceipts() {
+		final List<ReceiptRow> selected = getSelected();
+		assertTrue(mDB.deleteReceiptsSerial(selected, mTrip1));
+		final List<ReceiptRow> remaining = mDB.getReceiptsSerial(mTrip1);
+		assertEquals(COUNT - selected.size(), remaining.size());
+		for (ReceiptRow receipt : remaining) {
+			assertFalse(getNames(selected).contains(receipt.getName()));
+		}
+		assertTrue(mDB.verifyTripTotals());
+	}
+
+	@Test
+	public void failedMoveIsRolledBack() {
+		final List<ReceiptRow> selected = getSelected();
+		assertTrue(mDB.deleteReceiptSerial(selected.get(0), mTrip1));
+		// One row is already gone, so the delete half of the move cannot complete
+		assertFalse(mDB.moveReceiptsSerial(selected, mTrip1, mTrip2));
+		assertEquals(COUNT - 1, mDB.getReceiptsSerial(mTrip1).size());
+		assertEquals(0, mDB.getReceiptsSerial(mTrip2).size());
+		assertFalse(mDB.deleteReceiptsSerial(selected, mTrip1));
+		assertEquals(COUNT - 1, mDB.getReceiptsSerial(mTrip1).size());
+		assertTrue(mDB.verifyTripTotals());
+	}
+
+	@Test
+	public void copiesDoNotReplaceExistingFiles() throws IOException {
+		final List<ReceiptRow> selected = new ArrayList<ReceiptRow>(getSelected());
+		final ReceiptRow receipt = mDB.insertReceiptSerial(mTrip1, write(new File(mTrip1.getDirectory(), "image.jpg"), "image"), ReceiptUtils.Constants.NAME, ReceiptUtils.Constants.CATEGORY, new Date(ReceiptUtils.Constants.DATE_MILLIS), ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+		assertNotNull(receipt);
+		assertTrue(receipt.hasFile());
+		// Another image in the new trip happens to have the same name
+		final File existing = write(new File(mTrip2.getDirectory(), receipt.getFileName()), "existing");
+
+		// A failed move rolls back its copies, but must leave that image alone
+		selected.add(receipt);
+		assertTrue(mDB.deleteReceiptSerial(selected.get(0), mTrip1));
+		assertFalse(mDB.moveReceiptsSerial(selected, mTrip1, mTrip2));
+		assertEquals("existing", read(existing));
+
+		assertTrue(mDB.copyReceiptsSerial(Collections.singletonList(receipt), mTrip2));
+		assertEquals("existing", read(existing));
+		final List<ReceiptRow> copies = mDB.getReceiptsSerial(mTrip2);
+		assertEquals(1, copies.size());
+		assertEquals("image", read(copies.get(0).getFile()));
+	}
+
+	/**
+	 * Selects every other receipt
+	 */
+	private List<ReceiptRow> getSelected() {
+		final List<ReceiptRow> receipts = mDB.getReceiptsSerial(mTrip1);
+		assertEquals(COUNT, receipts.size());
+		final ArrayList<ReceiptRow> selected = new ArrayList<ReceiptRow>();
+		for (int i = 0; i < receipts.size(); i++) {
+			receipts.get(i).setIsSelected(i % 2 == 0);
+			if (receipts.get(i).isSelected()) {
+				selected.add(receipts.get(i));
+			}
+		}
+		return selected;
+	}
+
+	private File write(File file, String contents) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private String read(File file) throws IOException {
+		final byte[] bytes = new byte[(int) file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < bytes.length) {
+				read += in.read(bytes, read, bytes.length - read);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	private List<String> getNames(List<ReceiptRow> receipts) {
+		final ArrayList<String> names = new ArrayList<String>(receipts.size());
+		for (ReceiptRow receipt : receipts) {
+			names.add(receipt.getName());
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+}
@@ -0,0 +1,136 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import wb.android.storage.StorageManager;
+import co.smartreceipts.android.model.CSVColumns;
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+/**
+ * Compares the streaming {@link CSVColumns#print(Appendable, ReceiptRow, TripRow)} path against the legacy string
+ * concatenation. The legacy path is quadratic, so it is only run for the smaller data set.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CSVStreamingTest {
+
+	private static final String FILENAME = "streaming.csv";
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private StorageManager mStorageManager;
+	private TripRow mTrip;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		mStorageManager = mApp.getPersistenceManager().getStorageManager();
+		mTrip = new TripRow.Builder().setDirectory(mStorageManager.mkdir(TripUtils.Constants.DIRECTORY_NAME))
+									 .setStartDate(TripUtils.Constants.START_DATE_MILLIS)
+									 .setEndDate(TripUtils.Constants.END_DATE_MILLIS)
+									 .setCurrency(TripUtils.Constants.CURRENCY_CODE)
+									 .build();
+	}
+
+	@After
+	public void tearDown() {
+		mStorageManager.delete(mTrip.getDirectory(), FILENAME);
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void streamingMatchesConcatenation() throws IOException {
+		final CSVColumns columns = mDB.getCSVColumns();
+		final List<ReceiptRow> receipts = buildReceipts(1000);
+		String legacy = columns.printHeaders();
+		for (int i = 0; i < receipts.size(); i++) {
+			legacy += columns.print(receipts.get(i), mTrip);
+		}
+		final StringWriter writer = new StringWriter();
+		columns.printHeaders(writer);
+		for (int i = 0; i < receipts.size(); i++) {
+			columns.print(writer, receipts.get(i), mTrip);
+		}
+		assertEquals(legacy, writer.toString());
+	}
+
+	@Test
+	public void streamsEveryReceiptToFile() throws IOException {
+		final CSVColumns columns = mDB.getCSVColumns();
+		final List<ReceiptRow> receipts = buildReceipts(10000);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(mStorageManager.getFOS(mTrip.getDirectory(), FILENAME)));
+			columns.printHeaders(writer);
+			for (int i = 0; i < receipts.size(); i++) {
+				columns.print(writer, receipts.get(i), mTrip);
+			}
+			writer.flush();
+		}
+		finally {
+			StorageManager.closeQuietly(writer);
+		}
+		final File csv = mStorageManager.getFile(mTrip.getDirectory(), FILENAME);
+		assertEquals(receipts.size() + 1, countLines(csv));
+	}
+
+	private List<ReceiptRow> buildReceipts(final int count) {
+		final ArrayList<ReceiptRow> receipts = new ArrayList<ReceiptRow>(count);
+		for (int i = 0; i < count; i++) {
+			receipts.add(new ReceiptRow.Builder(i).setTrip(mTrip)
+												  .setName(ReceiptUtils.Constants.NAME + i)
+												  .setCategory(ReceiptUtils.Constants.CATEGORY)
+												  .setComment("Comment, with \"quotes\"")
+												  .setPrice(ReceiptUtils.Constants.PRICE)
+												  .setTax(ReceiptUtils.Constants.TAX)
+												  .setDate(ReceiptUtils.Constants.DATE_MILLIS)
+												  .setCurrency(ReceiptUtils.Constants.CURRENCY_CODE)
+												  .setIsExpenseable(ReceiptUtils.Constants.IS_EXPENSABLE)
+												  .setExtraEditText1(ReceiptUtils.Constants.EXTRA1)
+												  .build());
+		}
+		return receipts;
+	}
+
+	private int countLines(final File file) throws IOException {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			int lines = 0;
+			while (reader.readLine() != null) {
+				lines++;
+			}
+			return lines;
+		}
+		finally {
+			StorageManager.closeQuietly(reader);
+		}
+	}
+
+}
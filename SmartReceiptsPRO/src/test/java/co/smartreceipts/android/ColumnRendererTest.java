@@ -0,0 +1,253 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import co.smartreceipts.android.model.CSVColumns;
+import co.smartreceipts.android.model.Columns;
+import co.smartreceipts.android.model.Columns.ColumnName;
+import co.smartreceipts.android.model.Columns.ColumnType;
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.persistence.PersistenceManager;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+/**
+ * Verifies that every column option resolves to its own {@link ColumnType} and that the cells (and CSV rows) rendered
+ * from the pre-resolved types match those of the per-cell string dispatch that they replaced, which is kept below as
+ * {@link #legacyColumn}.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ColumnRendererTest {
+
+	private static final String CUSTOM_COLUMN = "Not a column";
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private TripRow mTrip;
+	private ReceiptRow mReceipt;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		mTrip = new TripRow.Builder().setDirectory(mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME))
+									 .setStartDate(TripUtils.Constants.START_DATE_MILLIS)
+									 .setEndDate(TripUtils.Constants.END_DATE_MILLIS)
+									 .setCurrency(TripUtils.Constants.CURRENCY_CODE)
+									 .setComment(TripUtils.Constants.COMMENT)
+									 .build();
+		mReceipt = new ReceiptRow.Builder(ReceiptUtils.Constants.ID).setTrip(mTrip)
+																	.setName("Lunch, \"team\"") // Needs quoting and escaping in a CSV
+																	.setCategory(ReceiptUtils.Constants.CATEGORY)
+																	.setComment("Two\nlines")
+																	.setPrice(ReceiptUtils.Constants.PRICE)
+																	.setTax(ReceiptUtils.Constants.TAX)
+																	.setDate(ReceiptUtils.Constants.DATE_MILLIS)
+																	.setCurrency(ReceiptUtils.Constants.CURRENCY_CODE)
+																	.setIsExpenseable(ReceiptUtils.Constants.IS_EXPENSABLE)
+																	.setIndex(3)
+																	.setExtraEditText1(ReceiptUtils.Constants.EXTRA1)
+																	.setExtraEditText2(ReceiptUtils.Constants.EXTRA2)
+																	.setExtraEditText3(ReceiptUtils.Constants.EXTRA3)
+																	.build();
+	}
+
+	@After
+	public void tearDown() {
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void resolveOptions() {
+		final Columns columns = mDB.getCSVColumns();
+		final List<CharSequence> options = columns.generateOptionsList(mApp, mApp.getFlex());
+		final EnumSet<ColumnType> resolved = EnumSet.noneOf(ColumnType.class);
+		for (CharSequence option : options) {
+			final ColumnType type = ColumnType.resolve(option.toString());
+			assertNotSame(ColumnType.CUSTOM, type);
+			assertTrue(resolved.add(type));
+		}
+		assertEquals(ColumnType.CUSTOM, ColumnType.resolve(CUSTOM_COLUMN));
+	}
+
+	@Test
+	public void cellsMatchTheLegacyDispatch() {
+		// PDF rows print these cells as they are
+		final Cells columns = new Cells();
+		final List<String> types = addEveryColumn(columns);
+		for (int i = 0; i < types.size(); i++) {
+			assertEquals(types.get(i), legacyColumn(types.get(i), mReceipt, mTrip), columns.cell(i, mReceipt, mTrip));
+		}
+	}
+
+	@Test
+	public void csvRowMatchesTheLegacyRow() throws IOException {
+		final CSVColumns columns = new CSVColumns(mApp, mApp);
+		final List<String> types = addEveryColumn(columns);
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < types.size(); i++) {
+			expected.append(legacyCsv(legacyColumn(types.get(i), mReceipt, mTrip))).append((i == types.size() - 1) ? "\n" : ",");
+		}
+		assertEquals(expected.toString(), columns.print(mReceipt, mTrip));
+		final StringWriter writer = new StringWriter();
+		columns.print(writer, mReceipt, mTrip);
+		assertEquals(expected.toString(), writer.toString());
+	}
+
+	private List<String> addEveryColumn(Columns columns) {
+		final ArrayList<String> types = new ArrayList<String>();
+		for (CharSequence option : columns.generateOptionsList(mApp, mApp.getFlex())) {
+			types.add(option.toString());
+		}
+		types.add(CUSTOM_COLUMN);
+		for (String type : types) {
+			columns.add(type);
+		}
+		return types;
+	}
+
+	/**
+	 * Exposes the cells, as {@link co.smartreceipts.android.model.PDFColumns} prints them
+	 */
+	private final class Cells extends Columns {
+
+		private Cells() {
+			super(mApp, mApp);
+		}
+
+		private String cell(int index, ReceiptRow receipt, TripRow trip) {
+			return generateColumn(get(index), receipt, trip);
+		}
+	}
+
+	/**
+	 * The string dispatch of Columns.generateColumn, as it was before the column types were resolved up front
+	 */
+	private String legacyColumn(String columnType, ReceiptRow receipt, TripRow currentTrip) {
+		final PersistenceManager persistenceManager = mApp.getPersistenceManager();
+		if (columnType.equals(ColumnName.BLANK)) {
+			return "";
+		}
+		else if (columnType.equals(ColumnName.CATEGORY_CODE)) {
+			return persistenceManager.getDatabase().getCategoryCode(receipt.getCategory());
+		}
+		else if (columnType.equals(ColumnName.CATEGORY_NAME)) {
+			return receipt.getCategory();
+		}
+		else if (columnType.equals(ColumnName.COMMENT)) {
+			return receipt.getComment();
+		}
+		else if (columnType.equals(ColumnName.CURRENCY)) {
+			return receipt.getCurrencyCode();
+		}
+		else if (columnType.equals(ColumnName.DATE)) {
+			return receipt.getFormattedDate(mApp, persistenceManager.getPreferences().getDateSeparator());
+		}
+		else if (columnType.equals(ColumnName.NAME)) {
+			return receipt.getName();
+		}
+		else if (columnType.equals(ColumnName.PRICE)) {
+			return receipt.getDecimalFormattedPrice();
+		}
+		else if (columnType.equals(ColumnName.TAX)) {
+			return receipt.getDecimalFormattedTax();
+		}
+		else if (columnType.equals(ColumnName.REPORT_NAME)) {
+			return currentTrip.getName();
+		}
+		else if (columnType.equals(ColumnName.REPORT_START_DATE)) {
+			return currentTrip.getFormattedStartDate(mApp, persistenceManager.getPreferences().getDateSeparator());
+		}
+		else if (columnType.equals(ColumnName.REPORT_END_DATE)) {
+			return currentTrip.getFormattedEndDate(mApp, persistenceManager.getPreferences().getDateSeparator());
+		}
+		else if (columnType.equals(ColumnName.REPORT_COMMENT)) {
+			return currentTrip.getComment();
+		}
+		else if (columnType.equals(ColumnName.USER_ID)) {
+			return persistenceManager.getPreferences().getUserID();
+		}
+		else if (columnType.equals(ColumnName.IMAGE_FILE_NAME)) {
+			return receipt.getFileName();
+		}
+		else if (columnType.equals(ColumnName.IMAGE_PATH)) {
+			return receipt.getFilePath();
+		}
+		else if (columnType.equals(ColumnName.PICTURED)) {
+			if (receipt.hasImage()) {
+				return mApp.getString(R.string.yes);
+			}
+			else if (receipt.hasPDF()) {
+				return mApp.getString(R.string.yes_as_pdf);
+			}
+			else {
+				return mApp.getString(R.string.no);
+			}
+		}
+		else if (columnType.equals(ColumnName.INDEX)) {
+			return Integer.toString(receipt.getIndex());
+		}
+		else if (columnType.equals(ColumnName.ID)) {
+			return Integer.toString(receipt.getId());
+		}
+		else if (columnType.equals(ColumnName.EXPENSABLE)) {
+			return (receipt.isExpensable()) ? mApp.getString(R.string.yes) : mApp.getString(R.string.no);
+		}
+		else if (columnType.equalsIgnoreCase(ColumnName.PAYMENT_METHOD)) {
+			return receipt.hasPaymentMethod() ? receipt.getPaymentMethod().getMethod() : "";
+		}
+		else if (columnType.equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_1)) {
+			return receipt.getExtraEditText1();
+		}
+		else if (columnType.equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_2)) {
+			return receipt.getExtraEditText2();
+		}
+		else if (columnType.equalsIgnoreCase(ColumnName.EXTRA_EDITTEXT_3)) {
+			return receipt.getExtraEditText3();
+		}
+		else {
+			return columnType;
+		}
+	}
+
+	/**
+	 * The escaping of CSVColumns.generateColumn, as it was before the column types were resolved up front
+	 */
+	private String legacyCsv(String csv) {
+		if (csv == null) {
+			return "";
+		}
+		if (csv.contains("\"")) {
+			csv = csv.replace("\"", "\"\"");
+		}
+		for (String special : new String[] { ",", "\"", "\n", "\r\n" }) {
+			if (csv.contains(special)) {
+				csv = "\"" + csv + "\"";
+				break;
+			}
+		}
+		return csv;
+	}
+
+}
@@ -0,0 +1,127 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+/**
+ * Runs several readers against a single writer to verify that the {@link DatabaseHelper} locking neither deadlocks
+ * nor returns inconsistent results.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ConcurrencyStressTest {
+
+	private static final int READERS = 4;
+	private static final int WRITES = 200;
+	private static final long TIMEOUT_SECONDS = 120;
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private TripRow mTrip;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		final File dir = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		mTrip = mDB.insertTripSerial(dir, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+	}
+
+	@After
+	public void tearDown() {
+		mDB.deleteTripSerial(mTrip);
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void readersAgainstWriter() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean isWriting = new AtomicBoolean(true);
+		try {
+			final List<Future<Integer>> readers = new ArrayList<Future<Integer>>(READERS);
+			for (int i = 0; i < READERS; i++) {
+				readers.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						start.await();
+						int reads = 0;
+						int lastCount = 0;
+						while (isWriting.get()) {
+							// Receipts are only ever added, so no reader may see the count shrink
+							final List<ReceiptRow> receipts = mDB.getReceiptsSerial(mTrip, true);
+							assertTrue(receipts.size() >= lastCount);
+							lastCount = receipts.size();
+							assertNotNull(mDB.getTripsSerial());
+							assertNotNull(mDB.getTripByName(mTrip.getName()));
+							mDB.getCostPerCategorySerial(mTrip);
+							reads++;
+						}
+						return reads;
+					}
+				}));
+			}
+			final Future<Integer> writer = executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					start.await();
+					try {
+						for (int i = 0; i < WRITES; i++) {
+							assertNotNull(mDB.insertReceiptSerial(mTrip, null, ReceiptUtils.Constants.NAME + i, ReceiptUtils.Constants.CATEGORY, new Date(ReceiptUtils.Constants.DATE_MILLIS + i), ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3));
+						}
+					}
+					finally {
+						isWriting.set(false);
+					}
+					return WRITES;
+				}
+			});
+
+			start.countDown();
+			assertEquals(WRITES, writer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).intValue());
+			for (Future<Integer> reader : readers) {
+				// Rethrows any failed assertion from the reader and fails if it deadlocked
+				assertTrue(reader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) >= 0);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		// Once the dust settles, every cached view must agree with the database
+		assertEquals(WRITES, mDB.getReceiptsSerial(mTrip).size());
+		assertEquals(WRITES, mDB.getReceiptsSerial(mTrip, true).size());
+		assertTrue(mDB.verifyTripTotals());
+	}
+
+}
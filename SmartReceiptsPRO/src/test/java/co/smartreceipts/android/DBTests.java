@@ -2,6 +2,9 @@ package co.smartreceipts.android;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -10,13 +13,19 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import wb.android.storage.StorageManager;
 import co.smartreceipts.android.SmartReceiptsApplication;
+import co.smartreceipts.android.model.TripRow;
 import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
 
 @Config(emulateSdk = 18) 
 @RunWith(RobolectricTestRunner.class)
 public class DBTests {
 
+	private static final int MERGE_RECEIPTS = 600;
+
 	private SmartReceiptsApplication mApp;
 	private DatabaseHelper mDB;
 	
@@ -46,9 +55,44 @@ public class DBTests {
 	}
 	
 	@Test
-	public void merge() {
-		// assertTrue(false);
-		// Define me
+	public void merge() throws IOException {
+		final StorageManager storageManager = mApp.getPersistenceManager().getStorageManager();
+		final File dir = storageManager.mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		final TripRow trip = mDB.insertTripSerial(dir, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		for (int i = 0; i < MERGE_RECEIPTS; i++) {
+			mDB.insertReceiptSerial(trip, null, ReceiptUtils.Constants.NAME + i, ReceiptUtils.Constants.CATEGORY, ReceiptUtils.Constants.DATE, ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+		}
+		final File backup = storageManager.getFile("merge.db");
+		mDB.checkpoint();
+		storageManager.copy(new File(mDB.getReadableDatabase().getPath()), backup, true);
+		assertTrue(mDB.deleteTripSerial(trip));
+		assertEquals(0, mDB.getReceiptsSerial(trip, true).size());
+
+		// Restore everything from the backup
+		final int[] progress = new int[2];
+		final DatabaseHelper.MergeProgressListener listener = new DatabaseHelper.MergeProgressListener() {
+			@Override
+			public void onMergeProgress(int merged, int total) {
+				assertTrue(merged >= progress[0]);
+				progress[0] = merged;
+				progress[1] = total;
+			}
+		};
+		assertTrue(mDB.merge(backup.getAbsolutePath(), mApp.getPackageName(), false, listener));
+		assertEquals(MERGE_RECEIPTS + 1, progress[1]);
+		assertEquals(progress[1], progress[0]);
+		final TripRow merged = mDB.getTripByName(trip.getName()); // Restored under a new id
+		assertNotNull(merged);
+		assertEquals(MERGE_RECEIPTS, mDB.getReceiptsSerial(merged, true).size());
+
+		// Merging the same receipts again must neither duplicate nor drop them
+		assertTrue(mDB.merge(backup.getAbsolutePath(), mApp.getPackageName(), false));
+		assertEquals(MERGE_RECEIPTS, mDB.getReceiptsSerial(merged, true).size());
+		assertTrue(mDB.merge(backup.getAbsolutePath(), mApp.getPackageName(), true));
+		assertEquals(MERGE_RECEIPTS, mDB.getReceiptsSerial(merged, true).size());
+		assertTrue(mDB.verifyTripTotals());
+		assertTrue(mDB.deleteTripSerial(merged));
+		storageManager.delete(backup);
 	}
 	
 }
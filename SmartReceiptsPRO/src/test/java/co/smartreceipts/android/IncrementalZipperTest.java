@@ -0,0 +1,145 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import wb.android.storage.IncrementalZipper;
+import wb.android.storage.StorageManager;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class IncrementalZipperTest {
+
+	private File mDir, mInput;
+	private IncrementalZipper mZipper;
+
+	@Before
+	public void setup() throws IOException {
+		mDir = new File(Robolectric.application.getCacheDir(), "zipper");
+		mInput = new File(mDir, "input");
+		assertTrue(mInput.mkdirs() || mInput.isDirectory());
+		mZipper = new IncrementalZipper();
+		final StringBuilder image = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			image.append("pixel ").append(i).append('\n');
+		}
+		write("Trip/image.jpg", image.toString());
+		write("Trip/other.jpg", "other");
+		write("receipts_backup.db", "db1");
+	}
+
+	@After
+	public void tearDown() {
+		delete(mDir);
+	}
+
+	@Test
+	public void unchangedFilesAreReused() throws IOException {
+		final File first = new File(mDir, "first.smr");
+		mZipper.zip(mInput, null, null, first);
+		assertEquals(0, mZipper.getReusedCount());
+		assertEquals(3, mZipper.getPackedCount());
+
+		write("receipts_backup.db", "db2");
+		final File second = new File(mDir, "second.smr");
+		mZipper.zip(mInput, null, first, second);
+		assertEquals(2, mZipper.getReusedCount());
+		assertEquals(1, mZipper.getPackedCount());
+		assertContents(second, "receipts_backup.db", "db2");
+		assertContents(second, "Trip/other.jpg", "other");
+		assertEquals(read(first, "Trip/image.jpg"), read(second, "Trip/image.jpg"));
+	}
+
+	@Test
+	public void renamedFilesAreReusedByChecksum() throws IOException {
+		final File first = new File(mDir, "first.smr");
+		mZipper.zip(mInput, null, null, first);
+		assertTrue(new File(mInput, "Trip").renameTo(new File(mInput, "Renamed")));
+		final File second = new File(mDir, "second.smr");
+		mZipper.zip(mInput, null, first, second);
+		assertEquals(3, mZipper.getReusedCount());
+		assertEquals(0, mZipper.getPackedCount());
+		assertEquals(read(first, "Trip/image.jpg"), read(second, "Renamed/image.jpg"));
+
+		// Still a standard archive
+		final File output = new File(mDir, "output");
+		assertTrue(new StorageManager(output) { }.unzip(second, true));
+		assertTrue(new File(output, "Renamed/other.jpg").exists());
+		assertTrue(new File(output, IncrementalZipper.MANIFEST_ENTRY).exists());
+	}
+
+	@Test
+	public void unreadablePreviousArchiveIsIgnored() throws IOException {
+		final File previous = new File(mDir, "previous.smr");
+		write(previous, "not a zip");
+		final File output = new File(mDir, "output.smr");
+		mZipper.zip(mInput, null, previous, output);
+		assertEquals(0, mZipper.getReusedCount());
+		assertContents(output, "Trip/other.jpg", "other");
+	}
+
+	private void write(String path, String contents) throws IOException {
+		write(new File(mInput, path), contents);
+	}
+
+	private void write(File file, String contents) throws IOException {
+		file.getParentFile().mkdirs();
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private void assertContents(File archive, String path, String expected) throws IOException {
+		assertEquals(expected, read(archive, path));
+	}
+
+	private String read(File archive, String path) throws IOException {
+		final ZipFile zipFile = new ZipFile(archive);
+		try {
+			final ZipEntry entry = zipFile.getEntry(path);
+			assertNotNull(path, entry);
+			final InputStream in = zipFile.getInputStream(entry);
+			final StringBuilder builder = new StringBuilder();
+			final byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				builder.append(new String(buffer, 0, read, "UTF-8"));
+			}
+			in.close();
+			return builder.toString();
+		}
+		finally {
+			zipFile.close();
+		}
+	}
+
+	private void delete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,195 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Date;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowEnvironment;
+
+import android.database.Cursor;
+import android.os.Environment;
+
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.persistence.IntegrityScrubber;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class IntegrityScrubberTest {
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private IntegrityScrubber mScrubber;
+	private TripRow mTrip;
+	private File mDir;
+	private ReceiptRow mPresent, mMissing, mNoFile;
+
+	@Before
+	public void setup() throws IOException {
+		ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		mScrubber = mApp.getPersistenceManager().getIntegrityScrubber();
+		mDir = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		mTrip = mDB.insertTripSerial(mDir, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		mPresent = insertReceipt("present", write("present.jpg"));
+		mMissing = insertReceipt("missing", write("missing.jpg"));
+		mNoFile = insertReceipt("none", null);
+		assertTrue(mMissing.getFile().delete());
+		write("orphan.jpg");
+		write(mDir.getName() + ".pdf"); // A report, rather than an orphan
+	}
+
+	@After
+	public void tearDown() {
+		mScrubber.stop();
+		mDB.deleteTripSerial(mTrip);
+		for (File file : mDir.listFiles()) {
+			file.delete();
+		}
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void recordsMissingAndOrphanedFiles() {
+		mScrubber.scrub();
+		assertTrue(mDB.getReceiptByID(mPresent.getId()).hasImage());
+		assertFalse(mDB.getReceiptByID(mMissing.getId()).hasFile());
+		assertFalse(mDB.getReceiptByID(mNoFile.getId()).hasFile());
+		assertEquals(1, mDB.getMissingFileCountSerial());
+		assertEquals(Collections.singletonList(new File(mDir, "orphan.jpg")), mDB.getOrphanFilesSerial());
+	}
+
+	@Test
+	public void receiptsReadTheRecordedFlag() {
+		mScrubber.scrub();
+		assertTrue(mPresent.getFile().delete());
+		final ReceiptRow stale = mDB.getReceiptByID(mPresent.getId());
+		assertFalse(stale.checkFileExists()); // As checked before the file is opened
+		assertFalse(stale.hasFile());
+		mScrubber.scrub();
+		assertFalse(mDB.getReceiptByID(mPresent.getId()).hasFile());
+		assertFalse(getReceipt(mPresent.getId()).hasFile());
+		assertEquals(2, mDB.getMissingFileCountSerial());
+	}
+
+	@Test
+	public void nothingIsRecordedWhileStorageIsUnmounted() {
+		ShadowEnvironment.setExternalStorageState(Environment.MEDIA_UNMOUNTED);
+		assertFalse(mScrubber.scrubBatch());
+		assertEquals(0, mDB.getMissingFileCountSerial());
+		assertTrue(mDB.getOrphanFilesSerial().isEmpty());
+		ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+		mScrubber.scrub(); // Resumes once it is mounted again
+		assertEquals(1, mDB.getMissingFileCountSerial());
+	}
+
+	@Test
+	public void missingTripDirectoriesAreNotRecorded() {
+		final File away = new File(mDir.getParentFile(), mDir.getName() + "_away");
+		assertTrue(mDir.renameTo(away));
+		try {
+			mScrubber.scrub();
+		}
+		finally {
+			assertTrue(away.renameTo(mDir));
+		}
+		assertEquals(0, mDB.getMissingFileCountSerial());
+		assertTrue(mDB.getOrphanFilesSerial().isEmpty());
+	}
+
+	@Test
+	public void scrubResumesFromItsCursor() {
+		assertTrue(mScrubber.scrubBatch()); // Every receipt fits in the first batch
+		assertTrue(mPresent.getFile().delete());
+		mScrubber.scrub(); // Finishes the pass with the trip directories
+		assertEquals(1, mDB.getMissingFileCountSerial());
+		mScrubber.scrub();
+		assertEquals(2, mDB.getMissingFileCountSerial());
+	}
+
+	@Test
+	public void replacedFilesAreNotTrusted() throws IOException {
+		mScrubber.scrub();
+		final File replacement = write("replacement.jpg");
+		assertNotNull(mDB.updateReceiptFile(mMissing, replacement));
+		assertTrue(mDB.getReceiptByID(mMissing.getId()).hasImage());
+		mScrubber.scrub();
+		assertEquals(0, mDB.getMissingFileCountSerial());
+	}
+
+	@Test
+	public void deletesRemoveTheirRecordedRows() {
+		mScrubber.scrub();
+		final int recorded = countRows("receipt_files");
+		assertTrue(recorded >= 2);
+		assertEquals(1, countRows("orphan_files"));
+		assertTrue(mDB.deleteReceiptSerial(mMissing, mTrip));
+		assertEquals(recorded - 1, countRows("receipt_files"));
+		assertTrue(mDB.deleteReceiptsSerial(Collections.singletonList(mPresent), mTrip));
+		assertEquals(recorded - 2, countRows("receipt_files"));
+		assertTrue(mDB.deleteTripSerial(mTrip));
+		assertEquals(0, countRows("receipt_files"));
+		assertEquals(0, countRows("orphan_files"));
+	}
+
+	private int countRows(String table) {
+		Cursor c = null;
+		try {
+			c = mDB.getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + table, null);
+			return (c != null && c.moveToFirst()) ? c.getInt(0) : 0;
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+
+	private ReceiptRow getReceipt(int id) {
+		for (ReceiptRow receipt : mDB.getReceiptsSerial(mTrip)) {
+			if (receipt.getId() == id) {
+				return receipt;
+			}
+		}
+		return null;
+	}
+
+	private ReceiptRow insertReceipt(String name, File image) {
+		final ReceiptRow receipt = mDB.insertReceiptSerial(mTrip, image, name, ReceiptUtils.Constants.CATEGORY, new Date(ReceiptUtils.Constants.DATE_MILLIS), ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+		assertNotNull(receipt);
+		return receipt;
+	}
+
+	private File write(String name) throws IOException {
+		final File file = new File(mDir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(name.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+}
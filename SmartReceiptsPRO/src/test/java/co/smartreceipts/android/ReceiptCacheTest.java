@@ -0,0 +1,135 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import wb.android.storage.StorageManager;
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.ReceiptCache;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReceiptCacheTest {
+
+	private static final int MAX_RECEIPTS = 10;
+
+	private SmartReceiptsApplication mApp;
+	private StorageManager mStorageManager;
+	private ReceiptCache mCache;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mStorageManager = mApp.getPersistenceManager().getStorageManager();
+		mCache = new ReceiptCache(MAX_RECEIPTS);
+	}
+
+	@After
+	public void tearDown() {
+		mCache = null;
+		mStorageManager = null;
+		mApp = null;
+	}
+
+	@Test
+	public void hitsAndMisses() {
+		final TripRow trip = buildTrip(1, "Trip");
+		final List<ReceiptRow> receipts = buildReceipts(trip, 3);
+		assertNull(mCache.get(trip));
+		mCache.put(trip, receipts);
+		assertSame(receipts, mCache.get(trip));
+		assertSame(receipts, mCache.get(buildTrip(1, "Renamed"))); // Keyed by id, not instance or name
+		assertNull(mCache.get(buildTrip(2, "Trip")));
+		assertEquals(2, mCache.getHitCount());
+		assertEquals(2, mCache.getMissCount());
+		assertEquals(3, mCache.getReceiptCount());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		final TripRow first = buildTrip(1, "First");
+		final TripRow second = buildTrip(2, "Second");
+		final TripRow third = buildTrip(3, "Third");
+		mCache.put(first, buildReceipts(first, 4));
+		mCache.put(second, buildReceipts(second, 4));
+		assertNotNull(mCache.get(first)); // Second is now the eldest
+		mCache.put(third, buildReceipts(third, 4));
+		assertNull(mCache.get(second));
+		assertNotNull(mCache.get(first));
+		assertNotNull(mCache.get(third));
+		assertEquals(1, mCache.getEvictionCount());
+		assertEquals(8, mCache.getReceiptCount());
+		assertEquals(2, mCache.size());
+	}
+
+	@Test
+	public void replaceAndRemove() {
+		final TripRow trip = buildTrip(1, "Trip");
+		mCache.put(trip, buildReceipts(trip, 4));
+		mCache.put(trip, buildReceipts(trip, 2));
+		assertEquals(2, mCache.getReceiptCount());
+		mCache.remove(trip);
+		assertNull(mCache.get(trip));
+		assertEquals(0, mCache.getReceiptCount());
+		assertEquals(0, mCache.getEvictionCount());
+	}
+
+	@Test
+	public void oversizedListsAreNotCached() {
+		final TripRow small = buildTrip(1, "Small");
+		final TripRow large = buildTrip(2, "Large");
+		mCache.put(small, buildReceipts(small, 2));
+		mCache.put(large, buildReceipts(large, MAX_RECEIPTS + 1));
+		assertNull(mCache.get(large));
+		assertNotNull(mCache.get(small));
+		assertEquals(2, mCache.getReceiptCount());
+	}
+
+	@Test
+	public void clear() {
+		final TripRow trip = buildTrip(1, "Trip");
+		mCache.put(trip, buildReceipts(trip, 2));
+		mCache.clear();
+		assertEquals(0, mCache.size());
+		assertEquals(0, mCache.getReceiptCount());
+	}
+
+	private TripRow buildTrip(int id, String name) {
+		return new TripRow.Builder().setId(id)
+									.setDirectory(mStorageManager.getFile(name))
+									.setStartDate(TripUtils.Constants.START_DATE_MILLIS)
+									.setEndDate(TripUtils.Constants.END_DATE_MILLIS)
+									.setCurrency(TripUtils.Constants.CURRENCY_CODE)
+									.build();
+	}
+
+	private List<ReceiptRow> buildReceipts(TripRow trip, int count) {
+		final ArrayList<ReceiptRow> receipts = new ArrayList<ReceiptRow>(count);
+		for (int i = 0; i < count; i++) {
+			receipts.add(new ReceiptRow.Builder(i).setTrip(trip)
+												  .setName(ReceiptUtils.Constants.NAME + i)
+												  .setPrice(ReceiptUtils.Constants.PRICE)
+												  .setDate(ReceiptUtils.Constants.DATE_MILLIS)
+												  .setCurrency(ReceiptUtils.Constants.CURRENCY_CODE)
+												  .build());
+		}
+		return receipts;
+	}
+
+}
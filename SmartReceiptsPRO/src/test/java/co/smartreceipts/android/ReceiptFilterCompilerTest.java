@@ -0,0 +1,282 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import co.smartreceipts.android.filters.Filter;
+import co.smartreceipts.android.filters.ReceiptAndFilter;
+import co.smartreceipts.android.filters.ReceiptCategoryFilter;
+import co.smartreceipts.android.filters.ReceiptIsExpensableFilter;
+import co.smartreceipts.android.filters.ReceiptMaximumPriceFilter;
+import co.smartreceipts.android.filters.ReceiptMinimumPriceFilter;
+import co.smartreceipts.android.filters.ReceiptNotFilter;
+import co.smartreceipts.android.filters.ReceiptOnOrAfterDayFilter;
+import co.smartreceipts.android.filters.ReceiptOnOrBeforeDayFilter;
+import co.smartreceipts.android.filters.ReceiptOrFilter;
+import co.smartreceipts.android.filters.ReceiptSelectedFilter;
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.persistence.ReceiptFilterCompiler;
+import co.smartreceipts.android.utils.ReceiptUtils.Constants;
+import co.smartreceipts.android.utils.TripUtils;
+
+/**
+ * Verifies that filtering in SQLite (via {@link ReceiptFilterCompiler}) accepts exactly the same receipts as
+ * {@link Filter#accept(Object)}, using the price, date, and category fixtures from {@link ReceiptFilterTest}
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReceiptFilterCompilerTest {
+
+	private static final String CATEGORY2 = "cat2";
+	private static final String BAD_CATEGORY = "BAD Category";
+	private static final TimeZone OTHER_TZ = TimeZone.getTimeZone("Asia/Tokyo");
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private TripRow mTrip;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		final File dir = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		mTrip = mDB.insertTripSerial(dir, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		for (String category : Arrays.asList(Constants.CATEGORY, CATEGORY2, BAD_CATEGORY)) {
+			for (String price : Arrays.asList(ReceiptFilterTest.PRICE_NORMAL, ReceiptFilterTest.PRICE_HIGH, ReceiptFilterTest.PRICE_LOW)) {
+				for (Date date : Arrays.asList(ReceiptFilterTest.NOW, ReceiptFilterTest.FUTURE, ReceiptFilterTest.PAST)) {
+					insertReceipt(category, price, date, ReceiptFilterTest.TZ, true, ReceiptFilterTest.CURRENCY);
+				}
+				insertReceipt(category, price, ReceiptFilterTest.NOW, ReceiptFilterTest.TZ, false, ReceiptFilterTest.CURRENCY);
+				insertReceipt(category, price, ReceiptFilterTest.NOW, ReceiptFilterTest.TZ, true, "EUR");
+			}
+		}
+		// These land exactly on (and either side of) NOW once each time zone's raw offset is removed
+		final long otherNow = ReceiptFilterTest.MILLIS + OTHER_TZ.getRawOffset() - ReceiptFilterTest.TZ.getRawOffset();
+		insertReceipt(Constants.CATEGORY, ReceiptFilterTest.PRICE_NORMAL, new Date(otherNow), OTHER_TZ, true, ReceiptFilterTest.CURRENCY);
+		insertReceipt(Constants.CATEGORY, ReceiptFilterTest.PRICE_NORMAL, new Date(otherNow + 1000), OTHER_TZ, true, ReceiptFilterTest.CURRENCY);
+		insertReceipt(Constants.CATEGORY, ReceiptFilterTest.PRICE_NORMAL, new Date(otherNow - 1000), OTHER_TZ, true, ReceiptFilterTest.CURRENCY);
+	}
+
+	@After
+	public void tearDown() {
+		mDB.deleteTripSerial(mTrip);
+		mDB.close();
+		mDB = null;
+		mTrip = null;
+		mApp = null;
+	}
+
+	@Test
+	public void leafFilters() {
+		assertEquivalent(new ReceiptCategoryFilter(Constants.CATEGORY));
+		assertEquivalent(new ReceiptIsExpensableFilter());
+		assertEquivalent(new ReceiptMinimumPriceFilter(Float.parseFloat(ReceiptFilterTest.PRICE_NORMAL), ReceiptFilterTest.CURRENCY));
+		assertEquivalent(new ReceiptMaximumPriceFilter(Float.parseFloat(ReceiptFilterTest.PRICE_NORMAL), ReceiptFilterTest.CURRENCY));
+		assertEquivalent(new ReceiptMaximumPriceFilter(Float.parseFloat(ReceiptFilterTest.PRICE_NORMAL), ReceiptFilterTest.CURRENCY.toLowerCase()));
+		assertEquivalent(new ReceiptOnOrAfterDayFilter(ReceiptFilterTest.NOW, ReceiptFilterTest.TZ));
+		assertEquivalent(new ReceiptOnOrBeforeDayFilter(ReceiptFilterTest.NOW, ReceiptFilterTest.TZ));
+		assertEquivalent(new ReceiptOnOrAfterDayFilter(ReceiptFilterTest.NOW, OTHER_TZ));
+		assertEquivalent(new ReceiptOnOrBeforeDayFilter(ReceiptFilterTest.NOW, OTHER_TZ));
+	}
+
+	@Test
+	public void compositeFilters() {
+		final ReceiptOrFilter orFilter = new ReceiptOrFilter();
+		orFilter.or(new ReceiptCategoryFilter(Constants.CATEGORY)).or(new ReceiptCategoryFilter(CATEGORY2));
+		assertEquivalent(orFilter);
+
+		final ReceiptAndFilter andFilter = new ReceiptAndFilter();
+		andFilter.and(new ReceiptIsExpensableFilter()).and(new ReceiptCategoryFilter(Constants.CATEGORY));
+		assertEquivalent(andFilter);
+		andFilter.and(new ReceiptCategoryFilter(BAD_CATEGORY));
+		assertEquivalent(andFilter);
+
+		assertEquivalent(new ReceiptNotFilter(new ReceiptMaximumPriceFilter(Float.parseFloat(ReceiptFilterTest.PRICE_NORMAL), ReceiptFilterTest.CURRENCY)));
+		assertEquivalent(new ReceiptNotFilter(orFilter));
+
+		final ReceiptAndFilter dayRange = new ReceiptAndFilter();
+		dayRange.and(new ReceiptOnOrAfterDayFilter(ReceiptFilterTest.NOW, ReceiptFilterTest.TZ)).and(new ReceiptOnOrBeforeDayFilter(ReceiptFilterTest.NOW, ReceiptFilterTest.TZ));
+		assertEquivalent(dayRange);
+		assertEquivalent(new ReceiptNotFilter(dayRange));
+
+		assertEquivalent(new ReceiptAndFilter());
+		assertEquivalent(new ReceiptOrFilter());
+		assertEquivalent(new ReceiptNotFilter(new ReceiptOrFilter()));
+	}
+
+	@Test
+	public void uncompilableFiltersFallBackToJava() {
+		final ReceiptFilterCompiler compiler = new ReceiptFilterCompiler(null);
+
+		final ReceiptSelectedFilter selectedFilter = new ReceiptSelectedFilter();
+		final ReceiptFilterCompiler.CompiledFilter selected = compiler.compile(selectedFilter);
+		assertNull(selected.getSelection());
+		assertEquals(selectedFilter, selected.getResidualFilter());
+		assertEquivalent(selectedFilter);
+
+		// Top level AND filters are split between SQL and Java
+		final ReceiptCategoryFilter categoryFilter = new ReceiptCategoryFilter(Constants.CATEGORY);
+		final ReceiptAndFilter andFilter = new ReceiptAndFilter();
+		andFilter.and(categoryFilter).and(new ReceiptNotFilter(selectedFilter));
+		final ReceiptFilterCompiler.CompiledFilter and = compiler.compile(andFilter);
+		assertNotNull(and.getSelection());
+		assertEquals(1, and.getSelectionArgs().length);
+		assertFalse(and.isComplete());
+		assertEquivalent(andFilter);
+
+		// But OR filters are not
+		final ReceiptOrFilter orFilter = new ReceiptOrFilter();
+		orFilter.or(categoryFilter).or(selectedFilter);
+		final ReceiptFilterCompiler.CompiledFilter or = compiler.compile(orFilter);
+		assertNull(or.getSelection());
+		assertEquals(orFilter, or.getResidualFilter());
+		assertEquivalent(orFilter);
+
+		assertTrue(compiler.compile(categoryFilter).isComplete());
+		assertTrue(compiler.compile(null).isComplete());
+	}
+
+	@Test
+	public void compiledTripFiltersApplyToTheListsAndTotals() throws JSONException {
+		final ReceiptAndFilter filter = new ReceiptAndFilter();
+		filter.and(new ReceiptIsExpensableFilter()).and(new ReceiptCategoryFilter(Constants.CATEGORY));
+		assertTripFiltered(filter);
+	}
+
+	@Test
+	public void partiallyCompiledTripFiltersApplyToTheListsAndTotals() throws JSONException {
+		// Only the first two are compiled, so the last is applied to the loaded receipts
+		final ReceiptAndFilter filter = new ReceiptAndFilter();
+		filter.and(new ReceiptIsExpensableFilter()).and(new ReceiptCategoryFilter(Constants.CATEGORY)).and(new ReceiptNotFilter(new ReceiptSelectedFilter()));
+		assertTripFiltered(filter);
+	}
+
+	private void insertReceipt(String category, String price, Date date, TimeZone timeZone, boolean expensable, String currency) {
+		final ReceiptRow receipt = new ReceiptRow.Builder(-1).setName(Constants.NAME)
+															 .setCategory(category)
+															 .setPrice(price)
+															 .setTax(Constants.TAX)
+															 .setDate(date)
+															 .setTimeZone(timeZone)
+															 .setComment(Constants.COMMENT)
+															 .setIsExpenseable(expensable)
+															 .setCurrency(currency)
+															 .setIsFullPage(Constants.IS_FULLPAGE)
+															 .build();
+		assertNotNull(mDB.insertReceiptSerial(mTrip, receipt, null));
+	}
+
+	private void assertEquivalent(Filter<ReceiptRow> filter) {
+		final ArrayList<Integer> expected = new ArrayList<Integer>();
+		final HashMap<Integer, ReceiptRow> receipts = new HashMap<Integer, ReceiptRow>();
+		final HashSet<String> timeZoneIds = new HashSet<String>();
+		for (ReceiptRow receipt : mDB.getReceiptsSerial(mTrip, true)) {
+			if (filter.accept(receipt)) {
+				expected.add(receipt.getId());
+			}
+			receipts.put(receipt.getId(), receipt);
+			timeZoneIds.add(receipt.getTimeZone().getID());
+		}
+		// Select with the compiled SQL and then apply whatever was left over in Java
+		final ReceiptFilterCompiler.CompiledFilter compiled = new ReceiptFilterCompiler(timeZoneIds).compile(filter);
+		final ArrayList<Integer> actual = new ArrayList<Integer>();
+		for (Integer id : querySelection(compiled)) {
+			if (compiled.accept(receipts.get(id))) {
+				actual.add(id);
+			}
+		}
+		Collections.sort(expected);
+		Collections.sort(actual);
+		assertEquals(filter.getClass().getSimpleName(), expected, actual);
+	}
+
+	/**
+	 * Persists this filter for the trip and verifies that its receipt list, its report list, and its total all agree
+	 * with {@link Filter#accept(Object)}
+	 */
+	private void assertTripFiltered(Filter<ReceiptRow> filter) throws JSONException {
+		final ArrayList<Integer> expected = new ArrayList<Integer>();
+		float expectedPrice = 0;
+		for (ReceiptRow receipt : mDB.getReceiptsSerial(mTrip, false)) {
+			if (filter.accept(receipt)) {
+				expected.add(receipt.getId());
+				expectedPrice += receipt.getPriceAsFloat();
+			}
+		}
+		final ContentValues values = new ContentValues(1);
+		values.put("trips_filters", filter.getJsonRepresentation().toString());
+		assertEquals(1, mDB.getWritableDatabase().update("trips", values, "id = ?", new String[] { Integer.toString(mTrip.getId()) }));
+		TripRow filteredTrip = null;
+		for (TripRow trip : mDB.getTripsSerial()) {
+			if (trip.getId() == mTrip.getId()) {
+				filteredTrip = trip;
+			}
+		}
+		assertNotNull(filteredTrip);
+		assertTrue(filteredTrip.hasFilter());
+		assertEquals(expectedPrice, filteredTrip.getPriceAsFloat(), 0.01f);
+		assertEquals(expected, getIds(mDB.getReceiptsSerial(filteredTrip, false)));
+		assertEquals(expected, getIds(mDB.getReceiptsPaged(filteredTrip, false)));
+	}
+
+	private List<Integer> getIds(List<ReceiptRow> receipts) {
+		final ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < receipts.size(); i++) {
+			final ReceiptRow receipt = receipts.get(i);
+			assertEquals(i + 1, receipt.getIndex());
+			ids.add(receipt.getId());
+		}
+		return ids;
+	}
+
+	private List<Integer> querySelection(ReceiptFilterCompiler.CompiledFilter compiled) {
+		final ArrayList<String> args = new ArrayList<String>();
+		args.add(Integer.toString(mTrip.getId()));
+		args.addAll(Arrays.asList(compiled.getSelectionArgs()));
+		final String selection = "parent = ?" + ((compiled.getSelection() == null) ? "" : " AND " + compiled.getSelection());
+		final ArrayList<Integer> ids = new ArrayList<Integer>();
+		Cursor c = null;
+		try {
+			c = mDB.getReadableDatabase().query("receipts", new String[] { "id" }, selection, args.toArray(new String[args.size()]), null, null, null);
+			if (c != null && c.moveToFirst()) {
+				do {
+					ids.add(c.getInt(0));
+				}
+				while (c.moveToNext());
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return ids;
+	}
+
+}
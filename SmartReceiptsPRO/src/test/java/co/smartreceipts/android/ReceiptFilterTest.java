@@ -34,24 +34,24 @@ import co.smartreceipts.android.filters.ReceiptOnOrBeforeDayFilter;
 import co.smartreceipts.android.filters.ReceiptOrFilter;
 import co.smartreceipts.android.filters.ReceiptSelectedFilter;
 import co.smartreceipts.android.model.ReceiptRow;
-import co.smartreceipts.tests.utils.ReceiptUtils.Constants;
+import co.smartreceipts.android.utils.ReceiptUtils.Constants;
 
 @Config(emulateSdk = 18, manifest = "../SmartReceiptsPRO/AndroidManifest.xml") 
 @RunWith(RobolectricTestRunner.class)
 public class ReceiptFilterTest {
 	
 	// Test constants for Price checking
-	private static final String CURRENCY = Constants.CURRENCY_CODE;
-	private static final String PRICE_NORMAL = "100.00";
-	private static final String PRICE_HIGH = "150.00";
-	private static final String PRICE_LOW = "50.00";
+	static final String CURRENCY = Constants.CURRENCY_CODE;
+	static final String PRICE_NORMAL = "100.00";
+	static final String PRICE_HIGH = "150.00";
+	static final String PRICE_LOW = "50.00";
 
 	// Test constants for Date checking
-	private static final TimeZone TZ = Constants.TIMEZONE;
-	private static final long MILLIS = new java.util.Date().getTime();
-	private static final Date NOW = new Date(MILLIS);
-	private static final Date FUTURE = new Date(MILLIS + 1000);
-	private static final Date PAST = new Date(MILLIS - 1000);
+	static final TimeZone TZ = Constants.TIMEZONE;
+	static final long MILLIS = new java.util.Date().getTime();
+	static final Date NOW = new Date(MILLIS);
+	static final Date FUTURE = new Date(MILLIS + 1000);
+	static final Date PAST = new Date(MILLIS - 1000);
 	
 	private SmartReceiptsApplication mApp;
 
@@ -80,7 +80,7 @@ public class ReceiptFilterTest {
 	}
 	
 	private File getFile(String name) {
-		File tripDir = mApp.getPersistenceManager().getStorageManager().mkdir(co.smartreceipts.tests.utils.TripUtils.Constants.DIRECTORY_NAME);
+		File tripDir = mApp.getPersistenceManager().getStorageManager().mkdir(co.smartreceipts.android.utils.TripUtils.Constants.DIRECTORY_NAME);
 		File file = new File(tripDir, name);
 		mApp.getPersistenceManager().getStorageManager().createFile(file);
 		return file;
@@ -0,0 +1,135 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Date;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.persistence.ReceiptPredictionModel;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReceiptPredictionTest {
+
+	private static final String NAME = "Taxi";
+	private static final String CATEGORY = "Travel";
+	private static final String OTHER_CATEGORY = "Meals";
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private TripRow mTrip;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		final File dir = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		mTrip = mDB.insertTripSerial(dir, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+	}
+
+	@After
+	public void tearDown() {
+		mDB.deleteTripSerial(mTrip);
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void predictionNeedsConsensus() {
+		insertReceipt(NAME, CATEGORY, "12.5");
+		assertPrediction(NAME, null, null); // A single receipt is not enough
+
+		insertReceipt(" taxi ", CATEGORY, "12,50");
+		assertPrediction(NAME, CATEGORY, "12.50");
+
+		insertReceipt("TAXI", OTHER_CATEGORY, "20");
+		assertPrediction("taxi", CATEGORY, "12.50");
+
+		insertReceipt(NAME, OTHER_CATEGORY, "20");
+		assertPrediction(NAME, null, null); // Tied
+
+		assertPrediction("Unknown", null, null);
+	}
+
+	@Test
+	public void predictionFollowsUpdatesAndDeletes() {
+		insertReceipt(NAME, CATEGORY, "10");
+		final ReceiptRow second = insertReceipt(NAME, CATEGORY, "10");
+		assertPrediction(NAME, CATEGORY, "10.00");
+
+		// Loaded now, so everything from here on is incremental
+		final ReceiptRow updated = mDB.updateReceiptSerial(second, mTrip, "Cab", OTHER_CATEGORY, second.getDate(), second.getComment(), "10", second.getTax(), second.isExpensable(), second.getCurrencyCode(), second.isFullPage(), second.getPaymentMethod(), second.getExtraEditText1(), second.getExtraEditText2(), second.getExtraEditText3());
+		assertNotNull(updated);
+		assertPrediction(NAME, null, null);
+		insertReceipt("Cab", OTHER_CATEGORY, "10");
+		assertPrediction("Cab", OTHER_CATEGORY, "10.00");
+
+		assertTrue(mDB.deleteReceiptSerial(updated, mTrip));
+		assertPrediction("Cab", null, null);
+	}
+
+	@Test
+	public void movedReceiptsAreNotCountedTwice() {
+		insertReceipt(NAME, CATEGORY, "10");
+		insertReceipt(NAME, CATEGORY, "10");
+		final ReceiptRow other = insertReceipt(NAME, OTHER_CATEGORY, "10");
+		assertPrediction(NAME, CATEGORY, "10.00");
+
+		final File dir = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME + "_moved");
+		final TripRow newTrip = mDB.insertTripSerial(dir, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		assertNotNull(newTrip);
+		try {
+			assertTrue(mDB.moveReceiptsSerial(Collections.singletonList(other), mTrip, newTrip));
+			assertPrediction(NAME, CATEGORY, "10.00"); // Rather than a tie between the original and its copy
+		}
+		finally {
+			mDB.deleteTripSerial(newTrip);
+		}
+	}
+
+	@Test
+	public void modelIsReloadedAfterTripDeletion() {
+		insertReceipt(NAME, CATEGORY, "10");
+		insertReceipt(NAME, CATEGORY, "10");
+		assertPrediction(NAME, CATEGORY, "10.00");
+		assertTrue(mDB.deleteTripSerial(mTrip));
+		assertPrediction(NAME, null, null);
+	}
+
+	private ReceiptRow insertReceipt(String name, String category, String price) {
+		final ReceiptRow receipt = mDB.insertReceiptSerial(mTrip, null, name, category, new Date(ReceiptUtils.Constants.DATE_MILLIS), ReceiptUtils.Constants.COMMENT, price, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+		assertNotNull(receipt);
+		return receipt;
+	}
+
+	private void assertPrediction(String name, String category, String price) {
+		final ReceiptPredictionModel.Prediction prediction = mDB.predictReceiptSerial(name);
+		assertNotNull(prediction);
+		if (category == null) {
+			assertNull(prediction.getCategory());
+		}
+		else {
+			assertEquals(category, prediction.getCategory());
+		}
+		assertEquals(price, prediction.getPrice());
+	}
+
+}
@@ -0,0 +1,129 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.database.Cursor;
+import co.smartreceipts.android.model.ReceiptRow;
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReceiptSearchTest {
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private TripRow mTrip1, mTrip2;
+	private ReceiptRow mTaxiName, mTaxiCategory, mTaxiComment, mDinner;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		final File dir1 = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME);
+		final File dir2 = mApp.getPersistenceManager().getStorageManager().mkdir(TripUtils.Constants.DIRECTORY_NAME + "2");
+		mTrip1 = mDB.insertTripSerial(dir1, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		mTrip2 = mDB.insertTripSerial(dir2, TripUtils.Constants.START_DATE, TripUtils.Constants.END_DATE, TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+		mTaxiName = insertReceipt(mTrip1, "Taxi to the airport", "Travel", "", 1);
+		mTaxiCategory = insertReceipt(mTrip2, "Cab", "Taxi", "", 2);
+		mTaxiComment = insertReceipt(mTrip2, "Lunch", "Meals", "shared a taxi after", 3);
+		mDinner = insertReceipt(mTrip1, "Dinner", "Meals", "", 4);
+	}
+
+	@After
+	public void tearDown() {
+		mDB.deleteTripSerial(mTrip1);
+		mDB.deleteTripSerial(mTrip2);
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void searchIsRankedAcrossTrips() {
+		final List<ReceiptRow> results = mDB.searchReceiptsSerial("TAX", 0, 10);
+		assertEquals(getIds(mTaxiName, mTaxiCategory, mTaxiComment), getIds(results));
+		assertEquals(mTrip2.getName(), results.get(1).getTrip().getName());
+		assertEquals(3, mDB.getReceiptSearchCount("tax"));
+	}
+
+	@Test
+	public void searchIsPaged() {
+		assertEquals(getIds(mTaxiName, mTaxiCategory), getIds(mDB.searchReceiptsSerial("taxi", 0, 2)));
+		assertEquals(getIds(mTaxiComment), getIds(mDB.searchReceiptsSerial("taxi", 2, 2)));
+		assertTrue(mDB.searchReceiptsSerial("taxi", 4, 2).isEmpty());
+	}
+
+	@Test
+	public void everyWordMustMatch() {
+		assertEquals(getIds(mTaxiName), getIds(mDB.searchReceiptsSerial("air tax", 0, 10)));
+		assertEquals(0, mDB.getReceiptSearchCount("taxi dinner"));
+		assertEquals(0, mDB.getReceiptSearchCount("\"*-:"));
+		assertEquals(0, mDB.getReceiptSearchCount("taxi OR"));
+	}
+
+	@Test
+	public void indexFollowsUpdatesAndDeletes() {
+		assertNotNull(mDB.updateReceiptSerial(mDinner, mTrip1, "Taxi home", mDinner.getCategory(), mDinner.getDate(), mDinner.getComment(), mDinner.getPrice(), mDinner.getTax(), mDinner.isExpensable(), mDinner.getCurrencyCode(), mDinner.isFullPage(), mDinner.getPaymentMethod(), mDinner.getExtraEditText1(), mDinner.getExtraEditText2(), mDinner.getExtraEditText3()));
+		assertEquals(4, mDB.getReceiptSearchCount("taxi"));
+		assertEquals(0, mDB.getReceiptSearchCount("dinner"));
+		assertTrue(mDB.deleteReceiptSerial(mTaxiName, mTrip1));
+		assertEquals(3, mDB.getReceiptSearchCount("taxi"));
+		assertEquals(0, mDB.getReceiptSearchCount("airport"));
+	}
+
+	@Test
+	public void autoCompleteMatchesPrefixes() {
+		assertEquals(1, getAutoCompleteCount("air", DatabaseHelper.TAG_RECEIPTS_NAME));
+		assertEquals(0, getAutoCompleteCount("irport", DatabaseHelper.TAG_RECEIPTS_NAME));
+		assertEquals(1, getAutoCompleteCount("sha", DatabaseHelper.TAG_RECEIPTS_COMMENT));
+		assertEquals(4, getAutoCompleteCount("", DatabaseHelper.TAG_RECEIPTS_NAME));
+		assertEquals(0, getAutoCompleteCount("%", DatabaseHelper.TAG_TRIPS));
+	}
+
+	private int getAutoCompleteCount(String text, String tag) {
+		final Cursor c = mDB.getAutoCompleteCursor(text, tag);
+		try {
+			return c.getCount();
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	private ReceiptRow insertReceipt(TripRow trip, String name, String category, String comment, long offsetMillis) {
+		final ReceiptRow receipt = mDB.insertReceiptSerial(trip, null, name, category, new Date(ReceiptUtils.Constants.DATE_MILLIS + offsetMillis), comment, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+		assertNotNull(receipt);
+		return receipt;
+	}
+
+	private List<Integer> getIds(ReceiptRow... receipts) {
+		final ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (ReceiptRow receipt : receipts) {
+			ids.add(receipt.getId());
+		}
+		return ids;
+	}
+
+	private List<Integer> getIds(List<ReceiptRow> receipts) {
+		return getIds(receipts.toArray(new ReceiptRow[receipts.size()]));
+	}
+
+}
@@ -5,9 +5,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.sql.Date;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.List;
 
 import org.junit.After;
@@ -23,6 +26,8 @@ import co.smartreceipts.android.model.PaymentMethod;
 import co.smartreceipts.android.model.ReceiptRow;
 import co.smartreceipts.android.model.TripRow;
 import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.persistence.PagedReceiptList;
+import co.smartreceipts.android.utils.TestUtils;
 import co.smartreceipts.tests.utils.ReceiptUtils;
 import co.smartreceipts.tests.utils.ReceiptUtils.Constants;
 
@@ -391,4 +396,98 @@ public class ReceiptsDBTest {
 		ReceiptUtils.assertFieldEquality(receipt1, receipts.get(0));
 	}
 	
+	@Test
+	public void moveToPosition() {
+		ReceiptRow receipt1 = insertDefaultReceipt();
+		ReceiptRow receipt2 = insertDefaultReceipt();
+		ReceiptRow receipt3 = insertDefaultReceipt();
+		assertOrder(receipt3, receipt2, receipt1);
+		assertTrue(mDB.moveReceiptToPosition(mTripRow, receipt1, 0));
+		assertOrder(receipt1, receipt3, receipt2); // Dates are left as they were
+		assertTrue(mDB.moveReceiptDown(mTripRow, receipt3));
+		assertOrder(receipt1, receipt2, receipt3);
+		assertFalse(mDB.moveReceiptDown(mTripRow, receipt3));
+		assertFalse(mDB.moveReceiptToPosition(mTripRow, receipt1, 3));
+		assertOrder(receipt1, receipt2, receipt3);
+	}
+
+	@Test
+	public void repeatedMovesRenumber() {
+		ArrayList<ReceiptRow> expected = new ArrayList<ReceiptRow>();
+		for (int i = 0; i < 3; i++) {
+			expected.add(0, insertDefaultReceipt());
+		}
+		// Each move halves the gap below the top receipt, so this runs out of room and renumbers several times
+		for (int i = 0; i < 40; i++) {
+			ReceiptRow bottom = expected.remove(expected.size() - 1);
+			assertTrue(mDB.moveReceiptToPosition(mTripRow, bottom, 1));
+			expected.add(1, bottom);
+			assertOrder(expected.toArray(new ReceiptRow[expected.size()]));
+		}
+	}
+
+	private void assertOrder(ReceiptRow... expected) {
+		List<ReceiptRow> receipts = mDB.getReceiptsSerial(mTripRow);
+		assertNotNull(receipts);
+		assertEquals(expected.length, receipts.size());
+		for (int i = 0; i < expected.length; i++) {
+			ReceiptUtils.assertFieldEquality(expected[i], receipts.get(i));
+		}
+	}
+
+	@Test
+	public void tripTotals() {
+		ReceiptRow receipt1 = insertDefaultReceipt();
+		ReceiptRow receipt2 = mDB.insertReceiptSerial(mTripRow, receipt1);
+		assertEquals(mDB.getTripByName(mTripRow.getName()).getPriceAsFloat(), 2 * Constants.PRICE_DOUBLE, TestUtils.EPSILON);
+		mDB.updateReceiptSerial(receipt2, mTripRow, Constants.NAME, Constants.CATEGORY, receipt2.getDate(), Constants.COMMENT, "10.00", Constants.TAX, Constants.IS_EXPENSABLE, Constants.CURRENCY_CODE, Constants.IS_FULLPAGE, null, null, null, null);
+		assertEquals(mDB.getTripByName(mTripRow.getName()).getPriceAsFloat(), Constants.PRICE_DOUBLE + 10, TestUtils.EPSILON);
+		assertTrue(mDB.moveReceiptSerial(receipt2, mTripRow, mTripRow2));
+		assertEquals(mDB.getTripByName(mTripRow.getName()).getPriceAsFloat(), Constants.PRICE_DOUBLE, TestUtils.EPSILON);
+		assertEquals(mDB.getTripByName(mTripRow2.getName()).getPriceAsFloat(), 10, TestUtils.EPSILON);
+		assertTrue(mDB.deleteReceiptSerial(receipt1, mTripRow));
+		assertEquals(mDB.getTripByName(mTripRow.getName()).getPriceAsFloat(), 0, TestUtils.EPSILON);
+		assertTrue(mDB.verifyTripTotals());
+	}
+	
+	@Test
+	public void pagedReceipts() {
+		final ReceiptRow receipt = insertDefaultReceipt();
+		final int count = 2 * PagedReceiptList.PAGE_SIZE + 7;
+		for (int i = 1; i < count; i++) {
+			mDB.insertReceiptSerial(mTripRow, receipt);
+		}
+		final List<ReceiptRow> receipts = mDB.getReceiptsSerial(mTripRow, false);
+		final PagedReceiptList paged = mDB.getReceiptsPaged(mTripRow, false);
+		assertEquals(count, paged.size());
+		// Jump to the end first to cover the offset fallback. The in order walk below then uses the keyset path
+		assertEquals(receipts.get(count - 1).getId(), paged.get(count - 1).getId());
+		for (int i = 0; i < count; i++) {
+			assertEquals(receipts.get(i).getId(), paged.get(i).getId());
+			assertEquals(i + 1, paged.get(i).getIndex());
+		}
+		assertEquals(0, mDB.getReceiptsPaged(mTripRow2, true).size());
+
+		// The receipts that are left are still read in order. Reading past them throws
+		final PagedReceiptList stale = mDB.getReceiptsPaged(mTripRow, false);
+		assertTrue(mDB.deleteReceiptSerial(receipts.get(0), mTripRow));
+		for (int i = 0; i < count - 1; i++) {
+			assertEquals(receipts.get(i + 1).getId(), stale.get(i).getId());
+		}
+		try {
+			stale.get(count - 1);
+			fail("Read a deleted receipt");
+		}
+		catch (ConcurrentModificationException e) {
+			// Expected
+		}
+
+		// The next page is still found after the last receipt of the previous one was deleted
+		final PagedReceiptList anchored = mDB.getReceiptsPaged(mTripRow, false);
+		final ReceiptRow anchor = anchored.get(PagedReceiptList.PAGE_SIZE - 1);
+		assertEquals(receipts.get(PagedReceiptList.PAGE_SIZE).getId(), anchor.getId());
+		assertTrue(mDB.deleteReceiptSerial(anchor, mTripRow));
+		assertEquals(receipts.get(PagedReceiptList.PAGE_SIZE + 1).getId(), anchored.get(PagedReceiptList.PAGE_SIZE).getId());
+	}
+	
 }
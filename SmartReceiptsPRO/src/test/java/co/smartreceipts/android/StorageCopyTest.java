@@ -0,0 +1,128 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import wb.android.storage.StorageManager;
+
+/**
+ * Checks that {@link StorageManager}'s channel based copies are exact, including files that are empty, smaller than a
+ * single buffer, or span several buffers
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class StorageCopyTest {
+
+	private static final int[] SIZES = { 0, 1000, 3 * 256 * 1024 + 17 };
+	private static final int ZIP_ENTRY_SIZE = 64 * 1024;
+
+	private File mDir;
+	private StorageManager mStorageManager;
+
+	@Before
+	public void setup() {
+		mDir = new File(Robolectric.application.getCacheDir(), "copies");
+		assertTrue(mDir.mkdirs() || mDir.isDirectory());
+		mStorageManager = new StorageManager(mDir) { };
+	}
+
+	@After
+	public void tearDown() {
+		delete(mDir);
+	}
+
+	@Test
+	public void fileCopiesAreExact() throws IOException {
+		for (final int size : SIZES) {
+			final File source = createFile(size);
+			final File destination = new File(mDir, "destination");
+			assertTrue(mStorageManager.copy(source, destination, true));
+			assertEquals(size, destination.length());
+			assertEquals(StorageManager.getMD5Checksum(source), StorageManager.getMD5Checksum(destination));
+		}
+	}
+
+	@Test
+	public void streamCopiesAreExact() throws IOException {
+		for (final int size : SIZES) {
+			final File source = createFile(size);
+			final File destination = new File(mDir, "destination");
+			final InputStream in = new BufferedInputStream(new FileInputStream(source)); // Not a FileInputStream
+			try {
+				assertTrue(mStorageManager.copy(in, destination, true));
+			}
+			finally {
+				in.close();
+			}
+			assertEquals(size, destination.length());
+			assertEquals(StorageManager.getMD5Checksum(source), StorageManager.getMD5Checksum(destination));
+		}
+	}
+
+	@Test
+	public void zipIsStreamedWithoutTrailingBytes() throws IOException {
+		final File input = new File(mDir, "input");
+		assertTrue(input.mkdir());
+		final File source = createFile(ZIP_ENTRY_SIZE);
+		assertTrue(mStorageManager.copy(source, new File(input, "image.jpg"), true));
+		assertTrue(source.delete());
+		File zip = mStorageManager.zip(input);
+		assertEntrySize(zip, ZIP_ENTRY_SIZE);
+		assertTrue(zip.delete());
+		zip = mStorageManager.zipBuffered(input, 8192);
+		assertEntrySize(zip, ZIP_ENTRY_SIZE);
+	}
+
+	private void assertEntrySize(File zip, long size) throws IOException {
+		final ZipFile zipFile = new ZipFile(zip);
+		try {
+			final ZipEntry entry = zipFile.getEntry("image.jpg");
+			assertEquals(size, entry.getSize());
+		}
+		finally {
+			zipFile.close();
+		}
+	}
+
+	private File createFile(int size) throws IOException {
+		final File file = new File(mDir, "source");
+		final byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private void delete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,98 @@
+package co.smartreceipts.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.sql.Date;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import co.smartreceipts.android.model.TripRow;
+import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.android.utils.ReceiptUtils;
+import co.smartreceipts.android.utils.TestUtils;
+import co.smartreceipts.android.utils.TripUtils;
+
+/**
+ * Compares the single query trip summary loader (i.e. {@link DatabaseHelper#getTripsSerial()}) against the legacy
+ * per-trip queries, which are still used by {@link DatabaseHelper#getTripByName(String)}. The results must be
+ * identical.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class TripSummaryQueryTest {
+
+	private static final int RECEIPTS_PER_TRIP = 3;
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+	}
+
+	@After
+	public void tearDown() {
+		mDB.close();
+		mDB = null;
+		mApp = null;
+	}
+
+	@Test
+	public void oneTrip() {
+		assertSummariesMatch(1);
+	}
+
+	@Test
+	public void manyTrips() {
+		assertSummariesMatch(100);
+	}
+
+	private void assertSummariesMatch(final int tripCount) {
+		insertTrips(tripCount);
+		final HashMap<String, TripRow> legacyTrips = new HashMap<String, TripRow>(tripCount);
+		for (int i = 0; i < tripCount; i++) {
+			final TripRow legacyTrip = mDB.getTripByName(getTripName(i));
+			legacyTrips.put(legacyTrip.getName(), legacyTrip);
+		}
+		final TripRow[] summaryTrips = mDB.getTripsSerial();
+		assertNotNull(summaryTrips);
+		assertEquals(tripCount, summaryTrips.length);
+		for (int i = 0; i < tripCount; i++) {
+			final TripRow summaryTrip = summaryTrips[i];
+			final TripRow legacyTrip = legacyTrips.get(summaryTrip.getName());
+			assertNotNull(legacyTrip);
+			TripUtils.assertFieldEquality(legacyTrip, summaryTrip);
+			assertEquals(legacyTrip.getDailySubTotalAsFloat(), summaryTrip.getDailySubTotalAsFloat(), TestUtils.EPSILON);
+		}
+	}
+
+	private void insertTrips(final int tripCount) {
+		for (int i = 0; i < tripCount; i++) {
+			final File dir = mApp.getPersistenceManager().getStorageManager().mkdir(getTripName(i));
+			final TripRow trip = mDB.insertTripSerial(dir, new Date(TripUtils.Constants.START_DATE_MILLIS + i), new Date(TripUtils.Constants.END_DATE_MILLIS + i), TripUtils.Constants.COMMENT, TripUtils.Constants.CURRENCY_CODE);
+			for (int j = 0; j < RECEIPTS_PER_TRIP; j++) {
+				// Mix the currencies on every other trip, so we test both the single and multi currency paths
+				final String currency = (i % 2 == 0 || j == 0) ? ReceiptUtils.Constants.CURRENCY_CODE : "EUR";
+				final boolean expensable = (j != 1);
+				final Date date = (j == 2) ? new Date(System.currentTimeMillis()) : new Date(ReceiptUtils.Constants.DATE_MILLIS);
+				mDB.insertReceiptSerial(trip, null, ReceiptUtils.Constants.NAME, ReceiptUtils.Constants.CATEGORY, date, ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, expensable, currency, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+			}
+		}
+	}
+
+	private String getTripName(final int index) {
+		return TripUtils.Constants.DIRECTORY_NAME + "_" + index;
+	}
+
+}
@@ -14,8 +14,10 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import co.smartreceipts.android.SmartReceiptsApplication;
+import co.smartreceipts.android.model.ReceiptRow;
 import co.smartreceipts.android.model.TripRow;
 import co.smartreceipts.android.persistence.DatabaseHelper;
+import co.smartreceipts.tests.utils.ReceiptUtils;
 import co.smartreceipts.tests.utils.TestUtils;
 import co.smartreceipts.tests.utils.TripUtils.Constants;
 
@@ -81,6 +83,22 @@ public class TripsDBTest {
 		assertEquals(newTrip, trips[0]);
 	}
 	
+	@Test
+	public void renameKeepsReceipts() {
+		TripRow oldTrip = insertDefaultTrip();
+		ReceiptRow receipt = mDB.insertReceiptSerial(oldTrip, null, ReceiptUtils.Constants.NAME, ReceiptUtils.Constants.CATEGORY, ReceiptUtils.Constants.DATE, ReceiptUtils.Constants.COMMENT, ReceiptUtils.Constants.PRICE, ReceiptUtils.Constants.TAX, ReceiptUtils.Constants.IS_EXPENSABLE, ReceiptUtils.Constants.CURRENCY_CODE, ReceiptUtils.Constants.IS_FULLPAGE, null, ReceiptUtils.Constants.EXTRA1, ReceiptUtils.Constants.EXTRA2, ReceiptUtils.Constants.EXTRA3);
+		assertNotNull(receipt);
+		File newDir = mApp.getPersistenceManager().getStorageManager().rename(oldTrip.getDirectory(), "renamedDir");
+		TripRow newTrip = mDB.updateTripSerial(oldTrip, newDir, oldTrip.getStartDate(), oldTrip.getEndDate(), oldTrip.getComment(), oldTrip.getDefaultCurrencyCode());
+		assertNotNull(newTrip);
+		assertEquals(oldTrip.getId(), newTrip.getId());
+		assertEquals(1, mDB.getReceiptsSerial(newTrip).size());
+		assertEquals(newTrip, mDB.getReceiptByID(receipt.getId()).getTrip());
+		assertEquals(newTrip.getPrice(), mDB.getTripByName(newTrip.getName()).getPrice());
+		assertNull(mDB.getTripByName(oldTrip.getName()));
+		assertTrue(mDB.deleteTripSerial(newTrip));
+	}
+
 	@Test
 	public void delete() {
 		TripRow insertTrip = insertDefaultTrip();
@@ -0,0 +1,142 @@
+package co.smartreceipts.android.persistence;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import co.smartreceipts.android.SmartReceiptsApplication;
+import co.smartreceipts.android.persistence.DatabaseHelper.ReceiptsTable;
+
+/**
+ * Runs EXPLAIN QUERY PLAN against the per trip queries that {@link DatabaseHelper} issues most often and fails if any
+ * of them falls back to a full table scan. The SQL comes from the same builders that DatabaseHelper uses, so this test
+ * tracks any change to them.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class QueryPlanTest {
+
+	private static final String TRIP = "1"; // Trips are referenced by id
+
+	private SmartReceiptsApplication mApp;
+	private DatabaseHelper mDB;
+	private SQLiteDatabase mSQLiteDatabase;
+
+	@Before
+	public void setup() {
+		mApp = (SmartReceiptsApplication) Robolectric.application;
+		mDB = mApp.getPersistenceManager().getDatabase();
+		mSQLiteDatabase = mDB.getReadableDatabase();
+	}
+
+	@After
+	public void tearDown() {
+		mDB.close();
+		mDB = null;
+		mSQLiteDatabase = null;
+		mApp = null;
+	}
+
+	@Test
+	public void receiptsBySortKey() {
+		assertNotSorted(assertSearched(DatabaseHelper.getReceiptsQuery(true), new String[] { TRIP }, ReceiptsTable.TABLE_NAME));
+		assertNotSorted(assertSearched(DatabaseHelper.getReceiptsQuery(false), new String[] { TRIP }, ReceiptsTable.TABLE_NAME));
+	}
+
+	@Test
+	public void receiptsPage() {
+		final List<String> offsetPlan = assertSearched(DatabaseHelper.getReceiptsPageQuery(false, false, 50, 50), new String[] { TRIP }, ReceiptsTable.TABLE_NAME);
+		assertNotSorted(offsetPlan);
+		final List<String> keysetPlan = assertSearched(DatabaseHelper.getReceiptsPageQuery(false, true, 50, 50), new String[] { TRIP, "0", "0", "0" }, ReceiptsTable.TABLE_NAME);
+		assertNotSorted(keysetPlan);
+	}
+
+	@Test
+	public void receiptPosition() {
+		assertSearched(DatabaseHelper.RECEIPT_POSITION_QUERY, new String[] { "0", TRIP, TRIP, "0", TRIP, "0", TRIP, "0" }, ReceiptsTable.TABLE_NAME);
+	}
+
+	@Test
+	public void receiptCount() {
+		assertSearched(DatabaseHelper.RECEIPT_COUNT_QUERY, new String[] { TRIP }, ReceiptsTable.TABLE_NAME);
+	}
+
+	@Test
+	public void graphColumns() {
+		assertSearched(DatabaseHelper.getGraphColumnsQuery(ReceiptsTable.COLUMN_CATEGORY, ReceiptsTable.COLUMN_PRICE), new String[] { TRIP }, ReceiptsTable.TABLE_NAME);
+	}
+
+	@Test
+	public void tripPrice() {
+		assertSearched(DatabaseHelper.getTripPriceQuery(false), new String[] { TRIP }, "trip_totals");
+		assertSearched(DatabaseHelper.getTripPriceQuery(true), new String[] { TRIP }, "trip_totals");
+	}
+
+	@Test
+	public void tripDailyPrice() {
+		assertSearched(DatabaseHelper.getTripDailyPriceQuery(false), new String[] { TRIP, "0", "96" }, "trip_totals");
+	}
+
+	@Test
+	public void currencyCount() {
+		assertSearched(DatabaseHelper.CURR_CNT_QUERY, new String[] { TRIP }, "trip_totals");
+	}
+
+	/**
+	 * Asserts that every step of the query plan that touches the table uses an index search
+	 *
+	 * @return the query plan details
+	 */
+	private List<String> assertSearched(String sql, String[] args, String table) {
+		final List<String> plan = explain(sql, args);
+		boolean touchesTable = false;
+		for (String detail : plan) {
+			if (detail.contains(" " + table + " ") || detail.endsWith(" " + table)) {
+				touchesTable = true;
+				assertTrue("Full scan in plan for: " + sql + " -> " + detail, detail.startsWith("SEARCH"));
+			}
+		}
+		assertTrue("No plan found for: " + sql + " -> " + plan, touchesTable);
+		return plan;
+	}
+
+	private void assertNotSorted(List<String> plan) {
+		for (String detail : plan) {
+			assertFalse("Extra sort in plan: " + detail, detail.contains("ORDER BY"));
+		}
+	}
+
+	private List<String> explain(String sql, String[] args) {
+		final ArrayList<String> details = new ArrayList<String>();
+		Cursor c = null;
+		try {
+			c = mSQLiteDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+			if (c != null && c.moveToFirst()) {
+				final int detailIndex = c.getColumnIndex("detail");
+				do {
+					details.add(c.getString(detailIndex));
+				}
+				while (c.moveToNext());
+			}
+		}
+		finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return details;
+	}
+
+}
@@ -0,0 +1,177 @@
+package wb.android.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ParallelZipWriterTest {
+
+	private static final int FILES = 20;
+	private static final int THREADS = 4;
+
+	private File mDir;
+
+	@Before
+	public void setup() {
+		mDir = new File(Robolectric.application.getCacheDir(), "parallel");
+		assertTrue(mDir.mkdirs() || mDir.isDirectory());
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : mDir.listFiles()) {
+			file.delete();
+		}
+		mDir.delete();
+	}
+
+	@Test
+	public void entriesAreWrittenInOrder() throws Exception {
+		assertEntriesAreWrittenInOrder(false);
+	}
+
+	@Test
+	public void splitEntriesAreWrittenInOrder() throws Exception {
+		assertEntriesAreWrittenInOrder(true); // As on KitKat and up, which these tests do not emulate
+	}
+
+	@Test
+	public void unzipReadsTheSplitOutput() throws Exception {
+		// Spans more chunks than are let in flight at once
+		final File file = createFile("image.jpg", 10 * ParallelZipWriter.CHUNK_SIZE + 1, new Random(3));
+		final File zip = new File(mDir, "output.zip");
+		final MessageDigest digest = MessageDigest.getInstance("MD5");
+		final ParallelZipWriter writer = new ParallelZipWriter(zip, THREADS, Deflater.BEST_SPEED, true);
+		writer.write("image.jpg", file, digest);
+		writer.close();
+		final File output = new File(mDir, "output");
+		assertTrue(new StorageManager(output) { }.unzip(zip, true));
+		final File unzipped = new File(output, "image.jpg");
+		assertEquals(StorageManager.getMD5Checksum(file), StorageManager.getMD5Checksum(unzipped));
+		assertEquals(StorageManager.getMD5Checksum(file), toHex(digest.digest()));
+		unzipped.delete();
+		output.delete();
+	}
+
+	private void assertEntriesAreWrittenInOrder(boolean canSplit) throws Exception {
+		final Random random = new Random(1);
+		final File[] files = new File[FILES];
+		final MessageDigest[] digests = new MessageDigest[FILES];
+		for (int i = 0; i < FILES; i++) {
+			// Mostly small files, with a few that span several chunks (and an empty one)
+			final int size = (i == 0) ? 0 : (i % 7 == 0) ? 3 * ParallelZipWriter.CHUNK_SIZE + i : random.nextInt(64 * 1024);
+			files[i] = createFile("file" + i, size, random);
+			digests[i] = MessageDigest.getInstance("MD5");
+		}
+
+		final File zip = new File(mDir, "output.zip");
+		final ParallelZipWriter writer = new ParallelZipWriter(zip, THREADS, Deflater.DEFAULT_COMPRESSION, canSplit);
+		for (int i = 0; i < FILES; i++) {
+			writer.write("dir/" + files[i].getName(), files[i], digests[i]);
+		}
+		writer.close();
+
+		final ZipFile zipFile = new ZipFile(zip);
+		try {
+			assertEquals(FILES, zipFile.size());
+			for (int i = 0; i < FILES; i++) {
+				final ZipEntry entry = zipFile.getEntry("dir/" + files[i].getName());
+				assertEquals(files[i].length(), entry.getSize());
+				assertArrayEquals(read(new FileInputStream(files[i])), read(zipFile.getInputStream(entry)));
+				assertEquals(StorageManager.getMD5Checksum(files[i]), toHex(digests[i].digest()));
+			}
+		}
+		finally {
+			zipFile.close();
+		}
+
+		// Streaming readers (like the import) see the same entries, in the order they were queued
+		final ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+		try {
+			for (int i = 0; i < FILES; i++) {
+				assertEquals("dir/" + files[i].getName(), in.getNextEntry().getName());
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void unzipReadsTheOutput() throws IOException {
+		final File file = createFile("image.jpg", 2 * ParallelZipWriter.CHUNK_SIZE + 1, new Random(2));
+		final File zip = new File(mDir, "output.zip");
+		final ParallelZipWriter writer = new ParallelZipWriter(zip, THREADS, Deflater.BEST_SPEED);
+		writer.write("image.jpg", file, null);
+		writer.close();
+		final File output = new File(mDir, "output");
+		assertTrue(new StorageManager(output) { }.unzip(zip, true));
+		final File unzipped = new File(output, "image.jpg");
+		assertEquals(StorageManager.getMD5Checksum(file), StorageManager.getMD5Checksum(unzipped));
+		unzipped.delete();
+		output.delete();
+	}
+
+	private File createFile(String name, int size, Random random) throws IOException {
+		final File file = new File(mDir, name);
+		final byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) ('a' + random.nextInt(8)); // Compressible, like most of a backup
+		}
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private byte[] read(InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private String toHex(byte[] bytes) {
+		final StringBuilder builder = new StringBuilder();
+		for (byte b : bytes) {
+			builder.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+		}
+		return builder.toString();
+	}
+
+}
@@ -8,7 +8,11 @@ public abstract class BooleanProgressTask<T> extends ProgressTask<T, Boolean>{
 	private final int taskID;
 	
 	public BooleanProgressTask(Context context, BooleanTaskCompleteDelegate delegate, String progressMessage, int taskID) {
-		super(context, progressMessage, true);
+		this(context, delegate, progressMessage, taskID, false);
+	}
+	
+	public BooleanProgressTask(Context context, BooleanTaskCompleteDelegate delegate, String progressMessage, int taskID, boolean cancelable) {
+		super(context, progressMessage, true, cancelable);
 		this.delegate = delegate;
 		this.taskID = taskID;
 	}
@@ -17,5 +21,10 @@ public abstract class BooleanProgressTask<T> extends ProgressTask<T, Boolean>{
 	protected void onTaskCompleted(Boolean success) {
 		delegate.onBooleanTaskComplete(taskID, success);
 	}
+	
+	@Override
+	protected void onTaskCancelled() {
+		delegate.onBooleanTaskComplete(taskID, false);
+	}
 
 }
@@ -4,6 +4,7 @@ import java.lang.ref.WeakReference;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.os.AsyncTask;
 
 public abstract class ProgressTask<T, V> extends AsyncTask<T, Void, V> {
@@ -11,10 +12,22 @@ public abstract class ProgressTask<T, V> extends AsyncTask<T, Void, V> {
 	private WeakReference<ProgressDialog> mDialogReference;
 	private final String progressMessage;
 	private final boolean showDialog;
+	private final boolean cancelable;
+	private volatile int mProgress, mMax;
 	
 	public ProgressTask(Context context, String progressMessage, boolean showDialog) {
+		this(context, progressMessage, showDialog, false);
+	}
+	
+	/**
+	 * @param cancelable
+	 *            - if the dialog may be cancelled with the back button, which cancels this task. It is up to
+	 *            {@link #doInBackground} to poll {@link #isCancelled()} and stop early
+	 */
+	public ProgressTask(Context context, String progressMessage, boolean showDialog, boolean cancelable) {
 		this.progressMessage = progressMessage;
 		this.showDialog = showDialog;
+		this.cancelable = cancelable;
 		if (showDialog) this.mDialogReference = new WeakReference<ProgressDialog>(new ProgressDialog(context));
 	}
 	
@@ -24,7 +37,15 @@ public abstract class ProgressTask<T, V> extends AsyncTask<T, Void, V> {
 			if (progress != null) {
 				progress.setMessage(progressMessage);
 				progress.setIndeterminate(true);
-				progress.setCancelable(false);
+				progress.setCancelable(cancelable);
+				if (cancelable) {
+					progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+						@Override
+						public void onCancel(DialogInterface dialog) {
+							cancel(false);
+						}
+					});
+				}
 		        progress.show();
 			}
 		}
@@ -32,6 +53,17 @@ public abstract class ProgressTask<T, V> extends AsyncTask<T, Void, V> {
 	
 	@Override
 	protected final void onPostExecute(V v) {
+		dismissDialog();
+		onTaskCompleted(v);
+	}
+	
+	@Override
+	protected final void onCancelled() {
+		dismissDialog();
+		onTaskCancelled();
+	}
+	
+	private void dismissDialog() {
 		if (showDialog) {
 			final ProgressDialog progress = mDialogReference.get();
 			if (progress != null) {
@@ -40,10 +72,35 @@ public abstract class ProgressTask<T, V> extends AsyncTask<T, Void, V> {
 				}
 			}
 		}
-		onTaskCompleted(v);
+	}
+	
+	/**
+	 * Reports a determinate amount of progress, which is appended to the dialog message as a percentage. This may be
+	 * called from any thread.
+	 */
+	protected final void updateProgress(int progress, int max) {
+		mProgress = progress;
+		mMax = max;
+		publishProgress();
+	}
+	
+	@Override
+	protected void onProgressUpdate(Void... values) {
+		if (showDialog && mMax > 0) {
+			final ProgressDialog progress = mDialogReference.get();
+			if (progress != null && progress.isShowing()) {
+				progress.setMessage(progressMessage + " " + (Math.min(mProgress, mMax) * 100 / mMax) + "%");
+			}
+		}
 	}
 	
 	protected abstract void onTaskCompleted(V v);
 	
+	/**
+	 * Called on the UI thread instead of {@link #onTaskCompleted} if this task was cancelled
+	 */
+	protected void onTaskCancelled() {
+	}
+	
 	
 }
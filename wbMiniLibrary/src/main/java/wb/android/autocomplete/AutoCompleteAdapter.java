@@ -7,6 +7,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.AutoCompleteTextView;
 import android.widget.CursorAdapter;
 import android.widget.FilterQueryProvider;
 import android.widget.Filterable;
@@ -15,12 +16,11 @@ import android.widget.TextView;
 
 public class AutoCompleteAdapter extends CursorAdapter implements Filterable, FilterQueryProvider {
 
-	private final QueryListener mQueryListener;
+	private final AutoCompleteEngine mEngine;
 	private final CharSequence mTag; 
 	private final MyClickListener mClickListener;
 	private final ItemSelectedListener mItemSelectedListener;
-	private final int mCol;
-	private String mLastString;
+	private volatile String mLastString;
 	
 	public interface ItemSelectedListener {
 		public void onItemSelected(CharSequence text, CharSequence tag);
@@ -31,15 +31,14 @@ public class AutoCompleteAdapter extends CursorAdapter implements Filterable, Fi
 	}
 	
 	@SuppressWarnings("deprecation")
-	private AutoCompleteAdapter(Activity activity, Cursor cursor, QueryListener mQueryListener, CharSequence mTag, ItemSelectedListener itemSelectedListener, int col) {
-		super(activity, cursor);
-		this.mQueryListener = mQueryListener;
+	private AutoCompleteAdapter(Activity activity, AutoCompleteEngine engine, CharSequence mTag, ItemSelectedListener itemSelectedListener) {
+		super(activity, null);
+		this.mEngine = engine;
 		this.mTag = mTag;
 		this.mLastString = "";
 		setFilterQueryProvider(this);
 		this.mClickListener = new MyClickListener();
 		mItemSelectedListener = itemSelectedListener;
-		mCol = col;
 	}
 	
 	public static AutoCompleteAdapter getInstance(Activity activity, CharSequence mTag, QueryListener queryListener) {
@@ -51,12 +50,29 @@ public class AutoCompleteAdapter extends CursorAdapter implements Filterable, Fi
 	}
 	
 	public static AutoCompleteAdapter getInstance(Activity activity, CharSequence mTag, QueryListener queryListener, ItemSelectedListener itemSelectedListener, int col) {
-		Cursor cursor = queryListener.getAutoCompleteCursor("", mTag);
-		return new AutoCompleteAdapter(activity, cursor, queryListener, mTag, itemSelectedListener, col);
+		// Nothing is queried here, since this is the UI thread. The first keystroke will run on the filter thread instead
+		return new AutoCompleteAdapter(activity, new AutoCompleteEngine(queryListener, mTag, col), mTag, itemSelectedListener);
+	}
+
+	/**
+	 * Sets this as the adapter for a view and lets the {@link AutoCompleteEngine} watch it for keystrokes, so stale
+	 * queries can be debounced and dropped. This is preferred to {@link AutoCompleteTextView#setAdapter}. Any cached
+	 * suggestions are dropped, since items may have been saved since this adapter was last attached.
+	 */
+	public void attachTo(AutoCompleteTextView view) {
+		mEngine.clear();
+		view.removeTextChangedListener(mEngine);
+		view.addTextChangedListener(mEngine);
+		view.setAdapter(this);
+	}
+
+	public AutoCompleteEngine getEngine() {
+		return mEngine;
 	}
 	
 	public void reset() {
 		this.mLastString = "";
+		mEngine.clear();
 		onPause();
 	}
 	
@@ -69,7 +85,7 @@ public class AutoCompleteAdapter extends CursorAdapter implements Filterable, Fi
 
 	@Override
 	public void bindView(View view, Context context, Cursor cursor) {
-		String text = cursor.getString(mCol);
+		String text = cursor.getString(AutoCompleteEngine.COLUMN_SUGGESTION);
 		if (text.trim().equalsIgnoreCase(mLastString.trim())) {
 			view.getRootView().setVisibility(View.INVISIBLE);
 			//TODO: Push on item selected...
@@ -87,14 +103,14 @@ public class AutoCompleteAdapter extends CursorAdapter implements Filterable, Fi
 			((ListView) parent).setOnItemClickListener(mClickListener);
 		}
         final TextView view = (TextView) inflater.inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
-        String item = cursor.getString(mCol);
+        String item = cursor.getString(AutoCompleteEngine.COLUMN_SUGGESTION);
         view.setText(item);
         return view;
 	}
 	
 	@Override
 	public CharSequence convertToString(Cursor cursor) {
-		return cursor.getString(mCol);
+		return cursor.getString(AutoCompleteEngine.COLUMN_SUGGESTION);
 	}
 	
 	private class MyClickListener implements AdapterView.OnItemClickListener {
@@ -108,8 +124,13 @@ public class AutoCompleteAdapter extends CursorAdapter implements Filterable, Fi
 
 	@Override
 	public Cursor runQuery(CharSequence constraint) {
+		final Cursor cursor = mEngine.query(constraint);
+		if (cursor == null) {
+			// Stale. A newer query is on the way, so keep showing the current suggestions until it arrives
+			return getCursor();
+		}
 		mLastString = (constraint == null) ? "" : constraint.toString();
-        return mQueryListener.getAutoCompleteCursor(mLastString, mTag);
+		return cursor;
 	}
 
 }
\ No newline at end of file
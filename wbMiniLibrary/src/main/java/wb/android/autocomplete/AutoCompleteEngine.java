@@ -0,0 +1,281 @@
+package wb.android.autocomplete;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wb.android.BuildConfig;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+
+/**
+ * Runs the queries behind an {@link AutoCompleteAdapter}. Android's {@link android.widget.Filter} already runs each
+ * query on a background thread and drops any request that is still waiting when a newer one arrives. This adds:
+ * <ul>
+ * <li>Debouncing. A query waits until the text has been stable for {@link #getDebounceMillis()}</li>
+ * <li>Cancellation. A query for text that has since changed is abandoned, either before it runs or (since SQLite
+ * queries cannot be interrupted on older devices) before its results are published</li>
+ * <li>Caching. The suggestions for recent text are kept in a small LRU, so text that is typed again (e.g. after a
+ * backspace) is answered from memory</li>
+ * <li>Instrumentation. The time from each keystroke to its suggestions is tracked</li>
+ * </ul>
+ * The engine only learns about keystrokes when it is registered as a {@link TextWatcher} on the view (see
+ * {@link AutoCompleteAdapter#attachTo(android.widget.AutoCompleteTextView)}). Until then, every request is treated as
+ * current and runs immediately.
+ *
+ * @author wrb
+ */
+public class AutoCompleteEngine implements TextWatcher {
+
+	private static final String TAG = "AutoCompleteEngine";
+
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 150;
+	public static final int DEFAULT_CACHE_SIZE = 32;
+
+	/**
+	 * The column of each suggestion in the cursors returned by {@link #query(CharSequence)}
+	 */
+	public static final int COLUMN_SUGGESTION = 0;
+	private static final String[] COLUMNS = { "suggestion", BaseColumns._ID };
+
+	private final AutoCompleteAdapter.QueryListener mQueryListener;
+	private final CharSequence mTag;
+	private final int mCol;
+	private final long mDebounceMillis;
+	private final LinkedHashMap<String, List<String>> mCache;
+
+	// All guarded by mLock
+	private final Object mLock = new Object();
+	private String mLatestText;
+	private long mLatestKeystrokeNanos;
+	private int mQueryCount, mCacheHitCount, mStaleCount, mLatencyCount;
+	private long mTotalLatencyNanos, mMaxLatencyNanos;
+
+	public AutoCompleteEngine(AutoCompleteAdapter.QueryListener queryListener, CharSequence tag, int col) {
+		this(queryListener, tag, col, DEFAULT_DEBOUNCE_MILLIS, DEFAULT_CACHE_SIZE);
+	}
+
+	public AutoCompleteEngine(AutoCompleteAdapter.QueryListener queryListener, CharSequence tag, int col, long debounceMillis, final int cacheSize) {
+		mQueryListener = queryListener;
+		mTag = tag;
+		mCol = col;
+		mDebounceMillis = debounceMillis;
+		mCache = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Records a keystroke. This is called on the UI thread
+	 */
+	public void onTextChanged(CharSequence text) {
+		synchronized (mLock) {
+			mLatestText = toKey(text);
+			mLatestKeystrokeNanos = System.nanoTime();
+			mLock.notifyAll();
+		}
+	}
+
+	@Override
+	public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+	}
+
+	@Override
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+	}
+
+	@Override
+	public void afterTextChanged(Editable s) {
+		onTextChanged(s);
+	}
+
+	/**
+	 * Gets the suggestions for some text. Unless they are cached, this waits out the debounce interval, so it must not
+	 * be called on the UI thread.
+	 *
+	 * @param text
+	 *            - the text to get suggestions for
+	 * @return a {@link Cursor} of suggestions (see {@link #COLUMN_SUGGESTION}) or {@code null} if the text changed
+	 *         before the suggestions were ready
+	 */
+	public Cursor query(CharSequence text) {
+		final String key = toKey(text);
+		final long requestNanos = System.nanoTime();
+		synchronized (mLock) {
+			final List<String> cached = mCache.get(key);
+			if (cached != null) {
+				mCacheHitCount++;
+				recordLatency(key, requestNanos);
+				return toCursor(cached);
+			}
+		}
+		if (!awaitQuiet(key)) {
+			synchronized (mLock) {
+				mStaleCount++;
+			}
+			return null;
+		}
+		final List<String> suggestions = readSuggestions(mQueryListener.getAutoCompleteCursor(key, mTag));
+		synchronized (mLock) {
+			mQueryCount++;
+			mCache.put(key, suggestions); // Still valid for this text, even if it is stale now
+			if (isStale(key)) {
+				mStaleCount++;
+				return null;
+			}
+			recordLatency(key, requestNanos);
+		}
+		return toCursor(suggestions);
+	}
+
+	/**
+	 * Drops every cached suggestion (e.g. since new items were saved) and forgets the last keystroke
+	 */
+	public void clear() {
+		synchronized (mLock) {
+			mCache.clear();
+			mLatestText = null;
+		}
+	}
+
+	public long getDebounceMillis() {
+		return mDebounceMillis;
+	}
+
+	/**
+	 * @return the number of queries that were sent to the {@link AutoCompleteAdapter.QueryListener}
+	 */
+	public int getQueryCount() {
+		synchronized (mLock) {
+			return mQueryCount;
+		}
+	}
+
+	public int getCacheHitCount() {
+		synchronized (mLock) {
+			return mCacheHitCount;
+		}
+	}
+
+	/**
+	 * @return the number of requests that were abandoned, since the text changed before they completed
+	 */
+	public int getStaleCount() {
+		synchronized (mLock) {
+			return mStaleCount;
+		}
+	}
+
+	/**
+	 * @return the average time from a keystroke to its suggestions in milliseconds (including the debounce interval)
+	 */
+	public float getAverageLatencyMillis() {
+		synchronized (mLock) {
+			return (mLatencyCount == 0) ? 0 : mTotalLatencyNanos / (mLatencyCount * 1000000f);
+		}
+	}
+
+	public float getMaxLatencyMillis() {
+		synchronized (mLock) {
+			return mMaxLatencyNanos / 1000000f;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (mLock) {
+			return "AutoCompleteEngine [tag=" + mTag + ", queries=" + mQueryCount + ", cacheHits=" + mCacheHitCount + ", stale=" + mStaleCount + ", avgLatencyMs=" + getAverageLatencyMillis() + ", maxLatencyMs=" + getMaxLatencyMillis() + "]";
+		}
+	}
+
+	/**
+	 * Waits until no keystrokes have arrived for the debounce interval
+	 *
+	 * @return {@code true} if this text is still current. {@code false} if it was replaced while waiting
+	 */
+	private boolean awaitQuiet(String key) {
+		synchronized (mLock) {
+			while (true) {
+				if (isStale(key)) {
+					return false;
+				}
+				if (mLatestText == null) {
+					return true; // Not attached to a view
+				}
+				final long waitMillis = mDebounceMillis - (System.nanoTime() - mLatestKeystrokeNanos) / 1000000;
+				if (waitMillis <= 0) {
+					return true;
+				}
+				try {
+					mLock.wait(waitMillis);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+	}
+
+	private boolean isStale(String key) {
+		return mLatestText != null && !mLatestText.equals(key);
+	}
+
+	private void recordLatency(String key, long requestNanos) {
+		// Measure from the keystroke if we saw it, so the debounce interval is included
+		final long startNanos = (key.equals(mLatestText)) ? Math.min(mLatestKeystrokeNanos, requestNanos) : requestNanos;
+		final long latencyNanos = System.nanoTime() - startNanos;
+		mLatencyCount++;
+		mTotalLatencyNanos += latencyNanos;
+		mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "Suggestions for \"" + key + "\" took " + (latencyNanos / 1000000) + "ms");
+		}
+	}
+
+	private List<String> readSuggestions(Cursor cursor) {
+		if (cursor == null) {
+			return Collections.emptyList();
+		}
+		try {
+			final ArrayList<String> suggestions = new ArrayList<String>(cursor.getCount());
+			if (cursor.moveToFirst()) {
+				do {
+					final String suggestion = cursor.getString(mCol);
+					if (suggestion != null) {
+						suggestions.add(suggestion);
+					}
+				}
+				while (cursor.moveToNext());
+			}
+			return suggestions;
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	private static Cursor toCursor(List<String> suggestions) {
+		final MatrixCursor cursor = new MatrixCursor(COLUMNS, suggestions.size());
+		for (int i = 0; i < suggestions.size(); i++) {
+			cursor.addRow(new Object[] { suggestions.get(i), i });
+		}
+		return cursor;
+	}
+
+	private static String toKey(CharSequence text) {
+		return (text == null) ? "" : text.toString();
+	}
+
+}
@@ -0,0 +1,155 @@
+package wb.android.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * Copies data for {@link StorageManager} through channels instead of small heap arrays. When both ends are files, the
+ * copy is handed to the kernel with {@link FileChannel#transferTo}, so the bytes never enter the Java heap. Otherwise,
+ * a large direct buffer is borrowed from a small pool, so repeated copies (e.g. every file of an export) do not
+ * allocate.
+ *
+ * @author wrb
+ */
+final class ChannelCopier {
+
+	static final int BUFFER_SIZE = 256 * 1024;
+
+	// Large transfers are split up, since some kernels cap (or mishandle) a single sendfile call
+	private static final long MAX_TRANSFER = 8 * 1024 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 4;
+	private static final ArrayList<ByteBuffer> sBufferPool = new ArrayList<ByteBuffer>(MAX_POOLED_BUFFERS);
+
+	private ChannelCopier() {
+	}
+
+	/**
+	 * Copies a file, replacing the destination
+	 *
+	 * @return the number of bytes copied
+	 */
+	static long copy(File source, File destination) throws IOException {
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(source);
+			out = new FileOutputStream(destination);
+			final long copied = copy(in.getChannel(), out.getChannel());
+			out.close();
+			return copied;
+		}
+		finally {
+			StorageManager.closeQuietly(in);
+			StorageManager.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Copies the remaining contents of a stream to a file, replacing the file. The stream is not closed.
+	 *
+	 * @return the number of bytes copied
+	 */
+	static long copy(InputStream in, File destination) throws IOException {
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(destination);
+			// Content providers usually hand out a FileInputStream, so this can often skip the heap as well
+			final ReadableByteChannel from = (in instanceof FileInputStream) ? ((FileInputStream) in).getChannel() : Channels.newChannel(in);
+			final long copied = copy(from, out.getChannel());
+			out.close();
+			return copied;
+		}
+		finally {
+			StorageManager.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Copies a file to a stream (e.g. a zip entry). The stream is neither flushed nor closed.
+	 *
+	 * @return the number of bytes copied
+	 */
+	static long copy(File source, OutputStream out) throws IOException {
+		final FileInputStream in = new FileInputStream(source);
+		try {
+			return copy(in.getChannel(), Channels.newChannel(out));
+		}
+		finally {
+			StorageManager.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Copies the remaining contents of one channel to another. Neither channel is closed.
+	 *
+	 * @return the number of bytes copied
+	 */
+	static long copy(ReadableByteChannel from, WritableByteChannel to) throws IOException {
+		long copied = 0;
+		if (from instanceof FileChannel) {
+			final FileChannel fileChannel = (FileChannel) from;
+			long position, size;
+			try {
+				position = fileChannel.position();
+				size = fileChannel.size();
+			}
+			catch (IOException e) {
+				position = size = 0; // Not a regular file (e.g. a pipe), so it can only be read
+			}
+			while (position < size) {
+				final long count = fileChannel.transferTo(position, Math.min(MAX_TRANSFER, size - position), to);
+				if (count <= 0) {
+					break; // Either it shrank or this file system refuses. Either way, the buffer will finish up
+				}
+				position += count;
+				copied += count;
+			}
+			if (copied > 0) {
+				fileChannel.position(position);
+			}
+		}
+		final ByteBuffer buffer = obtainBuffer();
+		try {
+			while (from.read(buffer) != -1) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					copied += to.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+		finally {
+			recycleBuffer(buffer);
+		}
+		return copied;
+	}
+
+	static ByteBuffer obtainBuffer() {
+		synchronized (sBufferPool) {
+			if (!sBufferPool.isEmpty()) {
+				return sBufferPool.remove(sBufferPool.size() - 1);
+			}
+		}
+		return ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	static void recycleBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		synchronized (sBufferPool) {
+			if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+				sBufferPool.add(buffer);
+			}
+		}
+	}
+
+}
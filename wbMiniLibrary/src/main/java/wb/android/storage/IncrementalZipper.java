@@ -0,0 +1,299 @@
+package wb.android.storage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.util.Log;
+
+/**
+ * Zips a directory like {@link StorageManager#zipBuffered(File, int, FileFilter)}, but re-uses a previous archive that
+ * was built the same way. Each archive carries a manifest ({@link #MANIFEST_ENTRY}) with the path, size, modification
+ * time, and MD5 checksum of every file in it. A file is copied over from the previous archive without being read or
+ * deflated when its path, size, and time match the manifest. Failing that, a file whose size matches some previous
+ * file is checksummed, so a copied or moved file (e.g. after its directory was renamed) is still re-used by content.
+ * Only new and changed files are deflated, so the time taken scales with what changed. They are deflated in parallel by
+ * a {@link ParallelZipWriter}, so without a previous archive this is simply a parallel zip.
+ * <p>
+ * The result is always a complete, standard ZIP file, so it does not depend on the previous archive once written. This
+ * class is not thread-safe.
+ *
+ * @author wrb
+ */
+public final class IncrementalZipper {
+
+	public static final String MANIFEST_ENTRY = "backup_manifest.txt";
+
+	private static final String TAG = "IncrementalZipper";
+	private static final String MANIFEST_HEADER = "# manifest 1";
+	private static final String CHECKSUM_ALGORITHM = "MD5";
+
+	private HashMap<String, Record> mPreviousRecords;
+	private HashMap<String, String> mPreviousPathsByChecksum;
+	private HashSet<Long> mPreviousSizes;
+	private final int mThreads;
+	private ZipArchiveReader mPrevious;
+	private ParallelZipWriter mWriter;
+	private ArrayList<Record> mRecords;
+	private int mReusedCount, mPackedCount;
+	private long mReusedBytes, mPackedBytes;
+
+	public IncrementalZipper() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads
+	 *            - the number of threads to deflate on
+	 */
+	public IncrementalZipper(int threads) {
+		mThreads = threads;
+	}
+
+	/**
+	 * Zips a directory
+	 *
+	 * @param inputDir
+	 *            - the directory to zip
+	 * @param filter
+	 *            - the files and directories to include or {@code null} for all of them
+	 * @param previousArchive
+	 *            - an archive that was written by this class or {@code null}. If it is missing, unreadable, or has no
+	 *            manifest, every file is deflated
+	 * @param output
+	 *            - the archive to write. This may not be the previous archive
+	 */
+	public void zip(File inputDir, FileFilter filter, File previousArchive, File output) throws IOException {
+		if (!inputDir.isDirectory()) {
+			throw new IOException("The input is not a directory: " + inputDir);
+		}
+		mReusedCount = mPackedCount = 0;
+		mReusedBytes = mPackedBytes = 0;
+		mRecords = new ArrayList<Record>();
+		mPreviousRecords = new HashMap<String, Record>();
+		mPreviousPathsByChecksum = new HashMap<String, String>();
+		mPreviousSizes = new HashSet<Long>();
+		mPrevious = openPrevious(previousArchive);
+		try {
+			mWriter = new ParallelZipWriter(output, mThreads, Deflater.DEFAULT_COMPRESSION);
+			boolean success = false;
+			try {
+				zipRecursively(inputDir, inputDir, filter);
+				mWriter.flush(); // So every checksum is complete
+				for (final Record record : mRecords) {
+					if (record.mDigest != null) {
+						record.mChecksum = StorageManager.toHexString(record.mDigest.digest());
+						record.mDigest = null;
+					}
+				}
+				final byte[] manifest = writeManifest(mRecords);
+				mWriter.write(MANIFEST_ENTRY, System.currentTimeMillis(), new ByteArrayInputStream(manifest));
+				mWriter.close();
+				success = true;
+			}
+			finally {
+				if (!success) {
+					closeQuietly(mWriter);
+					output.delete();
+				}
+			}
+		}
+		finally {
+			closeQuietly(mPrevious);
+			mPrevious = null;
+			mWriter = null;
+			mPreviousRecords = null;
+			mPreviousPathsByChecksum = null;
+			mPreviousSizes = null;
+		}
+	}
+
+	/**
+	 * @return the number of files that were copied from the previous archive by the last call to {@link #zip}
+	 */
+	public int getReusedCount() {
+		return mReusedCount;
+	}
+
+	/**
+	 * @return the number of files that were deflated by the last call to {@link #zip}
+	 */
+	public int getPackedCount() {
+		return mPackedCount;
+	}
+
+	public long getReusedBytes() {
+		return mReusedBytes;
+	}
+
+	public long getPackedBytes() {
+		return mPackedBytes;
+	}
+
+	private ZipArchiveReader openPrevious(File previousArchive) {
+		if (previousArchive == null || !previousArchive.exists()) {
+			return null;
+		}
+		ZipArchiveReader reader = null;
+		try {
+			reader = new ZipArchiveReader(previousArchive);
+			for (final Record record : readManifest(previousArchive)) {
+				final ZipArchiveEntry entry = reader.getEntry(record.mPath);
+				if (entry != null && entry.getSize() == record.mSize) {
+					mPreviousRecords.put(record.mPath, record);
+					mPreviousPathsByChecksum.put(record.mChecksum, record.mPath);
+					mPreviousSizes.add(record.mSize);
+				}
+			}
+			return reader;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Ignoring the previous archive " + previousArchive + ": " + e.toString());
+			closeQuietly(reader);
+			mPreviousRecords.clear();
+			mPreviousPathsByChecksum.clear();
+			mPreviousSizes.clear();
+			return null;
+		}
+	}
+
+	private void zipRecursively(File file, File base, FileFilter filter) throws IOException {
+		if (file.isDirectory()) {
+			final File[] files = (filter == null) ? file.listFiles() : file.listFiles(filter);
+			if (files != null) {
+				for (int i = 0; i < files.length; i++) {
+					zipRecursively(files[i], base, filter);
+				}
+			}
+		}
+		else {
+			final String path = file.getPath().substring(base.getPath().length() + 1);
+			if (!path.equals(MANIFEST_ENTRY)) { // e.g. left behind by an unzip
+				zipFile(file, path);
+			}
+		}
+	}
+
+	private void zipFile(File file, String path) throws IOException {
+		final long size = file.length();
+		final long time = file.lastModified();
+		final Record previousRecord = mPreviousRecords.get(path);
+		String checksum = null;
+		if (previousRecord != null && previousRecord.mSize == size && previousRecord.mTime == time) {
+			checksum = previousRecord.mChecksum;
+		}
+		else if (mPreviousSizes.contains(size)) {
+			checksum = StorageManager.getMD5Checksum(file); // Possibly a copy of a previous file
+		}
+		if (checksum != null) {
+			final String previousPath = (previousRecord != null && checksum.equals(previousRecord.mChecksum)) ? path : mPreviousPathsByChecksum.get(checksum);
+			if (previousPath != null) {
+				mWriter.copy(path, time, mPrevious.getEntry(previousPath), mPrevious);
+				mRecords.add(new Record(path, size, time, checksum));
+				mReusedCount++;
+				mReusedBytes += size;
+				return;
+			}
+		}
+
+		// New or changed, so checksum it while it is deflated
+		final Record record = new Record(path, size, time, null);
+		try {
+			record.mDigest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		mWriter.write(path, file, record.mDigest);
+		mRecords.add(record);
+		mPackedCount++;
+		mPackedBytes += size;
+	}
+
+	/**
+	 * @return the manifest of an archive or an empty list if it has none
+	 */
+	static ArrayList<Record> readManifest(File archive) throws IOException {
+		final ArrayList<Record> records = new ArrayList<Record>();
+		final ZipFile zipFile = new ZipFile(archive);
+		BufferedReader reader = null;
+		try {
+			final ZipEntry entry = zipFile.getEntry(MANIFEST_ENTRY);
+			if (entry == null) {
+				return records;
+			}
+			reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(entry), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split("\t", 4);
+				if (fields.length != 4) {
+					continue;
+				}
+				try {
+					records.add(new Record(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+				}
+				catch (NumberFormatException e) {
+					Log.w(TAG, "Skipping a bad manifest line: " + line);
+				}
+			}
+			return records;
+		}
+		finally {
+			StorageManager.closeQuietly(reader);
+			zipFile.close();
+		}
+	}
+
+	/**
+	 * One line per file, as "checksum, size, time, path" separated by tabs. The path is last, since it may contain tabs
+	 */
+	private static byte[] writeManifest(ArrayList<Record> records) throws IOException {
+		final StringBuilder builder = new StringBuilder(MANIFEST_HEADER).append('\n');
+		for (final Record record : records) {
+			builder.append(record.mChecksum).append('\t').append(record.mSize).append('\t').append(record.mTime).append('\t').append(record.mPath).append('\n');
+		}
+		return builder.toString().getBytes("UTF-8");
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) {
+				closeable.close();
+			}
+		}
+		catch (IOException e) {
+			// ignore
+		}
+	}
+
+	static final class Record {
+
+		final String mPath;
+		final long mSize, mTime;
+		String mChecksum;
+		MessageDigest mDigest; // Until the checksum is known
+
+		Record(String path, long size, long time, String checksum) {
+			mPath = path;
+			mSize = size;
+			mTime = time;
+			mChecksum = checksum;
+		}
+	}
+
+}
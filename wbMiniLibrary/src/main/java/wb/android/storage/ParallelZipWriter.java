@@ -0,0 +1,507 @@
+package wb.android.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import wb.android.util.Utils.ApiHelper;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Deflates the files of a {@link ZipArchiveWriter} on a pool of worker threads. Files are split into
+ * {@link #CHUNK_SIZE} chunks, and each chunk is deflated on its own into a buffer (ending on a sync flush, with the end
+ * of the previous chunk as its dictionary, so the chunks join up into one ordinary deflate stream). The thread that
+ * queues the files appends the finished buffers to the archive in the order they were queued, and combines the CRCs of
+ * the chunks. The result is a standard ZIP file. Each flush costs a few bytes, so it is very slightly larger than one
+ * deflated in a single pass.
+ * <p>
+ * Chunks are only submitted while the memory they hold (their input and deflated output) fits in
+ * {@link #MAX_BYTES_IN_FLIGHT}, whatever the number of threads, so memory use does not grow with the size of the files
+ * or the number of cores. A large file is written a chunk at a time as its later chunks are submitted. The sync flush
+ * needs KitKat, so on older versions a file larger than one chunk is deflated in one piece, in order, on the
+ * queueing thread instead. This class is not thread-safe: a single thread should queue entries and close it.
+ *
+ * @author wrb
+ */
+public final class ParallelZipWriter implements Closeable {
+
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024; // The deflate window
+	private static final long MAX_BYTES_IN_FLIGHT = 8 * 1024 * 1024; // About four chunks
+	private static final long CRC_POLYNOMIAL = 0xedb88320L;
+
+	private final ZipArchiveWriter mWriter;
+	private final ExecutorService mExecutor;
+	private final LinkedList<Pending> mPending;
+	private final int mLevel;
+	private final boolean mCanSplit;
+	private long mBytesInFlight;
+	private boolean mHasFailed;
+
+	public ParallelZipWriter(File file) throws IOException {
+		this(file, Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ParallelZipWriter(File file, int threads, int level) throws IOException {
+		this(file, threads, level, ApiHelper.hasKitKat());
+	}
+
+	/**
+	 * @param canSplit
+	 *            - {@code true} if files larger than a chunk may be split (i.e. the sync flush is available)
+	 */
+	ParallelZipWriter(File file, int threads, int level, boolean canSplit) throws IOException {
+		threads = Math.max(1, threads);
+		mWriter = new ZipArchiveWriter(file, level);
+		mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "ParallelZipWriter");
+			}
+		});
+		mPending = new LinkedList<Pending>();
+		mLevel = level;
+		mCanSplit = canSplit;
+	}
+
+	/**
+	 * Queues a file to be deflated
+	 *
+	 * @param digest
+	 *            - an optional digest, which is updated with the contents of the file (in order) before the entry is
+	 *            written. It is complete once {@link #flush()} returns
+	 */
+	public void write(String name, File file, MessageDigest digest) throws IOException {
+		final long size = file.length();
+		final PendingFile pending = new PendingFile(name, file.lastModified(), file, size, digest, mCanSplit || size <= CHUNK_SIZE);
+		enqueue(pending);
+		if (pending.mSplit) {
+			long offset = 0;
+			do {
+				final int length = (int) Math.min(CHUNK_SIZE, size - offset);
+				final long bytes = getBytesHeld(offset, length);
+				while (mBytesInFlight > 0 && mBytesInFlight + bytes > MAX_BYTES_IN_FLIGHT) {
+					writeNext(); // Keep the workers busy, but not too far ahead of the writer
+				}
+				pending.mChunks.add(mExecutor.submit(new ChunkTask(file, offset, length, offset + length >= size, digest != null)));
+				mBytesInFlight += bytes;
+				offset += length;
+			}
+			while (offset < size);
+		}
+		pending.mQueued = true;
+	}
+
+	/**
+	 * Queues an entry to be copied from another archive as-is (see {@link ZipArchiveWriter#copy})
+	 */
+	public void copy(final String name, final long time, final ZipArchiveEntry source, final ZipArchiveReader from) throws IOException {
+		enqueue(new Pending() {
+			@Override
+			void writeTo(ZipArchiveWriter writer) throws IOException {
+				writer.copy(name, time, source, from);
+			}
+		});
+	}
+
+	/**
+	 * Writes the remaining contents of a stream as a new entry, right away, after everything queued so far. This is
+	 * meant for small entries (e.g. a manifest). The stream is not closed.
+	 */
+	public void write(String name, long time, InputStream in) throws IOException {
+		flush();
+		mWriter.write(name, time, in, true);
+	}
+
+	/**
+	 * Waits for every queued entry and writes it to the archive
+	 */
+	public void flush() throws IOException {
+		while (!mPending.isEmpty()) {
+			writeNext();
+		}
+	}
+
+	/**
+	 * Writes every queued entry and the central directory, and closes the archive. If an entry failed, this closes the
+	 * archive without waiting for the rest.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!mHasFailed) {
+				flush();
+			}
+		}
+		finally {
+			mExecutor.shutdownNow();
+			mWriter.close();
+		}
+	}
+
+	private void enqueue(Pending pending) throws IOException {
+		if (mHasFailed) {
+			throw new IOException("An earlier entry failed");
+		}
+		mPending.addLast(pending);
+	}
+
+	/**
+	 * Writes the next chunk of the oldest entry, or all of it if it is not split into chunks
+	 */
+	private void writeNext() throws IOException {
+		final Pending pending = mPending.getFirst();
+		boolean success = false;
+		try {
+			mBytesInFlight -= pending.writeNext(mWriter);
+			if (pending.isWritten()) {
+				mPending.removeFirst();
+			}
+			success = true;
+		}
+		finally {
+			if (!success) {
+				mHasFailed = true;
+				for (final Pending other : mPending) {
+					other.cancel();
+				}
+				mPending.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return roughly how much memory a chunk holds until it is written: its input (with the dictionary) and its output
+	 */
+	private static long getBytesHeld(long offset, int length) {
+		return Math.min(DICTIONARY_SIZE, offset) + 2L * length;
+	}
+
+	private abstract static class Pending {
+
+		private boolean mWritten;
+
+		/**
+		 * Writes the next part of this entry
+		 *
+		 * @return the number of bytes in flight that this released (see {@link ParallelZipWriter#getBytesHeld})
+		 */
+		long writeNext(ZipArchiveWriter writer) throws IOException {
+			writeTo(writer);
+			setWritten();
+			return 0;
+		}
+
+		/**
+		 * Writes all of this entry
+		 */
+		abstract void writeTo(ZipArchiveWriter writer) throws IOException;
+
+		void setWritten() {
+			mWritten = true;
+		}
+
+		boolean isWritten() {
+			return mWritten;
+		}
+
+		void cancel() {
+		}
+	}
+
+	private static final class PendingFile extends Pending {
+
+		private final String mName;
+		private final long mTime, mSize;
+		private final File mFile;
+		private final MessageDigest mDigest;
+		private final boolean mSplit;
+		private final ArrayList<Future<Chunk>> mChunks;
+		private boolean mQueued, mStarted;
+		private int mNextChunk;
+		private long mCrc, mWrittenSize;
+
+		/**
+		 * @param split
+		 *            - {@code true} if the file is deflated in chunks on the workers. {@code false} if it is deflated
+		 *            in one piece on the queueing thread
+		 */
+		private PendingFile(String name, long time, File file, long size, MessageDigest digest, boolean split) {
+			mName = name;
+			mTime = time;
+			mFile = file;
+			mSize = size;
+			mDigest = digest;
+			mSplit = split;
+			mChunks = new ArrayList<Future<Chunk>>();
+		}
+
+		@Override
+		long writeNext(ZipArchiveWriter writer) throws IOException {
+			if (!mSplit) {
+				return super.writeNext(writer);
+			}
+			if (!mStarted) {
+				writer.startEntry(mName, mTime, ZipEntry.DEFLATED);
+				mStarted = true;
+			}
+			long released = 0;
+			if (mNextChunk < mChunks.size()) {
+				final Chunk chunk = get(mChunks.get(mNextChunk));
+				mChunks.set(mNextChunk++, null); // So it can be collected once written
+				writer.writeRaw(chunk.mData, 0, chunk.mDataLength);
+				released = getBytesHeld(mWrittenSize, chunk.mLength);
+				mCrc = combineCrc(mCrc, chunk.mCrc, chunk.mLength);
+				mWrittenSize += chunk.mLength;
+				if (mDigest != null) {
+					mDigest.update(chunk.mInput, 0, chunk.mLength);
+				}
+			}
+			if (mQueued && mNextChunk == mChunks.size()) {
+				if (mWrittenSize != mSize) {
+					throw new IOException(mFile + " changed while it was zipped");
+				}
+				writer.finishEntry(mCrc, mWrittenSize);
+				setWritten();
+			}
+			return released;
+		}
+
+		@Override
+		void writeTo(ZipArchiveWriter writer) throws IOException {
+			// Too large to deflate in one piece on a worker, and it cannot be split on this version
+			final InputStream in = (mDigest == null) ? new FileInputStream(mFile) : new DigestInputStream(new FileInputStream(mFile), mDigest);
+			try {
+				writer.write(mName, mTime, in, true);
+			}
+			finally {
+				StorageManager.closeQuietly(in);
+			}
+		}
+
+		@Override
+		void cancel() {
+			for (final Future<Chunk> chunk : mChunks) {
+				if (chunk != null) {
+					chunk.cancel(true);
+				}
+			}
+		}
+
+		private static Chunk get(Future<Chunk> future) throws IOException {
+			try {
+				return future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(String.valueOf(e.getCause()));
+			}
+		}
+	}
+
+	/**
+	 * A deflated piece of a file
+	 */
+	private static final class Chunk {
+
+		private final byte[] mData, mInput;
+		private final int mDataLength, mLength;
+		private final long mCrc;
+
+		private Chunk(byte[] data, int dataLength, byte[] input, int length, long crc) {
+			mData = data;
+			mDataLength = dataLength;
+			mInput = input;
+			mLength = length;
+			mCrc = crc;
+		}
+	}
+
+	private final class ChunkTask implements Callable<Chunk> {
+
+		private final File mFile;
+		private final long mOffset;
+		private final int mLength;
+		private final boolean mIsLast, mKeepInput;
+
+		private ChunkTask(File file, long offset, int length, boolean isLast, boolean keepInput) {
+			mFile = file;
+			mOffset = offset;
+			mLength = length;
+			mIsLast = isLast;
+			mKeepInput = keepInput;
+		}
+
+		@Override
+		public Chunk call() throws IOException {
+			final int dictionaryLength = (int) Math.min(DICTIONARY_SIZE, mOffset);
+			final byte[] input = new byte[dictionaryLength + mLength];
+			final FileInputStream in = new FileInputStream(mFile);
+			try {
+				readFully(in.getChannel(), ByteBuffer.wrap(input), mOffset - dictionaryLength);
+			}
+			finally {
+				in.close();
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(input, dictionaryLength, mLength);
+
+			final Output output = new Output(mLength / 2 + 64);
+			final byte[] buffer = new byte[64 * 1024];
+			final Deflater deflater = new Deflater(mLevel, true);
+			try {
+				if (dictionaryLength > 0) {
+					deflater.setDictionary(input, 0, dictionaryLength);
+				}
+				deflater.setInput(input, dictionaryLength, mLength);
+				if (mIsLast) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						output.write(buffer, 0, deflater.deflate(buffer));
+					}
+				}
+				else {
+					int count;
+					do {
+						count = syncFlush(deflater, buffer);
+						output.write(buffer, 0, count);
+					}
+					while (count == buffer.length);
+				}
+			}
+			finally {
+				deflater.end();
+			}
+			if (mKeepInput && dictionaryLength > 0) {
+				System.arraycopy(input, dictionaryLength, input, 0, mLength); // The digest wants this chunk alone
+			}
+			return new Chunk(output.getBuffer(), output.size(), mKeepInput ? input : null, mLength, crc.getValue());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static int syncFlush(Deflater deflater, byte[] buffer) {
+		return deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("The file shrank while it was zipped");
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Exposes its buffer, so a chunk does not have to be copied again
+	 */
+	private static final class Output extends ByteArrayOutputStream {
+
+		private Output(int size) {
+			super(size);
+		}
+
+		private byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Combines the CRC-32 of two consecutive blocks of data into the CRC-32 of both, as zlib's crc32_combine does
+	 *
+	 * @param crc1
+	 *            - the CRC of the first block
+	 * @param crc2
+	 *            - the CRC of the second block
+	 * @param length2
+	 *            - the length of the second block
+	 */
+	static long combineCrc(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		final long[] even = new long[32]; // Operator for 2^n zero bits, for even n
+		final long[] odd = new long[32]; // ... and for odd n
+		odd[0] = CRC_POLYNOMIAL; // The operator for one zero bit
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		gf2MatrixSquare(even, odd); // Two zero bits
+		gf2MatrixSquare(odd, even); // Four zero bits
+
+		// Apply length2 zero bytes to crc1 (the first squaring gives the operator for one zero byte)
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(odd, crc1);
+			}
+			length2 >>= 1;
+		}
+		while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+		}
+	}
+
+}
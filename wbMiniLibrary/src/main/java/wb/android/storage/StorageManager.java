@@ -16,6 +16,8 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
@@ -386,8 +388,12 @@ public class StorageManager {
 		FileInputStream fis = null;
 		try {
 			fis = new FileInputStream(f);
-			buffer = new byte[(int) f.length()];
-			fis.read(buffer);
+			final FileChannel channel = fis.getChannel();
+			buffer = new byte[(int) channel.size()];
+			final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+			while (wrapped.hasRemaining() && channel.read(wrapped) != -1) {
+				// A single read may stop short
+			}
 			fis.close();
 		}
 		catch (FileNotFoundException e) {
@@ -507,36 +513,7 @@ public class StorageManager {
 				return false;
 			if (destination.isDirectory())
 				destination = getFile(destination, source.getName());
-			FileInputStream fis = null;
-			FileOutputStream fos = null;
-			try {
-				fis = new FileInputStream(source);
-				fos = new FileOutputStream(destination);
-				byte[] buffer = new byte[8192];
-				int read;
-				while ((read = fis.read(buffer)) != -1) {
-					fos.write(buffer, 0, read);
-				}
-			}
-			catch (IOException e) {
-				throw e;
-			}
-			finally {
-				try {
-					if (fis != null)
-						fis.close();
-				}
-				catch (IOException e) {
-					Log.e(TAG, e.toString());
-				}
-				try {
-					if (fos != null)
-						fos.close();
-				}
-				catch (IOException e) {
-					Log.e(TAG, e.toString());
-				}
-			}
+			ChannelCopier.copy(source, destination);
 		}
 		return true;
 	}
@@ -557,28 +534,7 @@ public class StorageManager {
 		}
 		if (destination.exists() && !overwrite)
 			return false;
-		FileOutputStream fos = null;
-		try {
-			fos = new FileOutputStream(destination);
-			byte[] buffer = new byte[2048];
-			int read;
-			while ((read = is.read(buffer)) != -1) {
-				fos.write(buffer, 0, read);
-			}
-			fos.close();
-		}
-		catch (IOException e) {
-			throw e;
-		}
-		finally {
-			try {
-				if (fos != null)
-					fos.close();
-			}
-			catch (IOException e) {
-				Log.e(TAG, e.toString());
-			}
-		}
+		ChannelCopier.copy(is, destination);
 		return true;
 	}
 
@@ -806,7 +762,6 @@ public class StorageManager {
 				while ((count = reader.read(bytes, 0, buffer)) != -1) {
 					zipStream.write(bytes, 0, count);
 				}
-				zipStream.write(bytes);
 				reader.close();
 			}
 			finally {
@@ -861,8 +816,7 @@ public class StorageManager {
 		else {
 			ZipEntry entry = new ZipEntry(file.getName());
 			zipStream.putNextEntry(entry);
-			byte[] bytes = read(file);
-			zipStream.write(bytes);
+			ChannelCopier.copy(file, zipStream); // Streamed, so a large file does not need to fit in memory
 		}
 	}
 
@@ -953,12 +907,7 @@ public class StorageManager {
 				Log.e(TAG, e.toString());
 				return null;
 			}
-			byte[] b = complete.digest();
-			StringBuilder builder = new StringBuilder();
-			for (int i = 0; i < b.length; i++) {
-				builder.append(Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1));
-			}
-			return builder.toString();
+			return toHexString(complete.digest());
 		}
 		catch (NoSuchAlgorithmException e) {
 			Log.e(TAG, e.toString());
@@ -997,12 +946,7 @@ public class StorageManager {
 				}
 			}
 
-			byte[] b = complete.digest();
-			StringBuilder builder = new StringBuilder();
-			for (int i = 0; i < b.length; i++) {
-				builder.append(Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1));
-			}
-			return builder.toString();
+			return toHexString(complete.digest());
 		}
 		catch (NoSuchAlgorithmException e) {
 			Log.e(TAG, e.toString());
@@ -1010,6 +954,17 @@ public class StorageManager {
 		}
 	}
 
+	/**
+	 * Formats a digest the same way as {@link #getMD5Checksum(File)}
+	 */
+	static String toHexString(byte[] b) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < b.length; i++) {
+			builder.append(Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1));
+		}
+		return builder.toString();
+	}
+
 	public void print() {
 		printHelper(_root, "> ");
 	}
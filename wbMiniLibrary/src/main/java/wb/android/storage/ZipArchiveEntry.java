@@ -0,0 +1,69 @@
+package wb.android.storage;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * An entry of an archive that was read by {@link ZipArchiveReader} or written by {@link ZipArchiveWriter}
+ *
+ * @author wrb
+ */
+public final class ZipArchiveEntry {
+
+	private final String mName;
+	private final int mMethod;
+	private final long mCrc, mCompressedSize, mSize, mDosTime, mHeaderOffset;
+
+	ZipArchiveEntry(String name, int method, long crc, long compressedSize, long size, long dosTime, long headerOffset) {
+		mName = name;
+		mMethod = method;
+		mCrc = crc;
+		mCompressedSize = compressedSize;
+		mSize = size;
+		mDosTime = dosTime;
+		mHeaderOffset = headerOffset;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}
+	 */
+	public int getMethod() {
+		return mMethod;
+	}
+
+	public long getCrc() {
+		return mCrc;
+	}
+
+	public long getCompressedSize() {
+		return mCompressedSize;
+	}
+
+	public long getSize() {
+		return mSize;
+	}
+
+	public boolean isDirectory() {
+		return mName.endsWith("/");
+	}
+
+	long getDosTime() {
+		return mDosTime;
+	}
+
+	/**
+	 * @return the offset of this entry's local file header within the archive
+	 */
+	long getHeaderOffset() {
+		return mHeaderOffset;
+	}
+
+	@Override
+	public String toString() {
+		return "ZipArchiveEntry [name=" + mName + ", method=" + mMethod + ", size=" + mSize + ", compressedSize=" + mCompressedSize + "]";
+	}
+
+}
@@ -0,0 +1,140 @@
+package wb.android.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a ZIP archive, so that {@link ZipArchiveWriter#copy} can copy entries out of it
+ * without inflating them. Use {@link java.util.zip.ZipFile} to read the contents of an entry.
+ *
+ * @author wrb
+ */
+public final class ZipArchiveReader implements Closeable {
+
+	private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+	private final FileInputStream mStream;
+	private final FileChannel mChannel;
+	private final ArrayList<ZipArchiveEntry> mEntries;
+	private final HashMap<String, ZipArchiveEntry> mEntriesByName;
+
+	public ZipArchiveReader(File file) throws IOException {
+		mStream = new FileInputStream(file);
+		mChannel = mStream.getChannel();
+		mEntries = new ArrayList<ZipArchiveEntry>();
+		mEntriesByName = new HashMap<String, ZipArchiveEntry>();
+		try {
+			readCentralDirectory();
+		}
+		catch (IOException e) {
+			StorageManager.closeQuietly(mStream);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the entries of this archive in the order of its central directory
+	 */
+	public List<ZipArchiveEntry> getEntries() {
+		return Collections.unmodifiableList(mEntries);
+	}
+
+	/**
+	 * @return the entry with this name or {@code null} if there is none
+	 */
+	public ZipArchiveEntry getEntry(String name) {
+		return mEntriesByName.get(name);
+	}
+
+	FileChannel getChannel() {
+		return mChannel;
+	}
+
+	/**
+	 * @return the offset of the first byte of an entry's (compressed) data
+	 */
+	long getDataOffset(ZipArchiveEntry entry) throws IOException {
+		final ByteBuffer header = read(entry.getHeaderOffset(), ZipArchiveWriter.LOCAL_HEADER_LENGTH);
+		if (header.getInt(0) != ZipArchiveWriter.LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("Bad local header for " + entry.getName());
+		}
+		final int nameLength = header.getShort(26) & 0xffff;
+		final int extraLength = header.getShort(28) & 0xffff;
+		return entry.getHeaderOffset() + ZipArchiveWriter.LOCAL_HEADER_LENGTH + nameLength + extraLength;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mStream.close();
+	}
+
+	private void readCentralDirectory() throws IOException {
+		final long size = mChannel.size();
+		if (size < ZipArchiveWriter.END_LENGTH) {
+			throw new ZipException("Not a ZIP archive");
+		}
+		// The end record is at the very end, unless the archive has a comment
+		final int tailLength = (int) Math.min(size, ZipArchiveWriter.END_LENGTH + MAX_COMMENT_LENGTH);
+		final ByteBuffer tail = read(size - tailLength, tailLength);
+		int end = tailLength - ZipArchiveWriter.END_LENGTH;
+		while (end >= 0 && tail.getInt(end) != ZipArchiveWriter.END_SIGNATURE) {
+			end--;
+		}
+		if (end < 0) {
+			throw new ZipException("Not a ZIP archive");
+		}
+		final int count = tail.getShort(end + 10) & 0xffff;
+		final long directoryLength = tail.getInt(end + 12) & 0xffffffffL;
+		final long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+		if (directoryOffset + directoryLength > size) {
+			throw new ZipException("Bad central directory");
+		}
+
+		final ByteBuffer directory = read(directoryOffset, (int) directoryLength);
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (position + ZipArchiveWriter.CENTRAL_HEADER_LENGTH > directory.limit() || directory.getInt(position) != ZipArchiveWriter.CENTRAL_HEADER_SIGNATURE) {
+				throw new ZipException("Bad central directory");
+			}
+			final int method = directory.getShort(position + 10) & 0xffff;
+			final long dosTime = directory.getInt(position + 12) & 0xffffffffL;
+			final long crc = directory.getInt(position + 16) & 0xffffffffL;
+			final long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+			final long uncompressedSize = directory.getInt(position + 24) & 0xffffffffL;
+			final int nameLength = directory.getShort(position + 28) & 0xffff;
+			final int extraLength = directory.getShort(position + 30) & 0xffff;
+			final int commentLength = directory.getShort(position + 32) & 0xffff;
+			final long headerOffset = directory.getInt(position + 42) & 0xffffffffL;
+			final byte[] name = new byte[nameLength];
+			directory.position(position + ZipArchiveWriter.CENTRAL_HEADER_LENGTH);
+			directory.get(name);
+			final ZipArchiveEntry entry = new ZipArchiveEntry(new String(name, "UTF-8"), method, crc, compressedSize, uncompressedSize, dosTime, headerOffset);
+			mEntries.add(entry);
+			mEntriesByName.put(entry.getName(), entry);
+			position += ZipArchiveWriter.CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private ByteBuffer read(long offset, int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+}
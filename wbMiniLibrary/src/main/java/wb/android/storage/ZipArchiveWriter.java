@@ -0,0 +1,305 @@
+package wb.android.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal ZIP writer. Unlike {@link java.util.zip.ZipOutputStream}, it can also copy the compressed bytes of an entry
+ * straight out of another archive (see {@link #copy(String, long, ZipArchiveEntry, ZipArchiveReader)}), so an archive
+ * can be rebuilt from a previous one without inflating and deflating the entries that did not change.
+ * <p>
+ * Sizes and checksums are patched into each local header once its data is written, so there are no data descriptors
+ * and the output can be read by {@link java.util.zip.ZipFile} and {@link java.util.zip.ZipInputStream} alike. Zip64 is
+ * not supported, so an archive is limited to 65535 entries and 4GB.
+ *
+ * @author wrb
+ */
+public final class ZipArchiveWriter implements Closeable {
+
+	static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	static final int END_SIGNATURE = 0x06054b50;
+	static final int LOCAL_HEADER_LENGTH = 30;
+	static final int CENTRAL_HEADER_LENGTH = 46;
+	static final int END_LENGTH = 22;
+
+	private static final int VERSION = 20;
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final int MAX_ENTRIES = 0xffff;
+	private static final long MAX_OFFSET = 0xffffffffL;
+	private static final int BUFFER_SIZE = 8192;
+
+	private final FileOutputStream mStream;
+	private final FileChannel mChannel;
+	private final OutputStream mChannelStream;
+	private final ArrayList<ZipArchiveEntry> mEntries;
+	private final Deflater mDeflater;
+	private final byte[] mBuffer;
+	private boolean mIsClosed;
+
+	// The entry that is currently being written
+	private String mEntryName;
+	private int mEntryMethod;
+	private long mEntryDosTime, mEntryHeaderOffset, mEntryDataOffset;
+
+	public ZipArchiveWriter(File file) throws IOException {
+		this(file, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ZipArchiveWriter(File file, int level) throws IOException {
+		mStream = new FileOutputStream(file);
+		mChannel = mStream.getChannel();
+		mChannelStream = Channels.newOutputStream(mChannel);
+		mEntries = new ArrayList<ZipArchiveEntry>();
+		mDeflater = new Deflater(level, true);
+		mBuffer = new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Writes a file as a new entry
+	 */
+	public ZipArchiveEntry write(String name, File file, boolean deflate) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			return write(name, file.lastModified(), in, deflate);
+		}
+		finally {
+			StorageManager.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Writes the remaining contents of a stream as a new entry. The stream is not closed.
+	 */
+	public ZipArchiveEntry write(String name, long time, InputStream in, boolean deflate) throws IOException {
+		startEntry(name, time, deflate ? ZipEntry.DEFLATED : ZipEntry.STORED);
+		final CRC32 crc = new CRC32();
+		long size = 0;
+		DeflaterOutputStream deflaterStream = null;
+		OutputStream out = mChannelStream;
+		if (deflate) {
+			mDeflater.reset();
+			deflaterStream = new DeflaterOutputStream(mChannelStream, mDeflater, BUFFER_SIZE);
+			out = deflaterStream;
+		}
+		int read;
+		while ((read = in.read(mBuffer)) != -1) {
+			crc.update(mBuffer, 0, read);
+			out.write(mBuffer, 0, read);
+			size += read;
+		}
+		if (deflaterStream != null) {
+			deflaterStream.finish(); // Not closed, since that would close the channel
+		}
+		return finishEntry(crc.getValue(), size);
+	}
+
+	/**
+	 * Starts an entry whose data will be written with {@link #writeRaw}. The sizes and checksum are filled in by
+	 * {@link #finishEntry}
+	 */
+	void startEntry(String name, long time, int method) throws IOException {
+		final byte[] nameBytes = getNameBytes(name);
+		final long dosTime = toDosTime(time);
+		final long headerOffset = mChannel.position();
+		checkEntries();
+		checkOffset(headerOffset);
+		writeLocalHeader(nameBytes, method, dosTime, 0, 0, 0);
+		mEntryName = name;
+		mEntryMethod = method;
+		mEntryDosTime = dosTime;
+		mEntryHeaderOffset = headerOffset;
+		mEntryDataOffset = mChannel.position();
+	}
+
+	/**
+	 * Appends data (already compressed with the entry's method) to the entry that was started by {@link #startEntry}
+	 */
+	void writeRaw(byte[] data, int offset, int length) throws IOException {
+		writeFully(ByteBuffer.wrap(data, offset, length));
+	}
+
+	ZipArchiveEntry finishEntry(long crc, long size) throws IOException {
+		final long compressedSize = mChannel.position() - mEntryDataOffset;
+		checkOffset(Math.max(size, mChannel.position()));
+
+		// Now that the sizes are known, fill them in
+		final ByteBuffer sizes = allocate(12);
+		sizes.putInt((int) crc).putInt((int) compressedSize).putInt((int) size).flip();
+		writeFully(sizes, mEntryHeaderOffset + 14);
+		final ZipArchiveEntry entry = addEntry(mEntryName, mEntryMethod, crc, compressedSize, size, mEntryDosTime, mEntryHeaderOffset);
+		mEntryName = null;
+		return entry;
+	}
+
+	/**
+	 * Copies an entry of another archive as-is (i.e. without inflating it), under a new name and time
+	 */
+	public ZipArchiveEntry copy(String name, long time, ZipArchiveEntry source, ZipArchiveReader from) throws IOException {
+		final byte[] nameBytes = getNameBytes(name);
+		final long dosTime = toDosTime(time);
+		final long headerOffset = mChannel.position();
+		checkEntries();
+		checkOffset(headerOffset + source.getCompressedSize());
+		writeLocalHeader(nameBytes, source.getMethod(), dosTime, source.getCrc(), source.getCompressedSize(), source.getSize());
+
+		final FileChannel channel = from.getChannel();
+		final long dataOffset = from.getDataOffset(source);
+		long copied = 0;
+		while (copied < source.getCompressedSize()) {
+			final long count = channel.transferTo(dataOffset + copied, source.getCompressedSize() - copied, mChannel);
+			if (count <= 0) {
+				throw new ZipException("Truncated entry " + source.getName());
+			}
+			copied += count;
+		}
+		return addEntry(name, source.getMethod(), source.getCrc(), source.getCompressedSize(), source.getSize(), dosTime, headerOffset);
+	}
+
+	/**
+	 * Writes the central directory and closes the archive
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mIsClosed) {
+			return;
+		}
+		mIsClosed = true;
+		try {
+			final long directoryOffset = mChannel.position();
+			for (final ZipArchiveEntry entry : mEntries) {
+				final byte[] nameBytes = getNameBytes(entry.getName());
+				final ByteBuffer header = allocate(CENTRAL_HEADER_LENGTH + nameBytes.length);
+				header.putInt(CENTRAL_HEADER_SIGNATURE);
+				header.putShort((short) VERSION); // Made by
+				header.putShort((short) VERSION); // Needed to extract
+				header.putShort((short) FLAG_UTF8);
+				header.putShort((short) entry.getMethod());
+				header.putInt((int) entry.getDosTime());
+				header.putInt((int) entry.getCrc());
+				header.putInt((int) entry.getCompressedSize());
+				header.putInt((int) entry.getSize());
+				header.putShort((short) nameBytes.length);
+				header.putShort((short) 0); // Extra
+				header.putShort((short) 0); // Comment
+				header.putShort((short) 0); // Disk
+				header.putShort((short) 0); // Internal attributes
+				header.putInt(0); // External attributes
+				header.putInt((int) entry.getHeaderOffset());
+				header.put(nameBytes);
+				header.flip();
+				writeFully(header);
+			}
+			final long directoryLength = mChannel.position() - directoryOffset;
+			checkOffset(mChannel.position());
+			final ByteBuffer end = allocate(END_LENGTH);
+			end.putInt(END_SIGNATURE);
+			end.putShort((short) 0).putShort((short) 0); // Disks
+			end.putShort((short) mEntries.size()).putShort((short) mEntries.size());
+			end.putInt((int) directoryLength);
+			end.putInt((int) directoryOffset);
+			end.putShort((short) 0); // Comment
+			end.flip();
+			writeFully(end);
+		}
+		finally {
+			mDeflater.end();
+			mStream.close();
+		}
+	}
+
+	private ZipArchiveEntry addEntry(String name, int method, long crc, long compressedSize, long size, long dosTime, long headerOffset) {
+		final ZipArchiveEntry entry = new ZipArchiveEntry(name, method, crc, compressedSize, size, dosTime, headerOffset);
+		mEntries.add(entry);
+		return entry;
+	}
+
+	private void writeLocalHeader(byte[] nameBytes, int method, long dosTime, long crc, long compressedSize, long size) throws IOException {
+		final ByteBuffer header = allocate(LOCAL_HEADER_LENGTH + nameBytes.length);
+		header.putInt(LOCAL_HEADER_SIGNATURE);
+		header.putShort((short) VERSION);
+		header.putShort((short) FLAG_UTF8);
+		header.putShort((short) method);
+		header.putInt((int) dosTime);
+		header.putInt((int) crc);
+		header.putInt((int) compressedSize);
+		header.putInt((int) size);
+		header.putShort((short) nameBytes.length);
+		header.putShort((short) 0); // Extra
+		header.put(nameBytes);
+		header.flip();
+		writeFully(header);
+	}
+
+	private void checkEntries() throws ZipException {
+		if (mEntries.size() >= MAX_ENTRIES) {
+			throw new ZipException("Archive has too many entries");
+		}
+	}
+
+	private void checkOffset(long offset) throws ZipException {
+		if (offset > MAX_OFFSET) {
+			throw new ZipException("Archive is too large");
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			mChannel.write(buffer);
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += mChannel.write(buffer, position);
+		}
+	}
+
+	private static ByteBuffer allocate(int length) {
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static byte[] getNameBytes(String name) throws ZipException {
+		try {
+			final byte[] bytes = name.getBytes("UTF-8");
+			if (bytes.length > 0xffff) {
+				throw new ZipException("Name is too long: " + name);
+			}
+			return bytes;
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new ZipException(e.toString());
+		}
+	}
+
+	/**
+	 * Converts a time in milliseconds to the MS-DOS date and time format that ZIP files use (2 second precision)
+	 */
+	static long toDosTime(long time) {
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		final int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16); // January 1st, 1980
+		}
+		return ((year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1) & 0xffffffffL;
+	}
+
+}